@@ -0,0 +1,78 @@
+package dev.sixik.mcsr.rework.chunk;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * Region-wide bulk operations against the size of the {@link ForkJoinPool}: {@code fill} writes a
+ * 100x64x100 box that starts and ends inside sections (so most sections take the region path, not the
+ * whole-section reset), {@code count} and {@code copy} run over a region whose first 8x8 columns hold
+ * 6 populated sections each.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="RegionBenchmark"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionBenchmark {
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private ForkJoinPool pool;
+    private Region<Block> populated;
+    private Region<Block> target;
+    private Block[] blocks;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BlocksRegister.init();
+        this.pool = new ForkJoinPool(this.parallelism);
+        this.populated = new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 0, 0, -4, 24, this.pool);
+        this.target = new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 0, 0, -4, 24, this.pool);
+
+        SplittableRandom random = new SplittableRandom(21L);
+        for (int n = 0; n < 200_000; n++) {
+            this.populated.set(random.nextInt(128), random.nextInt(96), random.nextInt(128), BLOCKS.byId(1 + random.nextInt(60)));
+        }
+
+        this.blocks = new Block[16];
+        for (int i = 0; i < this.blocks.length; i++) {
+            this.blocks[i] = BLOCKS.byId(1 + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    @Benchmark
+    public Region<Block> fill() {
+        Block block = this.blocks[this.cursor = (this.cursor + 1) & 15];
+        this.target.fill(3, 5, 3, 102, 68, 102, block);
+        return this.target;
+    }
+
+    @Benchmark
+    public Reference2LongMap<Block> count() {
+        return this.populated.count();
+    }
+
+    @Benchmark
+    public Region<Block> copy() {
+        return this.populated.copy();
+    }
+}
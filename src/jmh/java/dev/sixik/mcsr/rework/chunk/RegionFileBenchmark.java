@@ -0,0 +1,119 @@
+package dev.sixik.mcsr.rework.chunk;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * Saving and loading {@value #CHUNKS} chunk columns on local disk: 10 region files of 1000 columns, each column
+ * with 4 written sections of terrain (layers of a few blocks with scattered ores, 6 to 14 types per section)
+ * drawn from 32 distinct sections. Scores are per column.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="RegionFileBenchmark"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionFileBenchmark {
+    static final int CHUNKS = 10_000;
+    private static final int REGIONS = 10;
+    private static final int COLUMNS = CHUNKS / REGIONS;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private ForkJoinPool pool;
+    private Path directory;
+    private Region<Block>[] regions;
+    private RegionFile<Block>[] saved;
+    private RegionFile<Block>[] scratch;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() throws IOException {
+        BlocksRegister.init();
+        this.pool = new ForkJoinPool(this.parallelism);
+        this.directory = Files.createTempDirectory("regions");
+
+        SplittableRandom random = new SplittableRandom(24L);
+        PalettedContainer<Block>[] sections = (PalettedContainer<Block>[]) new PalettedContainer<?>[32];
+        for (int s = 0; s < sections.length; s++) {
+            PalettedContainer<Block> section = new PalettedContainer<>(BLOCKS, BlocksRegister.STONE, PalettedContainer.Strategy.SECTION_STATES);
+            int layers = 2 + random.nextInt(4);
+            for (int y = 0; y < 16; y++) {
+                Block layer = BLOCKS.byId(1 + (y * layers / 16) % 8);
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        section.set(x, y, z, random.nextInt(40) == 0 ? BLOCKS.byId(20 + random.nextInt(6)) : layer);
+                    }
+                }
+            }
+            sections[s] = section;
+        }
+
+        this.regions = (Region<Block>[]) new Region<?>[REGIONS];
+        this.saved = (RegionFile<Block>[]) new RegionFile<?>[REGIONS];
+        this.scratch = (RegionFile<Block>[]) new RegionFile<?>[REGIONS];
+        for (int r = 0; r < REGIONS; r++) {
+            Region<Block> region = new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, r, 0, -4, 24, this.pool);
+            for (int c = 0; c < COLUMNS; c++) {
+                ChunkColumn<Block> column = region.getOrCreateColumn((r << Region.SHIFT) + (c & Region.SIZE - 1), c >>> Region.SHIFT);
+                for (int s = 0; s < 4; s++) {
+                    column.setSection(s, sections[random.nextInt(sections.length)]);
+                }
+            }
+            this.regions[r] = region;
+            this.saved[r] = RegionFile.open(this.directory.resolve("saved." + r + ".mcsr"), BLOCKS, r, 0);
+            this.saved[r].save(region);
+            this.scratch[r] = RegionFile.open(this.directory.resolve("scratch." + r + ".mcsr"), BLOCKS, r, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (int r = 0; r < REGIONS; r++) {
+            this.saved[r].close();
+            this.scratch[r].close();
+        }
+        this.pool.shutdown();
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNKS)
+    public RegionFile<Block>[] save() throws IOException {
+        for (int r = 0; r < REGIONS; r++) {
+            this.scratch[r].save(this.regions[r]);
+        }
+        return this.scratch;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNKS)
+    public int load() throws IOException {
+        int loaded = 0;
+        for (int r = 0; r < REGIONS; r++) {
+            loaded += this.saved[r].load(new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, r, 0, -4, 24, this.pool));
+        }
+        return loaded;
+    }
+}
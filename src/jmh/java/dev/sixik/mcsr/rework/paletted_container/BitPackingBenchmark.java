@@ -0,0 +1,129 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk unpack, pack and histogram of one section (4096 values) for the common widths. {@code legacy*} are
+ * the per-element loops the storages used before {@link BitPacking}, {@code scalar*} the word-at-a-time
+ * fallback and {@code vector*} the dispatching entry points, which are only vectorized when the JVM runs
+ * with {@code --add-modules jdk.incubator.vector} (the {@code jmh} task does).
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="BitPackingBenchmark"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitPackingBenchmark {
+    private static final int SIZE = 4096;
+
+    @Param({"1", "2", "3", "4", "5", "6", "7", "8", "15"})
+    public int bits;
+
+    private int[] values;
+    private int[] target;
+    private long[] words;
+    private AtomicSimpleBitStorage storage;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(11L);
+        this.values = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            this.values[i] = random.nextInt(1 << this.bits);
+        }
+
+        this.target = new int[SIZE];
+        this.storage = new AtomicSimpleBitStorage(this.bits, SIZE, this.values);
+        this.words = this.storage.getRaw().clone();
+    }
+
+    @Benchmark
+    public int[] legacyUnpack() {
+        for (int i = 0; i < SIZE; i++) {
+            this.target[i] = this.storage.get(i);
+        }
+        return this.target;
+    }
+
+    @Benchmark
+    public int[] scalarUnpack() {
+        BitPacking.unpackScalar(this.storage.getRaw(), this.bits, 0, SIZE, this.target);
+        return this.target;
+    }
+
+    @Benchmark
+    public int[] vectorUnpack() {
+        BitPacking.unpack(this.storage.getRaw(), this.bits, SIZE, this.target);
+        return this.target;
+    }
+
+    @Benchmark
+    public long[] legacyPack() {
+        int valuesPerLong = 64 / this.bits;
+        long mask = (1L << this.bits) - 1L;
+        int k = 0;
+
+        int l;
+        for (l = 0; l <= SIZE - valuesPerLong; l += valuesPerLong) {
+            long m = 0L;
+            for (int n = valuesPerLong - 1; n >= 0; n--) {
+                m <<= this.bits;
+                m |= this.values[l + n] & mask;
+            }
+            this.words[k++] = m;
+        }
+
+        int o = SIZE - l;
+        if (o > 0) {
+            long p = 0L;
+            for (int q = o - 1; q >= 0; q--) {
+                p <<= this.bits;
+                p |= this.values[l + q] & mask;
+            }
+            this.words[k] = p;
+        }
+        return this.words;
+    }
+
+    @Benchmark
+    public long[] scalarPack() {
+        BitPacking.packScalar(this.values, this.bits, 0, SIZE, this.words);
+        return this.words;
+    }
+
+    @Benchmark
+    public long[] vectorPack() {
+        BitPacking.pack(this.values, this.bits, SIZE, this.words);
+        return this.words;
+    }
+
+    @Benchmark
+    public Int2IntOpenHashMap legacyHistogram() {
+        Int2IntOpenHashMap counts = new Int2IntOpenHashMap();
+        for (int i = 0; i < SIZE; i++) {
+            counts.addTo(this.storage.get(i), 1);
+        }
+        return counts;
+    }
+
+    @Benchmark
+    public int[] scalarHistogram() {
+        int[] counts = new int[1 << this.bits];
+        BitPacking.histogramScalar(this.storage.getRaw(), this.bits, 0, SIZE, counts);
+        return counts;
+    }
+
+    @Benchmark
+    public int[] vectorHistogram() {
+        int[] counts = new int[1 << this.bits];
+        BitPacking.histogram(this.storage.getRaw(), this.bits, SIZE, counts);
+        return counts;
+    }
+}
@@ -0,0 +1,88 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random-access {@code get}/{@code set} of the generic {@link AtomicSimpleBitStorage} against the
+ * {@link SpecializedBitStorages} variants, 1024 accesses per operation. {@code mixed*} cycle through one
+ * storage of every width, so the call site sees all the classes a world with mixed sections would.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="BitStorageBenchmark"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitStorageBenchmark {
+    private static final int SIZE = 4096;
+    private static final int ACCESSES = 1024;
+    private static final int[] WIDTHS = {1, 2, 4, 5, 6, 8, 15};
+
+    public enum Kind {
+        GENERIC,
+        SPECIALIZED;
+
+        AtomicSimpleBitStorage create(int bits) {
+            return this == GENERIC ? new AtomicSimpleBitStorage(bits, SIZE, (long[]) null) : SpecializedBitStorages.create(bits, SIZE, (long[]) null);
+        }
+    }
+
+    @Param({"1", "2", "4", "5", "6", "8", "15"})
+    public int bits;
+
+    @Param
+    public Kind kind;
+
+    private BitStorage storage;
+    private BitStorage[] mixed;
+    private int[] indices;
+    private int[] values;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(5L);
+        this.storage = this.kind.create(this.bits);
+        this.mixed = new BitStorage[WIDTHS.length];
+        for (int w = 0; w < WIDTHS.length; w++) {
+            this.mixed[w] = this.kind.create(WIDTHS[w]);
+        }
+
+        this.indices = new int[ACCESSES];
+        this.values = new int[ACCESSES];
+        for (int n = 0; n < ACCESSES; n++) {
+            this.indices[n] = random.nextInt(SIZE);
+            this.values[n] = random.nextInt(1 << this.bits);
+            this.storage.set(this.indices[n], this.values[n]);
+        }
+    }
+
+    @Benchmark
+    public int get() {
+        int sum = 0;
+        for (int n = 0; n < ACCESSES; n++) {
+            sum += this.storage.get(this.indices[n]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void set() {
+        for (int n = 0; n < ACCESSES; n++) {
+            this.storage.set(this.indices[n], this.values[n]);
+        }
+    }
+
+    @Benchmark
+    public int mixedGet() {
+        int sum = 0;
+        for (int n = 0; n < ACCESSES; n++) {
+            sum += this.mixed[n % WIDTHS.length].get(this.indices[n]);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,105 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.FriendlyByteBuf;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * Syncing a section after {@code changes} random writes (16 block types): {@code deltas} drains the tracked
+ * positions into (index, id) pairs, {@code fullWrite} sends the whole container as the client sync would without
+ * tracking; {@code deltas} with tracking off is just the writes, the baseline for both. {@code set} is a single
+ * write with tracking {@code on} or off, to see what the bit costs.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="ChangeTrackingBenchmark"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangeTrackingBenchmark {
+    private static final int POSITIONS = 1 << 12;
+    private static final int POSITIONS_MASK = POSITIONS - 1;
+
+    @Param({"true", "false"})
+    public boolean on;
+
+    @Param({"8", "256"})
+    public int changes;
+
+    private PalettedContainer<Block> container;
+    private int[] indices;
+    private Block[] values;
+    private int cursor;
+    private ByteBuf buffer;
+    private FriendlyByteBuf friendly;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BlocksRegister.init();
+        this.container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        this.container.setTrackingChanges(this.on);
+
+        SplittableRandom random = new SplittableRandom(25L);
+        this.indices = new int[POSITIONS];
+        this.values = new Block[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            this.indices[i] = random.nextInt(POSITIONS);
+            this.values[i] = BLOCKS.byId(1 + random.nextInt(16));
+            this.container.set(i & 15, i >>> 8, i >>> 4 & 15, this.values[i]);
+        }
+        this.buffer = Unpooled.buffer(16 * 1024);
+        this.friendly = new FriendlyByteBuf(this.buffer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.buffer.release();
+    }
+
+    private void touch() {
+        for (int n = 0; n < this.changes; n++) {
+            int i = this.cursor = (this.cursor + 1) & POSITIONS_MASK;
+            int index = this.indices[i];
+            this.container.set(index & 15, index >>> 8, index >>> 4 & 15, this.values[i]);
+        }
+    }
+
+    @Benchmark
+    public void set() {
+        int i = this.cursor = (this.cursor + 1) & POSITIONS_MASK;
+        int index = this.indices[i];
+        this.container.set(index & 15, index >>> 8, index >>> 4 & 15, this.values[i]);
+    }
+
+    @Benchmark
+    public ByteBuf deltas() {
+        this.touch();
+        this.buffer.clear();
+        FriendlyByteBuf out = this.friendly;
+        if (this.on) {
+            this.container.drainChanges((index, value) -> {
+                out.writeShort(index);
+                out.writeVarInt(BLOCKS.getId(value));
+            });
+        }
+        return this.buffer;
+    }
+
+    @Benchmark
+    public ByteBuf fullWrite() {
+        this.touch();
+        this.buffer.clear();
+        this.container.write(this.friendly);
+        return this.buffer;
+    }
+}
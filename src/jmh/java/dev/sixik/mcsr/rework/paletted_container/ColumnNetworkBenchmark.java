@@ -0,0 +1,146 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.FriendlyByteBuf;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * Network encoding and decoding of a 24-section column. Sections cycle through a uniform one, a linear one
+ * and hash palettes of 5 to 8 bits. {@code *Longs} isolate the long[] transfer: {@code bulkLongs} goes
+ * through {@link FriendlyByteBuf#writeLongArray}/{@link FriendlyByteBuf#readLongArray}, {@code legacyLongs}
+ * is the element-by-element loop they replaced. {@code encodeColumnCached} sends the same column with the
+ * encoded-bytes cache enabled, the case of many players receiving unchanged sections.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="ColumnNetworkBenchmark"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColumnNetworkBenchmark {
+    private static final int SECTIONS = 24;
+    private static final int[] TYPES = {1, 13, 30, 60, 120, 250};
+
+    static {
+        if (BLOCKS.size() < 505) {
+            BlocksRegister.init();
+        }
+    }
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private PalettedContainer<Block>[] sections;
+    private PalettedContainer<Block>[] targets;
+    private PalettedContainer<Block>[] cached;
+    private long[][] raws;
+    private long[][] readBack;
+    private ByteBuf buffer;
+    private FriendlyByteBuf friendly;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(24L);
+        this.sections = (PalettedContainer<Block>[]) new PalettedContainer<?>[SECTIONS];
+        this.targets = (PalettedContainer<Block>[]) new PalettedContainer<?>[SECTIONS];
+        this.cached = (PalettedContainer<Block>[]) new PalettedContainer<?>[SECTIONS];
+        this.raws = new long[SECTIONS][];
+        this.readBack = new long[SECTIONS][];
+
+        for (int s = 0; s < SECTIONS; s++) {
+            int types = TYPES[s % TYPES.length];
+            PalettedContainer<Block> section = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+            if (types > 1) {
+                for (int i = 0; i < 4096; i++) {
+                    section.set(i & 15, i >>> 8, i >>> 4 & 15, BLOCKS.byId(random.nextInt(types)));
+                }
+            }
+
+            this.sections[s] = section;
+            this.cached[s] = section.copy();
+            this.cached[s].setEncodedCaching(true);
+            this.targets[s] = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+            this.raws[s] = section.getBits() == 0 ? new long[0] : new AtomicSimpleBitStorage(section.getBits(), 4096).getRaw();
+            for (int w = 0; w < this.raws[s].length; w++) {
+                this.raws[s][w] = random.nextLong();
+            }
+            this.readBack[s] = new long[this.raws[s].length];
+        }
+
+        this.buffer = this.direct ? Unpooled.directBuffer(SECTIONS * 8192) : Unpooled.buffer(SECTIONS * 8192);
+        this.friendly = new FriendlyByteBuf(this.buffer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.buffer.release();
+    }
+
+    @Benchmark
+    public ByteBuf encodeColumn() {
+        this.buffer.clear();
+        for (PalettedContainer<Block> section : this.sections) {
+            section.write(this.friendly);
+        }
+        return this.buffer;
+    }
+
+    @Benchmark
+    public ByteBuf encodeColumnCached() {
+        this.buffer.clear();
+        for (PalettedContainer<Block> section : this.cached) {
+            section.write(this.friendly);
+        }
+        return this.buffer;
+    }
+
+    @Benchmark
+    public PalettedContainer<Block>[] decodeColumn() {
+        this.encodeColumn();
+        for (PalettedContainer<Block> target : this.targets) {
+            target.read(this.friendly);
+        }
+        return this.targets;
+    }
+
+    @Benchmark
+    public long[][] bulkLongs() {
+        this.buffer.clear();
+        for (long[] raw : this.raws) {
+            this.friendly.writeLongArray(raw);
+        }
+        for (long[] target : this.readBack) {
+            this.friendly.readLongArray(target);
+        }
+        return this.readBack;
+    }
+
+    @Benchmark
+    public long[][] legacyLongs() {
+        this.buffer.clear();
+        for (long[] raw : this.raws) {
+            this.friendly.writeVarInt(raw.length);
+            for (long l : raw) {
+                this.buffer.writeLong(l);
+            }
+        }
+        for (long[] target : this.readBack) {
+            this.friendly.readVarInt();
+            for (int k = 0; k < target.length; k++) {
+                target[k] = this.buffer.readLong();
+            }
+        }
+        return this.readBack;
+    }
+}
@@ -0,0 +1,84 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * Single-threaded writes under each {@link ConcurrencyPolicy}: {@code set} overwrites a section that already
+ * holds every type, {@code generate} fills a fresh section the way a worldgen stage does, and
+ * {@code handOff} measures one round trip between {@link ConcurrencyPolicy#PLAIN} and
+ * {@link ConcurrencyPolicy#LOCK_FREE}.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="ConcurrencyPolicyBenchmark"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrencyPolicyBenchmark {
+    private static final int WRITES = 4096;
+
+    @Param
+    public ConcurrencyPolicy policy;
+
+    @Param({"12", "100"})
+    public int types;
+
+    private PalettedContainer<Block> container;
+    private int[] indices;
+    private Block[] blocks;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BlocksRegister.init();
+        SplittableRandom random = new SplittableRandom(11L);
+        this.indices = new int[WRITES];
+        this.blocks = new Block[WRITES];
+        for (int n = 0; n < WRITES; n++) {
+            this.indices[n] = random.nextInt(4096);
+            this.blocks[n] = BLOCKS.byId(random.nextInt(this.types));
+        }
+
+        this.container = this.generateOnce();
+    }
+
+    private PalettedContainer<Block> generateOnce() {
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, this.policy);
+        for (int n = 0; n < WRITES; n++) {
+            int index = this.indices[n];
+            container.set(index & 15, index >>> 8, index >>> 4 & 15, this.blocks[n]);
+        }
+        return container;
+    }
+
+    @Benchmark
+    public void set() {
+        int n = this.cursor = (this.cursor + 1) & (WRITES - 1);
+        int index = this.indices[n];
+        this.container.set(index & 15, index >>> 8, index >>> 4 & 15, this.blocks[WRITES - 1 - n]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public PalettedContainer<Block> generate() {
+        PalettedContainer<Block> container = this.generateOnce();
+        container.recycle();
+        return container;
+    }
+
+    @Benchmark
+    public PalettedContainer<Block> handOff() {
+        this.container.handOff(ConcurrencyPolicy.LOCK_FREE);
+        this.container.handOff(ConcurrencyPolicy.PLAIN);
+        return this.container;
+    }
+}
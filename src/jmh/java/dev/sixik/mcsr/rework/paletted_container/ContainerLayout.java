@@ -0,0 +1,107 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import net.minecraft.util.Mth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * Every valid palette/storage pairing a benchmark can run against. Palettes are pre-filled up to their
+ * capacity, so the measured operations never fall into {@link PalettedContainer#onResize} by accident.
+ */
+public enum ContainerLayout {
+    SINGLE_VALUE_ZERO(PalettedContainer.Strategy.SINGLE_VALUE_PALETTE_FACTORY, StorageKind.ZERO, 0),
+    LINEAR_SIMPLE(PalettedContainer.Strategy.LINEAR_PALETTE_FACTORY, StorageKind.SIMPLE, 4),
+    LINEAR_ATOMIC_SIMPLE(PalettedContainer.Strategy.LINEAR_PALETTE_FACTORY, StorageKind.ATOMIC_SIMPLE, 4),
+    LINEAR_ATOMIC_ALIGNED(PalettedContainer.Strategy.LINEAR_PALETTE_FACTORY, StorageKind.ATOMIC_ALIGNED, 4),
+    CONCURRENT_SINGLE_VALUE_ZERO(PalettedContainer.Strategy.CONCURRENT_SINGLE_VALUE_PALETTE_FACTORY, StorageKind.ZERO, 0),
+    CONCURRENT_LINEAR_ATOMIC_SIMPLE(PalettedContainer.Strategy.CONCURRENT_LINEAR_PALETTE_FACTORY, StorageKind.ATOMIC_SIMPLE, 4),
+    HASHMAP_SIMPLE(PalettedContainer.Strategy.HASHMAP_PALETTE_FACTORY, StorageKind.SIMPLE, 8),
+    HASHMAP_ATOMIC_SIMPLE(PalettedContainer.Strategy.HASHMAP_PALETTE_FACTORY, StorageKind.ATOMIC_SIMPLE, 8),
+    HASHMAP_ATOMIC_ALIGNED(PalettedContainer.Strategy.HASHMAP_PALETTE_FACTORY, StorageKind.ATOMIC_ALIGNED, 8),
+    CONCURRENT_HASHMAP_SIMPLE(PalettedContainer.Strategy.CONCURRENT_HASHMAP_PALETTE_FACTORY, StorageKind.SIMPLE, 8),
+    CONCURRENT_HASHMAP_ATOMIC_SIMPLE(PalettedContainer.Strategy.CONCURRENT_HASHMAP_PALETTE_FACTORY, StorageKind.ATOMIC_SIMPLE, 8),
+    CONCURRENT_HASHMAP_ATOMIC_ALIGNED(PalettedContainer.Strategy.CONCURRENT_HASHMAP_PALETTE_FACTORY, StorageKind.ATOMIC_ALIGNED, 8),
+    LOCK_FREE_HASHMAP_SIMPLE(PalettedContainer.Strategy.LOCK_FREE_HASHMAP_PALETTE_FACTORY, StorageKind.SIMPLE, 8),
+    LOCK_FREE_HASHMAP_ATOMIC_SIMPLE(PalettedContainer.Strategy.LOCK_FREE_HASHMAP_PALETTE_FACTORY, StorageKind.ATOMIC_SIMPLE, 8),
+    LOCK_FREE_HASHMAP_ATOMIC_ALIGNED(PalettedContainer.Strategy.LOCK_FREE_HASHMAP_PALETTE_FACTORY, StorageKind.ATOMIC_ALIGNED, 8),
+    GLOBAL_SIMPLE(PalettedContainer.Strategy.GLOBAL_PALETTE_FACTORY, StorageKind.SIMPLE, -1),
+    GLOBAL_ATOMIC_SIMPLE(PalettedContainer.Strategy.GLOBAL_PALETTE_FACTORY, StorageKind.ATOMIC_SIMPLE, -1),
+    GLOBAL_ATOMIC_ALIGNED(PalettedContainer.Strategy.GLOBAL_PALETTE_FACTORY, StorageKind.ATOMIC_ALIGNED, -1);
+
+    static {
+        // 5 vanilla-ish blocks plus 500 generated ones, enough to push the global palette to 9 bits.
+        if (BLOCKS.size() < 505) {
+            BlocksRegister.init();
+        }
+    }
+
+    private final Palette.Factory factory;
+    private final StorageKind storage;
+    private final int bits;
+
+    ContainerLayout(Palette.Factory factory, StorageKind storage, int bits) {
+        this.factory = factory;
+        this.storage = storage;
+        this.bits = bits;
+    }
+
+    public int bits() {
+        return this.bits < 0 ? Mth.ceillog2(BLOCKS.size()) : this.bits;
+    }
+
+    /**
+     * Distinct values the container is filled with: as many as the palette holds without resizing.
+     */
+    public List<Block> entries() {
+        int count = this.factory == PalettedContainer.Strategy.GLOBAL_PALETTE_FACTORY
+                ? BLOCKS.size()
+                : Math.min(1 << this.bits(), BLOCKS.size());
+        List<Block> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(BLOCKS.byId(i));
+        }
+        return list;
+    }
+
+    public PalettedContainer<Block> create(long seed) {
+        PalettedContainer.Strategy strategy = PalettedContainer.Strategy.SECTION_STATES;
+        int size = strategy.size();
+        List<Block> values = this.entries();
+        List<Block> paletteEntries = this.factory == PalettedContainer.Strategy.GLOBAL_PALETTE_FACTORY ? List.of() : values;
+        PalettedContainer<Block> container = new PalettedContainer<>(
+                BLOCKS, strategy, new PalettedContainer.Configuration<>(this.factory, this.bits()), this.storage.create(this.bits(), size), paletteEntries
+        );
+
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int x = 0; x < 16; x++) {
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    container.set(x, y, z, values.get(random.nextInt(values.size())));
+                }
+            }
+        }
+        return container;
+    }
+
+    public enum StorageKind {
+        ZERO,
+        SIMPLE,
+        ATOMIC_SIMPLE,
+        ATOMIC_ALIGNED;
+
+        public BitStorage create(int bits, int size) {
+            return switch (this) {
+                case ZERO -> new ZeroBitStorage(size);
+                case SIMPLE -> new SimpleBitStorage(bits, size);
+                case ATOMIC_SIMPLE -> new AtomicSimpleBitStorage(bits, size);
+                case ATOMIC_ALIGNED -> new AtomicAlignedBitStorage(bits, size);
+            };
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap footprint and GC cost of a region's block storages on the heap ({@link AtomicSimpleBitStorage} through
+ * {@link PalettedContainer.StorageFactory#HEAP}) against {@link OffHeapBitStorage} from an {@link OffHeapArena}.
+ * A region is 32 x 32 columns of 24 sections, every section a 4-bit storage with random contents.
+ * <p>
+ * {@code loadRegion} allocates a whole region and drops it again (closing the arena), run it with
+ * {@code -prof gc} for the heap bytes a region costs. {@code fullGc} times a full collection while one region
+ * is retained; the retained heap is printed once per fork.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="OffHeapStorageBenchmark -prof gc"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Xms2g"})
+public class OffHeapStorageBenchmark {
+    private static final int SECTIONS = 32 * 32 * 24;
+    private static final int SIZE = 4096;
+    private static final int BITS = 4;
+
+    public enum Kind {
+        HEAP,
+        OFF_HEAP
+    }
+
+    @Param
+    public Kind kind;
+
+    private long[][] contents;
+    private BitStorage[] retained;
+    private OffHeapArena retainedArena;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // a few hundred distinct sections are enough to keep the copies honest
+        SplittableRandom random = new SplittableRandom(16L);
+        this.contents = new long[256][];
+        for (int c = 0; c < this.contents.length; c++) {
+            int[] values = new int[SIZE];
+            for (int i = 0; i < SIZE; i++) {
+                values[i] = random.nextInt(1 << BITS);
+            }
+            this.contents[c] = new AtomicSimpleBitStorage(BITS, SIZE, values).getRaw();
+        }
+
+        long before = usedHeap();
+        this.retainedArena = this.kind == Kind.OFF_HEAP ? new OffHeapArena() : null;
+        this.retained = this.region(this.retainedArena);
+        long after = usedHeap();
+        System.out.printf("%n%s region retains %.1f MB of heap%s%n", this.kind, (after - before) / 1048576.0,
+                this.retainedArena == null ? "" : String.format(" and %.1f MB off-heap", this.retainedArena.reservedBytes() / 1048576.0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (this.retainedArena != null) {
+            this.retainedArena.close();
+        }
+    }
+
+    private BitStorage[] region(OffHeapArena arena) {
+        PalettedContainer.StorageFactory factory = arena == null ? PalettedContainer.StorageFactory.HEAP : arena.storageFactory();
+        BitStorage[] region = new BitStorage[SECTIONS];
+        for (int s = 0; s < SECTIONS; s++) {
+            long[] raw = this.contents[s % this.contents.length];
+            // the heap storage adopts its array, give it its own like a freshly read section
+            region[s] = factory.create(BITS, SIZE, arena == null ? raw.clone() : raw);
+        }
+        return region;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Benchmark
+    public BitStorage[] loadRegion() {
+        if (this.kind == Kind.HEAP) {
+            return this.region(null);
+        }
+
+        try (OffHeapArena arena = new OffHeapArena()) {
+            return this.region(arena);
+        }
+    }
+
+    @Benchmark
+    public int fullGc() {
+        System.gc();
+        return this.retained.length;
+    }
+}
@@ -0,0 +1,206 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.FriendlyByteBuf;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * Single-threaded cost of the {@link PalettedContainer} operations for every palette/storage pairing.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="PalettedContainerBenchmark"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PalettedContainerBenchmark {
+    private static final int POSITIONS = 1 << 12;
+    private static final int POSITIONS_MASK = POSITIONS - 1;
+    private static final int BATCH = 1024;
+
+    @Param
+    public ContainerLayout layout;
+
+    private PalettedContainer<Block> container;
+    private Block[] values;
+    private int[] xs;
+    private int[] ys;
+    private int[] zs;
+    private int cursor;
+    private ByteBuf buffer;
+    private int[] batchIndices;
+    private Block[] batchValues;
+    private PalettedContainerRO.PackedData<Block> packed;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.container = this.layout.create(42L);
+        List<Block> list = this.layout.entries();
+        this.values = list.toArray(new Block[0]);
+
+        SplittableRandom random = new SplittableRandom(7L);
+        this.xs = new int[POSITIONS];
+        this.ys = new int[POSITIONS];
+        this.zs = new int[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            this.xs[i] = random.nextInt(16);
+            this.ys[i] = random.nextInt(16);
+            this.zs[i] = random.nextInt(16);
+        }
+        this.buffer = Unpooled.buffer(16 * 1024);
+        this.packed = this.container.pack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES);
+
+        this.batchIndices = new int[BATCH];
+        this.batchValues = new Block[BATCH];
+        for (int n = 0; n < BATCH; n++) {
+            this.batchIndices[n] = PalettedContainer.Strategy.SECTION_STATES.getIndex(this.xs[n], this.ys[n], this.zs[n]);
+            this.batchValues[n] = this.values[random.nextInt(Math.min(32, this.values.length))];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.buffer.release();
+    }
+
+    private int next() {
+        return this.cursor = (this.cursor + 1) & POSITIONS_MASK;
+    }
+
+    @Benchmark
+    public Block get() {
+        int i = this.next();
+        return this.container.get(this.xs[i], this.ys[i], this.zs[i]);
+    }
+
+    @Benchmark
+    public void set() {
+        int i = this.next();
+        this.container.set(this.xs[i], this.ys[i], this.zs[i], this.values[i % this.values.length]);
+    }
+
+    @Benchmark
+    public Block getAndSet() {
+        int i = this.next();
+        return this.container.getAndSet(this.xs[i], this.ys[i], this.zs[i], this.values[i % this.values.length]);
+    }
+
+    @Benchmark
+    public PalettedContainerRO.PackedData<Block> pack() {
+        return this.container.pack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES);
+    }
+
+    @Benchmark
+    public PalettedContainer<Block> unpack() {
+        // the unpacked container adopts the packed array, which is fine as long as nothing writes to it
+        return PalettedContainer.unpack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES, this.packed, PackingScratch.local()).getOrThrow();
+    }
+
+    @Benchmark
+    public ByteBuf write() {
+        this.buffer.clear();
+        this.container.write(new FriendlyByteBuf(this.buffer));
+        return this.buffer;
+    }
+
+    @Benchmark
+    public void count(Blackhole blackhole) {
+        this.container.count((block, count) -> blackhole.consume(count));
+    }
+
+    /**
+     * A 16x8x16 slab (full xz planes), written through {@link PalettedContainer#fill(int, int, int, int, int, int, Object)}.
+     */
+    @Benchmark
+    public void fillSlab() {
+        int i = this.next();
+        this.container.fill(0, 4, 0, 15, 11, 15, this.values[i % this.values.length]);
+    }
+
+    /**
+     * The same slab as {@link #fillSlab}, one {@code set} per block.
+     */
+    @Benchmark
+    public void fillSlabBySet() {
+        int i = this.next();
+        Block block = this.values[i % this.values.length];
+        for (int y = 4; y <= 11; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    this.container.set(x, y, z, block);
+                }
+            }
+        }
+    }
+
+    /**
+     * An unaligned 5x5x5 cube, where every row needs partial edge words.
+     */
+    @Benchmark
+    public void fillCube() {
+        int i = this.next();
+        this.container.fill(3, 3, 3, 7, 7, 7, this.values[i % this.values.length]);
+    }
+
+    /**
+     * 1024 scattered writes through {@link PalettedContainer#setBatch(int[], Object[])}.
+     */
+    @Benchmark
+    public void setBatch() {
+        this.container.setBatch(this.batchIndices, this.batchValues);
+    }
+
+    /**
+     * The same 1024 writes as {@link #setBatch}, one {@code set} each.
+     */
+    @Benchmark
+    public void setBatchBySet() {
+        for (int n = 0; n < BATCH; n++) {
+            int index = this.batchIndices[n];
+            this.container.set(index & 15, index >>> 8, index >>> 4 & 15, this.batchValues[n]);
+        }
+    }
+
+    /**
+     * Cost of one {@link PalettedContainer#onResize} on a full section, starting from the layout's palette.
+     * The container is rebuilt before every invocation because a resize can only happen once.
+     */
+    @State(Scope.Thread)
+    public static class ResizeState {
+        @Param
+        public ContainerLayout layout;
+
+        private PalettedContainer<Block> prototype;
+        private PalettedContainer<Block> container;
+        private Block extra;
+        private int bits;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.prototype = this.layout.create(42L);
+            this.bits = this.prototype.getBits();
+            this.extra = new Block(-1L);
+        }
+
+        @Setup(Level.Invocation)
+        public void prepare() {
+            this.container = this.prototype.copy();
+        }
+    }
+
+    @Benchmark
+    public int onResize(ResizeState state) {
+        return state.container.onResize(state.bits + 1, state.extra);
+    }
+}
@@ -0,0 +1,113 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contended access to one shared {@link PalettedContainer}, mirroring the 1-writer / N-readers shapes of
+ * {@code PalettedContainerTest#testHighContention}. The reader count of a group can be overridden from the
+ * command line, e.g. {@code -tg 1,16} for one writer and sixteen readers.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="PalettedContainerContentionBenchmark"}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PalettedContainerContentionBenchmark {
+
+    @Param({"LINEAR_ATOMIC_SIMPLE", "CONCURRENT_LINEAR_ATOMIC_SIMPLE", "CONCURRENT_HASHMAP_ATOMIC_SIMPLE", "CONCURRENT_HASHMAP_ATOMIC_ALIGNED", "LOCK_FREE_HASHMAP_ATOMIC_SIMPLE", "GLOBAL_ATOMIC_SIMPLE"})
+    public ContainerLayout layout;
+
+    private PalettedContainer<Block> container;
+    private Block[] values;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.container = this.layout.create(42L);
+        this.values = this.layout.entries().toArray(new Block[0]);
+    }
+
+    /**
+     * Hot spot: every thread hits the same block, like {@code testHighContention}.
+     */
+    private void writeHot() {
+        int i = ThreadLocalRandom.current().nextInt(this.values.length);
+        this.container.set(8, 8, 8, this.values[i]);
+    }
+
+    private Block readHot() {
+        return this.container.get(8, 8, 8);
+    }
+
+    private void writeScattered() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        this.container.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), this.values[random.nextInt(this.values.length)]);
+    }
+
+    private Block readScattered() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return this.container.get(random.nextInt(16), random.nextInt(16), random.nextInt(16));
+    }
+
+    @Benchmark
+    @Group("hot1")
+    @GroupThreads(1)
+    public void hot1Writer() {
+        this.writeHot();
+    }
+
+    @Benchmark
+    @Group("hot1")
+    @GroupThreads(1)
+    public Block hot1Reader() {
+        return this.readHot();
+    }
+
+    @Benchmark
+    @Group("hot4")
+    @GroupThreads(1)
+    public void hot4Writer() {
+        this.writeHot();
+    }
+
+    @Benchmark
+    @Group("hot4")
+    @GroupThreads(4)
+    public Block hot4Reader() {
+        return this.readHot();
+    }
+
+    @Benchmark
+    @Group("hot8")
+    @GroupThreads(1)
+    public void hot8Writer() {
+        this.writeHot();
+    }
+
+    @Benchmark
+    @Group("hot8")
+    @GroupThreads(8)
+    public Block hot8Reader() {
+        return this.readHot();
+    }
+
+    @Benchmark
+    @Group("scattered4")
+    @GroupThreads(1)
+    public void scattered4Writer() {
+        this.writeScattered();
+    }
+
+    @Benchmark
+    @Group("scattered4")
+    @GroupThreads(4)
+    public Block scattered4Reader() {
+        return this.readScattered();
+    }
+}
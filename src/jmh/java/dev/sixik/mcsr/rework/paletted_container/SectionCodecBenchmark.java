@@ -0,0 +1,95 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.DynamicOps;
+import com.mojang.serialization.JavaOps;
+import com.mojang.serialization.JsonOps;
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * Round trip of one section through {@link PalettedContainer#codecRW}. {@code JSON} boxes every storage
+ * long into a number element, {@code JAVA} keeps the storage as a primitive long list.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="SectionCodecBenchmark"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SectionCodecBenchmark {
+    private static final Codec<PalettedContainer<Block>> CODEC = PalettedContainer.codecRW(
+            BLOCKS, Codec.INT.xmap(BLOCKS::byId, BLOCKS::getId), PalettedContainer.Strategy.SECTION_STATES, BlocksRegister.AIR
+    );
+
+    static {
+        if (BLOCKS.size() < 505) {
+            BlocksRegister.init();
+        }
+    }
+
+    public enum Ops {
+        JSON(JsonOps.INSTANCE),
+        JAVA(JavaOps.INSTANCE);
+
+        final DynamicOps<?> ops;
+
+        Ops(DynamicOps<?> ops) {
+            this.ops = ops;
+        }
+    }
+
+    @Param
+    public Ops ops;
+
+    @Param({"1", "13", "250"})
+    public int types;
+
+    private PalettedContainer<Block> section;
+    private Object encoded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(15L);
+        this.section = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        if (this.types > 1) {
+            for (int i = 0; i < 4096; i++) {
+                this.section.set(i & 15, i >>> 8, i >>> 4 & 15, BLOCKS.byId(random.nextInt(this.types)));
+            }
+        }
+        this.encoded = this.encode();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <O> O encode() {
+        return CODEC.encodeStart((DynamicOps<O>) this.ops.ops, this.section).getOrThrow();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <O> PalettedContainer<Block> decode(Object input) {
+        return CODEC.parse((DynamicOps<O>) this.ops.ops, (O) input).getOrThrow();
+    }
+
+    @Benchmark
+    public Object encodeSection() {
+        return this.encode();
+    }
+
+    @Benchmark
+    public PalettedContainer<Block> decodeSection() {
+        return this.decode(this.encoded);
+    }
+
+    @Benchmark
+    public PalettedContainer<Block> roundTrip() {
+        return this.decode(this.encode());
+    }
+}
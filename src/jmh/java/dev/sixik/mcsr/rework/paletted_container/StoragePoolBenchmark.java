@@ -0,0 +1,78 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * A worldgen-like burst: a fresh section gets {@code types} block types at random positions, growing through
+ * every palette width on the way, is copied once and then unloaded with {@link PalettedContainer#recycle()}.
+ * {@code burstUnpooled} runs the same code with {@link StoragePool} disabled. Compare
+ * {@code gc.alloc.rate.norm} with {@code -prof gc}; the pool hit rate is printed after each trial.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="StoragePoolBenchmark -prof gc"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoragePoolBenchmark {
+    private static final int WRITES = 2048;
+
+    @Param({"12", "100", "300"})
+    public int types;
+
+    private int[] indices;
+    private Block[] blocks;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BlocksRegister.init();
+        SplittableRandom random = new SplittableRandom(17L);
+        this.indices = new int[WRITES];
+        this.blocks = new Block[WRITES];
+        for (int n = 0; n < WRITES; n++) {
+            this.indices[n] = random.nextInt(4096);
+            // new types keep arriving over the whole burst, so every resize happens
+            this.blocks[n] = BLOCKS.byId(random.nextInt(1 + (int) ((long) n * this.types / WRITES)));
+        }
+        StoragePool.SHARED.resetCounters();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println(StoragePool.SHARED);
+    }
+
+    private PalettedContainer<Block> burstOnce() {
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        for (int n = 0; n < WRITES; n++) {
+            int index = this.indices[n];
+            container.set(index & 15, index >>> 8, index >>> 4 & 15, this.blocks[n]);
+        }
+
+        PalettedContainer<Block> copy = container.copy();
+        container.recycle();
+        copy.recycle();
+        return copy;
+    }
+
+    @Benchmark
+    public PalettedContainer<Block> burst() {
+        return this.burstOnce();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dmcsr.disableStoragePool=true")
+    public PalettedContainer<Block> burstUnpooled() {
+        return this.burstOnce();
+    }
+}
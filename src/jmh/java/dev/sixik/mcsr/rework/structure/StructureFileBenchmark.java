@@ -0,0 +1,94 @@
+package dev.sixik.mcsr.rework.structure;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import dev.sixik.mcsr.rework.chunk.Region;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * A dense 48x32x48 structure (18 sections, {@code types} block types) placed into a fresh region:
+ * {@code mapped} opens the {@link StructureFile} and places it section-aligned, {@code mappedUnaligned} places
+ * an already opened file across section borders, and {@code template} places the same blocks from an in-memory
+ * {@link StructureTemplate} through {@link StructurePlacer}.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="StructureFileBenchmark"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructureFileBenchmark {
+    @Param({"12", "100"})
+    public int types;
+
+    private ForkJoinPool pool;
+    private Path path;
+    private StructureFile<Block> file;
+    private StructureTemplate<Block> template;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BlocksRegister.init();
+        this.pool = new ForkJoinPool(1);
+
+        StructureTemplate.Builder<Block> builder = StructureTemplate.builder();
+        StructureFile.Writer<Block> writer = StructureFile.writer(BLOCKS, PalettedContainer.Strategy.SECTION_STATES);
+        SplittableRandom random = new SplittableRandom(23L);
+        for (int sectionY = 0; sectionY < 2; sectionY++) {
+            for (int sectionZ = 0; sectionZ < 3; sectionZ++) {
+                for (int sectionX = 0; sectionX < 3; sectionX++) {
+                    PalettedContainer<Block> section = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+                    for (int i = 0; i < 4096; i++) {
+                        Block block = BLOCKS.byId(1 + random.nextInt(this.types));
+                        section.set(i & 15, i >>> 8, i >>> 4 & 15, block);
+                        builder.add(sectionX * 16 + (i & 15), sectionY * 16 + (i >>> 8), sectionZ * 16 + (i >>> 4 & 15), block);
+                    }
+                    writer.add(sectionX, sectionY, sectionZ, section.pack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES));
+                }
+            }
+        }
+
+        this.path = Files.createTempFile("structure", ".mcst");
+        writer.write(this.path);
+        this.file = StructureFile.open(this.path, BLOCKS);
+        this.template = builder.build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.pool.shutdown();
+        this.file = null;
+        Files.deleteIfExists(this.path);
+    }
+
+    private Region<Block> region() {
+        return new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 0, 0, -4, 24, this.pool);
+    }
+
+    @Benchmark
+    public StructurePlacer.Placement mapped() throws IOException {
+        return StructureFile.open(this.path, BLOCKS).place(this.region(), 16, 0, 16);
+    }
+
+    @Benchmark
+    public StructurePlacer.Placement mappedUnaligned() {
+        return this.file.place(this.region(), 5, 3, 5);
+    }
+
+    @Benchmark
+    public StructurePlacer.Placement template() {
+        return new StructurePlacer<>(this.region()).place(this.template, 16, 0, 16);
+    }
+}
@@ -0,0 +1,74 @@
+package dev.sixik.mcsr.rework.structure;
+
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import dev.sixik.mcsr.rework.chunk.Region;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+/**
+ * Placing a 48x32x48 template of 40000 blocks in {@code types} block types into a fresh region:
+ * {@code placer} goes through {@link StructurePlacer}, {@code perBlock} calls {@link Region#set} for every
+ * block in template order. Both include allocating the touched columns and sections.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh="StructurePlacementBenchmark"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructurePlacementBenchmark {
+    @Param({"12", "100"})
+    public int types;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private ForkJoinPool pool;
+    private StructureTemplate<Block> template;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BlocksRegister.init();
+        this.pool = new ForkJoinPool(this.parallelism);
+
+        StructureTemplate.Builder<Block> builder = StructureTemplate.builder();
+        SplittableRandom random = new SplittableRandom(22L);
+        for (int n = 0; n < 40_000; n++) {
+            builder.add(random.nextInt(48), random.nextInt(32), random.nextInt(48), BLOCKS.byId(1 + random.nextInt(this.types)));
+        }
+        this.template = builder.build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    private Region<Block> region() {
+        return new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 0, 0, -4, 24, this.pool);
+    }
+
+    @Benchmark
+    public StructurePlacer.Placement placer() {
+        return new StructurePlacer<>(this.region()).place(this.template, 5, 3, 5);
+    }
+
+    @Benchmark
+    public Region<Block> perBlock() {
+        Region<Block> region = this.region();
+        StructureTemplate<Block> template = this.template;
+        for (int b = 0; b < template.blockCount(); b++) {
+            region.set(5 + template.x(b), 3 + template.y(b), 5 + template.z(b), template.value(b));
+        }
+        return region;
+    }
+}
@@ -3,6 +3,7 @@ package dev.sixik.mcsr.debug_structs;
 public class Position {
 
     public static final int SECTION_BITS = 15;
+    public static final int SECTION_SHIFT = 4;
 
     public int x;
     public int y;
@@ -34,6 +35,13 @@ public class Position {
         return value & SECTION_BITS;
     }
 
+    /**
+     * Coordinate of the section (or chunk, for x and z) that holds the block coordinate {@code value}.
+     */
+    public static int toSectionCoord(int value) {
+        return value >> SECTION_SHIFT;
+    }
+
     @Override
     public String toString() {
         return "Position{" +
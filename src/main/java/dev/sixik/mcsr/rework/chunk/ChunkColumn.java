@@ -0,0 +1,324 @@
+package dev.sixik.mcsr.rework.chunk;
+
+import dev.sixik.mcsr.debug_structs.Position;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainerRO;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+import net.minecraft.core.IdMap;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A vertical stack of 16x16x16 sections addressed by world block coordinates. Sections are created on the
+ * first write; until then a section slot holds one shared single-value container of the {@code empty}
+ * value, which is read like any other section and never written. Reads and writes of single blocks are as
+ * thread-safe as the strategy's containers, section creation itself is lock-free.
+ * <p>
+ * {@link #forEachSection}, {@link #fill}, {@link #count} and {@link #copy} fork one task per section on the
+ * column's {@link ForkJoinPool}.
+ */
+public final class ChunkColumn<T> {
+    public static final int SECTION_SIZE = 16;
+    public static final int SECTION_VOLUME = SECTION_SIZE * SECTION_SIZE * SECTION_SIZE;
+
+    private final IdMap<T> registry;
+    private final T empty;
+    private final PalettedContainer.Strategy strategy;
+    // одна на все пустые секции (в регионе - на все колонки), в неё никогда не пишут
+    private final PalettedContainer<T> emptySection;
+    private final ForkJoinPool pool;
+    private final int chunkX;
+    private final int chunkZ;
+    private final int minSection;
+    private final AtomicReferenceArray<PalettedContainer<T>> sections;
+
+    /**
+     * Sections of {@code SECTION_STATES}-sized {@code strategy} from section {@code minSection} up, bulk
+     * operations on the common pool.
+     */
+    public ChunkColumn(IdMap<T> registry, T empty, PalettedContainer.Strategy strategy, int chunkX, int chunkZ, int minSection, int sectionCount) {
+        this(registry, empty, strategy, chunkX, chunkZ, minSection, sectionCount, ForkJoinPool.commonPool());
+    }
+
+    public ChunkColumn(IdMap<T> registry, T empty, PalettedContainer.Strategy strategy, int chunkX, int chunkZ, int minSection, int sectionCount, ForkJoinPool pool) {
+        this(registry, empty, strategy, chunkX, chunkZ, minSection, sectionCount, pool, emptySection(registry, empty, strategy));
+    }
+
+    ChunkColumn(IdMap<T> registry, T empty, PalettedContainer.Strategy strategy, int chunkX, int chunkZ, int minSection, int sectionCount, ForkJoinPool pool, PalettedContainer<T> emptySection) {
+        if (sectionCount <= 0) {
+            throw new IllegalArgumentException("A column needs at least one section, got " + sectionCount);
+        }
+
+        this.registry = registry;
+        this.empty = empty;
+        this.strategy = strategy;
+        this.emptySection = emptySection;
+        this.pool = pool;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.minSection = minSection;
+        this.sections = new AtomicReferenceArray<>(sectionCount);
+        for (int i = 0; i < sectionCount; i++) {
+            this.sections.setPlain(i, emptySection);
+        }
+    }
+
+    /**
+     * The shared section every empty slot starts with.
+     */
+    static <T> PalettedContainer<T> emptySection(IdMap<T> registry, T empty, PalettedContainer.Strategy strategy) {
+        if (strategy.sideSize() != SECTION_SIZE) {
+            throw new IllegalArgumentException("Columns are made of " + SECTION_SIZE + "^3 sections, the strategy has a side of " + strategy.sideSize());
+        }
+        return new PalettedContainer<>(registry, empty, strategy);
+    }
+
+    @FunctionalInterface
+    public interface SectionConsumer<T> {
+        /**
+         * Called with the section coordinates of {@code section}; may run on any thread of the pool.
+         */
+        void accept(int sectionX, int sectionY, int sectionZ, PalettedContainer<T> section);
+    }
+
+    public int getChunkX() {
+        return this.chunkX;
+    }
+
+    public int getChunkZ() {
+        return this.chunkZ;
+    }
+
+    public int getMinSection() {
+        return this.minSection;
+    }
+
+    public int getSectionCount() {
+        return this.sections.length();
+    }
+
+    public int getMinY() {
+        return this.minSection << Position.SECTION_SHIFT;
+    }
+
+    /**
+     * First block y above the column.
+     */
+    public int getMaxY() {
+        return this.minSection + this.sections.length() << Position.SECTION_SHIFT;
+    }
+
+    public T getEmpty() {
+        return this.empty;
+    }
+
+    public PalettedContainer.Strategy getStrategy() {
+        return this.strategy;
+    }
+
+    /**
+     * The section at section coordinate {@code sectionY}, the shared empty one when nothing was written there
+     * yet. Writes go through {@link #getOrCreateSection}.
+     */
+    public PalettedContainerRO<T> getSection(int sectionY) {
+        return this.sections.get(this.checkedIndex(sectionY));
+    }
+
+    public boolean hasSection(int sectionY) {
+        return this.sections.get(this.checkedIndex(sectionY)) != this.emptySection;
+    }
+
+    public PalettedContainer<T> getOrCreateSection(int sectionY) {
+        return this.sectionForWrite(this.checkedIndex(sectionY));
+    }
+
+    /**
+     * Number of sections that were written to.
+     */
+    public int allocatedSections() {
+        int allocated = 0;
+        for (int i = 0; i < this.sections.length(); i++) {
+            if (this.sections.get(i) != this.emptySection) {
+                allocated++;
+            }
+        }
+        return allocated;
+    }
+
+    private int checkedIndex(int sectionY) {
+        int index = sectionY - this.minSection;
+        if (index < 0 || index >= this.sections.length()) {
+            throw new IndexOutOfBoundsException("Section " + sectionY + " is outside of the column [" + this.minSection + ", " + (this.minSection + this.sections.length()) + ")");
+        }
+        return index;
+    }
+
+    PalettedContainer<T> sectionForWrite(int index) {
+        PalettedContainer<T> section = this.sections.get(index);
+        if (section != this.emptySection) {
+            return section;
+        }
+
+        PalettedContainer<T> created = new PalettedContainer<>(this.registry, this.empty, this.strategy);
+        PalettedContainer<T> witness = this.sections.compareAndExchange(index, this.emptySection, created);
+        return witness == this.emptySection ? created : witness;
+    }
+
+    PalettedContainer<T> sectionAt(int index) {
+        return this.sections.get(index);
+    }
+
+    void setSection(int index, PalettedContainer<T> section) {
+        this.sections.set(index, section);
+    }
+
+    void clearSection(int index) {
+        this.sections.set(index, this.emptySection);
+    }
+
+    private void checkColumn(int x, int z) {
+        if (Position.toSectionCoord(x) != this.chunkX || Position.toSectionCoord(z) != this.chunkZ) {
+            throw new IndexOutOfBoundsException("Block [" + x + ", " + z + "] is outside of column [" + this.chunkX + ", " + this.chunkZ + "]");
+        }
+    }
+
+    /**
+     * Value at world coordinates; {@link #getEmpty()} above and below the column.
+     */
+    public T get(int x, int y, int z) {
+        this.checkColumn(x, z);
+        int index = Position.toSectionCoord(y) - this.minSection;
+        if (index < 0 || index >= this.sections.length()) {
+            return this.empty;
+        }
+        return this.sections.get(index).get(Position.toSection(x), Position.toSection(y), Position.toSection(z));
+    }
+
+    public T get(Position position) {
+        return this.get(position.x, position.y, position.z);
+    }
+
+    public void set(int x, int y, int z, T value) {
+        this.checkColumn(x, z);
+        this.sectionForWrite(this.checkedIndex(Position.toSectionCoord(y))).set(Position.toSection(x), Position.toSection(y), Position.toSection(z), value);
+    }
+
+    public void set(Position position, T value) {
+        this.set(position.x, position.y, position.z, value);
+    }
+
+    public T getAndSet(int x, int y, int z, T value) {
+        this.checkColumn(x, z);
+        return this.sectionForWrite(this.checkedIndex(Position.toSectionCoord(y))).getAndSet(Position.toSection(x), Position.toSection(y), Position.toSection(z), value);
+    }
+
+    /**
+     * Visits every section that was written to, in parallel.
+     */
+    public void forEachSection(SectionConsumer<T> consumer) {
+        int[] allocated = this.allocatedIndices();
+        SectionTasks.run(this.pool, allocated.length, n -> this.visit(allocated[n], consumer));
+    }
+
+    void visit(int index, SectionConsumer<T> consumer) {
+        consumer.accept(this.chunkX, this.minSection + index, this.chunkZ, this.sections.get(index));
+    }
+
+    int[] allocatedIndices() {
+        IntArrayList allocated = new IntArrayList(this.sections.length());
+        for (int i = 0; i < this.sections.length(); i++) {
+            if (this.sections.get(i) != this.emptySection) {
+                allocated.add(i);
+            }
+        }
+        return allocated.toIntArray();
+    }
+
+    /**
+     * Sets every block of the world-space box {@code [minX..maxX] x [minY..maxY] x [minZ..maxZ]} (bounds
+     * inclusive) that lies in this column to {@code value}, one task per section. Empty sections filled
+     * with the empty value stay unallocated.
+     */
+    public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, T value) {
+        int fromIndex = Math.max(Position.toSectionCoord(minY) - this.minSection, 0);
+        int toIndex = Math.min(Position.toSectionCoord(maxY) - this.minSection, this.sections.length() - 1);
+        if (fromIndex > toIndex || !this.overlaps(minX, minZ, maxX, maxZ)) {
+            return;
+        }
+
+        SectionTasks.run(this.pool, toIndex - fromIndex + 1, n -> this.fillSection(fromIndex + n, minX, minY, minZ, maxX, maxY, maxZ, value));
+    }
+
+    boolean overlaps(int minX, int minZ, int maxX, int maxZ) {
+        int blockX = this.chunkX << Position.SECTION_SHIFT;
+        int blockZ = this.chunkZ << Position.SECTION_SHIFT;
+        return minX <= blockX + SECTION_SIZE - 1 && maxX >= blockX && minZ <= blockZ + SECTION_SIZE - 1 && maxZ >= blockZ;
+    }
+
+    /**
+     * The part of the box inside section slot {@code index}; the box must overlap the column.
+     */
+    void fillSection(int index, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, T value) {
+        if (value == this.empty && this.sections.get(index) == this.emptySection) {
+            return;
+        }
+
+        int blockX = this.chunkX << Position.SECTION_SHIFT;
+        int blockY = this.minSection + index << Position.SECTION_SHIFT;
+        int blockZ = this.chunkZ << Position.SECTION_SHIFT;
+        int max = SECTION_SIZE - 1;
+        this.sectionForWrite(index).fill(
+                Math.max(minX - blockX, 0), Math.max(minY - blockY, 0), Math.max(minZ - blockZ, 0),
+                Math.min(maxX - blockX, max), Math.min(maxY - blockY, max), Math.min(maxZ - blockZ, max), value);
+    }
+
+    /**
+     * Occurrences of every value in the column, empty sections included, counted one task per section.
+     */
+    public Reference2LongMap<T> count() {
+        int[] allocated = this.allocatedIndices();
+        Reference2LongOpenHashMap<T> counts = SectionTasks.reduce(this.pool, allocated.length, n -> count(this.sections.get(allocated[n])), ChunkColumn::merge, new Reference2LongOpenHashMap<>());
+        long emptySections = this.sections.length() - allocated.length;
+        if (emptySections > 0) {
+            counts.addTo(this.empty, emptySections * SECTION_VOLUME);
+        }
+        return counts;
+    }
+
+    static <T> Reference2LongOpenHashMap<T> count(PalettedContainer<T> section) {
+        Reference2LongOpenHashMap<T> counts = new Reference2LongOpenHashMap<>();
+        section.count((value, count) -> counts.addTo(value, count));
+        return counts;
+    }
+
+    static <T> Reference2LongOpenHashMap<T> merge(Reference2LongOpenHashMap<T> left, Reference2LongOpenHashMap<T> right) {
+        Reference2LongOpenHashMap<T> into = left.size() >= right.size() ? left : right;
+        Reference2LongOpenHashMap<T> from = into == left ? right : left;
+        for (Reference2LongMap.Entry<T> entry : from.reference2LongEntrySet()) {
+            into.addTo(entry.getKey(), entry.getLongValue());
+        }
+        return into;
+    }
+
+    /**
+     * Deep copy, one task per written section; empty sections stay shared.
+     */
+    public ChunkColumn<T> copy() {
+        ChunkColumn<T> copy = this.emptyCopy(this.pool);
+        int[] allocated = this.allocatedIndices();
+        SectionTasks.run(this.pool, allocated.length, n -> copy.setSection(allocated[n], this.sections.get(allocated[n]).copy()));
+        return copy;
+    }
+
+    ChunkColumn<T> emptyCopy(ForkJoinPool pool) {
+        return new ChunkColumn<>(this.registry, this.empty, this.strategy, this.chunkX, this.chunkZ, this.minSection, this.sections.length(), pool, this.emptySection);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkColumn[" + this.chunkX + ", " + this.chunkZ + "]{sections=" + this.allocatedSections() + "/" + this.sections.length() + "}";
+    }
+}
@@ -0,0 +1,273 @@
+package dev.sixik.mcsr.rework.chunk;
+
+import dev.sixik.mcsr.debug_structs.Position;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+import net.minecraft.core.IdMap;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@value #SIZE}x{@value #SIZE} {@link ChunkColumn}s addressed by world block coordinates, the unit a region
+ * file stores. Columns are created on the first write and share one empty section, so an untouched region
+ * costs one reference per column.
+ * <p>
+ * {@link #forEachSection}, {@link #fill}, {@link #count} and {@link #copy} split by section across all
+ * columns, not by column, so a box touching few columns still uses the whole pool.
+ */
+public final class Region<T> {
+    public static final int SIZE = 32;
+    public static final int SHIFT = 5;
+
+    private final IdMap<T> registry;
+    private final T empty;
+    private final PalettedContainer.Strategy strategy;
+    private final PalettedContainer<T> emptySection;
+    private final ForkJoinPool pool;
+    private final int regionX;
+    private final int regionZ;
+    private final int minSection;
+    private final int sectionCount;
+    private final AtomicReferenceArray<ChunkColumn<T>> columns = new AtomicReferenceArray<>(SIZE * SIZE);
+
+    public Region(IdMap<T> registry, T empty, PalettedContainer.Strategy strategy, int regionX, int regionZ, int minSection, int sectionCount) {
+        this(registry, empty, strategy, regionX, regionZ, minSection, sectionCount, ForkJoinPool.commonPool());
+    }
+
+    public Region(IdMap<T> registry, T empty, PalettedContainer.Strategy strategy, int regionX, int regionZ, int minSection, int sectionCount, ForkJoinPool pool) {
+        this(registry, empty, strategy, regionX, regionZ, minSection, sectionCount, pool, ChunkColumn.emptySection(registry, empty, strategy));
+    }
+
+    private Region(IdMap<T> registry, T empty, PalettedContainer.Strategy strategy, int regionX, int regionZ, int minSection, int sectionCount, ForkJoinPool pool, PalettedContainer<T> emptySection) {
+        if (sectionCount <= 0) {
+            throw new IllegalArgumentException("A column needs at least one section, got " + sectionCount);
+        }
+
+        this.registry = registry;
+        this.empty = empty;
+        this.strategy = strategy;
+        this.emptySection = emptySection;
+        this.pool = pool;
+        this.regionX = regionX;
+        this.regionZ = regionZ;
+        this.minSection = minSection;
+        this.sectionCount = sectionCount;
+    }
+
+    /**
+     * Region coordinate of the chunk coordinate {@code chunk}.
+     */
+    public static int toRegionCoord(int chunk) {
+        return chunk >> SHIFT;
+    }
+
+    public int getRegionX() {
+        return this.regionX;
+    }
+
+    public int getRegionZ() {
+        return this.regionZ;
+    }
+
+    public int getMinSection() {
+        return this.minSection;
+    }
+
+    public int getSectionCount() {
+        return this.sectionCount;
+    }
+
+    public T getEmpty() {
+        return this.empty;
+    }
+
+    public PalettedContainer.Strategy getStrategy() {
+        return this.strategy;
+    }
+
+    /**
+     * The pool the bulk operations run on.
+     */
+    public ForkJoinPool getPool() {
+        return this.pool;
+    }
+
+    private int columnIndex(int chunkX, int chunkZ) {
+        int localX = chunkX - (this.regionX << SHIFT);
+        int localZ = chunkZ - (this.regionZ << SHIFT);
+        if (localX < 0 || localX >= SIZE || localZ < 0 || localZ >= SIZE) {
+            throw new IndexOutOfBoundsException("Chunk [" + chunkX + ", " + chunkZ + "] is outside of region [" + this.regionX + ", " + this.regionZ + "]");
+        }
+        return localZ << SHIFT | localX;
+    }
+
+    /**
+     * The column at chunk coordinates, {@code null} while nothing was written to it.
+     */
+    @Nullable
+    public ChunkColumn<T> getColumn(int chunkX, int chunkZ) {
+        return this.columns.get(this.columnIndex(chunkX, chunkZ));
+    }
+
+    public ChunkColumn<T> getOrCreateColumn(int chunkX, int chunkZ) {
+        return this.columnForWrite(this.columnIndex(chunkX, chunkZ));
+    }
+
+    private ChunkColumn<T> columnForWrite(int index) {
+        ChunkColumn<T> column = this.columns.get(index);
+        if (column != null) {
+            return column;
+        }
+
+        int chunkX = (this.regionX << SHIFT) + (index & SIZE - 1);
+        int chunkZ = (this.regionZ << SHIFT) + (index >>> SHIFT);
+        ChunkColumn<T> created = new ChunkColumn<>(this.registry, this.empty, this.strategy, chunkX, chunkZ, this.minSection, this.sectionCount, this.pool, this.emptySection);
+        ChunkColumn<T> witness = this.columns.compareAndExchange(index, null, created);
+        return witness == null ? created : witness;
+    }
+
+    public int allocatedColumns() {
+        int allocated = 0;
+        for (int i = 0; i < this.columns.length(); i++) {
+            if (this.columns.get(i) != null) {
+                allocated++;
+            }
+        }
+        return allocated;
+    }
+
+    public int allocatedSections() {
+        int allocated = 0;
+        for (int i = 0; i < this.columns.length(); i++) {
+            ChunkColumn<T> column = this.columns.get(i);
+            if (column != null) {
+                allocated += column.allocatedSections();
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * Value at world coordinates; {@link #getEmpty()} in columns that were never written and above and below
+     * the columns.
+     */
+    public T get(int x, int y, int z) {
+        ChunkColumn<T> column = this.columns.get(this.columnIndex(Position.toSectionCoord(x), Position.toSectionCoord(z)));
+        return column == null ? this.empty : column.get(x, y, z);
+    }
+
+    public T get(Position position) {
+        return this.get(position.x, position.y, position.z);
+    }
+
+    public void set(int x, int y, int z, T value) {
+        this.columnForWrite(this.columnIndex(Position.toSectionCoord(x), Position.toSectionCoord(z))).set(x, y, z, value);
+    }
+
+    public void set(Position position, T value) {
+        this.set(position.x, position.y, position.z, value);
+    }
+
+    public T getAndSet(int x, int y, int z, T value) {
+        return this.columnForWrite(this.columnIndex(Position.toSectionCoord(x), Position.toSectionCoord(z))).getAndSet(x, y, z, value);
+    }
+
+    /**
+     * Written sections of all columns as {@code columnIndex << 32 | sectionIndex}.
+     */
+    private long[] allocatedSectionKeys() {
+        LongArrayList keys = new LongArrayList();
+        for (int i = 0; i < this.columns.length(); i++) {
+            ChunkColumn<T> column = this.columns.get(i);
+            if (column != null) {
+                for (int index : column.allocatedIndices()) {
+                    keys.add((long) i << 32 | index);
+                }
+            }
+        }
+        return keys.toLongArray();
+    }
+
+    /**
+     * Visits every section that was written to, in parallel.
+     */
+    public void forEachSection(ChunkColumn.SectionConsumer<T> consumer) {
+        long[] keys = this.allocatedSectionKeys();
+        SectionTasks.run(this.pool, keys.length, n -> this.columns.get((int) (keys[n] >>> 32)).visit((int) keys[n], consumer));
+    }
+
+    /**
+     * Sets every block of the world-space box {@code [minX..maxX] x [minY..maxY] x [minZ..maxZ]} (bounds
+     * inclusive) that lies in this region to {@code value}, one task per touched section.
+     */
+    public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, T value) {
+        int baseX = this.regionX << SHIFT;
+        int baseZ = this.regionZ << SHIFT;
+        int fromX = Math.max(Position.toSectionCoord(minX) - baseX, 0);
+        int toX = Math.min(Position.toSectionCoord(maxX) - baseX, SIZE - 1);
+        int fromZ = Math.max(Position.toSectionCoord(minZ) - baseZ, 0);
+        int toZ = Math.min(Position.toSectionCoord(maxZ) - baseZ, SIZE - 1);
+        int fromIndex = Math.max(Position.toSectionCoord(minY) - this.minSection, 0);
+        int toIndex = Math.min(Position.toSectionCoord(maxY) - this.minSection, this.sectionCount - 1);
+        if (fromX > toX || fromZ > toZ || fromIndex > toIndex) {
+            return;
+        }
+
+        int width = toX - fromX + 1;
+        int depth = toZ - fromZ + 1;
+        int height = toIndex - fromIndex + 1;
+        SectionTasks.run(this.pool, width * depth * height, n -> {
+            int columnIndex = (fromZ + n / width % depth) << SHIFT | fromX + n % width;
+            int sectionIndex = fromIndex + n / (width * depth);
+            ChunkColumn<T> column = value == this.empty ? this.columns.get(columnIndex) : this.columnForWrite(columnIndex);
+            if (column != null) {
+                column.fillSection(sectionIndex, minX, minY, minZ, maxX, maxY, maxZ, value);
+            }
+        });
+    }
+
+    /**
+     * Occurrences of every value in the region, unwritten columns and sections included, counted one task
+     * per written section.
+     */
+    public Reference2LongMap<T> count() {
+        long[] keys = this.allocatedSectionKeys();
+        Reference2LongOpenHashMap<T> counts = SectionTasks.reduce(this.pool, keys.length,
+                n -> ChunkColumn.count(this.columns.get((int) (keys[n] >>> 32)).sectionAt((int) keys[n])), ChunkColumn::merge, new Reference2LongOpenHashMap<>());
+        long emptySections = (long) SIZE * SIZE * this.sectionCount - keys.length;
+        if (emptySections > 0) {
+            counts.addTo(this.empty, emptySections * ChunkColumn.SECTION_VOLUME);
+        }
+        return counts;
+    }
+
+    /**
+     * Deep copy, one task per written section; unwritten columns and sections stay unallocated.
+     */
+    public Region<T> copy() {
+        Region<T> copy = new Region<>(this.registry, this.empty, this.strategy, this.regionX, this.regionZ, this.minSection, this.sectionCount, this.pool, this.emptySection);
+        for (int i = 0; i < this.columns.length(); i++) {
+            ChunkColumn<T> column = this.columns.get(i);
+            if (column != null) {
+                copy.columns.set(i, column.emptyCopy(this.pool));
+            }
+        }
+
+        long[] keys = this.allocatedSectionKeys();
+        SectionTasks.run(this.pool, keys.length, n -> {
+            int columnIndex = (int) (keys[n] >>> 32);
+            int sectionIndex = (int) keys[n];
+            copy.columns.get(columnIndex).setSection(sectionIndex, this.columns.get(columnIndex).sectionAt(sectionIndex).copy());
+        });
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "Region[" + this.regionX + ", " + this.regionZ + "]{columns=" + this.allocatedColumns() + ", sections=" + this.allocatedSections() + "}";
+    }
+}
@@ -0,0 +1,574 @@
+package dev.sixik.mcsr.rework.chunk;
+
+import dev.sixik.mcsr.rework.paletted_container.PackingScratch;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainerRO;
+import dev.sixik.mcsr.rework.paletted_container.StoragePool;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.core.IdMap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The {@value Region#SIZE}x{@value Region#SIZE} columns of one {@link Region} in one file of
+ * {@value #SECTOR_BYTES}-byte sectors. The first {@value #HEADER_SECTORS} sectors are a memory-mapped table
+ * with one little-endian long per column, {@code firstSector << 32 | payloadBytes} or {@code 0} for a column
+ * that was never saved; the rest holds the payloads. A payload is an {@code int} raw length, the CRC32C of the
+ * compressed bytes and the deflated column: every written section as its {@link PalettedContainer#pack} form,
+ * its palette as registry ids.
+ * <p>
+ * Saves never overwrite live data: the payload goes to free sectors and is forced to the disk first, then the
+ * table entry is swapped in one atomic store and forced as well, and only then the old sectors are freed. The
+ * table on disk therefore points at a complete copy of every column even after a crash. Loads take no lock; a
+ * load that raced with a save of the same column notices the swapped entry (or, should the column have landed
+ * in the same sectors again, the checksum) and reads again. Saves and loads of any columns may run on any
+ * number of threads, each thread reusing its own {@link Deflater}, {@link Inflater} and buffers.
+ */
+public final class RegionFile<T> implements Closeable {
+    public static final int SECTOR_BYTES = 4096;
+    static final int HEADER_SECTORS = Region.SIZE * Region.SIZE * Long.BYTES / SECTOR_BYTES;
+    private static final int PAYLOAD_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final VarHandle ENTRIES = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final ThreadLocal<Codec> CODECS = ThreadLocal.withInitial(Codec::new);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final IdMap<T> registry;
+    private final int regionX;
+    private final int regionZ;
+    // занятые сектора, включая заголовок; под собственным локом
+    private final BitSet sectors = new BitSet();
+
+    private RegionFile(Path path, FileChannel channel, MappedByteBuffer header, IdMap<T> registry, int regionX, int regionZ) {
+        this.path = path;
+        this.channel = channel;
+        this.header = header;
+        this.registry = registry;
+        this.regionX = regionX;
+        this.regionZ = regionZ;
+    }
+
+    /**
+     * Opens or creates the file of region {@code [regionX, regionZ]} and rebuilds the sector allocation from
+     * its table.
+     */
+    public static <T> RegionFile<T> open(Path path, IdMap<T> registry, int regionX, int regionZ) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) HEADER_SECTORS * SECTOR_BYTES);
+            RegionFile<T> file = new RegionFile<>(path, channel, header, registry, regionX, regionZ);
+            file.sectors.set(0, HEADER_SECTORS);
+
+            long size = channel.size();
+            for (int index = 0; index < Region.SIZE * Region.SIZE; index++) {
+                long entry = file.entry(index);
+                if (entry == 0L) {
+                    continue;
+                }
+
+                int sector = sector(entry);
+                int count = sectorsFor(length(entry));
+                if (sector < HEADER_SECTORS || length(entry) <= PAYLOAD_HEADER_BYTES || (long) sector * SECTOR_BYTES + length(entry) > size) {
+                    throw new IOException("Column " + index + " points outside of " + path + ": sector " + sector + ", " + length(entry) + " bytes");
+                }
+                int overlap = file.sectors.nextSetBit(sector);
+                if (overlap != -1 && overlap < sector + count) {
+                    throw new IOException("Column " + index + " overlaps sector " + overlap + " of another column in " + path);
+                }
+                file.sectors.set(sector, sector + count);
+            }
+            return file;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static int sector(long entry) {
+        return (int) (entry >>> 32);
+    }
+
+    private static int length(long entry) {
+        return (int) entry;
+    }
+
+    private static int sectorsFor(int bytes) {
+        return (bytes + SECTOR_BYTES - 1) / SECTOR_BYTES;
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    public int getRegionX() {
+        return this.regionX;
+    }
+
+    public int getRegionZ() {
+        return this.regionZ;
+    }
+
+    private int index(int chunkX, int chunkZ) {
+        int localX = chunkX - (this.regionX << Region.SHIFT);
+        int localZ = chunkZ - (this.regionZ << Region.SHIFT);
+        if (localX < 0 || localX >= Region.SIZE || localZ < 0 || localZ >= Region.SIZE) {
+            throw new IndexOutOfBoundsException("Chunk [" + chunkX + ", " + chunkZ + "] is outside of region [" + this.regionX + ", " + this.regionZ + "]");
+        }
+        return localZ << Region.SHIFT | localX;
+    }
+
+    private long entry(int index) {
+        return (long) ENTRIES.getVolatile(this.header, index * Long.BYTES);
+    }
+
+    public boolean contains(int chunkX, int chunkZ) {
+        return this.entry(this.index(chunkX, chunkZ)) != 0L;
+    }
+
+    /**
+     * Sectors in use, the table included.
+     */
+    public int usedSectors() {
+        synchronized (this.sectors) {
+            return this.sectors.cardinality();
+        }
+    }
+
+    /**
+     * Sectors up to the last one in use; the file may be longer after frees at its end.
+     */
+    public int fileSectors() {
+        synchronized (this.sectors) {
+            return this.sectors.length();
+        }
+    }
+
+    /**
+     * First fit of {@code count} free sectors, appended at the end when no gap is large enough.
+     */
+    private int allocate(int count) {
+        synchronized (this.sectors) {
+            int start = this.sectors.nextClearBit(HEADER_SECTORS);
+            for (;;) {
+                int end = this.sectors.nextSetBit(start);
+                if (end == -1 || end - start >= count) {
+                    this.sectors.set(start, start + count);
+                    return start;
+                }
+                start = this.sectors.nextClearBit(end);
+            }
+        }
+    }
+
+    private void free(long entry) {
+        synchronized (this.sectors) {
+            this.sectors.clear(sector(entry), sector(entry) + sectorsFor(length(entry)));
+        }
+    }
+
+    /**
+     * Stores the written sections of {@code column}, replacing what the file held for it. Only the column's
+     * own sections are read, while other threads may keep writing to it.
+     */
+    public void save(ChunkColumn<T> column) throws IOException {
+        int index = this.index(column.getChunkX(), column.getChunkZ());
+        long entry = this.write(column);
+        try {
+            // the mapped table may reach the disk at any time, so the payload must be there before it is referenced
+            this.channel.force(false);
+        } catch (IOException e) {
+            this.free(entry);
+            throw e;
+        }
+
+        this.replace(index, entry);
+    }
+
+    /**
+     * Writes the payload of {@code column} to free sectors without forcing it.
+     *
+     * @return the table entry pointing at the payload
+     */
+    private long write(ChunkColumn<T> column) throws IOException {
+        ByteBuffer payload = CODECS.get().encode(column, this.registry);
+        int length = payload.remaining();
+        int sector = this.allocate(sectorsFor(length));
+        try {
+            long position = (long) sector * SECTOR_BYTES;
+            while (payload.hasRemaining()) {
+                position += this.channel.write(payload, position);
+            }
+        } catch (IOException e) {
+            this.free((long) sector << 32 | length);
+            throw e;
+        }
+        return (long) sector << 32 | length;
+    }
+
+    /**
+     * Swaps the table entry of column {@code index} and frees the sectors it pointed at. The entry is forced to
+     * the disk first: until then the table on disk still points at those sectors, and a save reusing them
+     * would tear the copy a crash falls back to.
+     *
+     * @return the previous entry
+     */
+    private long replace(int index, long entry) {
+        long previous = (long) ENTRIES.getAndSet(this.header, index * Long.BYTES, entry);
+        if (previous != 0L) {
+            this.header.force(index * Long.BYTES, Long.BYTES);
+            this.free(previous);
+        }
+        return previous;
+    }
+
+    /**
+     * Replaces the sections of {@code column} with the stored ones; sections the file does not hold become
+     * empty. Leaves the column untouched and returns {@code false} when it was never saved.
+     */
+    public boolean load(ChunkColumn<T> column) throws IOException {
+        int index = this.index(column.getChunkX(), column.getChunkZ());
+        Codec codec = CODECS.get();
+        for (;;) {
+            long entry = this.entry(index);
+            if (entry == 0L) {
+                return false;
+            }
+
+            boolean intact = codec.read(this.channel, (long) sector(entry) * SECTOR_BYTES, length(entry));
+            if (this.entry(index) != entry) {
+                // сохранили заново, пока читали: старые сектора могли уже переиспользовать
+                continue;
+            }
+            if (!intact) {
+                throw new IOException("Corrupt column [" + column.getChunkX() + ", " + column.getChunkZ() + "] in " + this.path);
+            }
+
+            codec.decode(column, this.registry);
+            return true;
+        }
+    }
+
+    /**
+     * Removes the column from the file.
+     *
+     * @return whether it was stored
+     */
+    public boolean delete(int chunkX, int chunkZ) {
+        return this.replace(this.index(chunkX, chunkZ), 0L) != 0L;
+    }
+
+    /**
+     * Saves every column of {@code region} that was created, one task per column on the region's pool. The
+     * payloads are written first and forced together, then all entries are swapped and the table is forced
+     * once, so a whole region costs two syncs instead of two per column.
+     */
+    public void save(Region<T> region) throws IOException {
+        this.checkRegion(region);
+        List<ChunkColumn<T>> columns = new ArrayList<>();
+        for (int index = 0; index < Region.SIZE * Region.SIZE; index++) {
+            ChunkColumn<T> column = region.getColumn(this.chunkX(index), this.chunkZ(index));
+            if (column != null) {
+                columns.add(column);
+            }
+        }
+
+        // -1 помечает отменённое сохранение: задача, которая допишет после него, сама освободит сектора
+        AtomicLongArray entries = new AtomicLongArray(columns.size());
+        try {
+            this.run(region, columns.size(), n -> {
+                try {
+                    long entry = this.write(columns.get(n));
+                    if (!entries.compareAndSet(n, 0L, entry)) {
+                        this.free(entry);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            this.channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            for (int n = 0; n < entries.length(); n++) {
+                long entry = entries.getAndSet(n, -1L);
+                if (entry != 0L) {
+                    this.free(entry);
+                }
+            }
+            throw e;
+        }
+
+        long[] previous = new long[columns.size()];
+        boolean replaced = false;
+        for (int n = 0; n < previous.length; n++) {
+            ChunkColumn<T> column = columns.get(n);
+            int index = this.index(column.getChunkX(), column.getChunkZ());
+            previous[n] = (long) ENTRIES.getAndSet(this.header, index * Long.BYTES, entries.get(n));
+            replaced |= previous[n] != 0L;
+        }
+        if (replaced) {
+            // see replace: the old sectors stay reserved until the new table is on the disk
+            this.header.force();
+            for (long entry : previous) {
+                if (entry != 0L) {
+                    this.free(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads every stored column into {@code region}, one task per column on the region's pool.
+     *
+     * @return the number of columns loaded
+     */
+    public int load(Region<T> region) throws IOException {
+        this.checkRegion(region);
+        IntArrayList stored = new IntArrayList();
+        for (int index = 0; index < Region.SIZE * Region.SIZE; index++) {
+            if (this.entry(index) != 0L) {
+                stored.add(index);
+            }
+        }
+        this.run(region, stored.size(), n -> {
+            int index = stored.getInt(n);
+            try {
+                this.load(region.getOrCreateColumn(this.chunkX(index), this.chunkZ(index)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return stored.size();
+    }
+
+    private int chunkX(int index) {
+        return (this.regionX << Region.SHIFT) + (index & Region.SIZE - 1);
+    }
+
+    private int chunkZ(int index) {
+        return (this.regionZ << Region.SHIFT) + (index >>> Region.SHIFT);
+    }
+
+    private void checkRegion(Region<T> region) {
+        if (region.getRegionX() != this.regionX || region.getRegionZ() != this.regionZ) {
+            throw new IllegalArgumentException("Region [" + region.getRegionX() + ", " + region.getRegionZ() + "] does not belong to " + this);
+        }
+    }
+
+    private void run(Region<T> region, int count, IntConsumer action) throws IOException {
+        try {
+            SectionTasks.run(region.getPool(), count, action);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the table and the payloads through to the disk. Replacing saves and deletes are durable on their
+     * own; this makes the entries of columns saved for the first time durable too.
+     */
+    public void flush() throws IOException {
+        this.header.force();
+        this.channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "RegionFile[" + this.regionX + ", " + this.regionZ + "]{" + this.path + ", sectors=" + this.usedSectors() + "/" + this.fileSectors() + "}";
+    }
+
+    /**
+     * Per-thread compression state and buffers, grown to the largest column seen and kept.
+     */
+    private static final class Codec {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        final Inflater inflater = new Inflater();
+        final CRC32C crc = new CRC32C();
+        final PackingScratch scratch = new PackingScratch();
+        ByteBuffer raw = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        // прямой, чтобы канал писал и читал без промежуточной копии
+        ByteBuffer compressed = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        private ByteBuffer ensureRaw(int bytes) {
+            if (this.raw.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(this.raw.capacity() * 2, this.raw.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+                this.raw = grown.put(this.raw.flip());
+            }
+            return this.raw;
+        }
+
+        private void growCompressed(int capacity) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            this.compressed = grown.put(this.compressed.flip());
+        }
+
+        /**
+         * The payload of {@code column} in {@link #compressed}, from its start to its limit.
+         */
+        <T> ByteBuffer encode(ChunkColumn<T> column, IdMap<T> registry) {
+            this.raw.clear();
+            int[] allocated = column.allocatedIndices();
+            this.ensureRaw(Integer.BYTES).putInt(allocated.length);
+            for (int index : allocated) {
+                PalettedContainerRO.PackedData<T> packed = column.sectionAt(index).pack(registry, column.getStrategy(), this.scratch);
+                List<T> entries = packed.paletteEntries();
+                long[] words = packed.packedStorage();
+                int wordCount = words == null ? 0 : words.length;
+
+                ByteBuffer raw = this.ensureRaw(3 * Integer.BYTES + entries.size() * Integer.BYTES + wordCount * Long.BYTES);
+                raw.putInt(column.getMinSection() + index).putInt(entries.size());
+                for (T entry : entries) {
+                    raw.putInt(registry.getId(entry));
+                }
+                raw.putInt(wordCount);
+                if (wordCount > 0) {
+                    raw.asLongBuffer().put(words);
+                    raw.position(raw.position() + wordCount * Long.BYTES);
+                }
+            }
+
+            this.raw.flip();
+            int rawLength = this.raw.remaining();
+            this.deflater.reset();
+            this.deflater.setInput(this.raw);
+            this.deflater.finish();
+            this.compressed.clear().position(PAYLOAD_HEADER_BYTES);
+            while (!this.deflater.finished()) {
+                if (!this.compressed.hasRemaining()) {
+                    this.growCompressed(this.compressed.capacity() * 2);
+                }
+                this.deflater.deflate(this.compressed);
+            }
+
+            this.compressed.flip();
+            this.crc.reset();
+            this.crc.update(this.compressed.slice(PAYLOAD_HEADER_BYTES, this.compressed.limit() - PAYLOAD_HEADER_BYTES));
+            this.compressed.putInt(0, rawLength).putInt(Integer.BYTES, (int) this.crc.getValue());
+            return this.compressed;
+        }
+
+        /**
+         * Reads {@code length} payload bytes at {@code position} into {@link #compressed}.
+         *
+         * @return whether they are complete and match their checksum
+         */
+        boolean read(FileChannel channel, long position, int length) throws IOException {
+            if (this.compressed.capacity() < length) {
+                this.compressed = ByteBuffer.allocateDirect(Math.max(length, this.compressed.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            this.compressed.clear().limit(length);
+            while (this.compressed.hasRemaining()) {
+                int read = channel.read(this.compressed, position + this.compressed.position());
+                if (read == -1) {
+                    return false;
+                }
+            }
+
+            this.compressed.flip();
+            this.crc.reset();
+            this.crc.update(this.compressed.slice(PAYLOAD_HEADER_BYTES, length - PAYLOAD_HEADER_BYTES));
+            return this.compressed.getInt(Integer.BYTES) == (int) this.crc.getValue() && this.compressed.getInt(0) >= Integer.BYTES;
+        }
+
+        /**
+         * Inflates the payload in {@link #compressed} and puts its sections into {@code column}.
+         */
+        <T> void decode(ChunkColumn<T> column, IdMap<T> registry) throws IOException {
+            int rawLength = this.compressed.getInt(0);
+            this.raw.clear();
+            this.ensureRaw(rawLength).limit(rawLength);
+            this.inflater.reset();
+            this.inflater.setInput(this.compressed.position(PAYLOAD_HEADER_BYTES));
+            try {
+                while (this.raw.hasRemaining() && !this.inflater.finished()) {
+                    if (this.inflater.inflate(this.raw) == 0 && this.inflater.needsInput()) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt column [" + column.getChunkX() + ", " + column.getChunkZ() + "]: " + e.getMessage(), e);
+            }
+            if (this.raw.hasRemaining()) {
+                throw new IOException("Column [" + column.getChunkX() + ", " + column.getChunkZ() + "] inflated to " + this.raw.position() + " of " + rawLength + " bytes");
+            }
+
+            ByteBuffer raw = this.raw.flip();
+            boolean[] loaded = new boolean[column.getSectionCount()];
+            try {
+                int sections = raw.getInt();
+                for (int n = 0; n < sections; n++) {
+                    int index = raw.getInt() - column.getMinSection();
+                    if (index < 0 || index >= loaded.length) {
+                        throw new IOException("Stored section " + (index + column.getMinSection()) + " is outside of column " + column);
+                    }
+
+                    int size = raw.getInt();
+                    if (size < 0 || size > raw.remaining() / Integer.BYTES) {
+                        throw new IOException("Section " + (index + column.getMinSection()) + " of " + column + " has a palette of " + size + " entries");
+                    }
+                    List<T> entries = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        int id = raw.getInt();
+                        T entry = registry.byId(id);
+                        if (entry == null) {
+                            throw new IOException("Unknown registry id " + id + " in section " + (index + column.getMinSection()) + " of " + column);
+                        }
+                        entries.add(entry);
+                    }
+
+                    int wordCount = raw.getInt();
+                    if (wordCount < 0 || wordCount > raw.remaining() / Long.BYTES) {
+                        throw new IOException("Section " + (index + column.getMinSection()) + " of " + column + " has " + wordCount + " words in " + raw.remaining() + " bytes");
+                    }
+                    // unpack копирует слова в своё хранилище, так что буфер сразу возвращается в пул
+                    long[] words = wordCount > 0 ? StoragePool.SHARED.take(wordCount) : null;
+                    try {
+                        if (words != null) {
+                            raw.asLongBuffer().get(words);
+                            raw.position(raw.position() + wordCount * Long.BYTES);
+                        }
+                        PalettedContainer<T> section = PalettedContainer.unpack(registry, column.getStrategy(), new PalettedContainerRO.PackedData<>(entries, words), this.scratch).getOrThrow(IOException::new);
+                        column.setSection(index, section);
+                    } finally {
+                        if (words != null) {
+                            StoragePool.SHARED.release(words);
+                        }
+                    }
+                    loaded[index] = true;
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Column [" + column.getChunkX() + ", " + column.getChunkZ() + "] ends inside a section after " + rawLength + " bytes", e);
+            }
+
+            for (int index = 0; index < loaded.length; index++) {
+                if (!loaded[index]) {
+                    column.clearSection(index);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package dev.sixik.mcsr.rework.chunk;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Fork/join over a list of sections. Ranges are halved down to single sections: the work per section ranges
+ * from nothing (a uniform fill) to a full 4096-value pass, so coarser leaves would leave threads idle
+ * behind one heavy section.
+ */
+public final class SectionTasks {
+    private SectionTasks() {
+    }
+
+    /**
+     * Runs {@code action} for every index in {@code [0, count)} on {@code pool} and waits for all of them.
+     */
+    public static void run(ForkJoinPool pool, int count, IntConsumer action) {
+        if (count == 1) {
+            action.accept(0);
+        } else if (count > 1) {
+            pool.invoke(new Run(action, 0, count));
+        }
+    }
+
+    /**
+     * {@code map} of every index in {@code [0, count)} combined with {@code merge}, {@code identity} when
+     * {@code count} is {@code 0}.
+     */
+    public static <R> R reduce(ForkJoinPool pool, int count, IntFunction<R> map, BinaryOperator<R> merge, R identity) {
+        if (count == 0) {
+            return identity;
+        }
+        return count == 1 ? map.apply(0) : pool.invoke(new Reduce<>(map, merge, 0, count));
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Run extends RecursiveAction {
+        private final IntConsumer action;
+        private final int from;
+        private final int to;
+
+        Run(IntConsumer action, int from, int to) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from == 1) {
+                this.action.accept(this.from);
+                return;
+            }
+
+            int middle = this.from + this.to >>> 1;
+            invokeAll(new Run(this.action, this.from, middle), new Run(this.action, middle, this.to));
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Reduce<R> extends RecursiveTask<R> {
+        private final IntFunction<R> map;
+        private final BinaryOperator<R> merge;
+        private final int from;
+        private final int to;
+
+        Reduce(IntFunction<R> map, BinaryOperator<R> merge, int from, int to) {
+            this.map = map;
+            this.merge = merge;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected R compute() {
+            if (this.to - this.from == 1) {
+                return this.map.apply(this.from);
+            }
+
+            int middle = this.from + this.to >>> 1;
+            Reduce<R> right = new Reduce<>(this.map, this.merge, middle, this.to);
+            right.fork();
+            R left = new Reduce<>(this.map, this.merge, this.from, middle).compute();
+            return this.merge.apply(left, right.join());
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package dev.sixik.mcsr.rework.paletted_container;
 
+import net.minecraft.util.ObjectSizes;
+
 import javax.annotation.Nullable;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
@@ -14,13 +16,14 @@ public class AtomicAlignedBitStorage implements BitStorage {
     private final long mask;
     private final int size;
     private final int valuesPerLong;
-
+    private final long lanePattern;
 
     public AtomicAlignedBitStorage(int bits, int size, @Nullable long[] ls) {
         this.bits = bits;
         this.size = size;
         this.mask = (1L << bits) - 1L;
         this.valuesPerLong = 64 / (bits == 0 ? 1 : bits);
+        this.lanePattern = BitPacking.lanePattern(bits, this.valuesPerLong);
         int arrayLength = (size + valuesPerLong - 1) / valuesPerLong;
         if(ls != null) {
             if (ls.length != arrayLength) {
@@ -68,6 +71,7 @@ public class AtomicAlignedBitStorage implements BitStorage {
         this.size = size;
         this.mask = (1L << bits) - 1L;
         this.valuesPerLong = 64 / (bits == 0 ? 1 : bits);
+        this.lanePattern = BitPacking.lanePattern(bits, this.valuesPerLong);
         int arrayLength = (size + valuesPerLong - 1) / valuesPerLong;
         this.data = new long[arrayLength];
     }
@@ -87,6 +91,7 @@ public class AtomicAlignedBitStorage implements BitStorage {
                 // Возвращаем старое значение, которое было в этих битах
                 return (int) ((oldLong >> shift) & mask);
             }
+            ContainerTelemetry.casFailed();
             Thread.onSpinWait();
         }
     }
@@ -104,6 +109,88 @@ public class AtomicAlignedBitStorage implements BitStorage {
         return (int) ((currentLong >> shift) & mask);
     }
 
+    @Override
+    public void fill(int from, int to, int value) {
+        if (from >= to || bits == 0) {
+            return;
+        }
+
+        long pattern = (value & mask) * lanePattern;
+        int firstLong = from / valuesPerLong;
+        int lastLong = (to - 1) / valuesPerLong;
+        int firstLane = from % valuesPerLong;
+        int lastLane = (to - 1) % valuesPerLong;
+
+        if (firstLong == lastLong) {
+            mergeLong(firstLong, BitPacking.laneMask(bits, firstLane, lastLane), pattern);
+            return;
+        }
+
+        int start = firstLong;
+        if (firstLane != 0) {
+            mergeLong(firstLong, BitPacking.laneMask(bits, firstLane, valuesPerLong - 1), pattern);
+            start++;
+        }
+
+        int end = lastLong;
+        if (lastLane != valuesPerLong - 1) {
+            mergeLong(lastLong, BitPacking.laneMask(bits, 0, lastLane), pattern);
+            end--;
+        }
+
+        for (int longIdx = start; longIdx <= end; longIdx++) {
+            VOLATILE_ACCESS.setRelease(data, longIdx, pattern);
+        }
+        // One fence for the whole run instead of a volatile store per word
+        VarHandle.fullFence();
+    }
+
+    @Override
+    public void setBatch(int[] indices, int[] values, int length) {
+        if (bits == 0) {
+            return;
+        }
+
+        // One CAS per touched word: gather the lanes of every word first (later entries win), then merge
+        long[] laneMasks = new long[data.length];
+        long[] laneBits = new long[data.length];
+        int[] touched = new int[Math.min(length, data.length)];
+        int touchedCount = 0;
+
+        for (int n = 0; n < length; n++) {
+            int index = indices[n];
+            int word = index / valuesPerLong;
+            int shift = (index - word * valuesPerLong) * bits;
+            long valueMask = mask << shift;
+
+            if (laneMasks[word] == 0L) {
+                touched[touchedCount++] = word;
+            }
+            laneMasks[word] |= valueMask;
+            laneBits[word] = (laneBits[word] & ~valueMask) | ((long) values[n] & mask) << shift;
+        }
+
+        for (int t = 0; t < touchedCount; t++) {
+            int word = touched[t];
+            mergeLong(word, laneMasks[word], laneBits[word]);
+        }
+    }
+
+    private void mergeLong(int longIdx, long laneMask, long pattern) {
+        long bitsToSet = pattern & laneMask;
+
+        while (true) {
+            long oldLong = (long) VOLATILE_ACCESS.getVolatile(data, longIdx);
+            long nextLong = (oldLong & ~laneMask) | bitsToSet;
+
+            if (VOLATILE_ACCESS.compareAndSet(data, longIdx, oldLong, nextLong)) {
+                return;
+            }
+            ContainerTelemetry.casFailed();
+            Thread.onSpinWait();
+        }
+    }
+
     @Override
     public long[] getRaw() {
         long[] copy = new long[this.data.length];
@@ -147,4 +234,9 @@ public class AtomicAlignedBitStorage implements BitStorage {
         }
         return copy;
     }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass()) + ObjectSizes.array(this.data);
+    }
 }
@@ -1,16 +1,18 @@
 package dev.sixik.mcsr.rework.paletted_container;
 
+import net.minecraft.util.ObjectSizes;
+
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.util.function.IntConsumer;
 
 public class AtomicSimpleBitStorage implements BitStorage {
-    private static final VarHandle VOLATILE_ACCESS = MethodHandles.arrayElementVarHandle(long[].class);
+    protected static final VarHandle VOLATILE_ACCESS = MethodHandles.arrayElementVarHandle(long[].class);
 
     // Магия из оригинального SimpleBitStorage для совместимости индексации
-    private static final int[] MAGIC = new int[]{-1, -1, 0, Integer.MIN_VALUE, 0, 0, 0x55555555, 0x55555555, 0, Integer.MIN_VALUE, 0, 1, 0x33333333, 0x33333333, 0, 0x2AAAAAAA, 0x2AAAAAAA, 0, 0x24924924, 0x24924924, 0, Integer.MIN_VALUE, 0, 2, 0x1C71C71C, 0x1C71C71C, 0, 0x19999999, 0x19999999, 0, 390451572, 390451572, 0, 0x15555555, 0x15555555, 0, 0x13B13B13, 0x13B13B13, 0, 306783378, 306783378, 0, 0x11111111, 0x11111111, 0, Integer.MIN_VALUE, 0, 3, 0xF0F0F0F, 0xF0F0F0F, 0, 0xE38E38E, 0xE38E38E, 0, 226050910, 226050910, 0, 0xCCCCCCC, 0xCCCCCCC, 0, 0xC30C30C, 0xC30C30C, 0, 195225786, 195225786, 0, 186737708, 186737708, 0, 0xAAAAAAA, 0xAAAAAAA, 0, 171798691, 171798691, 0, 0x9D89D89, 0x9D89D89, 0, 159072862, 159072862, 0, 0x9249249, 0x9249249, 0, 148102320, 148102320, 0, 0x8888888, 0x8888888, 0, 138547332, 138547332, 0, Integer.MIN_VALUE, 0, 4, 130150524, 130150524, 0, 0x7878787, 0x7878787, 0, 0x7507507, 0x7507507, 0, 0x71C71C7, 0x71C71C7, 0, 116080197, 116080197, 0, 113025455, 113025455, 0, 0x6906906, 0x6906906, 0, 0x6666666, 0x6666666, 0, 104755299, 104755299, 0, 0x6186186, 0x6186186, 0, 99882960, 99882960, 0, 97612893, 97612893, 0, 0x5B05B05, 0x5B05B05, 0, 93368854, 93368854, 0, 91382282, 91382282, 0, 0x5555555, 0x5555555, 0, 87652393, 87652393, 0, 85899345, 85899345, 0, 0x5050505, 0x5050505, 0, 0x4EC4EC4, 0x4EC4EC4, 0, 81037118, 81037118, 0, 79536431, 79536431, 0, 78090314, 78090314, 0, 0x4924924, 0x4924924, 0, 75350303, 75350303, 0, 74051160, 74051160, 0, 72796055, 72796055, 0, 0x4444444, 0x4444444, 0, 70409299, 70409299, 0, 69273666, 69273666, 0, 0x4104104, 0x4104104, 0, Integer.MIN_VALUE, 0, 5};
+    static final int[] MAGIC = new int[]{-1, -1, 0, Integer.MIN_VALUE, 0, 0, 0x55555555, 0x55555555, 0, Integer.MIN_VALUE, 0, 1, 0x33333333, 0x33333333, 0, 0x2AAAAAAA, 0x2AAAAAAA, 0, 0x24924924, 0x24924924, 0, Integer.MIN_VALUE, 0, 2, 0x1C71C71C, 0x1C71C71C, 0, 0x19999999, 0x19999999, 0, 390451572, 390451572, 0, 0x15555555, 0x15555555, 0, 0x13B13B13, 0x13B13B13, 0, 306783378, 306783378, 0, 0x11111111, 0x11111111, 0, Integer.MIN_VALUE, 0, 3, 0xF0F0F0F, 0xF0F0F0F, 0, 0xE38E38E, 0xE38E38E, 0, 226050910, 226050910, 0, 0xCCCCCCC, 0xCCCCCCC, 0, 0xC30C30C, 0xC30C30C, 0, 195225786, 195225786, 0, 186737708, 186737708, 0, 0xAAAAAAA, 0xAAAAAAA, 0, 171798691, 171798691, 0, 0x9D89D89, 0x9D89D89, 0, 159072862, 159072862, 0, 0x9249249, 0x9249249, 0, 148102320, 148102320, 0, 0x8888888, 0x8888888, 0, 138547332, 138547332, 0, Integer.MIN_VALUE, 0, 4, 130150524, 130150524, 0, 0x7878787, 0x7878787, 0, 0x7507507, 0x7507507, 0, 0x71C71C7, 0x71C71C7, 0, 116080197, 116080197, 0, 113025455, 113025455, 0, 0x6906906, 0x6906906, 0, 0x6666666, 0x6666666, 0, 104755299, 104755299, 0, 0x6186186, 0x6186186, 0, 99882960, 99882960, 0, 97612893, 97612893, 0, 0x5B05B05, 0x5B05B05, 0, 93368854, 93368854, 0, 91382282, 91382282, 0, 0x5555555, 0x5555555, 0, 87652393, 87652393, 0, 85899345, 85899345, 0, 0x5050505, 0x5050505, 0, 0x4EC4EC4, 0x4EC4EC4, 0, 81037118, 81037118, 0, 79536431, 79536431, 0, 78090314, 78090314, 0, 0x4924924, 0x4924924, 0, 75350303, 75350303, 0, 74051160, 74051160, 0, 72796055, 72796055, 0, 0x4444444, 0x4444444, 0, 70409299, 70409299, 0, 69273666, 69273666, 0, 0x4104104, 0x4104104, 0, Integer.MIN_VALUE, 0, 5};
 
-    private final long[] data;
+    protected final long[] data;
     private final int bits;
     private final long mask;
     private final int size;
@@ -18,34 +20,11 @@ public class AtomicSimpleBitStorage implements BitStorage {
     private final int divideMul;
     private final int divideAdd;
     private final int divideShift;
+    private final long lanePattern;
 
     public AtomicSimpleBitStorage(int bits, int size, int[] is) {
         this(bits, size);
-        int k = 0;
-
-        int l;
-        for (l = 0; l <= size - this.valuesPerLong; l += this.valuesPerLong) {
-            long m = 0L;
-
-            for (int n = this.valuesPerLong - 1; n >= 0; n--) {
-                m <<= bits;
-                m |= is[l + n] & this.mask;
-            }
-
-            this.data[k++] = m;
-        }
-
-        int o = size - l;
-        if (o > 0) {
-            long p = 0L;
-
-            for (int q = o - 1; q >= 0; q--) {
-                p <<= bits;
-                p |= is[l + q] & this.mask;
-            }
-
-            this.data[k] = p;
-        }
+        BitPacking.pack(is, bits, size, this.data);
     }
 
     public AtomicSimpleBitStorage(int bits, int size) {
@@ -60,21 +39,26 @@ public class AtomicSimpleBitStorage implements BitStorage {
         this.divideMul = MAGIC[k + 0];
         this.divideAdd = MAGIC[k + 1];
         this.divideShift = MAGIC[k + 2];
+        this.lanePattern = BitPacking.lanePattern(bits, this.valuesPerLong);
     }
 
     public AtomicSimpleBitStorage(int bits, int size, long[] data) {
         this.bits = bits;
         this.size = size;
         this.mask = (1L << bits) - 1L;
-        this.valuesPerLong = 64 / bits;
+        this.valuesPerLong = 64 / (bits == 0 ? 1 : bits);
 
         int k = 3 * (this.valuesPerLong - 1);
         this.divideMul = MAGIC[k + 0];
         this.divideAdd = MAGIC[k + 1];
         this.divideShift = MAGIC[k + 2];
+        this.lanePattern = BitPacking.lanePattern(bits, this.valuesPerLong);
 
         int expectedLen = (size + valuesPerLong - 1) / valuesPerLong;
         if (data != null) {
+            if (data.length != expectedLen) {
+                throw new SimpleBitStorage.InitializationException("Invalid length given for storage, got: " + data.length + " but expected: " + expectedLen);
+            }
             this.data = data;
         } else {
             this.data = new long[expectedLen];
@@ -103,26 +87,115 @@ public class AtomicSimpleBitStorage implements BitStorage {
     @Override
     public int getAndSet(int i, int j) {
         int idx = cellIndex(i);
-        int shift = (i - idx * this.valuesPerLong) * this.bits;
-        long bitMask = this.mask << shift;
-        long newValueBits = ((long)j & this.mask) << shift;
+        return this.swapLane(idx, (i - idx * this.valuesPerLong) * this.bits, this.mask, j);
+    }
+
+    /**
+     * CAS loop shared with the {@link SpecializedBitStorages}, which pass constant {@code mask}s.
+     */
+    protected final int swapLane(int idx, int shift, long mask, int j) {
+        long bitMask = mask << shift;
+        long newValueBits = ((long)j & mask) << shift;
 
         while (true) {
             long oldLong = (long) VOLATILE_ACCESS.getVolatile(data, idx);
             long nextLong = (oldLong & ~bitMask) | newValueBits;
 
             if (VOLATILE_ACCESS.compareAndSet(data, idx, oldLong, nextLong)) {
-                return (int)(oldLong >> shift & this.mask);
+                return (int)(oldLong >> shift & mask);
+            }
+            ContainerTelemetry.casFailed();
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void fill(int from, int to, int value) {
+        if (from >= to || this.bits == 0) {
+            return;
+        }
+
+        long pattern = ((long)value & this.mask) * this.lanePattern;
+        int firstCell = cellIndex(from);
+        int lastCell = cellIndex(to - 1);
+        int firstLane = from - firstCell * this.valuesPerLong;
+        int lastLane = to - 1 - lastCell * this.valuesPerLong;
+
+        if (firstCell == lastCell) {
+            mergeCell(firstCell, BitPacking.laneMask(this.bits, firstLane, lastLane), pattern);
+            return;
+        }
+
+        // Only the edge cells can be partially covered, everything in between is overwritten whole
+        int start = firstCell;
+        if (firstLane != 0) {
+            mergeCell(firstCell, BitPacking.laneMask(this.bits, firstLane, this.valuesPerLong - 1), pattern);
+            start++;
+        }
+
+        int end = lastCell;
+        if (lastLane != this.valuesPerLong - 1) {
+            mergeCell(lastCell, BitPacking.laneMask(this.bits, 0, lastLane), pattern);
+            end--;
+        }
+
+        for (int cell = start; cell <= end; cell++) {
+            VOLATILE_ACCESS.setRelease(data, cell, pattern);
+        }
+        // One fence for the whole run instead of a volatile store per word
+        VarHandle.fullFence();
+    }
+
+    @Override
+    public void setBatch(int[] indices, int[] values, int length) {
+        if (this.bits == 0) {
+            return;
+        }
+
+        // One CAS per touched word: gather the lanes of every word first (later entries win), then merge
+        long[] laneMasks = new long[this.data.length];
+        long[] laneBits = new long[this.data.length];
+        int[] touched = new int[Math.min(length, this.data.length)];
+        int touchedCount = 0;
+
+        for (int n = 0; n < length; n++) {
+            int index = indices[n];
+            int word = cellIndex(index);
+            int shift = (index - word * this.valuesPerLong) * this.bits;
+            long valueMask = this.mask << shift;
+
+            if (laneMasks[word] == 0L) {
+                touched[touchedCount++] = word;
             }
+            laneMasks[word] |= valueMask;
+            laneBits[word] = (laneBits[word] & ~valueMask) | ((long) values[n] & this.mask) << shift;
+        }
+
+        for (int t = 0; t < touchedCount; t++) {
+            int word = touched[t];
+            mergeCell(word, laneMasks[word], laneBits[word]);
+        }
+    }
+
+    private void mergeCell(int cell, long laneMask, long pattern) {
+        long bitsToSet = pattern & laneMask;
+
+        while (true) {
+            long oldLong = (long) VOLATILE_ACCESS.getVolatile(data, cell);
+            long nextLong = (oldLong & ~laneMask) | bitsToSet;
+
+            if (VOLATILE_ACCESS.compareAndSet(data, cell, oldLong, nextLong)) {
+                return;
+            }
+            ContainerTelemetry.casFailed();
             Thread.onSpinWait();
         }
     }
 
     @Override
     public long[] getRaw() {
-        // Чтобы рендер работал, возвращаем ссылку на массив (как в оригинале)
-        // НО: это небезопасно для конкурентного чтения, поэтому лучше
-        // сделать Mixin в сетевой части, чтобы она делала копию.
+        // Живой массив, как в оригинале: read() заполняет его на месте.
+        // Для чтения под конкурентной записью - copy() / PalettedContainer.snapshot()
         return this.data;
     }
 
@@ -136,21 +209,56 @@ public class AtomicSimpleBitStorage implements BitStorage {
 
     @Override
     public void getAll(IntConsumer consumer) {
-        for (int i = 0; i < this.size; i++) {
-            consumer.accept(this.get(i));
+        if (this.bits == 0) {
+            for (int i = 0; i < this.size; i++) {
+                consumer.accept(0);
+            }
+            return;
+        }
+
+        // одно чтение на слово вместо getAcquire + деления на каждый элемент
+        for (int i = 0, idx = 0; i < this.size; idx++) {
+            long val = (long) VOLATILE_ACCESS.getAcquire(data, idx);
+            int end = Math.min(this.size, i + this.valuesPerLong);
+            for (; i < end; i++) {
+                consumer.accept((int) (val & this.mask));
+                val >>>= this.bits;
+            }
         }
     }
 
     @Override
     public void unpack(int[] target) {
-        for (int i = 0; i < this.size; i++) {
-            target[i] = this.get(i);
-        }
+        BitPacking.unpack(this.data, this.bits, this.size, target);
+        // обычные чтения массива выше получают семантику getAcquire
+        VarHandle.acquireFence();
+    }
+
+    @Override
+    public void histogram(int[] counts) {
+        BitPacking.histogram(this.data, this.bits, this.size, counts);
+        VarHandle.acquireFence();
     }
 
 
     @Override
     public BitStorage copy() {
-        return new AtomicSimpleBitStorage(this.bits, this.size, this.data.clone());
+        long[] copy = new long[this.data.length];
+        this.copyRaw(copy);
+        return SpecializedBitStorages.create(this.bits, this.size, copy);
+    }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass()) + ObjectSizes.array(this.data);
+    }
+
+    /**
+     * Copies the words into {@code target}, which must be exactly as long as {@link #getRaw()}.
+     */
+    public void copyRaw(long[] target) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] = (long) VOLATILE_ACCESS.getAcquire(this.data, i);
+        }
     }
 }
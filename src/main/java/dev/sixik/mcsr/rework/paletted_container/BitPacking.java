@@ -0,0 +1,194 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Word-level helpers shared by the {@link BitStorage} implementations. All of them assume the
+ * {@link SimpleBitStorage} layout: {@code 64 / bits} values per long, lowest lane in the lowest bits,
+ * values never span two longs.
+ */
+final class BitPacking {
+    /**
+     * Whether the bulk loops below may use {@link VectorBitPacking}. The incubator module has to be added to
+     * the boot layer ({@code --add-modules jdk.incubator.vector}); without it everything stays scalar.
+     */
+    static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && !Boolean.getBoolean("mcsr.disableVectorPacking");
+
+    private BitPacking() {
+    }
+
+    /**
+     * A long with a {@code 1} at the start of every lane, so {@code value * lanePattern} repeats
+     * {@code value} across the whole word without carries.
+     */
+    static long lanePattern(int bits, int valuesPerLong) {
+        if (bits == 0) {
+            return 0L;
+        }
+
+        long pattern = 0L;
+        for (int i = 0; i < valuesPerLong; i++) {
+            pattern |= 1L << i * bits;
+        }
+        return pattern;
+    }
+
+    /**
+     * Mask covering lanes {@code fromLane..toLane} (both inclusive) of a word.
+     */
+    static long laneMask(int bits, int fromLane, int toLane) {
+        int end = (toLane + 1) * bits;
+        long upper = end >= 64 ? -1L : (1L << end) - 1L;
+        long lower = (1L << fromLane * bits) - 1L;
+        return upper & ~lower;
+    }
+
+    /**
+     * Re-encodes {@code size} values packed at {@code fromBits} into a new array packed at {@code toBits},
+     * optionally translating every value through {@code remap}. A width of {@code 0} reads as all zeros.
+     */
+    static long[] repack(long[] from, int fromBits, int toBits, int size, @Nullable int[] remap) {
+        int toPerLong = 64 / toBits;
+        return repack(from, fromBits, toBits, size, remap, new long[(size + toPerLong - 1) / toPerLong]);
+    }
+
+    /**
+     * {@link #repack} into {@code to}, which must hold exactly the words of {@code size} values at
+     * {@code toBits}. Every word is overwritten, so {@code to} does not need to be zeroed.
+     */
+    static long[] repack(long[] from, int fromBits, int toBits, int size, @Nullable int[] remap, long[] to) {
+        int toPerLong = 64 / toBits;
+
+        int fromPerLong = fromBits == 0 ? Integer.MAX_VALUE : 64 / fromBits;
+        long fromMask = (1L << fromBits) - 1L;
+        int fromWord = 0;
+        int fromLane = 0;
+        long word = fromBits == 0 || from.length == 0 ? 0L : from[0];
+
+        int index = 0;
+        for (int w = 0; w < to.length; w++) {
+            long packed = 0L;
+            for (int lane = 0; lane < toPerLong && index < size; lane++, index++) {
+                int value = (int) (word & fromMask);
+                word >>>= fromBits;
+                if (++fromLane == fromPerLong) {
+                    fromLane = 0;
+                    word = ++fromWord < from.length ? from[fromWord] : 0L;
+                }
+
+                if (remap != null) {
+                    value = remap[value];
+                }
+                packed |= (long) value << lane * toBits;
+            }
+            to[w] = packed;
+        }
+
+        return to;
+    }
+
+    /**
+     * Writes the first {@code size} values packed at {@code bits} into {@code target}.
+     */
+    static void unpack(long[] words, int bits, int size, int[] target) {
+        int done = VECTORIZED && VectorBitPacking.supports(bits) ? VectorBitPacking.unpack(words, bits, size, target) : 0;
+        unpackScalar(words, bits, done, size, target);
+    }
+
+    /**
+     * Scalar {@link #unpack} of the values {@code [from, size)}, one word load per {@code 64 / bits} values.
+     */
+    static void unpackScalar(long[] words, int bits, int from, int size, int[] target) {
+        if (bits == 0) {
+            Arrays.fill(target, from, size, 0);
+            return;
+        }
+
+        int valuesPerLong = 64 / bits;
+        long mask = (1L << bits) - 1L;
+        int index = from;
+        int word = from / valuesPerLong;
+        int lane = from % valuesPerLong;
+        while (index < size) {
+            long value = words[word++] >>> lane * bits;
+            int end = Math.min(size, index + valuesPerLong - lane);
+            for (; index < end; index++) {
+                target[index] = (int) (value & mask);
+                value >>>= bits;
+            }
+            lane = 0;
+        }
+    }
+
+    /**
+     * Packs {@code values[0..size)} at {@code bits} into {@code words}, masking every value to its width.
+     */
+    static void pack(int[] values, int bits, int size, long[] words) {
+        int done = VECTORIZED && VectorBitPacking.supports(bits) ? VectorBitPacking.pack(values, bits, size, words) : 0;
+        packScalar(values, bits, done, size, words);
+    }
+
+    /**
+     * Scalar {@link #pack} of the values {@code [from, size)}, {@code from} being a word boundary.
+     */
+    static void packScalar(int[] values, int bits, int from, int size, long[] words) {
+        if (bits == 0) {
+            return;
+        }
+
+        int valuesPerLong = 64 / bits;
+        long mask = (1L << bits) - 1L;
+        for (int word = from / valuesPerLong, index = from; index < size; word++) {
+            int end = Math.min(size, index + valuesPerLong);
+            long packed = 0L;
+            for (int lane = 0; index < end; index++, lane++) {
+                packed |= (values[index] & mask) << lane * bits;
+            }
+            words[word] = packed;
+        }
+    }
+
+    /**
+     * Adds to {@code counts[v]} how often {@code v} occurs among the first {@code size} values. Every stored
+     * value must be below {@code counts.length}, which for a section is the palette size.
+     */
+    static void histogram(long[] words, int bits, int size, int[] counts) {
+        if (bits == 0) {
+            counts[0] += size;
+            return;
+        }
+
+        int valuesPerLong = 64 / bits;
+        int fullWords = size / valuesPerLong;
+        // the vector version makes one pass per palette entry, cheaper than per-value counting only for small palettes
+        if (VECTORIZED && VectorBitPacking.supports(bits) && counts.length <= valuesPerLong) {
+            VectorBitPacking.histogram(words, bits, fullWords, counts);
+            histogramScalar(words, bits, fullWords * valuesPerLong, size, counts);
+        } else {
+            histogramScalar(words, bits, 0, size, counts);
+        }
+    }
+
+    /**
+     * Scalar {@link #histogram} of the values {@code [from, size)}, {@code from} being a word boundary.
+     */
+    static void histogramScalar(long[] words, int bits, int from, int size, int[] counts) {
+        if (bits == 0) {
+            counts[0] += size - from;
+            return;
+        }
+
+        int valuesPerLong = 64 / bits;
+        long mask = (1L << bits) - 1L;
+        for (int word = from / valuesPerLong, index = from; index < size; word++) {
+            long value = words[word];
+            int end = Math.min(size, index + valuesPerLong);
+            for (; index < end; index++) {
+                counts[(int) (value & mask)]++;
+                value >>>= bits;
+            }
+        }
+    }
+}
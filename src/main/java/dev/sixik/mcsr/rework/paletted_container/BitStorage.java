@@ -20,4 +20,36 @@ public interface BitStorage {
     void unpack(int[] is);
 
     BitStorage copy();
+
+    /**
+     * Heap bytes held by this storage: the instance and its word array.
+     */
+    long estimateRetainedBytes();
+
+    /**
+     * Adds to {@code counts[v]} how often {@code v} is stored. Every stored value must be below
+     * {@code counts.length}.
+     */
+    default void histogram(int[] counts) {
+        this.getAll(value -> counts[value]++);
+    }
+
+    /**
+     * Sets every index in {@code [from, to)} to {@code value}.
+     */
+    default void fill(int from, int to, int value) {
+        for (int i = from; i < to; i++) {
+            this.set(i, value);
+        }
+    }
+
+    /**
+     * Sets {@code indices[n]} to {@code values[n]} for every {@code n < length}. When an index repeats,
+     * the later entry wins, exactly as with consecutive {@link #set} calls.
+     */
+    default void setBatch(int[] indices, int[] values, int length) {
+        for (int n = 0; n < length; n++) {
+            this.set(indices[n], values[n]);
+        }
+    }
 }
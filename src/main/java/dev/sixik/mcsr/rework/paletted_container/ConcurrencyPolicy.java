@@ -0,0 +1,60 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import static dev.sixik.mcsr.rework.paletted_container.PalettedContainer.Strategy.*;
+
+/**
+ * How much thread safety a {@link PalettedContainer} pays for. Chosen per strategy with
+ * {@link PalettedContainer.Strategy#withConcurrency} and switched on a live container with
+ * {@link PalettedContainer#handOff}, so a stage that owns its sections runs without atomics and only a
+ * shared stage pays for them.
+ */
+public enum ConcurrencyPolicy {
+    /**
+     * One thread at a time, no checks: {@link SimpleBitStorage} and the non-concurrent palettes. Concurrent
+     * writes corrupt the section.
+     */
+    PLAIN,
+    /**
+     * {@link #PLAIN} guarded by the container's {@code ThreadingDetector}: a write that overlaps another
+     * one throws instead of corrupting the section. For debugging stages that are supposed to be
+     * single-threaded.
+     */
+    CHECKED,
+    /**
+     * Any number of concurrent readers and writers: the atomic storages and the concurrent palettes of the
+     * shipped strategies.
+     */
+    LOCK_FREE;
+
+    /**
+     * Plain heap storage; empty storages draw their words from {@link StoragePool#SHARED}.
+     */
+    static final PalettedContainer.StorageFactory PLAIN_HEAP = (bits, size, raw) -> bits == PalettedContainer.MIN_PALETTE_BITS ? new ZeroBitStorage(size)
+            : new SimpleBitStorage(bits, size, raw != null ? raw : StoragePool.SHARED.take(StoragePool.words(bits, size)));
+
+    public boolean isThreadSafe() {
+        return this == LOCK_FREE;
+    }
+
+    /**
+     * {@code configuration} of a lock-free strategy turned into its counterpart under this policy. Custom
+     * storage factories, e.g. an {@link OffHeapArena}'s, are kept: they are atomic in every mode.
+     */
+    <A> PalettedContainer.Configuration<A> adapt(PalettedContainer.Configuration<A> configuration) {
+        if (this.isThreadSafe()) {
+            return configuration;
+        }
+
+        Palette.Factory factory = configuration.factory();
+        if (factory == CONCURRENT_SINGLE_VALUE_PALETTE_FACTORY) {
+            factory = SINGLE_VALUE_PALETTE_FACTORY;
+        } else if (factory == CONCURRENT_LINEAR_PALETTE_FACTORY) {
+            factory = LINEAR_PALETTE_FACTORY;
+        } else if (factory == CONCURRENT_HASHMAP_PALETTE_FACTORY || factory == LOCK_FREE_HASHMAP_PALETTE_FACTORY) {
+            factory = HASHMAP_PALETTE_FACTORY;
+        }
+
+        PalettedContainer.StorageFactory storage = configuration.storage() == PalettedContainer.StorageFactory.HEAP ? PLAIN_HEAP : configuration.storage();
+        return new PalettedContainer.Configuration<>(factory, configuration.bits(), storage);
+    }
+}
@@ -4,6 +4,7 @@ import net.minecraft.core.IdMap;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.network.VarInt;
 import net.minecraft.util.CrudeIncrementalIntIdentityHashBiMap;
+import net.minecraft.util.ObjectSizes;
 
 import java.util.List;
 import java.util.function.Predicate;
@@ -58,6 +59,10 @@ public class ConcurrentHashMapPalette<T> implements Palette<T> {
 
                 // Обновляем ссылку на карту
                 this.values = nextValues;
+                ContainerTelemetry.paletteInsert();
+            } else {
+                // другой поток добавил тот же объект, пока мы ждали лок
+                ContainerTelemetry.paletteInsertRace();
             }
         }
         return id;
@@ -75,7 +80,7 @@ public class ConcurrentHashMapPalette<T> implements Palette<T> {
     }
 
     @Override
-    public synchronized T valueFor(int i) {
+    public T valueFor(int i) {
         // Чтение абсолютно свободно от блокировок
         T object = this.values.byId(i);
         if (object == null) {
@@ -121,8 +126,13 @@ public class ConcurrentHashMapPalette<T> implements Palette<T> {
     }
 
     @Override
-    public Palette<T> copy() {
-        return new ConcurrentHashMapPalette<>(this.registry, this.bits, this.resizeHandler, this.values.copy());
+    public Palette<T> copy(PaletteResize<T> paletteResize) {
+        return new ConcurrentHashMapPalette<>(this.registry, this.bits, paletteResize, this.values.copy());
+    }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass()) + this.values.estimateRetainedBytes();
     }
 
     public static <A> Palette<A> create(int i, IdMap<A> idMap, PaletteResize<A> paletteResize, List<A> list) {
@@ -0,0 +1,163 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import net.minecraft.core.IdMap;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.VarInt;
+import net.minecraft.util.ObjectSizes;
+import org.apache.commons.lang3.Validate;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * {@link LinearPalette} that may be shared between writers.
+ * <p>
+ * Slots are claimed with a CAS in index order, so the filled slots always form a prefix of the array. A
+ * lookup walks that prefix and claims the first empty slot it reaches; a thread that loses the CAS gets the
+ * winner's value back and either returns that id or walks on, so a value never ends up in two slots.
+ * {@code size} counts claimed slots and is published after the slot, it can only trail the prefix.
+ */
+public class ConcurrentLinearPalette<T> implements Palette<T> {
+    private static final VarHandle OBJECTS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle SIZE;
+
+    static {
+        try {
+            SIZE = MethodHandles.lookup().findVarHandle(ConcurrentLinearPalette.class, "size", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final IdMap<T> registry;
+    private final Object[] values;
+    private final PaletteResize<T> resizeHandler;
+    private final int bits;
+    private volatile int size;
+
+    private ConcurrentLinearPalette(IdMap<T> idMap, int i, PaletteResize<T> paletteResize, List<T> list) {
+        this.registry = idMap;
+        this.values = new Object[1 << i];
+        this.bits = i;
+        this.resizeHandler = paletteResize;
+        Validate.isTrue(list.size() <= this.values.length, "Can't initialize ConcurrentLinearPalette of size %d with %d entries", this.values.length, list.size());
+
+        for (int j = 0; j < list.size(); j++) {
+            this.values[j] = list.get(j);
+        }
+
+        this.size = list.size();
+    }
+
+    public static <A> Palette<A> create(int i, IdMap<A> idMap, PaletteResize<A> paletteResize, List<A> list) {
+        return new ConcurrentLinearPalette<>(idMap, i, paletteResize, list);
+    }
+
+    @Override
+    public int idFor(T object) {
+        for (int i = 0; i < this.values.length; i++) {
+            Object value = OBJECTS.getAcquire(this.values, i);
+            if (value == null) {
+                value = OBJECTS.compareAndExchange(this.values, i, null, object);
+                if (value == null) {
+                    SIZE.getAndAdd(this, 1);
+                    ContainerTelemetry.paletteInsert();
+                    return i;
+                }
+                if (value == object) {
+                    ContainerTelemetry.paletteInsertRace();
+                }
+            }
+
+            if (value == object) {
+                return i;
+            }
+        }
+
+        return this.resizeHandler.onResize(this.bits + 1, object);
+    }
+
+    @Override
+    public boolean maybeHas(Predicate<T> predicate) {
+        int size = this.getSize();
+        for (int i = 0; i < size; i++) {
+            if (predicate.test(this.valueFor(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T valueFor(int i) {
+        if (i >= 0 && i < this.values.length) {
+            Object value = OBJECTS.getAcquire(this.values, i);
+            if (value != null) {
+                return (T) value;
+            }
+        }
+
+        throw new MissingPaletteEntryException(i);
+    }
+
+    @Override
+    public void read(FriendlyByteBuf friendlyByteBuf) {
+        Arrays.fill(this.values, null);
+        int size = friendlyByteBuf.readVarInt();
+
+        for (int i = 0; i < size; i++) {
+            OBJECTS.setRelease(this.values, i, this.registry.byIdOrThrow(friendlyByteBuf.readVarInt()));
+        }
+
+        this.size = size;
+    }
+
+    @Override
+    public void write(FriendlyByteBuf friendlyByteBuf) {
+        int size = this.getSize();
+        friendlyByteBuf.writeVarInt(size);
+
+        for (int i = 0; i < size; i++) {
+            friendlyByteBuf.writeVarInt(this.registry.getId(this.valueFor(i)));
+        }
+    }
+
+    @Override
+    public int getSerializedSize() {
+        int size = this.getSize();
+        int i = VarInt.getByteSize(size);
+
+        for (int j = 0; j < size; j++) {
+            i += VarInt.getByteSize(this.registry.getId(this.valueFor(j)));
+        }
+
+        return i;
+    }
+
+    /**
+     * Length of the claimed prefix, including slots whose claim is not counted in {@code size} yet.
+     */
+    @Override
+    public int getSize() {
+        int size = this.size;
+        while (size < this.values.length && OBJECTS.getAcquire(this.values, size) != null) {
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public Palette<T> copy(PaletteResize<T> paletteResize) {
+        return new ConcurrentLinearPalette<>(this.registry, this.bits, paletteResize, this.entries());
+    }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass()) + ObjectSizes.array(this.values);
+    }
+}
@@ -0,0 +1,135 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import net.minecraft.core.IdMap;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.VarInt;
+import net.minecraft.util.ObjectSizes;
+import org.apache.commons.lang3.Validate;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * {@link SingleValuePalette} that may be shared between writers. The value is claimed once with a CAS and
+ * never changes afterwards; every other value goes to {@link PaletteResize#onResize}. Paired with a
+ * {@link ZeroBitStorage}, a uniform section costs no storage at all.
+ */
+public class ConcurrentSingleValuePalette<T> implements Palette<T> {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(ConcurrentSingleValuePalette.class, "value", Object.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final IdMap<T> registry;
+    @Nullable
+    private volatile T value;
+    private final PaletteResize<T> resizeHandler;
+
+    public ConcurrentSingleValuePalette(IdMap<T> idMap, PaletteResize<T> paletteResize, List<T> list) {
+        this.registry = idMap;
+        this.resizeHandler = paletteResize;
+        if (list.size() > 0) {
+            Validate.isTrue(list.size() <= 1, "Can't initialize ConcurrentSingleValuePalette with %d values.", (long)list.size());
+            this.value = list.get(0);
+        }
+    }
+
+    public static <A> Palette<A> create(int i, IdMap<A> idMap, PaletteResize<A> paletteResize, List<A> list) {
+        return new ConcurrentSingleValuePalette<>(idMap, paletteResize, list);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int idFor(T object) {
+        T value = this.value;
+        if (value == null) {
+            // losing the race is fine as long as the winner claimed the same value
+            value = (T) VALUE.compareAndExchange(this, null, object);
+            if (value == null) {
+                ContainerTelemetry.paletteInsert();
+                return 0;
+            }
+            if (value == object) {
+                ContainerTelemetry.paletteInsertRace();
+            }
+        }
+
+        return value == object ? 0 : this.resizeHandler.onResize(1, object);
+    }
+
+    @Override
+    public boolean maybeHas(Predicate<T> predicate) {
+        T value = this.value;
+        if (value == null) {
+            throw new IllegalStateException("Use of an uninitialized palette");
+        } else {
+            return predicate.test(value);
+        }
+    }
+
+    @Override
+    public T valueFor(int i) {
+        T value = this.value;
+        if (value != null && i == 0) {
+            return value;
+        } else {
+            throw new IllegalStateException("Missing Palette entry for id " + i + ".");
+        }
+    }
+
+    @Override
+    public void read(FriendlyByteBuf friendlyByteBuf) {
+        this.value = this.registry.byIdOrThrow(friendlyByteBuf.readVarInt());
+    }
+
+    @Override
+    public void write(FriendlyByteBuf friendlyByteBuf) {
+        T value = this.value;
+        if (value == null) {
+            throw new IllegalStateException("Use of an uninitialized palette");
+        } else {
+            friendlyByteBuf.writeVarInt(this.registry.getId(value));
+        }
+    }
+
+    @Override
+    public int getSerializedSize() {
+        T value = this.value;
+        if (value == null) {
+            throw new IllegalStateException("Use of an uninitialized palette");
+        } else {
+            return VarInt.getByteSize(this.registry.getId(value));
+        }
+    }
+
+    /**
+     * {@code 0} until the value is claimed, so a resize racing with the first write still sees room.
+     */
+    @Override
+    public int getSize() {
+        return this.value == null ? 0 : 1;
+    }
+
+    @Override
+    public Palette<T> copy(PaletteResize<T> paletteResize) {
+        if (this.value == null) {
+            throw new IllegalStateException("Use of an uninitialized palette");
+        } else {
+            // the value never changes once claimed, but overflows must reach the new owner
+            return new ConcurrentSingleValuePalette<>(this.registry, paletteResize, List.of(this.value));
+        }
+    }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass());
+    }
+}
@@ -0,0 +1,234 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped counters for the contended paths of {@link PalettedContainer}: write retries, failed storage CAS,
+ * palette inserts and the races between them, resizes by bits transition and the time spent waiting for and
+ * holding the resize lock. Everything is counted in {@link #GLOBAL}; a container given its own instance with
+ * {@link PalettedContainer#setTelemetry} additionally counts its retries, resizes and lock times there, which
+ * is how hot sections are told apart. Storage CAS failures and palette inserts do not know their container
+ * and only go to {@link #GLOBAL}.
+ * <p>
+ * Only the slow paths are instrumented, the uncontended fast paths never touch a counter. Counting is on by
+ * default; {@link #setEnabled} (or {@code -Dmcsr.disableTelemetry=true}) turns it off, after which the
+ * instrumented paths cost one volatile read.
+ */
+public final class ContainerTelemetry {
+    public static final ContainerTelemetry GLOBAL = new ContainerTelemetry();
+
+    private static final int MAX_BITS = 32;
+
+    private static volatile boolean enabled = !Boolean.getBoolean("mcsr.disableTelemetry");
+
+    private final LongAdder staleIdRetries = new LongAdder();
+    private final LongAdder lostWriteRetries = new LongAdder();
+    private final LongAdder casFailures = new LongAdder();
+    private final LongAdder paletteInserts = new LongAdder();
+    private final LongAdder paletteInsertRaces = new LongAdder();
+    private final LongAdder lockAcquisitions = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+    private final LongAdder lockHeldNanos = new LongAdder();
+    // (from << 6 | to), заводятся при первом переходе
+    private final AtomicReferenceArray<LongAdder> resizes = new AtomicReferenceArray<>(MAX_BITS + 1 << 6);
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        ContainerTelemetry.enabled = enabled;
+    }
+
+    /**
+     * A resize from {@code fromBits} to {@code toBits}; compactions are transitions to the same or fewer bits.
+     */
+    public record Transition(int fromBits, int toBits) implements Comparable<Transition> {
+        @Override
+        public int compareTo(Transition other) {
+            return this.fromBits != other.fromBits ? Integer.compare(this.fromBits, other.fromBits) : Integer.compare(this.toBits, other.toBits);
+        }
+
+        @Override
+        public String toString() {
+            return this.fromBits + "->" + this.toBits;
+        }
+    }
+
+    /**
+     * Counter values at one point in time. Counters are read one by one while others may still be counting,
+     * so two fields of a snapshot can be a few events apart.
+     *
+     * @param staleIdRetries writes restarted because the data changed while the palette id was resolved
+     * @param lostWriteRetries writes repeated because a resize copied the data around them
+     * @param casFailures failed CAS attempts on a storage word
+     * @param paletteInserts new entries added to a concurrent palette
+     * @param paletteInsertRaces inserts that found the same value just added by another thread
+     * @param lockAcquisitions times the resize lock was taken
+     * @param lockWaitNanos time spent waiting for the resize lock
+     * @param lockHeldNanos time the resize lock was held
+     * @param resizes resizes and compactions per bits transition
+     */
+    public record Snapshot(long staleIdRetries, long lostWriteRetries, long casFailures, long paletteInserts, long paletteInsertRaces,
+                           long lockAcquisitions, long lockWaitNanos, long lockHeldNanos, Map<Transition, Long> resizes) {
+
+        public long retries() {
+            return this.staleIdRetries + this.lostWriteRetries;
+        }
+
+        public long resizeCount() {
+            long sum = 0L;
+            for (long count : this.resizes.values()) {
+                sum += count;
+            }
+            return sum;
+        }
+
+        /**
+         * What happened between {@code earlier} and this snapshot.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            Map<Transition, Long> delta = new TreeMap<>(this.resizes);
+            earlier.resizes.forEach((transition, count) -> delta.merge(transition, -count, Long::sum));
+            delta.values().removeIf(count -> count == 0L);
+            return new Snapshot(this.staleIdRetries - earlier.staleIdRetries, this.lostWriteRetries - earlier.lostWriteRetries,
+                    this.casFailures - earlier.casFailures, this.paletteInserts - earlier.paletteInserts, this.paletteInsertRaces - earlier.paletteInsertRaces,
+                    this.lockAcquisitions - earlier.lockAcquisitions, this.lockWaitNanos - earlier.lockWaitNanos, this.lockHeldNanos - earlier.lockHeldNanos, delta);
+        }
+    }
+
+    public Snapshot snapshot() {
+        Map<Transition, Long> resizes = new TreeMap<>();
+        for (int i = 0; i < this.resizes.length(); i++) {
+            LongAdder adder = this.resizes.get(i);
+            if (adder != null) {
+                resizes.put(new Transition(i >>> 6, i & 63), adder.sum());
+            }
+        }
+
+        return new Snapshot(this.staleIdRetries.sum(), this.lostWriteRetries.sum(), this.casFailures.sum(), this.paletteInserts.sum(), this.paletteInsertRaces.sum(),
+                this.lockAcquisitions.sum(), this.lockWaitNanos.sum(), this.lockHeldNanos.sum(), resizes);
+    }
+
+    public void reset() {
+        this.staleIdRetries.reset();
+        this.lostWriteRetries.reset();
+        this.casFailures.reset();
+        this.paletteInserts.reset();
+        this.paletteInsertRaces.reset();
+        this.lockAcquisitions.reset();
+        this.lockWaitNanos.reset();
+        this.lockHeldNanos.reset();
+        for (int i = 0; i < this.resizes.length(); i++) {
+            LongAdder adder = this.resizes.get(i);
+            if (adder != null) {
+                adder.reset();
+            }
+        }
+    }
+
+    static void staleId(@Nullable ContainerTelemetry own) {
+        if (enabled) {
+            GLOBAL.staleIdRetries.increment();
+            if (own != null) {
+                own.staleIdRetries.increment();
+            }
+        }
+    }
+
+    static void lostWrite(@Nullable ContainerTelemetry own) {
+        if (enabled) {
+            GLOBAL.lostWriteRetries.increment();
+            if (own != null) {
+                own.lostWriteRetries.increment();
+            }
+        }
+    }
+
+    static void casFailed() {
+        if (enabled) {
+            GLOBAL.casFailures.increment();
+        }
+    }
+
+    static void paletteInsert() {
+        if (enabled) {
+            GLOBAL.paletteInserts.increment();
+        }
+    }
+
+    static void paletteInsertRace() {
+        if (enabled) {
+            GLOBAL.paletteInsertRaces.increment();
+        }
+    }
+
+    static void resize(@Nullable ContainerTelemetry own, int fromBits, int toBits) {
+        if (enabled) {
+            GLOBAL.resized(fromBits, toBits);
+            if (own != null) {
+                own.resized(fromBits, toBits);
+            }
+        }
+    }
+
+    private void resized(int fromBits, int toBits) {
+        int index = Math.min(fromBits, MAX_BITS) << 6 | Math.min(toBits, MAX_BITS);
+        LongAdder adder = this.resizes.get(index);
+        if (adder == null) {
+            this.resizes.compareAndSet(index, null, new LongAdder());
+            adder = this.resizes.get(index);
+        }
+        adder.increment();
+    }
+
+    /**
+     * Start of a resize lock acquisition: a timestamp, or {@code 0} while counting is off.
+     */
+    static long beforeLock() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * The lock requested at {@code requested} (from {@link #beforeLock}) is now held; returns the timestamp
+     * to hand to {@link #unlocked}.
+     */
+    static long locked(@Nullable ContainerTelemetry own, long requested) {
+        if (requested == 0L) {
+            return 0L;
+        }
+
+        long now = System.nanoTime();
+        GLOBAL.lockAcquisitions.increment();
+        GLOBAL.lockWaitNanos.add(now - requested);
+        if (own != null) {
+            own.lockAcquisitions.increment();
+            own.lockWaitNanos.add(now - requested);
+        }
+        return now;
+    }
+
+    static void unlocked(@Nullable ContainerTelemetry own, long acquired) {
+        if (acquired == 0L) {
+            return;
+        }
+
+        long held = System.nanoTime() - acquired;
+        GLOBAL.lockHeldNanos.add(held);
+        if (own != null) {
+            own.lockHeldNanos.add(held);
+        }
+    }
+
+    @Override
+    public String toString() {
+        Snapshot snapshot = this.snapshot();
+        return String.format("ContainerTelemetry{retries=%d (stale id %d, lost write %d), casFailures=%d, paletteInserts=%d (races %d), locks=%d (wait %.3f ms, held %.3f ms), resizes=%s}",
+                snapshot.retries(), snapshot.staleIdRetries(), snapshot.lostWriteRetries(), snapshot.casFailures(), snapshot.paletteInserts(), snapshot.paletteInsertRaces(),
+                snapshot.lockAcquisitions(), snapshot.lockWaitNanos() / 1e6, snapshot.lockHeldNanos() / 1e6, snapshot.resizes());
+    }
+}
@@ -0,0 +1,76 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sums {@link PalettedContainer#estimateRetainedBytes()} over a set of containers, bucketed by storage width
+ * and palette class. Containers that resize while being added may be counted under their old or new bucket.
+ * Not thread-safe.
+ */
+public final class FootprintHistogram {
+    private final Map<Key, long[]> buckets = new HashMap<>();
+    private long containers;
+    private long bytes;
+
+    private record Key(int bits, Class<?> palette) {
+    }
+
+    /**
+     * One row of the histogram.
+     */
+    public record Bucket(int bits, String palette, long containers, long bytes) {
+        public long averageBytes() {
+            return this.containers == 0 ? 0 : this.bytes / this.containers;
+        }
+    }
+
+    public static FootprintHistogram of(Iterable<? extends PalettedContainer<?>> containers) {
+        FootprintHistogram histogram = new FootprintHistogram();
+        for (PalettedContainer<?> container : containers) {
+            histogram.add(container);
+        }
+        return histogram;
+    }
+
+    public void add(PalettedContainer<?> container) {
+        long retained = container.estimateRetainedBytes();
+        long[] bucket = this.buckets.computeIfAbsent(new Key(container.getBits(), container.paletteType()), key -> new long[2]);
+        bucket[0]++;
+        bucket[1] += retained;
+        this.containers++;
+        this.bytes += retained;
+    }
+
+    public long containers() {
+        return this.containers;
+    }
+
+    public long totalBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Rows ordered by width, then by palette name.
+     */
+    public List<Bucket> buckets() {
+        List<Bucket> list = new ArrayList<>(this.buckets.size());
+        this.buckets.forEach((key, bucket) -> list.add(new Bucket(key.bits(), key.palette().getSimpleName(), bucket[0], bucket[1])));
+        list.sort(Comparator.comparingInt(Bucket::bits).thenComparing(Bucket::palette));
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%4s | %-30s | %10s | %14s | %8s%n", "bits", "palette", "containers", "bytes", "avg"));
+        for (Bucket bucket : this.buckets()) {
+            builder.append(String.format("%4d | %-30s | %10d | %14d | %8d%n", bucket.bits(), bucket.palette(), bucket.containers(), bucket.bytes(), bucket.averageBytes()));
+        }
+        builder.append(String.format("%4s | %-30s | %10d | %14d | %8d%n", "", "total", this.containers, this.bytes, this.containers == 0 ? 0 : this.bytes / this.containers));
+        return builder.toString();
+    }
+}
@@ -2,6 +2,7 @@ package dev.sixik.mcsr.rework.paletted_container;
 
 import net.minecraft.core.IdMap;
 import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.util.ObjectSizes;
 
 import java.util.List;
 import java.util.function.Predicate;
@@ -57,7 +58,12 @@ public class GlobalPalette<T> implements Palette<T> {
     }
 
     @Override
-    public Palette<T> copy() {
+    public Palette<T> copy(PaletteResize<T> paletteResize) {
         return this;
     }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass());
+    }
 }
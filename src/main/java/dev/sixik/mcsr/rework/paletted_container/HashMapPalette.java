@@ -4,6 +4,7 @@ import net.minecraft.core.IdMap;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.network.VarInt;
 import net.minecraft.util.CrudeIncrementalIntIdentityHashBiMap;
+import net.minecraft.util.ObjectSizes;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -112,8 +113,13 @@ public class HashMapPalette<T> implements Palette<T> {
     }
 
     @Override
-    public Palette<T> copy() {
-        return new HashMapPalette<>(this.registry, this.bits, this.resizeHandler, this.values.copy());
+    public Palette<T> copy(PaletteResize<T> paletteResize) {
+        return new HashMapPalette<>(this.registry, this.bits, paletteResize, this.values.copy());
+    }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass()) + this.values.estimateRetainedBytes();
     }
 }
 
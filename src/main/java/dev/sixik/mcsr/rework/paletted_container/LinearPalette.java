@@ -3,6 +3,7 @@ package dev.sixik.mcsr.rework.paletted_container;
 import net.minecraft.core.IdMap;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.network.VarInt;
+import net.minecraft.util.ObjectSizes;
 import org.apache.commons.lang3.Validate;
 
 import java.util.List;
@@ -114,7 +115,12 @@ public class LinearPalette<T> implements Palette<T> {
     }
 
     @Override
-    public Palette<T> copy() {
-        return new LinearPalette<>(this.registry, (T[])((Object[])this.values.clone()), this.resizeHandler, this.bits, this.size);
+    public Palette<T> copy(PaletteResize<T> paletteResize) {
+        return new LinearPalette<>(this.registry, (T[])((Object[])this.values.clone()), paletteResize, this.bits, this.size);
+    }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass()) + ObjectSizes.array(this.values);
     }
 }
@@ -0,0 +1,230 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import net.minecraft.core.IdMap;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.VarInt;
+import net.minecraft.util.Mth;
+import net.minecraft.util.ObjectSizes;
+import org.apache.commons.lang3.Validate;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Append-only palette that never takes a lock.
+ * <p>
+ * The id -> value side is a plain array published slot by slot with release/acquire, so {@link #valueFor}
+ * is a single acquire load. The value -> id side is an open-addressing table whose slots are claimed with a
+ * CAS on the key; the claiming thread then allocates the next id and publishes it into the slot. Other
+ * threads that race on the same value find the claimed key and wait for its id instead of inserting twice.
+ * Inserts are O(1) amortized: nothing is ever copied, the palette is simply replaced on resize.
+ */
+public final class LockFreeHashMapPalette<T> implements Palette<T> {
+    private static final VarHandle OBJECTS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle SIZE;
+
+    static {
+        try {
+            SIZE = MethodHandles.lookup().findVarHandle(LockFreeHashMapPalette.class, "size", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Slot states of the ids table: 0 - key claimed but id not published yet, id + 1 - published id
+    private static final int UNPUBLISHED = 0;
+    private static final int OVERFLOW = -1;
+
+    private final IdMap<T> registry;
+    private final PaletteResize<T> resizeHandler;
+    private final int bits;
+
+    private final Object[] byId;
+    private final Object[] keys;
+    private final int[] ids;
+
+    // Number of allocated ids, may run past byId.length while threads race into a resize
+    private volatile int size;
+
+    public LockFreeHashMapPalette(IdMap<T> idMap, int i, PaletteResize<T> paletteResize) {
+        this.registry = idMap;
+        this.bits = i;
+        this.resizeHandler = paletteResize;
+        this.byId = new Object[1 << i];
+        // Load factor stays at or below 0.5 even when every id is taken
+        this.keys = new Object[Math.max(2, Mth.smallestEncompassingPowerOfTwo(this.byId.length << 1))];
+        this.ids = new int[this.keys.length];
+    }
+
+    public LockFreeHashMapPalette(IdMap<T> idMap, int i, PaletteResize<T> paletteResize, List<T> list) {
+        this(idMap, i, paletteResize);
+        Validate.isTrue(list.size() <= this.byId.length, "Can't initialize LockFreeHashMapPalette of size %d with %d entries", this.byId.length, list.size());
+        list.forEach(this::idFor);
+    }
+
+    public static <A> Palette<A> create(int i, IdMap<A> idMap, PaletteResize<A> paletteResize, List<A> list) {
+        return new LockFreeHashMapPalette<>(idMap, i, paletteResize, list);
+    }
+
+    private static int hash(Object object) {
+        return Mth.murmurHash3Mixer(System.identityHashCode(object));
+    }
+
+    @Override
+    public int idFor(T object) {
+        int mask = this.keys.length - 1;
+        int slot = hash(object) & mask;
+
+        for (int probe = 0; probe < this.keys.length; probe++) {
+            Object key = OBJECTS.getAcquire(this.keys, slot);
+            if (key == null) {
+                if (OBJECTS.compareAndSet(this.keys, slot, null, object)) {
+                    return this.publish(slot, object);
+                }
+                key = OBJECTS.getAcquire(this.keys, slot);
+                if (key == object) {
+                    ContainerTelemetry.paletteInsertRace();
+                }
+            }
+
+            if (key == object) {
+                return this.awaitId(slot, object);
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        // Every slot is claimed (only possible when many overflowing inserts raced), the palette is done
+        return this.resizeHandler.onResize(this.bits + 1, object);
+    }
+
+    private int publish(int slot, T object) {
+        int id = (int) SIZE.getAndAdd(this, 1);
+        if (id >= this.byId.length) {
+            INTS.setRelease(this.ids, slot, OVERFLOW);
+            return this.resizeHandler.onResize(this.bits + 1, object);
+        }
+
+        OBJECTS.setRelease(this.byId, id, object);
+        INTS.setRelease(this.ids, slot, id + 1);
+        ContainerTelemetry.paletteInsert();
+        return id;
+    }
+
+    private int awaitId(int slot, T object) {
+        int id;
+        while ((id = (int) INTS.getAcquire(this.ids, slot)) == UNPUBLISHED) {
+            Thread.onSpinWait();
+        }
+
+        return id == OVERFLOW ? this.resizeHandler.onResize(this.bits + 1, object) : id - 1;
+    }
+
+    /**
+     * Entry for an id below {@link #getSize()}. The id may already be allocated while its value is still
+     * being published by the inserting thread, so this waits for that single store.
+     */
+    @SuppressWarnings("unchecked")
+    private T entry(int i) {
+        Object object;
+        while ((object = OBJECTS.getAcquire(this.byId, i)) == null) {
+            Thread.onSpinWait();
+        }
+        return (T) object;
+    }
+
+    @Override
+    public boolean maybeHas(Predicate<T> predicate) {
+        int size = this.getSize();
+        for (int i = 0; i < size; i++) {
+            if (predicate.test(this.entry(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T valueFor(int i) {
+        if (i >= 0 && i < this.byId.length) {
+            Object object = OBJECTS.getAcquire(this.byId, i);
+            if (object != null) {
+                return (T) object;
+            }
+        }
+
+        throw new MissingPaletteEntryException(i);
+    }
+
+    @Override
+    public void read(FriendlyByteBuf friendlyByteBuf) {
+        Arrays.fill(this.byId, null);
+        Arrays.fill(this.keys, null);
+        Arrays.fill(this.ids, UNPUBLISHED);
+        this.size = 0;
+
+        int i = friendlyByteBuf.readVarInt();
+        for (int j = 0; j < i; j++) {
+            this.idFor(this.registry.byIdOrThrow(friendlyByteBuf.readVarInt()));
+        }
+    }
+
+    @Override
+    public void write(FriendlyByteBuf friendlyByteBuf) {
+        int i = this.getSize();
+        friendlyByteBuf.writeVarInt(i);
+
+        for (int j = 0; j < i; j++) {
+            friendlyByteBuf.writeVarInt(this.registry.getId(this.entry(j)));
+        }
+    }
+
+    @Override
+    public int getSerializedSize() {
+        int size = this.getSize();
+        int i = VarInt.getByteSize(size);
+
+        for (int j = 0; j < size; j++) {
+            i += VarInt.getByteSize(this.registry.getId(this.entry(j)));
+        }
+
+        return i;
+    }
+
+    @Override
+    public int getSize() {
+        return Math.min(this.size, this.byId.length);
+    }
+
+    @Override
+    public List<T> entries() {
+        int size = this.getSize();
+        List<T> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(this.entry(i));
+        }
+        return list;
+    }
+
+    @Override
+    public Palette<T> copy(PaletteResize<T> paletteResize) {
+        int size = this.getSize();
+        LockFreeHashMapPalette<T> copy = new LockFreeHashMapPalette<>(this.registry, this.bits, paletteResize);
+        for (int i = 0; i < size; i++) {
+            copy.idFor(this.entry(i));
+        }
+        return copy;
+    }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass()) + ObjectSizes.array(this.byId) + ObjectSizes.array(this.keys) + ObjectSizes.array(this.ids);
+    }
+}
@@ -0,0 +1,133 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Owner of the off-heap memory of one region. {@link OffHeapBitStorage}s are bump-allocated from direct slabs
+ * of {@link #SLAB_BYTES}, so a region of a few thousand sections is backed by a handful of buffers instead of
+ * one {@code long[]} per section. Blocks of recycled storages go to a free list per block size and are handed
+ * out again before the slab grows, so sections that keep resizing between the same widths stop taking new
+ * memory. {@link #close()} drops the arena's hold on every slab at once; a slab's memory goes back to the
+ * system when its last storage is unreachable.
+ * <p>
+ * Plug it into a container with {@code strategy.withStorage(arena.storageFactory())}.
+ */
+public final class OffHeapArena implements AutoCloseable {
+    public static final int SLAB_BYTES = 1 << 20;
+
+    private final int slabBytes;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    // свободные блоки по выровненному размеру
+    private final Map<Integer, ArrayDeque<ByteBuffer>> freeBlocks = new HashMap<>();
+    private ByteBuffer current;
+    private long allocatedBytes;
+    private long reservedBytes;
+    private boolean closed;
+
+    public OffHeapArena() {
+        this(SLAB_BYTES);
+    }
+
+    public OffHeapArena(int slabBytes) {
+        this.slabBytes = slabBytes;
+    }
+
+    /**
+     * Zeroed, 8-byte aligned block of at least {@code bytes}, a freed block of the same size when there is one.
+     * Blocks larger than a slab get a dedicated buffer.
+     */
+    synchronized ByteBuffer allocate(int bytes) {
+        if (this.closed) {
+            throw new IllegalStateException("Arena is closed");
+        }
+
+        int aligned = bytes + 7 & ~7;
+        ArrayDeque<ByteBuffer> blocks = this.freeBlocks.get(aligned);
+        ByteBuffer block = blocks == null ? null : blocks.poll();
+        if (block != null) {
+            this.allocatedBytes += aligned;
+            return block;
+        }
+
+        if (aligned > this.slabBytes) {
+            this.allocatedBytes += aligned;
+            // ровно aligned байт, чтобы блок вернулся в список своего размера
+            return this.slab(aligned).slice(0, aligned);
+        }
+
+        if (this.current == null || this.current.remaining() < aligned) {
+            this.current = this.slab(this.slabBytes);
+        }
+
+        int offset = this.current.position();
+        this.current.position(offset + aligned);
+        this.allocatedBytes += aligned;
+        return this.current.slice(offset, aligned);
+    }
+
+    /**
+     * Takes back a block from {@link #allocate}. The caller must be its only user: no storage, reader or
+     * snapshot may still see it. Blocks freed after {@link #close()} are left to the GC with their slab.
+     */
+    void free(ByteBuffer block) {
+        // обнуляется вне лока: блок пока принадлежит только вызывающему
+        for (int offset = 0; offset < block.capacity(); offset += Long.BYTES) {
+            block.putLong(offset, 0L);
+        }
+
+        synchronized (this) {
+            if (!this.closed) {
+                this.freeBlocks.computeIfAbsent(block.capacity(), capacity -> new ArrayDeque<>()).push(block);
+                this.allocatedBytes -= block.capacity();
+            }
+        }
+    }
+
+    private ByteBuffer slab(int bytes) {
+        // alignedSlice: атомарный доступ через VarHandle требует выравнивания адреса по 8
+        ByteBuffer slab = ByteBuffer.allocateDirect(bytes + 7).alignedSlice(8);
+        this.slabs.add(slab);
+        this.reservedBytes += bytes;
+        return slab;
+    }
+
+    public PalettedContainer.StorageFactory storageFactory() {
+        return (bits, size, raw) -> bits == 0 ? new ZeroBitStorage(size) : new OffHeapBitStorage(this, bits, size, raw);
+    }
+
+    /**
+     * Bytes handed out to storages and not freed since.
+     */
+    public synchronized long allocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    /**
+     * Bytes of direct memory held in slabs, including their unused tails.
+     */
+    public synchronized long reservedBytes() {
+        return this.reservedBytes;
+    }
+
+    public synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Drops the arena's references to its slabs and free blocks; nothing is released here. A slab's direct
+     * memory goes back to the system once the GC finds it unreachable, which a storage that is still referenced
+     * prevents, so a stray reader never touches freed memory. Later allocations fail.
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        this.slabs.clear();
+        this.freeBlocks.clear();
+        this.current = null;
+    }
+}
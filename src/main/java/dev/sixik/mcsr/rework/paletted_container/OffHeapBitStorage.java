@@ -0,0 +1,239 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import net.minecraft.util.ObjectSizes;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.IntConsumer;
+
+/**
+ * {@link AtomicSimpleBitStorage} layout kept in a block of an {@link OffHeapArena} instead of a {@code long[]}.
+ * Words are accessed through a {@link ByteBuffer} view {@link VarHandle} with the same acquire/CAS protocol,
+ * so the storage is as thread-safe as the heap one. {@link #getRaw()} and {@link #copy()} return heap copies:
+ * snapshots and serialized forms are short-lived and should not take arena memory.
+ */
+public final class OffHeapBitStorage implements BitStorage {
+    private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final OffHeapArena arena;
+    private final ByteBuffer buffer;
+    private final int bits;
+    private final long mask;
+    private final int size;
+    private final int valuesPerLong;
+    private final int words;
+    private final int divideMul;
+    private final int divideAdd;
+    private final int divideShift;
+    private final long lanePattern;
+
+    public OffHeapBitStorage(OffHeapArena arena, int bits, int size, @Nullable long[] raw) {
+        this.arena = arena;
+        this.bits = bits;
+        this.size = size;
+        this.mask = (1L << bits) - 1L;
+        this.valuesPerLong = 64 / bits;
+        this.words = (size + this.valuesPerLong - 1) / this.valuesPerLong;
+
+        int k = 3 * (this.valuesPerLong - 1);
+        this.divideMul = AtomicSimpleBitStorage.MAGIC[k + 0];
+        this.divideAdd = AtomicSimpleBitStorage.MAGIC[k + 1];
+        this.divideShift = AtomicSimpleBitStorage.MAGIC[k + 2];
+        this.lanePattern = BitPacking.lanePattern(bits, this.valuesPerLong);
+
+        if (raw != null && raw.length != this.words) {
+            throw new SimpleBitStorage.InitializationException("Invalid length given for storage, got: " + raw.length + " but expected: " + this.words);
+        }
+
+        this.buffer = arena.allocate(this.words * Long.BYTES);
+        if (raw != null) {
+            for (int w = 0; w < raw.length; w++) {
+                WORDS.set(this.buffer, w * Long.BYTES, raw[w]);
+            }
+            // опубликовать содержимое до того, как хранилище станет видно другим потокам
+            VarHandle.releaseFence();
+        }
+    }
+
+    private int cellIndex(int i) {
+        long l = Integer.toUnsignedLong(this.divideMul);
+        long m = Integer.toUnsignedLong(this.divideAdd);
+        return (int)((long)i * l + m >> 32 >> this.divideShift);
+    }
+
+    private long word(int cell) {
+        return (long) WORDS.getAcquire(this.buffer, cell * Long.BYTES);
+    }
+
+    @Override
+    public int get(int i) {
+        int idx = cellIndex(i);
+        int shift = (i - idx * this.valuesPerLong) * this.bits;
+        return (int)(this.word(idx) >> shift & this.mask);
+    }
+
+    @Override
+    public void set(int i, int j) {
+        getAndSet(i, j);
+    }
+
+    @Override
+    public int getAndSet(int i, int j) {
+        int idx = cellIndex(i);
+        int shift = (i - idx * this.valuesPerLong) * this.bits;
+        long bitMask = this.mask << shift;
+        long newValueBits = ((long)j & this.mask) << shift;
+        int offset = idx * Long.BYTES;
+
+        while (true) {
+            long oldLong = (long) WORDS.getVolatile(this.buffer, offset);
+            long nextLong = (oldLong & ~bitMask) | newValueBits;
+
+            if (WORDS.compareAndSet(this.buffer, offset, oldLong, nextLong)) {
+                return (int)(oldLong >> shift & this.mask);
+            }
+            ContainerTelemetry.casFailed();
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void fill(int from, int to, int value) {
+        if (from >= to) {
+            return;
+        }
+
+        long pattern = ((long)value & this.mask) * this.lanePattern;
+        int firstCell = cellIndex(from);
+        int lastCell = cellIndex(to - 1);
+        int firstLane = from - firstCell * this.valuesPerLong;
+        int lastLane = to - 1 - lastCell * this.valuesPerLong;
+
+        if (firstCell == lastCell) {
+            mergeCell(firstCell, BitPacking.laneMask(this.bits, firstLane, lastLane), pattern);
+            return;
+        }
+
+        int start = firstCell;
+        if (firstLane != 0) {
+            mergeCell(firstCell, BitPacking.laneMask(this.bits, firstLane, this.valuesPerLong - 1), pattern);
+            start++;
+        }
+
+        int end = lastCell;
+        if (lastLane != this.valuesPerLong - 1) {
+            mergeCell(lastCell, BitPacking.laneMask(this.bits, 0, lastLane), pattern);
+            end--;
+        }
+
+        for (int cell = start; cell <= end; cell++) {
+            WORDS.setRelease(this.buffer, cell * Long.BYTES, pattern);
+        }
+        VarHandle.fullFence();
+    }
+
+    private void mergeCell(int cell, long laneMask, long pattern) {
+        long bitsToSet = pattern & laneMask;
+        int offset = cell * Long.BYTES;
+
+        while (true) {
+            long oldLong = (long) WORDS.getVolatile(this.buffer, offset);
+            long nextLong = (oldLong & ~laneMask) | bitsToSet;
+
+            if (WORDS.compareAndSet(this.buffer, offset, oldLong, nextLong)) {
+                return;
+            }
+            ContainerTelemetry.casFailed();
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * A heap copy of the words, unlike {@link AtomicSimpleBitStorage#getRaw()} which hands out its live array.
+     */
+    @Override
+    public long[] getRaw() {
+        long[] raw = new long[this.words];
+        this.copyRaw(raw);
+        return raw;
+    }
+
+    /**
+     * Copies the words into {@code target}, which must be exactly as long as {@link #getRaw()}.
+     */
+    public void copyRaw(long[] target) {
+        for (int w = 0; w < target.length; w++) {
+            target[w] = this.word(w);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return this.size;
+    }
+
+    @Override
+    public int getBits() {
+        return this.bits;
+    }
+
+    @Override
+    public void getAll(IntConsumer consumer) {
+        for (int i = 0, idx = 0; i < this.size; idx++) {
+            long val = this.word(idx);
+            int end = Math.min(this.size, i + this.valuesPerLong);
+            for (; i < end; i++) {
+                consumer.accept((int) (val & this.mask));
+                val >>>= this.bits;
+            }
+        }
+    }
+
+    @Override
+    public void unpack(int[] target) {
+        for (int i = 0, idx = 0; i < this.size; idx++) {
+            long val = this.word(idx);
+            int end = Math.min(this.size, i + this.valuesPerLong);
+            for (; i < end; i++) {
+                target[i] = (int) (val & this.mask);
+                val >>>= this.bits;
+            }
+        }
+    }
+
+    @Override
+    public void histogram(int[] counts) {
+        for (int i = 0, idx = 0; i < this.size; idx++) {
+            long val = this.word(idx);
+            int end = Math.min(this.size, i + this.valuesPerLong);
+            for (; i < end; i++) {
+                counts[(int) (val & this.mask)]++;
+                val >>>= this.bits;
+            }
+        }
+    }
+
+    /**
+     * Returns the block to the arena. Nobody may read or write the storage afterwards.
+     */
+    void free() {
+        this.arena.free(this.buffer);
+    }
+
+    @Override
+    public BitStorage copy() {
+        return SpecializedBitStorages.create(this.bits, this.size, this.getRaw());
+    }
+
+    /**
+     * Heap bytes only: the storage and its buffer view. The words themselves live in the arena, see
+     * {@link OffHeapArena#allocatedBytes()}.
+     */
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass()) + ObjectSizes.shallow(this.buffer.getClass());
+    }
+}
@@ -0,0 +1,40 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+/**
+ * Reusable working arrays for {@link PalettedContainerRO#pack} and {@link PalettedContainer#unpack}, so that
+ * saving a section only allocates its result. Not thread-safe: give every saving thread its own instance
+ * or use {@link #local()}.
+ */
+public final class PackingScratch {
+    private static final ThreadLocal<PackingScratch> LOCAL = ThreadLocal.withInitial(PackingScratch::new);
+
+    private int[] values = new int[0];
+    private int[] ids = new int[0];
+
+    /**
+     * The calling thread's instance.
+     */
+    public static PackingScratch local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * At least {@code size} ints of scratch for the unpacked section, contents undefined.
+     */
+    int[] values(int size) {
+        if (this.values.length < size) {
+            this.values = new int[size];
+        }
+        return this.values;
+    }
+
+    /**
+     * At least {@code size} ints of scratch for an id translation table, contents undefined.
+     */
+    int[] ids(int size) {
+        if (this.ids.length < size) {
+            this.ids = new int[Math.max(size, this.ids.length * 2)];
+        }
+        return this.ids;
+    }
+}
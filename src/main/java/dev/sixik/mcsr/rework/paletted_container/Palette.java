@@ -3,6 +3,7 @@ package dev.sixik.mcsr.rework.paletted_container;
 import net.minecraft.core.IdMap;
 import net.minecraft.network.FriendlyByteBuf;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Predicate;
 
@@ -21,7 +22,29 @@ public interface Palette<T> {
 
     int getSize();
 
-    Palette<T> copy();
+    /**
+     * Copy that reports overflows to {@code paletteResize}, the container that owns the copy.
+     */
+    Palette<T> copy(PaletteResize<T> paletteResize);
+
+    /**
+     * Heap bytes held by this palette itself. The values, the registry and the resize handler are shared with
+     * other objects and not counted.
+     */
+    long estimateRetainedBytes();
+
+    /**
+     * Entries in id order, {@code entries().get(id) == valueFor(id)}. Creating a non-global palette from this
+     * list gives every entry its old id back.
+     */
+    default List<T> entries() {
+        int size = this.getSize();
+        List<T> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(this.valueFor(i));
+        }
+        return list;
+    }
 
     public interface Factory {
         <A> Palette<A> create(int i, IdMap<A> idMap, PaletteResize<A> paletteResize, List<A> list);
@@ -2,44 +2,131 @@ package dev.sixik.mcsr.rework.paletted_container;
 
 import com.mojang.serialization.Codec;
 import com.mojang.serialization.DataResult;
+import com.mojang.serialization.DynamicOps;
+import com.mojang.serialization.codecs.PrimitiveCodec;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import dev.sixik.mcsr.debug_structs.Position;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 import net.minecraft.core.IdMap;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.network.VarInt;
 import net.minecraft.util.ExtraCodecs;
 import net.minecraft.util.Mth;
+import net.minecraft.util.ObjectSizes;
 import net.minecraft.util.ThreadingDetector;
 
 import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Consumer;
-import java.util.function.IntUnaryOperator;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.LongStream;
 
 public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainerRO<T> {
-    private static final int MIN_PALETTE_BITS = 0;
-    private final PaletteResize<T> dummyPaletteResize = (i, objectx) -> MIN_PALETTE_BITS;
+    static final int MIN_PALETTE_BITS = 0;
+    private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle CHANGES = MethodHandles.arrayElementVarHandle(long[].class);
+    /**
+     * Packed storage as a primitive long list. Ops with native long arrays (NBT, {@link com.mojang.serialization.JavaOps})
+     * get the array without boxing, everything else falls back to a list of numbers.
+     */
+    private static final PrimitiveCodec<long[]> PACKED_STORAGE_CODEC = new PrimitiveCodec<>() {
+        @Override
+        public <O> DataResult<long[]> read(DynamicOps<O> ops, O input) {
+            return ops.getLongStream(input).map(LongStream::toArray);
+        }
+
+        @Override
+        public <O> O write(DynamicOps<O> ops, long[] value) {
+            return ops.createLongList(Arrays.stream(value));
+        }
+
+        @Override
+        public String toString() {
+            return "PackedStorage";
+        }
+    };
+    private static final VarHandle MOD_COUNT;
+    private static final VarHandle CHANGE_SET;
+
+    static {
+        try {
+            MOD_COUNT = MethodHandles.lookup().findVarHandle(PalettedContainer.class, "modCount", long.class);
+            CHANGE_SET = MethodHandles.lookup().findVarHandle(PalettedContainer.class, "changes", long[].class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
     private final IdMap<T> registry;
     private volatile Data<T> data;
-    private final Strategy strategy;
+    // Data, которую сейчас копирует resize; запись в неё может не попасть в копию и должна быть повторена
+    private volatile Data<T> retiring;
+    // меняется только в handOff(), когда контейнером никто больше не пользуется
+    private Strategy strategy;
+    // каждая новая Data получает счётчики по id, пока включено
+    private volatile boolean counting;
+    // счётчик изменений растёт только пока включён кэш закодированной секции
+    private volatile boolean cachingEncoded;
+    private volatile long modCount;
+    private final Object encodedLock = new Object();
+    @Nullable
+    private EncodedSection encoded;
     private final ThreadingDetector threadingDetector = new ThreadingDetector("PalettedContainer");
 
     private final Object resizeLock = new Object();
+    // своя телеметрия поверх GLOBAL, чтобы найти горячие секции
+    @Nullable
+    private volatile ContainerTelemetry telemetry;
+    // бит на позицию, изменённую с последнего drainChanges(); null, пока отслеживание выключено
+    @Nullable
+    private volatile long[] changes;
 
     public void acquire() {
-//        this.threadingDetector.checkAndLock();
+        if (this.strategy.concurrency() == ConcurrencyPolicy.CHECKED) {
+            this.threadingDetector.checkAndLock();
+        }
     }
 
     public void release() {
-//        this.threadingDetector.checkAndUnlock();
+        if (this.strategy.concurrency() == ConcurrencyPolicy.CHECKED) {
+            this.threadingDetector.checkAndUnlock();
+        }
+    }
+
+    /**
+     * Codec of {@link #pack}/{@link #unpack}: the used entries under {@code palette} and the packed ids under
+     * {@code data}, absent for a single-value section. Entries {@code codec} fails to read become
+     * {@code object}.
+     */
+    public static <T> Codec<PalettedContainer<T>> codecRW(IdMap<T> idMap, Codec<T> codec, Strategy strategy, T object) {
+        PalettedContainerRO.Unpacker<T, PalettedContainer<T>> unpacker = PalettedContainer::unpack;
+        return codec(idMap, codec, strategy, object, unpacker);
+    }
+
+    public static <T> Codec<PalettedContainerRO<T>> codecRO(IdMap<T> idMap, Codec<T> codec, Strategy strategy, T object) {
+        PalettedContainerRO.Unpacker<T, PalettedContainerRO<T>> unpacker = (idMapx, strategyx, packedData) -> unpack(idMapx, strategyx, packedData).map(palettedContainer -> palettedContainer);
+        return codec(idMap, codec, strategy, object, unpacker);
+    }
+
+    private static <T, C extends PalettedContainerRO<T>> Codec<C> codec(IdMap<T> idMap, Codec<T> codec, Strategy strategy, T object, PalettedContainerRO.Unpacker<T, C> unpacker) {
+        return RecordCodecBuilder.<PalettedContainerRO.PackedData<T>>create(
+                instance -> instance.group(
+                        codec.mapResult(ExtraCodecs.orElsePartial(object)).listOf().fieldOf("palette").forGetter(PalettedContainerRO.PackedData::paletteEntries),
+                        PACKED_STORAGE_CODEC.lenientOptionalFieldOf("data").forGetter(packedData -> Optional.ofNullable(packedData.packedStorage()))
+                ).apply(instance, (entries, storage) -> new PalettedContainerRO.PackedData<>(entries, storage.orElse(null)))
+        ).comapFlatMap(packedData -> unpacker.read(idMap, strategy, packedData), palettedContainerRO -> palettedContainerRO.pack(idMap, strategy));
     }
 
     public PalettedContainer(IdMap<T> idMap, Strategy strategy, Configuration<T> configuration, BitStorage bitStorage, List<T> list) {
@@ -48,10 +135,11 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
         this.data = new Data<T>(configuration, bitStorage, configuration.factory().create(configuration.bits(), idMap, this, list));
     }
 
-    private PalettedContainer(IdMap<T> idMap, Strategy strategy, Data<T> data) {
+    private PalettedContainer(IdMap<T> idMap, Strategy strategy, Data<T> data, boolean counting) {
         this.registry = idMap;
         this.strategy = strategy;
         this.data = data;
+        this.counting = counting;
     }
 
     public PalettedContainer(IdMap<T> idMap, T object, Strategy strategy) {
@@ -61,6 +149,10 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
         this.data.palette.idFor(object);
     }
 
+    public PalettedContainer(IdMap<T> idMap, T object, Strategy strategy, ConcurrencyPolicy concurrency) {
+        this(idMap, object, strategy.withConcurrency(concurrency));
+    }
+
     private Data<T> createOrReuseData(@Nullable Data<T> data, int i) {
         Configuration<T> configuration = this.strategy.getConfiguration(this.registry, i);
         return data != null && configuration.equals(data.configuration()) ? data : configuration.createData(this.registry, this, this.strategy.size());
@@ -76,26 +168,479 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
                 return cur.palette.idFor(object);
             }
 
-            synchronized (resizeLock) {
+            return this.withResizeLock(() -> {
                 Data<T> cur2 = this.data;
 
-                if (cur2.storage.getBits() >= newBits) {
-                    continue; // пока ждали лок, другой поток уже расширил
+                // пока ждали лок, другой поток уже расширил или сжал палитру - возможно, место уже есть
+                if (cur2.storage.getBits() >= newBits || cur2.palette.getSize() < 1 << cur2.storage.getBits()) {
+                    return cur2.palette.idFor(object);
                 }
 
-                Data<T> next = this.createOrReuseData(cur2, newBits);
+                this.retire(cur2);
+
+                // палитра забита мёртвыми записями: сжимаем на месте вместо роста, если освобождается хотя бы половина
+                Data<T> next = this.compacted(cur2, (1 << cur2.storage.getBits()) / 2 - 1, cur2.storage.getBits());
 
-                // копируем "живое" состояние; записи, случившиеся параллельно, догонятся ретраями set()
-                next.copyFrom(cur2.palette, cur2.storage);
+                if (next == null) {
+                    // копируем "живое" состояние; записи, случившиеся параллельно, догонятся ретраями set()
+                    next = this.grown(cur2, newBits);
+                }
 
+                ContainerTelemetry.resize(this.telemetry, cur2.storage.getBits(), next.storage.getBits());
+                next = this.counted(next);
                 this.data = next;
+                this.retiring = null;
+                this.modified();
 
                 // важно: возвращаем id из новой палитры (а не из старой)
                 return next.palette.idFor(object);
+            });
+        }
+    }
+
+    /**
+     * Runs {@code section} under {@link #resizeLock}, timing the wait for it and the hold for
+     * {@link ContainerTelemetry}.
+     */
+    private <R> R withResizeLock(Supplier<R> section) {
+        long requested = ContainerTelemetry.beforeLock();
+        synchronized (resizeLock) {
+            long acquired = ContainerTelemetry.locked(this.telemetry, requested);
+            try {
+                return section.get();
+            } finally {
+                ContainerTelemetry.unlocked(this.telemetry, acquired);
+            }
+        }
+    }
+
+    private void withResizeLock(Runnable section) {
+        this.withResizeLock(() -> {
+            section.run();
+            return null;
+        });
+    }
+
+    /**
+     * Drops palette entries that no position references anymore. The section is rebuilt with the smallest
+     * configuration that holds the surviving entries, down to a single value when it became uniform.
+     * Writers keep running and simply retry against the rebuilt data.
+     *
+     * @return whether anything was dropped
+     */
+    public boolean compact() {
+        this.acquire();
+
+        try {
+            return this.withResizeLock(() -> {
+                Data<T> cur = this.data;
+                this.retire(cur);
+
+                Data<T> next = this.compacted(cur, cur.palette.getSize() - 1, MIN_PALETTE_BITS);
+                if (next != null) {
+                    ContainerTelemetry.resize(this.telemetry, cur.storage.getBits(), next.storage.getBits());
+                    this.data = this.counted(next);
+                    this.modified();
+                }
+
+                this.retiring = null;
+                return next != null;
+            });
+        } finally {
+            this.release();
+        }
+    }
+
+    /**
+     * Copy of {@code cur} that keeps only the referenced palette entries, using at least {@code minBits}.
+     * Returns {@code null} when more than {@code maxUsed} entries are in use or the rebuild would not
+     * change the configuration of a global palette.
+     */
+    @Nullable
+    private Data<T> compacted(Data<T> cur, int maxUsed, int minBits) {
+        if (maxUsed <= 0 || cur.counts != null && usedIds(cur) > maxUsed) {
+            return null;
+        }
+
+        int size = this.strategy.size();
+        // вызывается на каждом resize, поэтому без int[4096] на попытку
+        PackingScratch scratch = PackingScratch.local();
+        int[] values = scratch.values(size);
+        cur.storage.unpack(values);
+
+        // палитра читается после хранилища: все id из values в ней уже опубликованы
+        int paletteSize = cur.palette.getSize();
+        int[] remap = scratch.ids(paletteSize);
+        Arrays.fill(remap, 0, paletteSize, -1);
+        int used = 0;
+        for (int i = 0; i < size; i++) {
+            int value = values[i];
+            if (remap[value] == -1) {
+                remap[value] = -2;
+                if (++used > maxUsed) {
+                    return null;
+                }
+            }
+        }
+
+        Data<T> next = this.createOrReuseData(null, Math.max(minBits, Mth.ceillog2(used)));
+        if (cur.configuration.factory() == Strategy.GLOBAL_PALETTE_FACTORY && next.configuration.factory() == Strategy.GLOBAL_PALETTE_FACTORY) {
+            // next так и не опубликована
+            recycle(next.storage);
+            return null;
+        }
+
+        // surviving entries keep their relative order
+        for (int id = 0; id < paletteSize; id++) {
+            if (remap[id] == -2) {
+                remap[id] = next.palette.idFor(cur.palette.valueFor(id));
+            }
+        }
+
+        if (next.storage.getBits() > 0) {
+            for (int i = 0; i < size; i++) {
+                next.storage.set(i, remap[values[i]]);
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * {@code cur} re-encoded with the configuration for {@code bits}. Ids survive between non-global palettes,
+     * so the palette is rebuilt once from its entries in id order and the raw words are repacked to the new
+     * width without any lookups. A global target only needs the palette entries translated to registry ids.
+     * A single-value source repacks from zero bits. Other storage layouts fall back to the per-entry
+     * {@link Data#copyFrom}.
+     */
+    private Data<T> grown(Data<T> cur, int bits) {
+        boolean packed = cur.storage instanceof AtomicSimpleBitStorage || cur.storage instanceof SimpleBitStorage || cur.storage instanceof OffHeapBitStorage || cur.storage instanceof ZeroBitStorage;
+        if (!packed || cur.configuration.factory() == Strategy.GLOBAL_PALETTE_FACTORY) {
+            Data<T> next = this.createOrReuseData(cur, bits);
+            next.copyFrom(cur.palette, cur.storage);
+            return next;
+        }
+
+        Configuration<T> configuration = this.strategy.getConfiguration(this.registry, bits);
+        int size = this.strategy.size();
+
+        // хранилище читается раньше палитры: все id из raw в ней уже опубликованы
+        long[] raw = pooledCopy(cur.storage);
+        List<T> entries = cur.palette.entries();
+        long[] repacked = StoragePool.SHARED.take(StoragePool.words(configuration.bits(), size));
+        int[] remap = null;
+        if (configuration.factory() == Strategy.GLOBAL_PALETTE_FACTORY) {
+            remap = new int[entries.size()];
+            for (int id = 0; id < remap.length; id++) {
+                remap[id] = this.registry.getId(entries.get(id));
+            }
+            entries = List.of();
+        }
+
+        BitPacking.repack(raw, cur.storage.getBits(), configuration.bits(), size, remap, repacked);
+        // копия старого хранилища никому не видна и сразу возвращается в пул
+        StoragePool.SHARED.release(raw);
+        Data<T> next = configuration.createData(this.registry, this, size, repacked, entries);
+        releaseUnlessAdopted(next.storage, repacked);
+        return next;
+    }
+
+    /**
+     * Copy of the words of {@code storage} in an array from {@link StoragePool#SHARED}, owned by the caller.
+     */
+    private static long[] pooledCopy(BitStorage storage) {
+        if (storage instanceof AtomicSimpleBitStorage atomic) {
+            long[] words = StoragePool.SHARED.take(atomic.data.length);
+            atomic.copyRaw(words);
+            return words;
+        }
+        if (storage instanceof SimpleBitStorage simple) {
+            long[] data = simple.getRaw();
+            long[] words = StoragePool.SHARED.take(data.length);
+            System.arraycopy(data, 0, words, 0, data.length);
+            return words;
+        }
+        if (storage instanceof OffHeapBitStorage offHeap) {
+            long[] words = StoragePool.SHARED.take(StoragePool.words(offHeap.getBits(), offHeap.getSize()));
+            offHeap.copyRaw(words);
+            return words;
+        }
+        return storage.copy().getRaw();
+    }
+
+    /**
+     * Returns {@code raw} to the pool when {@code storage} copied it instead of adopting it.
+     */
+    private static void releaseUnlessAdopted(BitStorage storage, long[] raw) {
+        if (!(storage instanceof AtomicSimpleBitStorage atomic && atomic.data == raw || storage instanceof SimpleBitStorage simple && simple.getRaw() == raw)) {
+            StoragePool.SHARED.release(raw);
+        }
+    }
+
+    /**
+     * Returns the words of {@code storage} to the pool, or its block to its arena. Nobody may read the storage
+     * afterwards.
+     */
+    private static void recycle(BitStorage storage) {
+        if (storage instanceof AtomicSimpleBitStorage atomic) {
+            StoragePool.SHARED.release(atomic.data);
+        } else if (storage instanceof SimpleBitStorage simple) {
+            StoragePool.SHARED.release(simple.getRaw());
+        } else if (storage instanceof OffHeapBitStorage offHeap) {
+            offHeap.free();
+        }
+    }
+
+    /**
+     * Turns per-id occurrence counting on or off. While it is on, every write keeps a reference count per
+     * palette id up to date (a {@code getAndSet} instead of a {@code set}, plus two atomic adds when the id
+     * changes), which lets {@link #count}, {@link #getAll}, {@link #contains} and the compaction check run in
+     * O(palette size) instead of scanning all positions. Sections on the global palette are not counted.
+     * Counts are exact once writers are idle; a query racing with writes may see an in-flight write half
+     * applied.
+     */
+    public void setCounting(boolean counting) {
+        this.withResizeLock(() -> {
+            this.counting = counting;
+            Data<T> cur = this.data;
+            if ((cur.counts != null) == counting) {
+                return;
+            }
+
+            // палитра только дописывается, её можно делить со старой Data
+            this.retire(cur);
+            Data<T> next = this.counted(new Data<>(cur.configuration, cur.copyStorage(), cur.palette));
+            this.data = next;
+            this.retiring = null;
+        });
+    }
+
+    public boolean isCounting() {
+        return this.counting;
+    }
+
+    /**
+     * Also counts the retries, resizes and resize lock times of this container in {@code telemetry}, on top
+     * of {@link ContainerTelemetry#GLOBAL}; {@code null} stops it.
+     */
+    public void setTelemetry(@Nullable ContainerTelemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    @Nullable
+    public ContainerTelemetry getTelemetry() {
+        return this.telemetry;
+    }
+
+    /**
+     * Turns recording of changed positions on or off. While it is on, every write ORs its index into a bitset
+     * of one bit per position, so that a sync can send {@link #drainChanges} as per-block deltas while few
+     * positions changed and fall back to a full {@link #write} above some {@link #pendingChanges}. Turning it
+     * on starts with nothing recorded, turning it off forgets what was recorded.
+     */
+    public void setTrackingChanges(boolean tracking) {
+        if (!tracking) {
+            this.changes = null;
+        } else if (this.changes == null) {
+            // CAS: with a plain store, marks made through the array of a thread that lost the race would vanish
+            CHANGE_SET.compareAndSet(this, null, new long[this.strategy.size() + 63 >>> 6]);
+        }
+    }
+
+    public boolean isTrackingChanges() {
+        return this.changes != null;
+    }
+
+    /**
+     * Number of positions changed since the last {@link #drainChanges}, {@code 0} while tracking is off.
+     */
+    public int pendingChanges() {
+        long[] changes = this.changes;
+        if (changes == null) {
+            return 0;
+        }
+
+        int pending = 0;
+        for (int word = 0; word < changes.length; word++) {
+            pending += Long.bitCount((long) CHANGES.getVolatile(changes, word));
+        }
+        return pending;
+    }
+
+    /**
+     * Hands every position changed since the last drain to {@code consumer} with its current value, in index
+     * order, and forgets them. Lock-free like the writes: each word of the bitset is taken with one atomic
+     * swap, and a write racing with the drain is reported by this drain or by the next one, never lost.
+     *
+     * @return the number of positions handed over
+     */
+    public int drainChanges(ChangeConsumer<T> consumer) {
+        long[] changes = this.changes;
+        if (changes == null) {
+            return 0;
+        }
+
+        int drained = 0;
+        for (int word = 0; word < changes.length; word++) {
+            if ((long) CHANGES.getVolatile(changes, word) == 0L) {
+                continue;
+            }
+
+            // сначала снимаем биты, потом читаем значения: запись после снятия снова поставит свой бит
+            long bits = (long) CHANGES.getAndSet(changes, word, 0L);
+            while (bits != 0L) {
+                int index = word << 6 | Long.numberOfTrailingZeros(bits);
+                consumer.accept(index, this.get(index));
+                bits &= bits - 1;
+                drained++;
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Records a write at {@code index}; called after the write landed, so a drain that takes the bit reads
+     * the new value.
+     */
+    private void changed(int index) {
+        long[] changes = this.changes;
+        if (changes != null) {
+            long bit = 1L << index;
+            // уже отмечено - обходимся без атомарной записи и не отнимаем строку кэша у других писателей
+            if (((long) CHANGES.getVolatile(changes, index >>> 6) & bit) == 0L) {
+                CHANGES.getAndBitwiseOr(changes, index >>> 6, bit);
             }
         }
     }
 
+    /**
+     * Records writes at every index of {@code [from, to)}, a word at a time.
+     */
+    private void changed(int from, int to) {
+        long[] changes = this.changes;
+        if (changes == null || from >= to) {
+            return;
+        }
+
+        for (int word = from >>> 6; word <= to - 1 >>> 6; word++) {
+            long mask = -1L;
+            if (word == from >>> 6) {
+                mask &= -1L << from;
+            }
+            if (word == to - 1 >>> 6) {
+                mask &= -1L >>> -to;
+            }
+            if (((long) CHANGES.getVolatile(changes, word) & mask) != mask) {
+                CHANGES.getAndBitwiseOr(changes, word, mask);
+            }
+        }
+    }
+
+    public ConcurrencyPolicy concurrency() {
+        return this.strategy.concurrency();
+    }
+
+    /**
+     * Switches this container to {@code concurrency}, e.g. to {@link ConcurrencyPolicy#PLAIN} when a
+     * single-threaded stage takes the section over and back to {@link ConcurrencyPolicy#LOCK_FREE} before it
+     * is shared. Palette entries keep their ids and the storage words are adopted by the other storage class
+     * as they are, so the cost is one palette rebuild, not a pass over 4096 values.
+     * <p>
+     * Only at a point where no other thread uses the container, like the boundary between two stages; the
+     * hand-off between the threads of the stages (an executor submit, a join) publishes the result.
+     */
+    public void handOff(ConcurrencyPolicy concurrency) {
+        Strategy next = this.strategy.withConcurrency(concurrency);
+        if (next == this.strategy) {
+            return;
+        }
+
+        this.withResizeLock(() -> {
+            Data<T> cur = this.data;
+            this.strategy = next;
+            Configuration<T> configuration = next.getConfiguration(this.registry, cur.configuration.bits());
+            boolean global = cur.configuration.factory() == Strategy.GLOBAL_PALETTE_FACTORY;
+            if (configuration.bits() != cur.configuration.bits() || (configuration.factory() == Strategy.GLOBAL_PALETTE_FACTORY) != global) {
+                // стратегия не отображает эти биты сама на себя: обычная перестройка
+                this.data = this.counted(this.grown(cur, cur.configuration.bits()));
+                return;
+            }
+
+            // id не меняются, поэтому и слова хранилища, и счётчики остаются как есть
+            BitStorage storage = configuration.storage() == cur.configuration.storage() ? cur.storage
+                    : configuration.createStorage(cur.storage.getSize(), cur.storage.getRaw());
+            Palette<T> palette = configuration.factory() == cur.configuration.factory() ? cur.palette
+                    : configuration.factory().create(configuration.bits(), this.registry, this, global ? List.of() : cur.palette.entries());
+            this.data = new Data<>(configuration, storage, palette, cur.counts);
+        });
+    }
+
+    /**
+     * {@code data} with fresh counts when counting is on. Must only be called on data that is not published
+     * yet, so that nothing writes to it while its storage is counted.
+     */
+    private Data<T> counted(Data<T> data) {
+        if (!this.counting || data.configuration.factory() == Strategy.GLOBAL_PALETTE_FACTORY) {
+            return data.counts == null ? data : new Data<>(data.configuration, data.storage, data.palette);
+        }
+
+        int[] counts = new int[1 << data.storage.getBits()];
+        data.storage.histogram(counts);
+        return new Data<>(data.configuration, data.storage, data.palette, counts);
+    }
+
+    private static int usedIds(Data<?> data) {
+        int used = 0;
+        for (int id = 0; id < data.counts.length; id++) {
+            if ((int) COUNTS.getAcquire(data.counts, id) > 0) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Writes {@code id} at {@code index} of {@code d} and keeps its counts, if any, in step.
+     */
+    private static int write(Data<?> d, int index, int id) {
+        if (d.counts == null) {
+            d.storage.set(index, id);
+            return -1;
+        }
+
+        int prev = d.storage.getAndSet(index, id);
+        if (prev != id) {
+            COUNTS.getAndAdd(d.counts, prev, -1);
+            COUNTS.getAndAdd(d.counts, id, 1);
+        }
+        return prev;
+    }
+
+    /**
+     * Announces that {@code data} is about to be copied. The fence orders this store before the reads of the
+     * copy, so a writer either has its write copied or sees the flag in {@link #landed} and repeats it.
+     */
+    private void retire(Data<T> data) {
+        this.retiring = data;
+        VarHandle.fullFence();
+    }
+
+    /**
+     * Whether a write that just went into {@code d} is part of the live data. If {@code d} is being copied,
+     * waits until the copy is published and returns {@code false}, so the caller repeats the write there.
+     */
+    private boolean landed(Data<T> d) {
+        if (this.retiring != d && this.data == d) {
+            return true;
+        }
+
+        while (this.data == d && this.retiring == d) {
+            Thread.onSpinWait();
+        }
+
+        return this.data == d;
+    }
+
     public T getAndSet(int i, int j, int k, T object) {
         this.acquire();
 
@@ -118,12 +663,20 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
             Data<T> d = this.data;
 
             int id = d.palette.idFor(object);
-            if (this.data != d) continue;
+            if (this.data != d) {
+                ContainerTelemetry.staleId(this.telemetry);
+                continue;
+            }
 
-            int prev = d.storage.getAndSet(index, id);
+            int prev = d.counts == null ? d.storage.getAndSet(index, id) : write(d, index, id);
 
-            if (this.data != d) continue;
+            if (!this.landed(d)) {
+                ContainerTelemetry.lostWrite(this.telemetry);
+                continue;
+            }
 
+            this.changed(index);
+            this.modified();
             return d.palette.valueFor(prev);
         }
     }
@@ -151,18 +704,283 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
 
             // если data сменилась пока вычисляли id — начинать заново, чтобы id и storage были из одной версии
             if (this.data != d) {
+                ContainerTelemetry.staleId(this.telemetry);
                 continue;
             }
 
-            d.storage.set(index, id);
+            write(d, index, id);
 
-            // если resize случился ПОСЛЕ нашей записи в старый storage — повторяем запись уже в новый
-            if (this.data != d) {
+            // если resize случился ПОСЛЕ нашей записи в старый storage (или копирует его прямо сейчас) — повторяем запись уже в новый
+            if (!this.landed(d)) {
+                ContainerTelemetry.lostWrite(this.telemetry);
                 continue;
             }
 
+            this.changed(index);
+            this.modified();
+            return;
+        }
+    }
+
+    /**
+     * Replaces the whole section with {@code object}. Nothing of the old contents survives, so instead of
+     * touching 4096 entries the container simply starts over from its smallest configuration.
+     */
+    public void fill(T object) {
+        this.acquire();
+
+        try {
+            Data<T> next = this.createOrReuseData(null, MIN_PALETTE_BITS);
+            next.palette.idFor(object);
+
+            this.withResizeLock(() -> {
+                this.data = this.counted(next);
+            });
+            this.changed(0, this.strategy.size());
+            this.modified();
+        } finally {
+            this.release();
+        }
+    }
+
+    /**
+     * Sets every position of the cuboid {@code [minX..maxX] x [minY..maxY] x [minZ..maxZ]} (bounds inclusive)
+     * to {@code object}. The palette id is resolved once and the storage is written in contiguous index runs,
+     * whole words at a time.
+     */
+    public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, T object) {
+        int max = this.strategy.sideSize() - 1;
+        if (minX < 0 || minY < 0 || minZ < 0 || maxX > max || maxY > max || maxZ > max) {
+            throw new IndexOutOfBoundsException("Fill region [" + minX + ", " + minY + ", " + minZ + "] -> [" + maxX + ", " + maxY + ", " + maxZ + "] is outside of the section");
+        }
+
+        if (minX > maxX || minY > maxY || minZ > maxZ) {
+            return;
+        }
+
+        if (minX == 0 && minY == 0 && minZ == 0 && maxX == max && maxY == max && maxZ == max) {
+            this.fill(object);
             return;
         }
+
+        this.acquire();
+
+        try {
+            for (;;) {
+                Data<T> d = this.data;
+
+                int id = d.palette.idFor(object);
+                if (this.data != d) {
+                    ContainerTelemetry.staleId(this.telemetry);
+                    continue;
+                }
+
+                this.fillRegion(d, minX, minY, minZ, maxX, maxY, maxZ, id);
+
+                if (!this.landed(d)) {
+                    ContainerTelemetry.lostWrite(this.telemetry);
+                    continue;
+                }
+
+                this.modified();
+                return;
+            }
+        } finally {
+            this.release();
+        }
+    }
+
+    private void fillRegion(Data<T> d, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int id) {
+        int max = this.strategy.sideSize() - 1;
+
+        // Index is (y, z, x) major to minor: full x rows join across z, full xz planes join across y
+        if (minX == 0 && maxX == max) {
+            if (minZ == 0 && maxZ == max) {
+                fillRun(d, this.strategy.getIndex(0, minY, 0), this.strategy.getIndex(max, maxY, max) + 1, id);
+                return;
+            }
+
+            for (int y = minY; y <= maxY; y++) {
+                fillRun(d, this.strategy.getIndex(0, y, minZ), this.strategy.getIndex(max, y, maxZ) + 1, id);
+            }
+            return;
+        }
+
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                fillRun(d, this.strategy.getIndex(minX, y, z), this.strategy.getIndex(maxX, y, z) + 1, id);
+            }
+        }
+    }
+
+    private void fillRun(Data<?> d, int from, int to, int id) {
+        if (d.counts == null) {
+            d.storage.fill(from, to, id);
+        } else {
+            // counting needs every previous id
+            for (int i = from; i < to; i++) {
+                write(d, i, id);
+            }
+        }
+
+        // отметка сразу за записью прогона; при повторе после resize прогон отметится ещё раз
+        this.changed(from, to);
+    }
+
+    /**
+     * Sets {@code indices[n]} (as produced by {@link Strategy#getIndex}) to {@code values[n]}. Later entries
+     * win on repeated indices. Distinct values are resolved once, the palette grows at most once for all of
+     * them, and each touched storage word is committed with a single atomic update.
+     */
+    public void setBatch(int[] indices, T[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("Got " + indices.length + " indices but " + values.length + " values");
+        }
+
+        Reference2IntOpenHashMap<T> localIds = new Reference2IntOpenHashMap<>();
+        localIds.defaultReturnValue(-1);
+        List<T> localValues = new ArrayList<>();
+        int[] ids = new int[values.length];
+
+        T last = null;
+        int lastId = -1;
+        for (int n = 0; n < values.length; n++) {
+            T value = values[n];
+            if (value != last) {
+                last = value;
+                lastId = localIds.getInt(value);
+                if (lastId == -1) {
+                    lastId = localValues.size();
+                    localIds.put(value, lastId);
+                    localValues.add(value);
+                }
+            }
+            ids[n] = lastId;
+        }
+
+        this.setBatch(indices, ids, indices.length, localValues);
+    }
+
+    /**
+     * {@link #setBatch(int[], Object[])} for positions packed as {@code x << 8 | z << 4 | y}, the layout
+     * Minecraft uses for section-relative block positions.
+     */
+    public void setBatch(short[] packedPositions, T[] values) {
+        int[] indices = new int[packedPositions.length];
+        for (int n = 0; n < packedPositions.length; n++) {
+            int packed = packedPositions[n];
+            indices[n] = this.strategy.getIndex(packed >>> 8 & 15, packed & 15, packed >>> 4 & 15);
+        }
+
+        this.setBatch(indices, values);
+    }
+
+    /**
+     * Batch write where values are already given as ids into a caller-side palette: {@code indices[n]} is set
+     * to {@code localPalette.get(localIds[n])} for every {@code n < length}. The caller-side palette is
+     * translated into this container's palette once per call.
+     */
+    public void setBatch(int[] indices, int[] localIds, int length, List<T> localPalette) {
+        if (length == 0) {
+            return;
+        }
+
+        this.acquire();
+
+        try {
+            int[] translation = new int[localPalette.size()];
+            int[] ids = new int[length];
+
+            for (;;) {
+                // on every attempt: an overflow from a concurrent writer may have compacted away our entries
+                this.reserve(localPalette);
+
+                Data<T> d = this.data;
+
+                for (int v = 0; v < translation.length; v++) {
+                    translation[v] = d.palette.idFor(localPalette.get(v));
+                }
+                if (this.data != d) {
+                    ContainerTelemetry.staleId(this.telemetry);
+                    continue;
+                }
+
+                for (int n = 0; n < length; n++) {
+                    ids[n] = translation[localIds[n]];
+                }
+                if (d.counts == null) {
+                    d.storage.setBatch(indices, ids, length);
+                } else {
+                    for (int n = 0; n < length; n++) {
+                        write(d, indices[n], ids[n]);
+                    }
+                }
+
+                if (!this.landed(d)) {
+                    ContainerTelemetry.lostWrite(this.telemetry);
+                    continue;
+                }
+
+                if (this.changes != null) {
+                    for (int n = 0; n < length; n++) {
+                        this.changed(indices[n]);
+                    }
+                }
+                this.modified();
+                return;
+            }
+        } finally {
+            this.release();
+        }
+    }
+
+    /**
+     * Grows the container once so that every value of {@code values} fits into the palette, instead of
+     * walking through one {@link #onResize} per new entry.
+     */
+    private void reserve(List<T> values) {
+        Data<T> d = this.data;
+        if (d.configuration.factory() == Strategy.GLOBAL_PALETTE_FACTORY) {
+            return;
+        }
+
+        ReferenceOpenHashSet<T> wanted = new ReferenceOpenHashSet<>(values);
+        ReferenceOpenHashSet<T> present = new ReferenceOpenHashSet<>();
+        d.palette.maybeHas(value -> {
+            if (wanted.contains(value)) {
+                present.add(value);
+            }
+            return false;
+        });
+
+        int missing = wanted.size() - present.size();
+        int required = d.palette.getSize() + missing;
+        if (missing == 0 || required <= 1 << d.storage.getBits()) {
+            return;
+        }
+
+        this.grow(Mth.ceillog2(required));
+    }
+
+    /**
+     * Grows to at least {@code newBits} without trying {@link #compacted} first: the entries a batch is about
+     * to add are not referenced by any position yet, so compacting would drop them again and the batch would
+     * retry against the same full palette forever.
+     */
+    private void grow(int newBits) {
+        this.withResizeLock(() -> {
+            Data<T> cur = this.data;
+            if (cur.storage.getBits() >= newBits) {
+                return;
+            }
+
+            this.retire(cur);
+            Data<T> next = this.grown(cur, newBits);
+            ContainerTelemetry.resize(this.telemetry, cur.storage.getBits(), next.storage.getBits());
+            this.data = this.counted(next);
+            this.retiring = null;
+            this.modified();
+        });
     }
 
     public T get(Position position) {
@@ -179,9 +997,22 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
     }
 
     public void getAll(Consumer<T> consumer) {
-        Palette<T> palette = this.data.palette();
+        getAll(this.data, consumer);
+    }
+
+    static <T> void getAll(Data<T> data, Consumer<T> consumer) {
+        Palette<T> palette = data.palette();
+        if (data.counts != null) {
+            for (int id = 0; id < data.counts.length; id++) {
+                if ((int) COUNTS.getAcquire(data.counts, id) > 0) {
+                    consumer.accept(palette.valueFor(id));
+                }
+            }
+            return;
+        }
+
         IntSet intSet = new IntArraySet();
-        BitStorage storage = this.data.storage;
+        BitStorage storage = data.storage;
         Objects.requireNonNull(intSet);
         storage.getAll(intSet::add);
         intSet.forEach((i) -> consumer.accept(palette.valueFor(i)));
@@ -192,10 +1023,23 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
 
         try {
             int i = friendlyByteBuf.readByte();
-            Data<T> data = this.createOrReuseData(this.data, i);
-            data.palette.read(friendlyByteBuf);
-            friendlyByteBuf.readLongArray(data.storage.getRaw());
-            this.data = data;
+            // всегда новая Data: живую могут в этот момент читать снимки и писатели
+            Configuration<T> configuration = this.strategy.getConfiguration(this.registry, i);
+            Palette<T> palette = configuration.factory().create(configuration.bits(), this.registry, this, List.of());
+            palette.read(friendlyByteBuf);
+            // массив читается одним куском прямо в заготовку из пула и сразу становится хранилищем
+            long[] pooled = configuration.bits() == MIN_PALETTE_BITS ? null : StoragePool.SHARED.take(StoragePool.words(configuration.bits(), this.strategy.size()));
+            long[] raw = friendlyByteBuf.readLongArray(pooled);
+            Data<T> data = new Data<>(configuration, configuration.createStorage(this.strategy.size(), raw), palette);
+            if (pooled != null) {
+                releaseUnlessAdopted(data.storage, pooled);
+            }
+
+            this.withResizeLock(() -> {
+                this.data = this.counted(data);
+            });
+            this.changed(0, this.strategy.size());
+            this.modified();
         } finally {
             this.release();
         }
@@ -206,7 +1050,16 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
         this.acquire();
 
         try {
-            this.data.write(friendlyByteBuf);
+            if (this.cachingEncoded) {
+                ByteBuf bytes = this.encoded();
+                try {
+                    friendlyByteBuf.writeBytes(bytes);
+                } finally {
+                    bytes.release();
+                }
+            } else {
+                this.snapshot().write(friendlyByteBuf);
+            }
         } finally {
             this.release();
         }
@@ -214,31 +1067,60 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
     }
 
     private static <T> DataResult<PalettedContainer<T>> unpack(IdMap<T> idMap, Strategy strategy, PalettedContainerRO.PackedData<T> packedData) {
+        return unpack(idMap, strategy, packedData, PackingScratch.local());
+    }
+
+    /**
+     * Rebuilds a container from its {@link #pack} form. The packed array stays with the caller: it is copied
+     * into a pooled array, or repacked into one for ids against a global palette, so the same {@code packedData}
+     * can be unpacked any number of times. Ids outside of the palette are an error.
+     */
+    public static <T> DataResult<PalettedContainer<T>> unpack(IdMap<T> idMap, Strategy strategy, PalettedContainerRO.PackedData<T> packedData, PackingScratch scratch) {
         List<T> list = packedData.paletteEntries();
         int i = strategy.size();
         int j = strategy.calculateBitsForSerialization(idMap, list.size());
         Configuration<T> configuration = strategy.<T>getConfiguration(idMap, j);
         BitStorage bitStorage;
         if (j == MIN_PALETTE_BITS) {
-            bitStorage = new AtomicSimpleBitStorage(8, i);
+            bitStorage = new ZeroBitStorage(i);
         } else {
-            Optional<LongStream> optional = packedData.storage();
-            if (optional.isEmpty()) {
+            long[] ls = packedData.packedStorage();
+            if (ls == null) {
                 return DataResult.error(() -> "Missing values for non-zero storage");
             }
 
-            long[] ls = optional.get().toArray();
+            int valuesPerLong = 64 / j;
+            int expected = (i + valuesPerLong - 1) / valuesPerLong;
+            if (ls.length != expected) {
+                return DataResult.error(() -> "Failed to read PalettedContainer: Invalid length given for storage, got: " + ls.length + " but expected: " + expected);
+            }
+
+            // id за пределами палитры прочитался бы из чужого слота remap или упал бы только при get()
+            if (list.size() < 1 << j) {
+                int[] counts = scratch.ids(1 << j);
+                Arrays.fill(counts, 0, 1 << j, 0);
+                BitPacking.histogram(ls, j, i, counts);
+                for (int id = list.size(); id < 1 << j; id++) {
+                    if (counts[id] != 0) {
+                        int invalid = id;
+                        return DataResult.error(() -> "Failed to read PalettedContainer: packed id " + invalid + " is outside of a palette of " + list.size() + " entries");
+                    }
+                }
+            }
 
             try {
                 if (configuration.factory() == PalettedContainer.Strategy.GLOBAL_PALETTE_FACTORY) {
-                    Palette<T> palette = new HashMapPalette(idMap, j, (ix, object) -> MIN_PALETTE_BITS, list);
-                    AtomicSimpleBitStorage atomicAlignedBitStorage = new AtomicSimpleBitStorage(j, i, ls);
-                    int[] is = new int[i];
-                    atomicAlignedBitStorage.unpack(is);
-                    swapPalette(is, (ix) -> idMap.getId(palette.valueFor(ix)));
-                    bitStorage = new AtomicSimpleBitStorage(configuration.bits(), i, is);
+                    // локальные id -> id реестра, без промежуточной палитры и int[4096]
+                    int[] remap = scratch.ids(list.size());
+                    for (int id = 0; id < list.size(); id++) {
+                        remap[id] = idMap.getId(list.get(id));
+                    }
+                    bitStorage = configuration.createStorage(i, BitPacking.repack(ls, j, configuration.bits(), i, remap, StoragePool.SHARED.take(StoragePool.words(configuration.bits(), i))));
                 } else {
-                    bitStorage = new AtomicSimpleBitStorage(configuration.bits(), i, ls);
+                    // packedData остаётся у вызывающего: хранилище получает свою копию, которую можно вернуть в пул
+                    long[] words = StoragePool.SHARED.take(ls.length);
+                    System.arraycopy(ls, 0, words, 0, ls.length);
+                    bitStorage = configuration.createStorage(i, words);
                 }
             } catch (SimpleBitStorage.InitializationException initializationException) {
                 return DataResult.error(() -> "Failed to read PalettedContainer: " + initializationException.getMessage());
@@ -248,59 +1130,233 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
         return DataResult.success(new PalettedContainer(idMap, strategy, configuration, bitStorage, list));
     }
 
-    public PalettedContainerRO.PackedData<T> pack(IdMap<T> idMap, Strategy strategy) {
+    public PalettedContainerRO.PackedData<T> pack(IdMap<T> idMap, Strategy strategy, PackingScratch scratch) {
         this.acquire();
 
-        PalettedContainerRO.PackedData var12;
         try {
-            HashMapPalette<T> hashMapPalette = new HashMapPalette(idMap, this.data.storage.getBits(), this.dummyPaletteResize);
-            int i = strategy.size();
-            int[] is = new int[i];
-            this.data.storage.unpack(is);
-            swapPalette(is, (ix) -> hashMapPalette.idFor(this.data.palette.valueFor(ix)));
-            int j = strategy.calculateBitsForSerialization(idMap, hashMapPalette.getSize());
-            Optional<LongStream> optional;
-            if (j != MIN_PALETTE_BITS) {
-                AtomicSimpleBitStorage alignedBitStorage = new AtomicSimpleBitStorage(j, i, is);
-                optional = Optional.of(Arrays.stream(alignedBitStorage.getRaw()));
-            } else {
-                optional = Optional.empty();
-            }
-
-            var12 = new PalettedContainerRO.PackedData(hashMapPalette.getEntries(), optional);
+            // без снимка: хранилище распаковывается в scratch раньше чтения палитры, что даёт те же гарантии
+            return pack(this.data, idMap, strategy, scratch);
         } finally {
             this.release();
         }
-
-        return var12;
     }
 
-    private static <T> void swapPalette(int[] is, IntUnaryOperator intUnaryOperator) {
-        int i = -1;
-        int j = -1;
-
-        for(int k = 0; k < is.length; ++k) {
+    static <T> PalettedContainerRO.PackedData<T> pack(Data<T> data, IdMap<T> idMap, Strategy strategy, PackingScratch scratch) {
+        int i = strategy.size();
+        int[] is = scratch.values(i);
+        data.storage.unpack(is);
+
+        // id палитры -> id в упакованном виде, по порядку первого появления
+        int capacity = 1 << data.storage.getBits();
+        int[] remap = scratch.ids(capacity);
+        Arrays.fill(remap, 0, capacity, -1);
+        List<T> entries = new ArrayList<>();
+        int last = -1;
+        int lastId = -1;
+        for (int k = 0; k < i; k++) {
             int l = is[k];
-            if (l != i) {
-                i = l;
-                j = intUnaryOperator.applyAsInt(l);
+            if (l != last) {
+                last = l;
+                lastId = remap[l];
+                if (lastId == -1) {
+                    lastId = entries.size();
+                    remap[l] = lastId;
+                    entries.add(data.palette.valueFor(l));
+                }
             }
+            is[k] = lastId;
+        }
 
-            is[k] = j;
+        int j = strategy.calculateBitsForSerialization(idMap, entries.size());
+        if (j == MIN_PALETTE_BITS) {
+            return new PalettedContainerRO.PackedData<>(entries, (long[]) null);
         }
 
+        int valuesPerLong = 64 / j;
+        long[] packed = new long[(i + valuesPerLong - 1) / valuesPerLong];
+        BitPacking.pack(is, j, i, packed);
+        return new PalettedContainerRO.PackedData<>(entries, packed);
     }
 
     public int getSerializedSize() {
+        if (this.cachingEncoded) {
+            long modCount = this.modCount;
+            synchronized (this.encodedLock) {
+                if (this.encoded != null && this.encoded.modCount == modCount) {
+                    return this.encoded.bytes.readableBytes();
+                }
+            }
+        }
+
         return this.data.getSerializedSize();
     }
 
+    /**
+     * Turns the encoded-bytes cache on or off. While it is on, {@link #write} serves an unchanged section by
+     * copying the bytes encoded for the previous call instead of walking the palette and the storage again,
+     * and {@link #getSerializedSize} returns their length. Every change to the contents invalidates it. The
+     * cache costs one atomic increment per write, so it is meant for sections that are sent far more often
+     * than they change.
+     */
+    public void setEncodedCaching(boolean caching) {
+        synchronized (this.encodedLock) {
+            if (caching) {
+                // записи без кэша не считались: кодирование, начатое до них, не должно совпасть с modCount
+                MOD_COUNT.getAndAdd(this, 1L);
+            } else if (this.encoded != null) {
+                this.encoded.bytes.release();
+                this.encoded = null;
+            }
+            this.cachingEncoded = caching;
+        }
+    }
+
+    /**
+     * The bytes {@link #write} produces, as a read-only retained slice the caller has to release. With the
+     * cache enabled an unchanged section returns a slice of the cached bytes, so sending it to many
+     * connections costs one encode; otherwise the section is encoded into a fresh buffer.
+     */
+    public ByteBuf encoded() {
+        // читается до снимка: все записи, учтённые в modCount, попадут в байты
+        long modCount = this.modCount;
+        boolean caching = this.cachingEncoded;
+        if (caching) {
+            synchronized (this.encodedLock) {
+                if (this.encoded != null && this.encoded.modCount == modCount) {
+                    return this.encoded.bytes.retainedSlice().asReadOnly();
+                }
+            }
+        }
+
+        PalettedContainerSnapshot<T> snapshot = this.snapshot();
+        // heap, не из пула: у контейнера нет момента, когда кэш гарантированно освободят
+        ByteBuf bytes = Unpooled.buffer(snapshot.getSerializedSize());
+        snapshot.write(new FriendlyByteBuf(bytes));
+        if (!caching) {
+            return bytes.asReadOnly();
+        }
+
+        synchronized (this.encodedLock) {
+            if (!this.cachingEncoded) {
+                return bytes.asReadOnly();
+            }
+
+            if (this.encoded == null || this.encoded.modCount < modCount) {
+                if (this.encoded != null) {
+                    this.encoded.bytes.release();
+                }
+                this.encoded = new EncodedSection(modCount, bytes);
+            } else {
+                bytes.release();
+            }
+            return this.encoded.bytes.retainedSlice().asReadOnly();
+        }
+    }
+
+    private void modified() {
+        if (this.cachingEncoded) {
+            MOD_COUNT.getAndAdd(this, 1L);
+        }
+    }
+
+    private record EncodedSection(long modCount, ByteBuf bytes) {
+    }
+
     public boolean maybeHas(Predicate<T> predicate) {
         return this.data.palette.maybeHas(predicate);
     }
 
+    /**
+     * Whether some position actually holds a value matching {@code predicate}, unlike {@link #maybeHas} which
+     * also matches palette entries nothing refers to anymore. O(palette size) with {@link #setCounting}
+     * enabled, a scan of the storage otherwise.
+     */
+    public boolean contains(Predicate<T> predicate) {
+        Data<T> d = this.data;
+        if (d.counts == null) {
+            boolean[] found = new boolean[1];
+            getAll(d, value -> found[0] |= predicate.test(value));
+            return found[0];
+        }
+
+        for (int id = 0; id < d.counts.length; id++) {
+            if ((int) COUNTS.getAcquire(d.counts, id) > 0 && predicate.test(d.palette.valueFor(id))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Immutable copy of the current contents, safe to serialize on another thread while writers keep going.
+     * Each {@link Data} version is one epoch: the storage is copied first and the palette after it, both from
+     * the same epoch, and palettes only ever append, so every id of the copied storage resolves. Every position
+     * holds a value it had at some point during the call; writes that finished before the call are all in.
+     */
+    public PalettedContainerSnapshot<T> snapshot() {
+        Data<T> d = this.data;
+        BitStorage storage = d.storage.copy();
+        // снимок только читает, до resize дело не дойдёт
+        Palette<T> palette = d.palette.copy(this);
+        return new PalettedContainerSnapshot<>(this.registry, this.strategy, new Data<>(d.configuration, storage, palette));
+    }
+
+    /**
+     * Heap bytes this container holds on its own: the container with its locks, the current {@link Data} with
+     * its storage, palette and counts, and the cached encoding. The registry, the strategy, the palette values
+     * and the factories are shared and not counted, neither is the arena memory of an off-heap storage.
+     */
+    public long estimateRetainedBytes() {
+        Data<T> d = this.data;
+        long bytes = ObjectSizes.shallow(PalettedContainer.class)
+                + 2 * ObjectSizes.shallow(Object.class)
+                + this.threadingDetector.estimateRetainedBytes()
+                + ObjectSizes.shallow(Data.class)
+                + ObjectSizes.shallow(Configuration.class)
+                + d.storage.estimateRetainedBytes()
+                + d.palette.estimateRetainedBytes();
+        if (d.counts != null) {
+            bytes += ObjectSizes.array(d.counts);
+        }
+
+        synchronized (this.encodedLock) {
+            if (this.encoded != null) {
+                bytes += ObjectSizes.shallow(EncodedSection.class) + ObjectSizes.shallow(this.encoded.bytes.getClass()) + ObjectSizes.byteArray(this.encoded.bytes.capacity());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Class of the current palette, for {@link FootprintHistogram}.
+     */
+    Class<?> paletteType() {
+        return this.data.palette.getClass();
+    }
+
     public PalettedContainer<T> copy() {
-        return new PalettedContainer<T>(this.registry, this.strategy, this.data.copy());
+        PalettedContainer<T> copy = new PalettedContainer<T>(this.registry, this.strategy, null, this.counting);
+        // палитры копии должны расширять копию, а не этот контейнер
+        copy.data = this.data.copy(copy);
+        return copy;
+    }
+
+    /**
+     * Hands the storage of this container to {@link StoragePool#SHARED}, or an off-heap one to its
+     * {@link OffHeapArena}, and resets it to the single value {@link #recreate()} would start from. Only for
+     * an owner that knows no other thread can still read or write the container, e.g. while unloading its
+     * section; snapshots taken before are not affected.
+     */
+    public void recycle() {
+        this.withResizeLock(() -> {
+            Data<T> cur = this.data;
+            Data<T> next = this.createOrReuseData(null, MIN_PALETTE_BITS);
+            next.palette.idFor(cur.palette.valueFor(MIN_PALETTE_BITS));
+            this.data = this.counted(next);
+            recycle(cur.storage);
+        });
+        this.changed(0, this.strategy.size());
+        this.modified();
     }
 
     public PalettedContainer<T> recreate() {
@@ -308,25 +1364,76 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
     }
 
     public void count(CountConsumer<T> countConsumer) {
-        if (this.data.palette.getSize() == 1) {
-            countConsumer.accept(this.data.palette.valueFor(MIN_PALETTE_BITS), this.data.storage.getSize());
+        count(this.data, countConsumer);
+    }
+
+    static <T> void count(Data<T> data, CountConsumer<T> countConsumer) {
+        if (data.counts != null) {
+            for (int id = 0; id < data.counts.length; id++) {
+                int count = (int) COUNTS.getAcquire(data.counts, id);
+                if (count > 0) {
+                    countConsumer.accept(data.palette.valueFor(id), count);
+                }
+            }
+        } else if (data.palette.getSize() == 1) {
+            countConsumer.accept(data.palette.valueFor(MIN_PALETTE_BITS), data.storage.getSize());
+        } else if (data.storage.getBits() <= 8) {
+            // id < 1 << bits, считаем в массив без хеш-таблицы
+            int[] counts = new int[1 << data.storage.getBits()];
+            data.storage.histogram(counts);
+            for (int id = 0; id < counts.length; id++) {
+                if (counts[id] > 0) {
+                    countConsumer.accept(data.palette.valueFor(id), counts[id]);
+                }
+            }
         } else {
+            int[] is = new int[data.storage.getSize()];
+            data.storage.unpack(is);
             Int2IntOpenHashMap int2IntOpenHashMap = new Int2IntOpenHashMap();
-            this.data.storage.getAll((i) -> int2IntOpenHashMap.addTo(i, 1));
-            int2IntOpenHashMap.int2IntEntrySet().forEach((entry) -> countConsumer.accept(this.data.palette.valueFor(entry.getIntKey()), entry.getIntValue()));
+            for (int i : is) {
+                int2IntOpenHashMap.addTo(i, 1);
+            }
+            int2IntOpenHashMap.int2IntEntrySet().forEach((entry) -> countConsumer.accept(data.palette.valueFor(entry.getIntKey()), entry.getIntValue()));
         }
     }
 
-    static record Configuration<T>(Palette.Factory factory, int bits) {
+    /**
+     * @param storage where the {@link BitStorage}s of this configuration live, see {@link Strategy#withStorage}
+     */
+    static record Configuration<T>(Palette.Factory factory, int bits, StorageFactory storage) {
+        Configuration(Palette.Factory factory, int bits) {
+            this(factory, bits, StorageFactory.HEAP);
+        }
+
         public Data<T> createData(IdMap<T> idMap, PaletteResize<T> paletteResize, int i) {
-//            BitStorage bitStorage = this.bits == MIN_PALETTE_BITS ? new ZeroBitStorage(i) : new AtomicAlignedBitStorage(this.bits, i);
-            BitStorage bitStorage = new AtomicSimpleBitStorage(this.bits, i);
+            BitStorage bitStorage = this.createStorage(i, null);
             Palette<T> palette = this.factory.create(this.bits, idMap, paletteResize, List.of());
             return new Data<T>(this, bitStorage, palette);
         }
+
+        public Data<T> createData(IdMap<T> idMap, PaletteResize<T> paletteResize, int i, long[] raw, List<T> entries) {
+            BitStorage bitStorage = this.createStorage(i, raw);
+            Palette<T> palette = this.factory.create(this.bits, idMap, paletteResize, entries);
+            return new Data<T>(this, bitStorage, palette);
+        }
+
+        /**
+         * Storage for {@code i} values initialized from {@code raw}, or empty when it is {@code null}. Heap
+         * storages adopt {@code raw} without copying.
+         */
+        BitStorage createStorage(int i, @Nullable long[] raw) {
+            return this.storage.create(this.bits, i, raw);
+        }
     }
 
-    record Data<T>(PalettedContainer.Configuration<T> configuration, BitStorage storage, Palette<T> palette) {
+    /**
+     * @param counts occurrences per palette id while counting is enabled, {@code null} otherwise
+     */
+    record Data<T>(PalettedContainer.Configuration<T> configuration, BitStorage storage, Palette<T> palette, @Nullable int[] counts) {
+
+        Data(PalettedContainer.Configuration<T> configuration, BitStorage storage, Palette<T> palette) {
+            this(configuration, storage, palette, null);
+        }
 
         public void copyFrom(Palette<T> palette, BitStorage bitStorage) {
             for (int i = 0; i < bitStorage.getSize(); i++) {
@@ -336,7 +1443,8 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
         }
 
         public int getSerializedSize() {
-            return 1 + this.palette.getSerializedSize() + VarInt.getByteSize(this.storage.getRaw().length) + this.storage.getRaw().length * 8;
+            int words = this.storage.getRaw().length;
+            return 1 + this.palette.getSerializedSize() + VarInt.getByteSize(words) + words * 8;
         }
 
         public void write(FriendlyByteBuf friendlyByteBuf) {
@@ -345,8 +1453,25 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
             friendlyByteBuf.writeLongArray(this.storage.getRaw());
         }
 
-        public PalettedContainer.Data<T> copy() {
-            return new PalettedContainer.Data<>(this.configuration, this.storage.copy(), this.palette.copy());
+        /**
+         * Copy of the storage made through the configuration, so an off-heap storage stays in its arena.
+         */
+        BitStorage copyStorage() {
+            long[] raw = pooledCopy(this.storage);
+            BitStorage copy = this.configuration.createStorage(this.storage.getSize(), raw);
+            releaseUnlessAdopted(copy, raw);
+            return copy;
+        }
+
+        public PalettedContainer.Data<T> copy(PaletteResize<T> paletteResize) {
+            BitStorage storage = this.copyStorage();
+            int[] counts = null;
+            // не clone(): счётчики могли уйти вперёд скопированного хранилища
+            if (this.counts != null) {
+                counts = new int[this.counts.length];
+                storage.histogram(counts);
+            }
+            return new PalettedContainer.Data<>(this.configuration, storage, this.palette.copy(paletteResize), counts);
         }
     }
 
@@ -355,13 +1480,16 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
         public static final Palette.Factory LINEAR_PALETTE_FACTORY = LinearPalette::create;
         public static final Palette.Factory HASHMAP_PALETTE_FACTORY = HashMapPalette::create;
         public static final Palette.Factory CONCURRENT_HASHMAP_PALETTE_FACTORY = ConcurrentHashMapPalette::create;
+        public static final Palette.Factory LOCK_FREE_HASHMAP_PALETTE_FACTORY = LockFreeHashMapPalette::create;
+        public static final Palette.Factory CONCURRENT_SINGLE_VALUE_PALETTE_FACTORY = ConcurrentSingleValuePalette::create;
+        public static final Palette.Factory CONCURRENT_LINEAR_PALETTE_FACTORY = ConcurrentLinearPalette::create;
         static final Palette.Factory GLOBAL_PALETTE_FACTORY = GlobalPalette::create;
         public static final Strategy SECTION_STATES = new Strategy(4) {
             public <A> Configuration<A> getConfiguration(IdMap<A> idMap, int i) {
                 return switch (i) {
-//                    case 0 -> new Configuration<>(SINGLE_VALUE_PALETTE_FACTORY, i);
-//                    case 1, 2, 3, 4 -> new Configuration<>(LINEAR_PALETTE_FACTORY, 4);
-                    case 0, 1, 2, 3, 4, 5, 6, 7, 8 -> new Configuration<>(CONCURRENT_HASHMAP_PALETTE_FACTORY, i);
+                    case 0 -> new Configuration<>(CONCURRENT_SINGLE_VALUE_PALETTE_FACTORY, i);
+                    case 1, 2, 3, 4 -> new Configuration<>(CONCURRENT_LINEAR_PALETTE_FACTORY, 4);
+                    case 5, 6, 7, 8 -> new Configuration<>(LOCK_FREE_HASHMAP_PALETTE_FACTORY, i);
                     default -> new Configuration<>(Strategy.GLOBAL_PALETTE_FACTORY, Mth.ceillog2(idMap.size()));
                 };
             }
@@ -369,40 +1497,132 @@ public class PalettedContainer<T> implements PaletteResize<T>, PalettedContainer
         public static final Strategy SECTION_BIOMES = new Strategy(2) {
             public <A> Configuration<A> getConfiguration(IdMap<A> idMap, int i) {
                 return switch (i) {
-                    case 0 -> new Configuration<>(SINGLE_VALUE_PALETTE_FACTORY, i);
-                    case 1, 2, 3 -> new Configuration<>(LINEAR_PALETTE_FACTORY, i);
+                    case 0 -> new Configuration<>(CONCURRENT_SINGLE_VALUE_PALETTE_FACTORY, i);
+                    case 1, 2, 3 -> new Configuration<>(CONCURRENT_LINEAR_PALETTE_FACTORY, i);
                     default -> new Configuration<>(Strategy.GLOBAL_PALETTE_FACTORY, Mth.ceillog2(idMap.size()));
                 };
             }
         };
         private final int sizeBits;
+        private final ConcurrencyPolicy concurrency;
+        // варианты одной и той же стратегии по политикам, общие для всех вариантов
+        private final Strategy[] byConcurrency;
 
         Strategy(int i) {
             this.sizeBits = i;
+            this.concurrency = ConcurrencyPolicy.LOCK_FREE;
+            this.byConcurrency = new Strategy[ConcurrencyPolicy.values().length];
+            for (ConcurrencyPolicy policy : ConcurrencyPolicy.values()) {
+                this.byConcurrency[policy.ordinal()] = policy == this.concurrency ? this : new Adapted(this, policy);
+            }
+        }
+
+        private Strategy(Strategy lockFree, ConcurrencyPolicy concurrency) {
+            this.sizeBits = lockFree.sizeBits;
+            this.concurrency = concurrency;
+            this.byConcurrency = lockFree.byConcurrency;
+        }
+
+        /**
+         * A lock-free strategy with every configuration turned into its {@code concurrency} counterpart.
+         */
+        private static final class Adapted extends Strategy {
+            private final Strategy lockFree;
+
+            Adapted(Strategy lockFree, ConcurrencyPolicy concurrency) {
+                super(lockFree, concurrency);
+                this.lockFree = lockFree;
+            }
+
+            @Override
+            public <A> Configuration<A> getConfiguration(IdMap<A> idMap, int i) {
+                return this.concurrency().adapt(this.lockFree.getConfiguration(idMap, i));
+            }
         }
 
         public int size() {
             return 1 << this.sizeBits * 3;
         }
 
+        public int sideSize() {
+            return 1 << this.sizeBits;
+        }
+
         public int getIndex(int i, int j, int k) {
             return (j << this.sizeBits | k) << this.sizeBits | i;
         }
 
         public abstract <A> Configuration<A> getConfiguration(IdMap<A> idMap, int i);
 
-        <A> int calculateBitsForSerialization(IdMap<A> idMap, int i) {
+        /**
+         * Thread safety of the containers built from this strategy, {@link ConcurrencyPolicy#LOCK_FREE} for
+         * the shipped ones.
+         */
+        public ConcurrencyPolicy concurrency() {
+            return this.concurrency;
+        }
+
+        /**
+         * This strategy under {@code concurrency}. The variants are created once per strategy, so switching
+         * back and forth allocates nothing.
+         */
+        public Strategy withConcurrency(ConcurrencyPolicy concurrency) {
+            return this.byConcurrency[concurrency.ordinal()];
+        }
+
+        /**
+         * This strategy with every {@link BitStorage} created by {@code storageFactory}, e.g.
+         * {@link OffHeapArena#storageFactory()} for the sections of one region. Palettes are unchanged.
+         */
+        public Strategy withStorage(StorageFactory storageFactory) {
+            Strategy base = this.withConcurrency(ConcurrencyPolicy.LOCK_FREE);
+            return new Strategy(this.sizeBits) {
+                public <A> Configuration<A> getConfiguration(IdMap<A> idMap, int i) {
+                    Configuration<A> configuration = base.getConfiguration(idMap, i);
+                    return new Configuration<>(configuration.factory(), configuration.bits(), storageFactory);
+                }
+            }.withConcurrency(this.concurrency);
+        }
+
+        /**
+         * Width {@link PalettedContainerRO#pack} packs a section of {@code i} distinct values at.
+         */
+        public <A> int calculateBitsForSerialization(IdMap<A> idMap, int i) {
             int j = Mth.ceillog2(i);
             Configuration<A> configuration = this.<A>getConfiguration(idMap, j);
             return configuration.factory() == GLOBAL_PALETTE_FACTORY ? j : configuration.bits();
         }
     }
 
+    /**
+     * Creates the storage of a section: {@code size} values of {@code bits} bits initialized from {@code raw}
+     * when it is not {@code null}. Must accept {@code bits == 0}.
+     */
+    @FunctionalInterface
+    public interface StorageFactory {
+        /**
+         * {@link SpecializedBitStorages} adopting {@code raw}; empty storages draw their words from
+         * {@link StoragePool#SHARED}.
+         */
+        StorageFactory HEAP = (bits, size, raw) -> bits == MIN_PALETTE_BITS ? new ZeroBitStorage(size)
+                : SpecializedBitStorages.create(bits, size, raw != null ? raw : StoragePool.SHARED.take(StoragePool.words(bits, size)));
+
+        BitStorage create(int bits, int size, @Nullable long[] raw);
+    }
+
     @FunctionalInterface
     public interface CountConsumer<T> {
         void accept(T object, int i);
     }
 
+    @FunctionalInterface
+    public interface ChangeConsumer<T> {
+        /**
+         * @param index position as produced by {@link Strategy#getIndex}
+         */
+        void accept(int index, T value);
+    }
+
     @Override
     public String toString() {
         return "bits: " + data.configuration.bits;
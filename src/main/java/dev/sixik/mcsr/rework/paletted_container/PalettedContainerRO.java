@@ -4,6 +4,8 @@ import com.mojang.serialization.DataResult;
 import net.minecraft.core.IdMap;
 import net.minecraft.network.FriendlyByteBuf;
 
+import javax.annotation.Nullable;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.function.Consumer;
@@ -25,9 +27,35 @@ public interface PalettedContainerRO<T> {
 
     PalettedContainer<T> recreate();
 
-    PalettedContainerRO.PackedData<T> pack(IdMap<T> idMap, PalettedContainer.Strategy strategy);
+    /**
+     * {@link #pack(IdMap, PalettedContainer.Strategy, PackingScratch)} with the calling thread's scratch.
+     */
+    default PalettedContainerRO.PackedData<T> pack(IdMap<T> idMap, PalettedContainer.Strategy strategy) {
+        return this.pack(idMap, strategy, PackingScratch.local());
+    }
+
+    /**
+     * Storage format of the section: the entries that are actually used, in order of first occurrence, and
+     * the storage re-encoded against them. Only the entry list and the packed array are allocated.
+     */
+    PalettedContainerRO.PackedData<T> pack(IdMap<T> idMap, PalettedContainer.Strategy strategy, PackingScratch scratch);
+
+    /**
+     * @param packedStorage the packed ids, {@code null} for a single-value section. Unpacking hands the
+     *                      array to the new container instead of copying it.
+     */
+    public record PackedData<T>(List<T> paletteEntries, @Nullable long[] packedStorage) {
+
+        public PackedData(List<T> paletteEntries, Optional<LongStream> storage) {
+            this(paletteEntries, storage.map(LongStream::toArray).orElse(null));
+        }
 
-    public record PackedData<T>(List<T> paletteEntries, Optional<LongStream> storage) {
+        /**
+         * Stream view of {@link #packedStorage}, for codecs.
+         */
+        public Optional<LongStream> storage() {
+            return this.packedStorage == null ? Optional.empty() : Optional.of(Arrays.stream(this.packedStorage));
+        }
     }
 
     public interface Unpacker<T, C extends PalettedContainerRO<T>> {
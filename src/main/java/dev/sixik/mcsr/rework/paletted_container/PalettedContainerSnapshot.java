@@ -0,0 +1,68 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import net.minecraft.core.IdMap;
+import net.minecraft.network.FriendlyByteBuf;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Read-only copy of a {@link PalettedContainer} taken by {@link PalettedContainer#snapshot()}. Storage and
+ * palette come from the same version of the container and are never touched again, so a snapshot can be
+ * written, packed or measured on any thread while the container itself keeps changing.
+ */
+public final class PalettedContainerSnapshot<T> implements PalettedContainerRO<T> {
+    private final IdMap<T> registry;
+    private final PalettedContainer.Strategy strategy;
+    private final PalettedContainer.Data<T> data;
+
+    PalettedContainerSnapshot(IdMap<T> registry, PalettedContainer.Strategy strategy, PalettedContainer.Data<T> data) {
+        this.registry = registry;
+        this.strategy = strategy;
+        this.data = data;
+    }
+
+    @Override
+    public T get(int i, int j, int k) {
+        return this.data.palette().valueFor(this.data.storage().get(this.strategy.getIndex(i, j, k)));
+    }
+
+    @Override
+    public void getAll(Consumer<T> consumer) {
+        PalettedContainer.getAll(this.data, consumer);
+    }
+
+    @Override
+    public void write(FriendlyByteBuf friendlyByteBuf) {
+        this.data.write(friendlyByteBuf);
+    }
+
+    @Override
+    public int getSerializedSize() {
+        return this.data.getSerializedSize();
+    }
+
+    @Override
+    public boolean maybeHas(Predicate<T> predicate) {
+        return this.data.palette().maybeHas(predicate);
+    }
+
+    @Override
+    public void count(PalettedContainer.CountConsumer<T> countConsumer) {
+        PalettedContainer.count(this.data, countConsumer);
+    }
+
+    @Override
+    public PalettedContainer<T> recreate() {
+        return new PalettedContainer<>(this.registry, this.data.palette().valueFor(0), this.strategy);
+    }
+
+    @Override
+    public PackedData<T> pack(IdMap<T> idMap, PalettedContainer.Strategy strategy, PackingScratch scratch) {
+        return PalettedContainer.pack(this.data, idMap, strategy, scratch);
+    }
+
+    public int getBits() {
+        return this.data.configuration().bits();
+    }
+}
@@ -1,8 +1,10 @@
 package dev.sixik.mcsr.rework.paletted_container;
 
+import net.minecraft.util.ObjectSizes;
 import org.apache.commons.lang3.Validate;
 
 import javax.annotation.Nullable;
+import java.util.Arrays;
 import java.util.function.IntConsumer;
 
 public class SimpleBitStorage implements BitStorage {
@@ -208,34 +210,11 @@ public class SimpleBitStorage implements BitStorage {
     private final int divideMul;
     private final int divideAdd;
     private final int divideShift;
+    private final long lanePattern;
 
     public SimpleBitStorage(int i, int j, int[] is) {
         this(i, j);
-        int k = 0;
-
-        int l;
-        for (l = 0; l <= j - this.valuesPerLong; l += this.valuesPerLong) {
-            long m = 0L;
-
-            for (int n = this.valuesPerLong - 1; n >= 0; n--) {
-                m <<= i;
-                m |= is[l + n] & this.mask;
-            }
-
-            this.data[k++] = m;
-        }
-
-        int o = j - l;
-        if (o > 0) {
-            long p = 0L;
-
-            for (int q = o - 1; q >= 0; q--) {
-                p <<= i;
-                p |= is[l + q] & this.mask;
-            }
-
-            this.data[k] = p;
-        }
+        BitPacking.pack(is, i, j, this.data);
     }
 
     public SimpleBitStorage(int i, int j) {
@@ -252,6 +231,7 @@ public class SimpleBitStorage implements BitStorage {
         this.divideMul = MAGIC[k + 0];
         this.divideAdd = MAGIC[k + 1];
         this.divideShift = MAGIC[k + 2];
+        this.lanePattern = BitPacking.lanePattern(i, this.valuesPerLong);
         int l = (j + this.valuesPerLong - 1) / this.valuesPerLong;
         if (ls != null) {
             if (ls.length != l) {
@@ -301,6 +281,42 @@ public class SimpleBitStorage implements BitStorage {
         return (int)(l >> k & this.mask);
     }
 
+    @Override
+    public void fill(int i, int j, int k) {
+        if (i >= j) {
+            return;
+        }
+
+        Validate.inclusiveBetween(0L, (long)(this.size - 1), (long)i);
+        Validate.inclusiveBetween(1L, (long)this.size, (long)j);
+        Validate.inclusiveBetween(0L, this.mask, (long)k);
+        long l = (k & this.mask) * this.lanePattern;
+        int m = this.cellIndex(i);
+        int n = this.cellIndex(j - 1);
+        int o = i - m * this.valuesPerLong;
+        int p = j - 1 - n * this.valuesPerLong;
+
+        if (m == n) {
+            long q = BitPacking.laneMask(this.bits, o, p);
+            this.data[m] = this.data[m] & ~q | l & q;
+            return;
+        }
+
+        if (o != 0) {
+            long q = BitPacking.laneMask(this.bits, o, this.valuesPerLong - 1);
+            this.data[m] = this.data[m] & ~q | l & q;
+            m++;
+        }
+
+        if (p != this.valuesPerLong - 1) {
+            long q = BitPacking.laneMask(this.bits, 0, p);
+            this.data[n] = this.data[n] & ~q | l & q;
+            n--;
+        }
+
+        Arrays.fill(this.data, m, n + 1, l);
+    }
+
     @Override
     public long[] getRaw() {
         return this.data;
@@ -333,29 +349,12 @@ public class SimpleBitStorage implements BitStorage {
 
     @Override
     public void unpack(int[] is) {
-        int i = this.data.length;
-        int j = 0;
-
-        for (int k = 0; k < i - 1; k++) {
-            long l = this.data[k];
-
-            for (int m = 0; m < this.valuesPerLong; m++) {
-                is[j + m] = (int)(l & this.mask);
-                l >>= this.bits;
-            }
-
-            j += this.valuesPerLong;
-        }
-
-        int k = this.size - j;
-        if (k > 0) {
-            long l = this.data[i - 1];
+        BitPacking.unpack(this.data, this.bits, this.size, is);
+    }
 
-            for (int m = 0; m < k; m++) {
-                is[j + m] = (int)(l & this.mask);
-                l >>= this.bits;
-            }
-        }
+    @Override
+    public void histogram(int[] counts) {
+        BitPacking.histogram(this.data, this.bits, this.size, counts);
     }
 
     @Override
@@ -363,6 +362,11 @@ public class SimpleBitStorage implements BitStorage {
         return new SimpleBitStorage(this.bits, this.size, (long[])this.data.clone());
     }
 
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass()) + ObjectSizes.array(this.data);
+    }
+
     public static class InitializationException extends RuntimeException {
         InitializationException(String string) {
             super(string);
@@ -3,6 +3,7 @@ package dev.sixik.mcsr.rework.paletted_container;
 import net.minecraft.core.IdMap;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.network.VarInt;
+import net.minecraft.util.ObjectSizes;
 import org.apache.commons.lang3.Validate;
 
 import javax.annotation.Nullable;
@@ -85,11 +86,16 @@ public class SingleValuePalette<T> implements Palette<T> {
     }
 
     @Override
-    public Palette<T> copy() {
+    public Palette<T> copy(PaletteResize<T> paletteResize) {
         if (this.value == null) {
             throw new IllegalStateException("Use of an uninitialized palette");
         } else {
-            return this;
+            return new SingleValuePalette<>(this.registry, paletteResize, List.of(this.value));
         }
     }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass());
+    }
 }
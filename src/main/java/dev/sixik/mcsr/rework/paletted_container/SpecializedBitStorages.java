@@ -0,0 +1,162 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import javax.annotation.Nullable;
+
+/**
+ * {@link AtomicSimpleBitStorage} variants for the widths sections actually use. The word index and the lane
+ * shift are constant shifts and masks (or a division by a constant for 5 and 6 bits) instead of the MAGIC
+ * multiply-shift on instance fields. The layout is the same, so the bulk paths are inherited unchanged.
+ */
+final class SpecializedBitStorages {
+    private SpecializedBitStorages() {
+    }
+
+    /**
+     * Storage for {@code bits}, specialized when there is a variant for that width. {@code data} may be
+     * {@code null} for an empty storage.
+     */
+    static AtomicSimpleBitStorage create(int bits, int size, @Nullable long[] data) {
+        return switch (bits) {
+            case 1 -> new Bits1(size, data);
+            case 2 -> new Bits2(size, data);
+            case 4 -> new Bits4(size, data);
+            case 5 -> new Bits5(size, data);
+            case 6 -> new Bits6(size, data);
+            case 8 -> new Bits8(size, data);
+            case 15 -> new Bits15(size, data);
+            default -> new AtomicSimpleBitStorage(bits, size, data);
+        };
+    }
+
+    static AtomicSimpleBitStorage create(int bits, int size, int[] values) {
+        AtomicSimpleBitStorage storage = create(bits, size, (long[]) null);
+        BitPacking.pack(values, bits, size, storage.data);
+        return storage;
+    }
+
+    static final class Bits1 extends AtomicSimpleBitStorage {
+        Bits1(int size, @Nullable long[] data) {
+            super(1, size, data);
+        }
+
+        @Override
+        public int get(int i) {
+            long val = (long) VOLATILE_ACCESS.getAcquire(this.data, i >>> 6);
+            return (int) (val >>> (i & 63)) & 1;
+        }
+
+        @Override
+        public int getAndSet(int i, int j) {
+            return this.swapLane(i >>> 6, i & 63, 1L, j);
+        }
+    }
+
+    static final class Bits2 extends AtomicSimpleBitStorage {
+        Bits2(int size, @Nullable long[] data) {
+            super(2, size, data);
+        }
+
+        @Override
+        public int get(int i) {
+            long val = (long) VOLATILE_ACCESS.getAcquire(this.data, i >>> 5);
+            return (int) (val >>> ((i & 31) << 1)) & 3;
+        }
+
+        @Override
+        public int getAndSet(int i, int j) {
+            return this.swapLane(i >>> 5, (i & 31) << 1, 3L, j);
+        }
+    }
+
+    static final class Bits4 extends AtomicSimpleBitStorage {
+        Bits4(int size, @Nullable long[] data) {
+            super(4, size, data);
+        }
+
+        @Override
+        public int get(int i) {
+            long val = (long) VOLATILE_ACCESS.getAcquire(this.data, i >>> 4);
+            return (int) (val >>> ((i & 15) << 2)) & 15;
+        }
+
+        @Override
+        public int getAndSet(int i, int j) {
+            return this.swapLane(i >>> 4, (i & 15) << 2, 15L, j);
+        }
+    }
+
+    // 12 values per long, the top 4 bits stay unused
+    static final class Bits5 extends AtomicSimpleBitStorage {
+        Bits5(int size, @Nullable long[] data) {
+            super(5, size, data);
+        }
+
+        @Override
+        public int get(int i) {
+            int idx = i / 12;
+            long val = (long) VOLATILE_ACCESS.getAcquire(this.data, idx);
+            return (int) (val >>> (i - idx * 12) * 5) & 31;
+        }
+
+        @Override
+        public int getAndSet(int i, int j) {
+            int idx = i / 12;
+            return this.swapLane(idx, (i - idx * 12) * 5, 31L, j);
+        }
+    }
+
+    // 10 values per long, the top 4 bits stay unused
+    static final class Bits6 extends AtomicSimpleBitStorage {
+        Bits6(int size, @Nullable long[] data) {
+            super(6, size, data);
+        }
+
+        @Override
+        public int get(int i) {
+            int idx = i / 10;
+            long val = (long) VOLATILE_ACCESS.getAcquire(this.data, idx);
+            return (int) (val >>> (i - idx * 10) * 6) & 63;
+        }
+
+        @Override
+        public int getAndSet(int i, int j) {
+            int idx = i / 10;
+            return this.swapLane(idx, (i - idx * 10) * 6, 63L, j);
+        }
+    }
+
+    static final class Bits8 extends AtomicSimpleBitStorage {
+        Bits8(int size, @Nullable long[] data) {
+            super(8, size, data);
+        }
+
+        @Override
+        public int get(int i) {
+            long val = (long) VOLATILE_ACCESS.getAcquire(this.data, i >>> 3);
+            return (int) (val >>> ((i & 7) << 3)) & 255;
+        }
+
+        @Override
+        public int getAndSet(int i, int j) {
+            return this.swapLane(i >>> 3, (i & 7) << 3, 255L, j);
+        }
+    }
+
+    // 4 values per long, the top 4 bits stay unused
+    static final class Bits15 extends AtomicSimpleBitStorage {
+        Bits15(int size, @Nullable long[] data) {
+            super(15, size, data);
+        }
+
+        @Override
+        public int get(int i) {
+            long val = (long) VOLATILE_ACCESS.getAcquire(this.data, i >>> 2);
+            return (int) (val >>> (i & 3) * 15) & 32767;
+        }
+
+        @Override
+        public int getAndSet(int i, int j) {
+            return this.swapLane(i >>> 2, (i & 3) * 15, 32767L, j);
+        }
+    }
+}
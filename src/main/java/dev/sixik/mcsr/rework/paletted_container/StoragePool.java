@@ -0,0 +1,171 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of the {@code long[]} word arrays behind heap {@link BitStorage}s. Arrays are keyed by their
+ * length alone: every (bits, size) pair with the same word count shares a shelf. A thread first uses its own
+ * small shelf and only then a shared one, and arrays beyond both bounds are left to the GC.
+ * <p>
+ * An array may only be {@link #release}d once nothing can read it anymore. {@link PalettedContainer} returns
+ * the temporary copies of its resizes and the storages of {@code Data} that never got published; storages a
+ * reader may still hold come back only through {@link PalettedContainer#recycle()}.
+ */
+public final class StoragePool {
+    /**
+     * {@code -Dmcsr.disableStoragePool=true} turns every pool into plain allocation, for comparisons.
+     */
+    static final boolean ENABLED = !Boolean.getBoolean("mcsr.disableStoragePool");
+
+    public static final StoragePool SHARED = new StoragePool(8, 256);
+
+    /**
+     * Longest pooled array: a 16-bit section of 4096 values.
+     */
+    static final int MAX_WORDS = 1024;
+
+    private final int localCapacity;
+    private final int sharedCapacity;
+    private final ThreadLocal<long[][][]> local;
+    private final AtomicReferenceArray<Shelf> shared = new AtomicReferenceArray<>(MAX_WORDS + 1);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public StoragePool(int localCapacity, int sharedCapacity) {
+        this.localCapacity = localCapacity;
+        this.sharedCapacity = sharedCapacity;
+        this.local = ThreadLocal.withInitial(() -> new long[MAX_WORDS + 1][][]);
+    }
+
+    private static final class Shelf {
+        final ConcurrentLinkedQueue<long[]> arrays = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+    }
+
+    /**
+     * Number of longs of a storage of {@code size} values at {@code bits}.
+     */
+    static int words(int bits, int size) {
+        int valuesPerLong = 64 / bits;
+        return (size + valuesPerLong - 1) / valuesPerLong;
+    }
+
+    /**
+     * A zeroed array of exactly {@code words} longs, from the pool when one is available.
+     */
+    public long[] take(int words) {
+        if (!ENABLED || words <= 0 || words > MAX_WORDS) {
+            return new long[Math.max(words, 0)];
+        }
+
+        long[][] stack = this.local.get()[words];
+        if (stack != null) {
+            for (int i = stack.length - 1; i >= 0; i--) {
+                long[] array = stack[i];
+                if (array != null) {
+                    stack[i] = null;
+                    this.hits.increment();
+                    return array;
+                }
+            }
+        }
+
+        Shelf shelf = this.shared.get(words);
+        long[] array = shelf == null ? null : shelf.arrays.poll();
+        if (array != null) {
+            shelf.size.decrementAndGet();
+            this.hits.increment();
+            return array;
+        }
+
+        this.misses.increment();
+        return new long[words];
+    }
+
+    /**
+     * Hands {@code array} back. The caller must be its only owner: no storage, reader or snapshot may still
+     * see it.
+     */
+    public void release(long[] array) {
+        int words = array.length;
+        if (!ENABLED || words == 0 || words > MAX_WORDS) {
+            return;
+        }
+
+        Arrays.fill(array, 0L);
+        this.released.increment();
+
+        long[][][] stacks = this.local.get();
+        long[][] stack = stacks[words];
+        if (stack == null) {
+            stack = stacks[words] = new long[this.localCapacity][];
+        }
+        for (int i = 0; i < stack.length; i++) {
+            if (stack[i] == null) {
+                stack[i] = array;
+                return;
+            }
+        }
+
+        Shelf shelf = this.shared.get(words);
+        if (shelf == null) {
+            this.shared.compareAndSet(words, null, new Shelf());
+            shelf = this.shared.get(words);
+        }
+        if (shelf.size.incrementAndGet() <= this.sharedCapacity) {
+            shelf.arrays.offer(array);
+        } else {
+            shelf.size.decrementAndGet();
+            this.dropped.increment();
+        }
+    }
+
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Arrays handed back, including the {@link #dropped} ones.
+     */
+    public long released() {
+        return this.released.sum();
+    }
+
+    /**
+     * Arrays handed back while both shelves of their length were full.
+     */
+    public long dropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Share of pooled-length {@link #take}s served without allocating, {@code 0} before the first one.
+     */
+    public double hitRate() {
+        long hits = this.hits.sum();
+        long total = hits + this.misses.sum();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    public void resetCounters() {
+        this.hits.reset();
+        this.misses.reset();
+        this.released.reset();
+        this.dropped.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StoragePool{hits=%d, misses=%d, hitRate=%.3f, released=%d, dropped=%d}", this.hits(), this.misses(), this.hitRate(), this.released(), this.dropped());
+    }
+}
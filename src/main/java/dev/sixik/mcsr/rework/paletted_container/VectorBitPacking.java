@@ -0,0 +1,160 @@
+package dev.sixik.mcsr.rework.paletted_container;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@code jdk.incubator.vector} versions of the {@link BitPacking} bulk loops, same layout and same results.
+ * Only touched through {@link BitPacking}, which checks that the incubator module is present before this
+ * class is ever loaded.
+ * <p>
+ * One vector step handles {@link #LANES} consecutive values. They start at some lane {@code phase} of a word
+ * and spread over at most {@code LANES} words, so a step loads those words, moves word {@code (phase + i) / n}
+ * into vector lane {@code i}, shifts lane {@code i} right by {@code (phase + i) % n * bits} and masks. The
+ * shuffle and the shift amounts only depend on the phase and are precomputed per width.
+ */
+final class VectorBitPacking {
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED.withShape(VectorShape.forBitSize(LONGS.vectorBitSize() / 2));
+    static final int LANES = LONGS.length();
+
+    private static final Layout[] LAYOUTS = new Layout[33];
+
+    static {
+        for (int bits = 1; bits <= 32; bits++) {
+            LAYOUTS[bits] = new Layout(bits);
+        }
+    }
+
+    private VectorBitPacking() {
+    }
+
+    static boolean supports(int bits) {
+        return LANES >= 2 && bits >= 1 && bits <= 32;
+    }
+
+    private static final class Layout {
+        final int bits;
+        final int valuesPerLong;
+        final long mask;
+        // per phase: source word of every lane, shift of every lane, words to advance and the next phase
+        final VectorShuffle<Long>[] shuffles;
+        final LongVector[] shifts;
+        final int[] wordStep;
+        final int[] nextPhase;
+
+        @SuppressWarnings("unchecked")
+        Layout(int bits) {
+            this.bits = bits;
+            this.valuesPerLong = 64 / bits;
+            this.mask = (1L << bits) - 1L;
+            this.shuffles = (VectorShuffle<Long>[]) new VectorShuffle<?>[this.valuesPerLong];
+            this.shifts = new LongVector[this.valuesPerLong];
+            this.wordStep = new int[this.valuesPerLong];
+            this.nextPhase = new int[this.valuesPerLong];
+
+            for (int phase = 0; phase < this.valuesPerLong; phase++) {
+                int[] source = new int[LANES];
+                long[] shift = new long[LANES];
+                for (int i = 0; i < LANES; i++) {
+                    source[i] = (phase + i) / this.valuesPerLong;
+                    shift[i] = (long) ((phase + i) % this.valuesPerLong) * bits;
+                }
+
+                this.shuffles[phase] = VectorShuffle.fromArray(LONGS, source, 0);
+                this.shifts[phase] = LongVector.fromArray(LONGS, shift, 0);
+                this.wordStep[phase] = (phase + LANES) / this.valuesPerLong;
+                this.nextPhase[phase] = (phase + LANES) % this.valuesPerLong;
+            }
+        }
+    }
+
+    /**
+     * Unpacks as many values as whole vector steps allow and returns how many were written; the caller
+     * finishes the tail with scalar code.
+     */
+    static int unpack(long[] words, int bits, int size, int[] target) {
+        Layout layout = LAYOUTS[bits];
+        LongVector mask = LongVector.broadcast(LONGS, layout.mask);
+
+        int index = 0;
+        int word = 0;
+        int phase = 0;
+        while (index + LANES <= size && word + LANES <= words.length) {
+            LongVector values = LongVector.fromArray(LONGS, words, word)
+                    .rearrange(layout.shuffles[phase])
+                    .lanewise(VectorOperators.LSHR, layout.shifts[phase])
+                    .and(mask);
+            values.convertShape(VectorOperators.L2I, INTS, 0).reinterpretAsInts().intoArray(target, index);
+
+            index += LANES;
+            word += layout.wordStep[phase];
+            phase = layout.nextPhase[phase];
+        }
+
+        return index;
+    }
+
+    /**
+     * Packs whole words and returns how many values were consumed; the caller packs the rest with scalar
+     * code. Only widths whose words hold a multiple of {@link #LANES} values are handled: every step then
+     * lands in a single word, the shifted steps of a word are ORed together and reduced once. Other widths
+     * would need a masked reduction per step, which measured slower than the scalar loop.
+     */
+    static int pack(int[] values, int bits, int size, long[] words) {
+        Layout layout = LAYOUTS[bits];
+        int valuesPerLong = layout.valuesPerLong;
+        if (valuesPerLong % LANES != 0) {
+            return 0;
+        }
+
+        LongVector mask = LongVector.broadcast(LONGS, layout.mask);
+        int fullWords = size / valuesPerLong;
+        for (int word = 0, index = 0; word < fullWords; word++) {
+            LongVector packed = LongVector.zero(LONGS);
+            for (int phase = 0; phase < valuesPerLong; phase += LANES, index += LANES) {
+                LongVector value = (LongVector) IntVector.fromArray(INTS, values, index).convertShape(VectorOperators.I2L, LONGS, 0);
+                packed = packed.or(value.and(mask).lanewise(VectorOperators.LSHL, layout.shifts[phase]));
+            }
+            words[word] = packed.reduceLanes(VectorOperators.OR);
+        }
+
+        return fullWords * valuesPerLong;
+    }
+
+    /**
+     * Adds to {@code counts[v]} the number of occurrences of every {@code v < counts.length} among the values of
+     * the first {@code fullWords} words, all of which must be completely used. Each value costs one pass over
+     * the words: lanes equal to {@code v} become zero after an xor, and zero lanes are counted with the
+     * carry-free SWAR test, so this only pays off for small palettes.
+     */
+    static void histogram(long[] words, int bits, int fullWords, int[] counts) {
+        Layout layout = LAYOUTS[bits];
+        long pattern = BitPacking.lanePattern(bits, layout.valuesPerLong);
+        long used = pattern * layout.mask;
+        long high = pattern << (bits - 1);
+        long low = ~high & used;
+
+        int vectorWords = fullWords - fullWords % LANES;
+        for (int v = 0; v < counts.length; v++) {
+            long needle = v * pattern;
+            LongVector nonZero = LongVector.zero(LONGS);
+            for (int word = 0; word < vectorWords; word += LANES) {
+                LongVector x = LongVector.fromArray(LONGS, words, word).lanewise(VectorOperators.XOR, needle);
+                LongVector marks = x.and(low).add(low).or(x).and(high);
+                nonZero = nonZero.add(marks.lanewise(VectorOperators.BIT_COUNT));
+            }
+
+            long present = (long) vectorWords * layout.valuesPerLong - nonZero.reduceLanes(VectorOperators.ADD);
+            for (int word = vectorWords; word < fullWords; word++) {
+                long x = words[word] ^ needle;
+                present += layout.valuesPerLong - Long.bitCount(((x & low) + low | x) & high);
+            }
+            counts[v] += (int) present;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package dev.sixik.mcsr.rework.paletted_container;
 
+import net.minecraft.util.ObjectSizes;
 import org.apache.commons.lang3.Validate;
 
 import java.util.Arrays;
@@ -32,6 +33,11 @@ public class ZeroBitStorage implements BitStorage {
         return 0;
     }
 
+    @Override
+    public void fill(int i, int j, int k) {
+        Validate.inclusiveBetween(0L, 0L, (long)k);
+    }
+
     @Override
     public long[] getRaw() {
         return RAW;
@@ -59,8 +65,18 @@ public class ZeroBitStorage implements BitStorage {
         Arrays.fill(is, 0, this.size, 0);
     }
 
+    @Override
+    public void histogram(int[] counts) {
+        counts[0] += this.size;
+    }
+
     @Override
     public BitStorage copy() {
         return this;
     }
+
+    @Override
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass());
+    }
 }
@@ -0,0 +1,487 @@
+package dev.sixik.mcsr.rework.structure;
+
+import dev.sixik.mcsr.rework.chunk.Region;
+import dev.sixik.mcsr.rework.chunk.SectionTasks;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainerRO;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import net.minecraft.core.IdMap;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A structure template on disk, read through a memory mapping. The file is a list of 16x16x16 template
+ * sections, each stored the way {@link PalettedContainerRO#pack} leaves a section: a palette and the ids
+ * against it packed in the {@code SimpleBitStorage} layout, at the width the strategy would serialize it
+ * with. Placing never builds a section: the packed words are decoded straight from the mapped buffer into
+ * {@link PalettedContainer#setBatch(int[], int[], int, List)} of the target sections, and the only objects
+ * resolved are the palette entries, once per file.
+ * <p>
+ * Layout, little-endian:
+ * <pre>
+ * header    int magic, int version, int sizeX, int sizeY, int sizeZ (blocks),
+ *           int paletteSize, int sectionCount, int sectionPaletteSize
+ * palette   paletteSize x int registry id
+ * section   sectionPaletteSize x int index into the palette, -1 for a void entry,
+ * palettes  one run per section, padded to 8 bytes
+ * index     sectionCount x (int y &lt;&lt; 12 | z &lt;&lt; 6 | x section position, int palette start,
+ *           int palette length, int bits, long data offset)
+ * data      per section, the packed words, none for a single-value section
+ * </pre>
+ * Void entries leave the world untouched, like the blocks a {@link StructureTemplate} does not list.
+ */
+public final class StructureFile<T> {
+    public static final int MAGIC = 0x4D435354;
+    public static final int VERSION = 1;
+    static final int SECTION_SIZE = 16;
+    static final int SECTION_VOLUME = SECTION_SIZE * SECTION_SIZE * SECTION_SIZE;
+    private static final int HEADER_BYTES = 32;
+    private static final int INDEX_ENTRY_BYTES = 24;
+    private static final int MAX_SECTIONS = StructureTemplate.MAX_SIZE / SECTION_SIZE;
+    private static final ThreadLocal<Targets> TARGETS = ThreadLocal.withInitial(Targets::new);
+
+    private final MappedByteBuffer buffer;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final int sectionCount;
+    private final int sectionPalettesOffset;
+    private final int indexOffset;
+    private final List<T> palette;
+
+    private StructureFile(MappedByteBuffer buffer, int sizeX, int sizeY, int sizeZ, int sectionCount, int sectionPalettesOffset, int indexOffset, List<T> palette) {
+        this.buffer = buffer;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sectionCount = sectionCount;
+        this.sectionPalettesOffset = sectionPalettesOffset;
+        this.indexOffset = indexOffset;
+        this.palette = palette;
+    }
+
+    /**
+     * Maps {@code path} read-only and resolves its palette against {@code idMap}. The mapping stays valid
+     * after the channel is closed and is released with this object.
+     */
+    public static <T> StructureFile<T> open(Path path, IdMap<T> idMap) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a structure file: " + path);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported structure file version " + buffer.getInt(4) + " in " + path);
+        }
+
+        int paletteSize = buffer.getInt(20);
+        int sectionCount = buffer.getInt(24);
+        int sectionPaletteSize = buffer.getInt(28);
+        int sectionPalettesOffset = HEADER_BYTES + paletteSize * Integer.BYTES;
+        int indexOffset = align(sectionPalettesOffset + sectionPaletteSize * Integer.BYTES);
+        if (paletteSize < 0 || sectionCount < 0 || sectionPaletteSize < 0 || (long) indexOffset + (long) sectionCount * INDEX_ENTRY_BYTES > buffer.limit()) {
+            throw new IOException("Truncated structure file: " + path);
+        }
+
+        List<T> palette = new ArrayList<>(paletteSize);
+        for (int id = 0; id < paletteSize; id++) {
+            T value = idMap.byId(buffer.getInt(HEADER_BYTES + id * Integer.BYTES));
+            if (value == null) {
+                throw new IOException("Unknown registry id " + buffer.getInt(HEADER_BYTES + id * Integer.BYTES) + " in " + path);
+            }
+            palette.add(value);
+        }
+
+        StructureFile<T> file = new StructureFile<>(buffer, buffer.getInt(8), buffer.getInt(12), buffer.getInt(16), sectionCount, sectionPalettesOffset, indexOffset, palette);
+        for (int section = 0; section < sectionCount; section++) {
+            file.validate(path, section, paletteSize, sectionPaletteSize);
+        }
+        return file;
+    }
+
+    private void validate(Path path, int section, int paletteSize, int sectionPaletteSize) throws IOException {
+        int start = this.paletteStart(section);
+        int length = this.paletteLength(section);
+        int bits = this.bits(section);
+        if (start < 0 || length <= 0 || start + length > sectionPaletteSize || bits < 0 || bits > 32 || (bits == 0) != (length == 1)) {
+            throw new IOException("Malformed index entry " + section + " in " + path);
+        }
+        for (int n = 0; n < length; n++) {
+            int id = this.buffer.getInt(this.sectionPalettesOffset + (start + n) * Integer.BYTES);
+            if (id < -1 || id >= paletteSize) {
+                throw new IOException("Palette index " + id + " out of range in section " + section + " of " + path);
+            }
+        }
+        if (bits > 0) {
+            long end = this.dataOffset(section) + (long) words(bits) * Long.BYTES;
+            if (this.dataOffset(section) < 0 || end > this.buffer.limit()) {
+                throw new IOException("Section " + section + " runs past the end of " + path);
+            }
+        }
+
+        // id за пределами палитры секции вышел бы за remap только при размещении
+        if (bits > 0 && length < 1L << bits) {
+            long mask = (1L << bits) - 1L;
+            int valuesPerLong = 64 / bits;
+            long offset = this.dataOffset(section);
+            for (int index = 0; index < SECTION_VOLUME; offset += Long.BYTES) {
+                long word = this.buffer.getLong((int) offset);
+                int end = Math.min(SECTION_VOLUME, index + valuesPerLong);
+                for (; index < end; index++, word >>>= bits) {
+                    if ((word & mask) >= length) {
+                        throw new IOException("Packed id " + (word & mask) + " at " + index + " is outside of the " + length + "-entry palette of section " + section + " in " + path);
+                    }
+                }
+            }
+        }
+    }
+
+    public static <T> Writer<T> writer(IdMap<T> idMap, PalettedContainer.Strategy strategy) {
+        return new Writer<>(idMap, strategy, null);
+    }
+
+    /**
+     * A writer that stores {@code voidValue} in the sections it converts as void, so placing the file skips
+     * those positions instead of writing {@code voidValue}.
+     */
+    public static <T> Writer<T> writer(IdMap<T> idMap, PalettedContainer.Strategy strategy, T voidValue) {
+        return new Writer<>(idMap, strategy, voidValue);
+    }
+
+    static int words(int bits) {
+        int valuesPerLong = 64 / bits;
+        return (SECTION_VOLUME + valuesPerLong - 1) / valuesPerLong;
+    }
+
+    private static int align(int offset) {
+        return offset + 7 & -8;
+    }
+
+    public int getSizeX() {
+        return this.sizeX;
+    }
+
+    public int getSizeY() {
+        return this.sizeY;
+    }
+
+    public int getSizeZ() {
+        return this.sizeZ;
+    }
+
+    public List<T> getPalette() {
+        return this.palette;
+    }
+
+    public int sectionCount() {
+        return this.sectionCount;
+    }
+
+    private int entry(int section) {
+        return this.indexOffset + section * INDEX_ENTRY_BYTES;
+    }
+
+    public int sectionX(int section) {
+        return this.buffer.getInt(this.entry(section)) & MAX_SECTIONS - 1;
+    }
+
+    public int sectionY(int section) {
+        return this.buffer.getInt(this.entry(section)) >>> 12 & MAX_SECTIONS - 1;
+    }
+
+    public int sectionZ(int section) {
+        return this.buffer.getInt(this.entry(section)) >>> 6 & MAX_SECTIONS - 1;
+    }
+
+    private int paletteStart(int section) {
+        return this.buffer.getInt(this.entry(section) + 4);
+    }
+
+    private int paletteLength(int section) {
+        return this.buffer.getInt(this.entry(section) + 8);
+    }
+
+    private int bits(int section) {
+        return this.buffer.getInt(this.entry(section) + 12);
+    }
+
+    private long dataOffset(int section) {
+        return this.buffer.getLong(this.entry(section) + 16);
+    }
+
+    /**
+     * Writes every non-void position of the file with its origin at world coordinates
+     * {@code [originX, originY, originZ]}, one task per template section on the region's pool. Sections of a
+     * region whose containers are not thread-safe are written one after another unless the origin is
+     * section-aligned, since unaligned template sections share target sections.
+     */
+    public StructurePlacer.Placement place(Region<T> region, int originX, int originY, int originZ) {
+        long start = System.nanoTime();
+        // палитры секций: локальный id -> id в списке значений секции, -1 для пустоты
+        int[][] remaps = new int[this.sectionCount][];
+        List<List<T>> values = new ArrayList<>(this.sectionCount);
+        for (int section = 0; section < this.sectionCount; section++) {
+            int paletteStart = this.paletteStart(section);
+            int length = this.paletteLength(section);
+            int[] remap = new int[length];
+            List<T> local = new ArrayList<>(length);
+            for (int n = 0; n < length; n++) {
+                int id = this.buffer.getInt(this.sectionPalettesOffset + (paletteStart + n) * Integer.BYTES);
+                if (id == -1) {
+                    remap[n] = -1;
+                } else {
+                    remap[n] = local.size();
+                    local.add(this.palette.get(id));
+                }
+            }
+            remaps[section] = remap;
+            values.add(local);
+        }
+        long resolved = System.nanoTime();
+
+        boolean aligned = ((originX | originY | originZ) & SECTION_SIZE - 1) == 0;
+        long tally;
+        if (aligned || region.getStrategy().concurrency().isThreadSafe()) {
+            tally = SectionTasks.reduce(region.getPool(), this.sectionCount,
+                    section -> this.placeSection(region, section, originX, originY, originZ, remaps[section], values.get(section)), Long::sum, 0L);
+        } else {
+            tally = 0L;
+            for (int section = 0; section < this.sectionCount; section++) {
+                tally += this.placeSection(region, section, originX, originY, originZ, remaps[section], values.get(section));
+            }
+        }
+        long written = System.nanoTime();
+
+        return new StructurePlacer.Placement((int) tally, (int) (tally >>> 32), this.sectionCount, resolved - start, written - resolved);
+    }
+
+    /**
+     * Places one template section into the up to eight target sections it overlaps.
+     *
+     * @return {@code clipped << 32 | written}
+     */
+    private long placeSection(Region<T> region, int section, int originX, int originY, int originZ, int[] remap, List<T> local) {
+        int baseX = originX + this.sectionX(section) * SECTION_SIZE;
+        int baseY = originY + this.sectionY(section) * SECTION_SIZE;
+        int baseZ = originZ + this.sectionZ(section) * SECTION_SIZE;
+        int firstSectionX = baseX >> 4;
+        int firstSectionY = baseY >> 4;
+        int firstSectionZ = baseZ >> 4;
+        int bits = this.bits(section);
+        long dataOffset = this.dataOffset(section);
+        PalettedContainer.Strategy strategy = region.getStrategy();
+
+        Targets targets = TARGETS.get();
+        // цели 2x2x2 как dy << 2 | dz << 1 | dx, длина -1 у целей вне региона
+        for (int target = 0; target < 8; target++) {
+            targets.lengths[target] = contains(region, firstSectionX + (target & 1), firstSectionY + (target >>> 2), firstSectionZ + (target >>> 1 & 1)) ? 0 : -1;
+        }
+
+        long clipped = 0;
+        int valuesPerLong = bits == 0 ? SECTION_VOLUME : 64 / bits;
+        long mask = (1L << bits) - 1L;
+        int index = 0;
+        for (long offset = dataOffset; index < SECTION_VOLUME; offset += Long.BYTES) {
+            long word = bits == 0 ? 0L : this.buffer.getLong((int) offset);
+            int end = Math.min(SECTION_VOLUME, index + valuesPerLong);
+            for (; index < end; index++, word >>>= bits) {
+                int localId = remap[(int) (word & mask)];
+                if (localId == -1) {
+                    continue;
+                }
+
+                int x = baseX + (index & 15);
+                int y = baseY + (index >>> 8);
+                int z = baseZ + (index >>> 4 & 15);
+                int target = ((y >> 4) - firstSectionY) << 2 | ((z >> 4) - firstSectionZ) << 1 | (x >> 4) - firstSectionX;
+                int length = targets.lengths[target];
+                if (length == -1) {
+                    clipped++;
+                    continue;
+                }
+                targets.indices[target][length] = strategy.getIndex(x & 15, y & 15, z & 15);
+                targets.ids[target][length] = localId;
+                targets.lengths[target] = length + 1;
+            }
+        }
+
+        long written = 0;
+        for (int target = 0; target < 8; target++) {
+            int length = targets.lengths[target];
+            if (length > 0) {
+                int sectionX = firstSectionX + (target & 1);
+                int sectionZ = firstSectionZ + (target >>> 1 & 1);
+                region.getOrCreateColumn(sectionX, sectionZ).getOrCreateSection(firstSectionY + (target >>> 2)).setBatch(targets.indices[target], targets.ids[target], length, local);
+                written += length;
+            }
+        }
+        return clipped << 32 | written;
+    }
+
+    private static boolean contains(Region<?> region, int sectionX, int sectionY, int sectionZ) {
+        int localX = sectionX - (region.getRegionX() << Region.SHIFT);
+        int localZ = sectionZ - (region.getRegionZ() << Region.SHIFT);
+        int index = sectionY - region.getMinSection();
+        return localX >= 0 && localX < Region.SIZE && localZ >= 0 && localZ < Region.SIZE && index >= 0 && index < region.getSectionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "StructureFile{" + this.sizeX + "x" + this.sizeY + "x" + this.sizeZ + ", sections=" + this.sectionCount + ", palette=" + this.palette.size() + "}";
+    }
+
+    /**
+     * Per-thread buffers for the eight target sections of one template section.
+     */
+    private static final class Targets {
+        final int[][] indices = new int[8][SECTION_VOLUME];
+        final int[][] ids = new int[8][SECTION_VOLUME];
+        final int[] lengths = new int[8];
+    }
+
+    /**
+     * Collects template sections and writes them as one file. Sections come from {@link PalettedContainerRO#pack}
+     * or any other {@link PalettedContainerRO.PackedData}; their packed words are copied as they are.
+     */
+    public static final class Writer<T> {
+        private final IdMap<T> idMap;
+        private final PalettedContainer.Strategy strategy;
+        @Nullable
+        private final T voidValue;
+        private final IntArrayList palette = new IntArrayList();
+        private final Int2IntOpenHashMap paletteIndices = new Int2IntOpenHashMap();
+        private final IntArrayList sectionPalettes = new IntArrayList();
+        private final IntArrayList index = new IntArrayList();
+        private final IntOpenHashSet positions = new IntOpenHashSet();
+        private final List<long[]> data = new ArrayList<>();
+        private int sizeX;
+        private int sizeY;
+        private int sizeZ;
+
+        private Writer(IdMap<T> idMap, PalettedContainer.Strategy strategy, @Nullable T voidValue) {
+            if (strategy.size() != SECTION_VOLUME) {
+                throw new IllegalArgumentException("Structure files store 16x16x16 sections, the strategy has " + strategy.size() + " values");
+            }
+            this.idMap = idMap;
+            this.strategy = strategy;
+            this.voidValue = voidValue;
+            this.paletteIndices.defaultReturnValue(-1);
+        }
+
+        /**
+         * Adds the template section at section coordinates {@code [sectionX, sectionY, sectionZ]} relative to
+         * the template origin, once per position.
+         */
+        public Writer<T> add(int sectionX, int sectionY, int sectionZ, PalettedContainerRO.PackedData<T> packed) {
+            if (sectionX < 0 || sectionY < 0 || sectionZ < 0 || sectionX >= MAX_SECTIONS || sectionY >= MAX_SECTIONS || sectionZ >= MAX_SECTIONS) {
+                throw new IndexOutOfBoundsException("Template section [" + sectionX + ", " + sectionY + ", " + sectionZ + "] is outside of [0, " + MAX_SECTIONS + ")");
+            }
+
+            int position = (sectionY << 6 | sectionZ) << 6 | sectionX;
+            if (!this.positions.add(position)) {
+                throw new IllegalArgumentException("Template section [" + sectionX + ", " + sectionY + ", " + sectionZ + "] was already added");
+            }
+
+            List<T> entries = packed.paletteEntries();
+            int bits = this.strategy.calculateBitsForSerialization(this.idMap, entries.size());
+            long[] words = packed.packedStorage();
+            if (entries.isEmpty() || (bits == 0) != (words == null) || words != null && words.length != words(bits)) {
+                throw new IllegalArgumentException("Packed section does not match " + entries.size() + " entries at " + bits + " bits");
+            }
+
+            this.index.add(position);
+            this.index.add(this.sectionPalettes.size());
+            this.index.add(entries.size());
+            this.index.add(bits);
+            for (T entry : entries) {
+                this.sectionPalettes.add(entry == this.voidValue ? -1 : this.paletteIndex(entry));
+            }
+            this.data.add(words);
+
+            this.sizeX = Math.max(this.sizeX, (sectionX + 1) * SECTION_SIZE);
+            this.sizeY = Math.max(this.sizeY, (sectionY + 1) * SECTION_SIZE);
+            this.sizeZ = Math.max(this.sizeZ, (sectionZ + 1) * SECTION_SIZE);
+            return this;
+        }
+
+        private int paletteIndex(T entry) {
+            int id = this.idMap.getId(entry);
+            if (id == -1) {
+                throw new IllegalArgumentException("Value " + entry + " is not registered");
+            }
+            int paletteIndex = this.paletteIndices.get(id);
+            if (paletteIndex == -1) {
+                paletteIndex = this.palette.size();
+                this.paletteIndices.put(id, paletteIndex);
+                this.palette.add(id);
+            }
+            return paletteIndex;
+        }
+
+        public void write(Path path) throws IOException {
+            int sections = this.data.size();
+            int indexOffset = align(HEADER_BYTES + (this.palette.size() + this.sectionPalettes.size()) * Integer.BYTES);
+            long dataOffset = indexOffset + (long) sections * INDEX_ENTRY_BYTES;
+            long size = dataOffset;
+            for (long[] words : this.data) {
+                size += words == null ? 0 : (long) words.length * Long.BYTES;
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Structure file would exceed 2 GiB: " + size + " bytes");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(this.sizeX).putInt(this.sizeY).putInt(this.sizeZ)
+                    .putInt(this.palette.size()).putInt(sections).putInt(this.sectionPalettes.size());
+            for (int n = 0; n < this.palette.size(); n++) {
+                buffer.putInt(this.palette.getInt(n));
+            }
+            for (int n = 0; n < this.sectionPalettes.size(); n++) {
+                buffer.putInt(this.sectionPalettes.getInt(n));
+            }
+
+            buffer.position(indexOffset);
+            for (int section = 0; section < sections; section++) {
+                long[] words = this.data.get(section);
+                for (int n = 0; n < 4; n++) {
+                    buffer.putInt(this.index.getInt(section * 4 + n));
+                }
+                buffer.putLong(words == null ? 0L : dataOffset);
+                dataOffset += words == null ? 0 : (long) words.length * Long.BYTES;
+            }
+            for (long[] words : this.data) {
+                if (words != null) {
+                    buffer.asLongBuffer().put(words);
+                    buffer.position(buffer.position() + words.length * Long.BYTES);
+                }
+            }
+
+            buffer.flip();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "StructureFile.Writer{sections=" + this.data.size() + ", palette=" + this.palette.size() + "}";
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package dev.sixik.mcsr.rework.structure;
+
+import dev.sixik.mcsr.debug_structs.Position;
+import dev.sixik.mcsr.rework.chunk.Region;
+import dev.sixik.mcsr.rework.chunk.SectionTasks;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Places {@link StructureTemplate}s into a {@link Region}. A placement first partitions the template's blocks
+ * by target section, then writes every section's share as one task on the region's pool through
+ * {@link PalettedContainer#setBatch(int[], int[], int, List)}: each section sees a single batch whose palette
+ * holds only the values that land in it, so the template palette is translated once per section instead of
+ * once per block, and a section resizes at most once per placement.
+ * <p>
+ * Blocks outside of the region (horizontally or above and below its columns) are clipped and counted in
+ * {@link Placement#clipped()}.
+ */
+public final class StructurePlacer<T> {
+    private final Region<T> region;
+    private final PalettedContainer.Strategy strategy;
+
+    public StructurePlacer(Region<T> region) {
+        this.region = region;
+        this.strategy = region.getStrategy();
+    }
+
+    public Region<T> getRegion() {
+        return this.region;
+    }
+
+    /**
+     * Writes every block of {@code template} with its origin at world coordinates
+     * {@code [originX, originY, originZ]}. Later blocks of the template win on repeated positions.
+     */
+    public Placement place(StructureTemplate<T> template, int originX, int originY, int originZ) {
+        long start = System.nanoTime();
+
+        int blocks = template.blockCount();
+        int baseChunkX = this.region.getRegionX() << Region.SHIFT;
+        int baseChunkZ = this.region.getRegionZ() << Region.SHIFT;
+        int minSection = this.region.getMinSection();
+        int sectionCount = this.region.getSectionCount();
+
+        // 1: секция каждого блока, -1 для отсечённых
+        int[] bucketOf = new int[blocks];
+        Int2IntOpenHashMap buckets = new Int2IntOpenHashMap();
+        buckets.defaultReturnValue(-1);
+        IntArrayList sectionKeys = new IntArrayList();
+        IntArrayList sizes = new IntArrayList();
+        int clipped = 0;
+        int lastKey = -1;
+        int lastBucket = -1;
+        for (int b = 0; b < blocks; b++) {
+            int x = originX + template.x(b);
+            int y = originY + template.y(b);
+            int z = originZ + template.z(b);
+            int chunkX = Position.toSectionCoord(x) - baseChunkX;
+            int chunkZ = Position.toSectionCoord(z) - baseChunkZ;
+            int sectionIndex = Position.toSectionCoord(y) - minSection;
+            if (chunkX < 0 || chunkX >= Region.SIZE || chunkZ < 0 || chunkZ >= Region.SIZE || sectionIndex < 0 || sectionIndex >= sectionCount) {
+                bucketOf[b] = -1;
+                clipped++;
+                continue;
+            }
+
+            int key = (chunkZ << Region.SHIFT | chunkX) * sectionCount + sectionIndex;
+            if (key != lastKey) {
+                int bucket = buckets.putIfAbsent(key, sectionKeys.size());
+                if (bucket == -1) {
+                    bucket = sectionKeys.size();
+                    sectionKeys.add(key);
+                    sizes.add(0);
+                }
+                lastKey = key;
+                lastBucket = bucket;
+            }
+            bucketOf[b] = lastBucket;
+            sizes.set(lastBucket, sizes.getInt(lastBucket) + 1);
+        }
+
+        // 2: устойчивая раскладка по секциям, порядок шаблона внутри секции сохраняется
+        int sections = sectionKeys.size();
+        int[][] indices = new int[sections][];
+        int[][] ids = new int[sections][];
+        for (int s = 0; s < sections; s++) {
+            indices[s] = new int[sizes.getInt(s)];
+            ids[s] = new int[sizes.getInt(s)];
+        }
+        int[] fill = new int[sections];
+        for (int b = 0; b < blocks; b++) {
+            int bucket = bucketOf[b];
+            if (bucket != -1) {
+                int n = fill[bucket]++;
+                indices[bucket][n] = this.strategy.getIndex(originX + template.x(b) & 15, originY + template.y(b) & 15, originZ + template.z(b) & 15);
+                ids[bucket][n] = template.id(b);
+            }
+        }
+        long partitioned = System.nanoTime();
+
+        // 3: по задаче на секцию
+        int[] keys = sectionKeys.toIntArray();
+        List<T> palette = template.getPalette();
+        SectionTasks.run(this.region.getPool(), sections, s -> {
+            int columnIndex = keys[s] / sectionCount;
+            int sectionY = keys[s] % sectionCount + minSection;
+            this.writeSection(baseChunkX + (columnIndex & Region.SIZE - 1), baseChunkZ + (columnIndex >>> Region.SHIFT), sectionY, indices[s], ids[s], palette);
+        });
+        long written = System.nanoTime();
+
+        return new Placement(blocks - clipped, clipped, sections, partitioned - start, written - partitioned);
+    }
+
+    private void writeSection(int chunkX, int chunkZ, int sectionY, int[] indices, int[] ids, List<T> palette) {
+        // палитра только из значений этой секции, иначе reserve() занесёт в секцию всю палитру шаблона
+        int[] remap = new int[palette.size()];
+        Arrays.fill(remap, -1);
+        List<T> local = new ArrayList<>();
+        for (int n = 0; n < ids.length; n++) {
+            int id = ids[n];
+            int localId = remap[id];
+            if (localId == -1) {
+                localId = remap[id] = local.size();
+                local.add(palette.get(id));
+            }
+            ids[n] = localId;
+        }
+
+        this.region.getOrCreateColumn(chunkX, chunkZ).getOrCreateSection(sectionY).setBatch(indices, ids, ids.length, local);
+    }
+
+    /**
+     * Outcome of one {@link #place}: blocks written and clipped, sections touched, and the time spent
+     * partitioning the template on the calling thread and writing the sections on the pool.
+     */
+    public record Placement(int blocks, int clipped, int sections, long partitionNanos, long writeNanos) {
+        public long totalNanos() {
+            return this.partitionNanos + this.writeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Placement{blocks=%d, clipped=%d, sections=%d, partition=%.3f ms, write=%.3f ms}",
+                    this.blocks, this.clipped, this.sections, this.partitionNanos / 1e6, this.writeNanos / 1e6);
+        }
+    }
+}
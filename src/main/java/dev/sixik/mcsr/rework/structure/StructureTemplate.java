@@ -0,0 +1,156 @@
+package dev.sixik.mcsr.rework.structure;
+
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Blocks of a structure relative to its origin, palette-encoded: one entry per distinct value and, per
+ * block, a packed position and an id into that palette. Blocks the template does not contain (air around a
+ * building, structure voids) are simply not listed and leave the world untouched. Immutable.
+ */
+public final class StructureTemplate<T> {
+    /**
+     * Side limit of a template; each coordinate is packed into {@value #COORD_BITS} bits.
+     */
+    public static final int MAX_SIZE = 1024;
+    static final int COORD_BITS = 10;
+    private static final int COORD_MASK = MAX_SIZE - 1;
+
+    private final List<T> palette;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    // y << 20 | z << 10 | x, в порядке добавления
+    private final int[] positions;
+    private final int[] ids;
+
+    StructureTemplate(List<T> palette, int sizeX, int sizeY, int sizeZ, int[] positions, int[] ids) {
+        this.palette = List.copyOf(palette);
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.positions = positions;
+        this.ids = ids;
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    static int pack(int x, int y, int z) {
+        return (y << COORD_BITS | z) << COORD_BITS | x;
+    }
+
+    public List<T> getPalette() {
+        return this.palette;
+    }
+
+    public int getSizeX() {
+        return this.sizeX;
+    }
+
+    public int getSizeY() {
+        return this.sizeY;
+    }
+
+    public int getSizeZ() {
+        return this.sizeZ;
+    }
+
+    public int blockCount() {
+        return this.ids.length;
+    }
+
+    public int x(int block) {
+        return this.positions[block] & COORD_MASK;
+    }
+
+    public int y(int block) {
+        return this.positions[block] >>> 2 * COORD_BITS;
+    }
+
+    public int z(int block) {
+        return this.positions[block] >>> COORD_BITS & COORD_MASK;
+    }
+
+    /**
+     * Palette id of {@code block}.
+     */
+    public int id(int block) {
+        return this.ids[block];
+    }
+
+    public T value(int block) {
+        return this.palette.get(this.ids[block]);
+    }
+
+    @Override
+    public String toString() {
+        return "StructureTemplate{" + this.sizeX + "x" + this.sizeY + "x" + this.sizeZ + ", blocks=" + this.ids.length + ", palette=" + this.palette.size() + "}";
+    }
+
+    /**
+     * Collects blocks in any order. A position added twice keeps the later value when placed.
+     */
+    public static final class Builder<T> {
+        private final List<T> palette = new ArrayList<>();
+        private final Reference2IntOpenHashMap<T> paletteIds = new Reference2IntOpenHashMap<>();
+        private int[] positions = new int[64];
+        private int[] ids = new int[64];
+        private int size;
+        private int sizeX;
+        private int sizeY;
+        private int sizeZ;
+
+        private Builder() {
+            this.paletteIds.defaultReturnValue(-1);
+        }
+
+        public Builder<T> add(int x, int y, int z, T value) {
+            if (x < 0 || y < 0 || z < 0 || x >= MAX_SIZE || y >= MAX_SIZE || z >= MAX_SIZE) {
+                throw new IndexOutOfBoundsException("Template position [" + x + ", " + y + ", " + z + "] is outside of [0, " + MAX_SIZE + ")");
+            }
+
+            int id = this.paletteIds.getInt(value);
+            if (id == -1) {
+                id = this.palette.size();
+                this.paletteIds.put(value, id);
+                this.palette.add(value);
+            }
+
+            if (this.size == this.ids.length) {
+                this.positions = Arrays.copyOf(this.positions, this.size * 2);
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            this.positions[this.size] = pack(x, y, z);
+            this.ids[this.size] = id;
+            this.size++;
+
+            this.sizeX = Math.max(this.sizeX, x + 1);
+            this.sizeY = Math.max(this.sizeY, y + 1);
+            this.sizeZ = Math.max(this.sizeZ, z + 1);
+            return this;
+        }
+
+        /**
+         * Adds every position of the box {@code [minX..maxX] x [minY..maxY] x [minZ..maxZ]}, bounds inclusive.
+         */
+        public Builder<T> fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, T value) {
+            for (int y = minY; y <= maxY; y++) {
+                for (int z = minZ; z <= maxZ; z++) {
+                    for (int x = minX; x <= maxX; x++) {
+                        this.add(x, y, z, value);
+                    }
+                }
+            }
+            return this;
+        }
+
+        public StructureTemplate<T> build() {
+            return new StructureTemplate<>(this.palette, this.sizeX, this.sizeY, this.sizeZ, Arrays.copyOf(this.positions, this.size), Arrays.copyOf(this.ids, this.size));
+        }
+    }
+}
@@ -9,6 +9,8 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
@@ -18,6 +20,7 @@ import java.nio.charset.Charset;
 import java.util.BitSet;
 
 public class FriendlyByteBuf extends ByteBuf {
+    private static final VarHandle BIG_ENDIAN_LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
 
     private final ByteBuf source;
 
@@ -36,9 +39,61 @@ public class FriendlyByteBuf extends ByteBuf {
 
     public FriendlyByteBuf writeLongArray(long[] ls) {
         this.writeVarInt(ls.length);
+        this.writeLongs(ls, 0, ls.length);
+        return this;
+    }
 
-        for (long l : ls) {
-            this.writeLong(l);
+    /**
+     * Writes {@code ls[from..from + length)} as big-endian longs, the same bytes as that many {@link #writeLong}
+     * calls but in one bulk copy: heap buffers are written through a big-endian view of their backing array,
+     * direct buffers through a {@link java.nio.LongBuffer} view. Only composite buffers go long by long.
+     */
+    public FriendlyByteBuf writeLongs(long[] ls, int from, int length) {
+        int bytes = length * 8;
+        this.source.ensureWritable(bytes);
+        int index = this.source.writerIndex();
+
+        if (this.source.hasArray()) {
+            byte[] array = this.source.array();
+            int offset = this.source.arrayOffset() + index;
+            for (int k = 0; k < length; k++) {
+                BIG_ENDIAN_LONGS.set(array, offset + k * 8, ls[from + k]);
+            }
+        } else if (this.source.nioBufferCount() == 1) {
+            this.source.nioBuffer(index, bytes).order(ByteOrder.BIG_ENDIAN).asLongBuffer().put(ls, from, length);
+        } else {
+            for (int k = 0; k < length; k++) {
+                this.source.setLong(index + k * 8, ls[from + k]);
+            }
+        }
+
+        this.source.writerIndex(index + bytes);
+        return this;
+    }
+
+    /**
+     * Reads {@code length} big-endian longs into {@code ls[from..from + length)}, the bulk counterpart of
+     * {@link #writeLongs}.
+     *
+     * @throws IndexOutOfBoundsException if fewer than {@code length * 8} bytes are readable
+     */
+    public FriendlyByteBuf readLongs(long[] ls, int from, int length) {
+        int bytes = length * 8;
+        int index = this.source.readerIndex();
+        this.source.skipBytes(bytes);
+
+        if (this.source.hasArray()) {
+            byte[] array = this.source.array();
+            int offset = this.source.arrayOffset() + index;
+            for (int k = 0; k < length; k++) {
+                ls[from + k] = (long) BIG_ENDIAN_LONGS.get(array, offset + k * 8);
+            }
+        } else if (this.source.nioBufferCount() == 1) {
+            this.source.nioBuffer(index, bytes).order(ByteOrder.BIG_ENDIAN).asLongBuffer().get(ls, from, length);
+        } else {
+            for (int k = 0; k < length; k++) {
+                ls[from + k] = this.source.getLong(index + k * 8);
+            }
         }
 
         return this;
@@ -96,867 +151,867 @@ public class FriendlyByteBuf extends ByteBuf {
 
     @Override
     public int readerIndex() {
-        return 0;
+        return source.readerIndex();
     }
 
     @Override
     public ByteBuf readerIndex(int i) {
-        return null;
+        return source.readerIndex(i);
     }
 
     @Override
     public int writerIndex() {
-        return 0;
+        return source.writerIndex();
     }
 
     @Override
     public ByteBuf writerIndex(int i) {
-        return null;
+        return source.writerIndex(i);
     }
 
     @Override
     public ByteBuf setIndex(int i, int i1) {
-        return null;
+        return source.setIndex(i, i1);
     }
 
     @Override
     public int readableBytes() {
-        return 0;
+        return source.readableBytes();
     }
 
     @Override
     public int writableBytes() {
-        return 0;
+        return source.writableBytes();
     }
 
     @Override
     public int maxWritableBytes() {
-        return 0;
+        return source.maxWritableBytes();
     }
 
     @Override
     public boolean isReadable() {
-        return false;
+        return source.isReadable();
     }
 
     @Override
     public boolean isReadable(int i) {
-        return false;
+        return source.isReadable(i);
     }
 
     @Override
     public boolean isWritable() {
-        return false;
+        return source.isWritable();
     }
 
     @Override
     public boolean isWritable(int i) {
-        return false;
+        return source.isWritable(i);
     }
 
     @Override
     public ByteBuf clear() {
-        return null;
+        return source.clear();
     }
 
     @Override
     public ByteBuf markReaderIndex() {
-        return null;
+        return source.markReaderIndex();
     }
 
     @Override
     public ByteBuf resetReaderIndex() {
-        return null;
+        return source.resetReaderIndex();
     }
 
     @Override
     public ByteBuf markWriterIndex() {
-        return null;
+        return source.markWriterIndex();
     }
 
     @Override
     public ByteBuf resetWriterIndex() {
-        return null;
+        return source.resetWriterIndex();
     }
 
     @Override
     public ByteBuf discardReadBytes() {
-        return null;
+        return source.discardReadBytes();
     }
 
     @Override
     public ByteBuf discardSomeReadBytes() {
-        return null;
+        return source.discardSomeReadBytes();
     }
 
     @Override
     public ByteBuf ensureWritable(int i) {
-        return null;
+        return source.ensureWritable(i);
     }
 
     @Override
     public int ensureWritable(int i, boolean b) {
-        return 0;
+        return source.ensureWritable(i, b);
     }
 
     @Override
     public boolean getBoolean(int i) {
-        return false;
+        return source.getBoolean(i);
     }
 
     @Override
     public byte getByte(int i) {
-        return 0;
+        return source.getByte(i);
     }
 
     @Override
     public short getUnsignedByte(int i) {
-        return 0;
+        return source.getUnsignedByte(i);
     }
 
     @Override
     public short getShort(int i) {
-        return 0;
+        return source.getShort(i);
     }
 
     @Override
     public short getShortLE(int i) {
-        return 0;
+        return source.getShortLE(i);
     }
 
     @Override
     public int getUnsignedShort(int i) {
-        return 0;
+        return source.getUnsignedShort(i);
     }
 
     @Override
     public int getUnsignedShortLE(int i) {
-        return 0;
+        return source.getUnsignedShortLE(i);
     }
 
     @Override
     public int getMedium(int i) {
-        return 0;
+        return source.getMedium(i);
     }
 
     @Override
     public int getMediumLE(int i) {
-        return 0;
+        return source.getMediumLE(i);
     }
 
     @Override
     public int getUnsignedMedium(int i) {
-        return 0;
+        return source.getUnsignedMedium(i);
     }
 
     @Override
     public int getUnsignedMediumLE(int i) {
-        return 0;
+        return source.getUnsignedMediumLE(i);
     }
 
     @Override
     public int getInt(int i) {
-        return 0;
+        return source.getInt(i);
     }
 
     @Override
     public int getIntLE(int i) {
-        return 0;
+        return source.getIntLE(i);
     }
 
     @Override
     public long getUnsignedInt(int i) {
-        return 0;
+        return source.getUnsignedInt(i);
     }
 
     @Override
     public long getUnsignedIntLE(int i) {
-        return 0;
+        return source.getUnsignedIntLE(i);
     }
 
     @Override
     public long getLong(int i) {
-        return 0;
+        return source.getLong(i);
     }
 
     @Override
     public long getLongLE(int i) {
-        return 0;
+        return source.getLongLE(i);
     }
 
     @Override
     public char getChar(int i) {
-        return 0;
+        return source.getChar(i);
     }
 
     @Override
     public float getFloat(int i) {
-        return 0;
+        return source.getFloat(i);
     }
 
     @Override
     public double getDouble(int i) {
-        return 0;
+        return source.getDouble(i);
     }
 
     @Override
     public ByteBuf getBytes(int i, ByteBuf byteBuf) {
-        return null;
+        return source.getBytes(i, byteBuf);
     }
 
     @Override
     public ByteBuf getBytes(int i, ByteBuf byteBuf, int i1) {
-        return null;
+        return source.getBytes(i, byteBuf, i1);
     }
 
     @Override
     public ByteBuf getBytes(int i, ByteBuf byteBuf, int i1, int i2) {
-        return null;
+        return source.getBytes(i, byteBuf, i1, i2);
     }
 
     @Override
     public ByteBuf getBytes(int i, byte[] bytes) {
-        return null;
+        return source.getBytes(i, bytes);
     }
 
     @Override
     public ByteBuf getBytes(int i, byte[] bytes, int i1, int i2) {
-        return null;
+        return source.getBytes(i, bytes, i1, i2);
     }
 
     @Override
     public ByteBuf getBytes(int i, ByteBuffer byteBuffer) {
-        return null;
+        return source.getBytes(i, byteBuffer);
     }
 
     @Override
     public ByteBuf getBytes(int i, OutputStream outputStream, int i1) throws IOException {
-        return null;
+        return source.getBytes(i, outputStream, i1);
     }
 
     @Override
     public int getBytes(int i, GatheringByteChannel gatheringByteChannel, int i1) throws IOException {
-        return 0;
+        return source.getBytes(i, gatheringByteChannel, i1);
     }
 
     @Override
     public int getBytes(int i, FileChannel fileChannel, long l, int i1) throws IOException {
-        return 0;
+        return source.getBytes(i, fileChannel, l, i1);
     }
 
     @Override
     public CharSequence getCharSequence(int i, int i1, Charset charset) {
-        return null;
+        return source.getCharSequence(i, i1, charset);
     }
 
     @Override
     public ByteBuf setBoolean(int i, boolean b) {
-        return null;
+        return source.setBoolean(i, b);
     }
 
     @Override
     public ByteBuf setByte(int i, int i1) {
-        return null;
+        return source.setByte(i, i1);
     }
 
     @Override
     public ByteBuf setShort(int i, int i1) {
-        return null;
+        return source.setShort(i, i1);
     }
 
     @Override
     public ByteBuf setShortLE(int i, int i1) {
-        return null;
+        return source.setShortLE(i, i1);
     }
 
     @Override
     public ByteBuf setMedium(int i, int i1) {
-        return null;
+        return source.setMedium(i, i1);
     }
 
     @Override
     public ByteBuf setMediumLE(int i, int i1) {
-        return null;
+        return source.setMediumLE(i, i1);
     }
 
     @Override
     public ByteBuf setInt(int i, int i1) {
-        return null;
+        return source.setInt(i, i1);
     }
 
     @Override
     public ByteBuf setIntLE(int i, int i1) {
-        return null;
+        return source.setIntLE(i, i1);
     }
 
     @Override
     public ByteBuf setLong(int i, long l) {
-        return null;
+        return source.setLong(i, l);
     }
 
     @Override
     public ByteBuf setLongLE(int i, long l) {
-        return null;
+        return source.setLongLE(i, l);
     }
 
     @Override
     public ByteBuf setChar(int i, int i1) {
-        return null;
+        return source.setChar(i, i1);
     }
 
     @Override
     public ByteBuf setFloat(int i, float v) {
-        return null;
+        return source.setFloat(i, v);
     }
 
     @Override
     public ByteBuf setDouble(int i, double v) {
-        return null;
+        return source.setDouble(i, v);
     }
 
     @Override
     public ByteBuf setBytes(int i, ByteBuf byteBuf) {
-        return null;
+        return source.setBytes(i, byteBuf);
     }
 
     @Override
     public ByteBuf setBytes(int i, ByteBuf byteBuf, int i1) {
-        return null;
+        return source.setBytes(i, byteBuf, i1);
     }
 
     @Override
     public ByteBuf setBytes(int i, ByteBuf byteBuf, int i1, int i2) {
-        return null;
+        return source.setBytes(i, byteBuf, i1, i2);
     }
 
     @Override
     public ByteBuf setBytes(int i, byte[] bytes) {
-        return null;
+        return source.setBytes(i, bytes);
     }
 
     @Override
     public ByteBuf setBytes(int i, byte[] bytes, int i1, int i2) {
-        return null;
+        return source.setBytes(i, bytes, i1, i2);
     }
 
     @Override
     public ByteBuf setBytes(int i, ByteBuffer byteBuffer) {
-        return null;
+        return source.setBytes(i, byteBuffer);
     }
 
     @Override
     public int setBytes(int i, InputStream inputStream, int i1) throws IOException {
-        return 0;
+        return source.setBytes(i, inputStream, i1);
     }
 
     @Override
     public int setBytes(int i, ScatteringByteChannel scatteringByteChannel, int i1) throws IOException {
-        return 0;
+        return source.setBytes(i, scatteringByteChannel, i1);
     }
 
     @Override
     public int setBytes(int i, FileChannel fileChannel, long l, int i1) throws IOException {
-        return 0;
+        return source.setBytes(i, fileChannel, l, i1);
     }
 
     @Override
     public ByteBuf setZero(int i, int i1) {
-        return null;
+        return source.setZero(i, i1);
     }
 
     @Override
     public int setCharSequence(int i, CharSequence charSequence, Charset charset) {
-        return 0;
+        return source.setCharSequence(i, charSequence, charset);
     }
 
     @Override
     public boolean readBoolean() {
-        return false;
+        return source.readBoolean();
     }
 
     @Override
     public byte readByte() {
-        return 0;
+        return source.readByte();
     }
 
     @Override
     public short readUnsignedByte() {
-        return 0;
+        return source.readUnsignedByte();
     }
 
     @Override
     public short readShort() {
-        return 0;
+        return source.readShort();
     }
 
     @Override
     public short readShortLE() {
-        return 0;
+        return source.readShortLE();
     }
 
     @Override
     public int readUnsignedShort() {
-        return 0;
+        return source.readUnsignedShort();
     }
 
     @Override
     public int readUnsignedShortLE() {
-        return 0;
+        return source.readUnsignedShortLE();
     }
 
     @Override
     public int readMedium() {
-        return 0;
+        return source.readMedium();
     }
 
     @Override
     public int readMediumLE() {
-        return 0;
+        return source.readMediumLE();
     }
 
     @Override
     public int readUnsignedMedium() {
-        return 0;
+        return source.readUnsignedMedium();
     }
 
     @Override
     public int readUnsignedMediumLE() {
-        return 0;
+        return source.readUnsignedMediumLE();
     }
 
     @Override
     public int readInt() {
-        return 0;
+        return source.readInt();
     }
 
     @Override
     public int readIntLE() {
-        return 0;
+        return source.readIntLE();
     }
 
     @Override
     public long readUnsignedInt() {
-        return 0;
+        return source.readUnsignedInt();
     }
 
     @Override
     public long readUnsignedIntLE() {
-        return 0;
+        return source.readUnsignedIntLE();
     }
 
     @Override
     public long readLong() {
-        return 0;
+        return source.readLong();
     }
 
     @Override
     public long readLongLE() {
-        return 0;
+        return source.readLongLE();
     }
 
     @Override
     public char readChar() {
-        return 0;
+        return source.readChar();
     }
 
     @Override
     public float readFloat() {
-        return 0;
+        return source.readFloat();
     }
 
     @Override
     public double readDouble() {
-        return 0;
+        return source.readDouble();
     }
 
     @Override
     public ByteBuf readBytes(int i) {
-        return null;
+        return source.readBytes(i);
     }
 
     @Override
     public ByteBuf readSlice(int i) {
-        return null;
+        return source.readSlice(i);
     }
 
     @Override
     public ByteBuf readRetainedSlice(int i) {
-        return null;
+        return source.readRetainedSlice(i);
     }
 
     @Override
     public ByteBuf readBytes(ByteBuf byteBuf) {
-        return null;
+        return source.readBytes(byteBuf);
     }
 
     @Override
     public ByteBuf readBytes(ByteBuf byteBuf, int i) {
-        return null;
+        return source.readBytes(byteBuf, i);
     }
 
     @Override
     public ByteBuf readBytes(ByteBuf byteBuf, int i, int i1) {
-        return null;
+        return source.readBytes(byteBuf, i, i1);
     }
 
     @Override
     public ByteBuf readBytes(byte[] bytes) {
-        return null;
+        return source.readBytes(bytes);
     }
 
     @Override
     public ByteBuf readBytes(byte[] bytes, int i, int i1) {
-        return null;
+        return source.readBytes(bytes, i, i1);
     }
 
     @Override
     public ByteBuf readBytes(ByteBuffer byteBuffer) {
-        return null;
+        return source.readBytes(byteBuffer);
     }
 
     @Override
     public ByteBuf readBytes(OutputStream outputStream, int i) throws IOException {
-        return null;
+        return source.readBytes(outputStream, i);
     }
 
     @Override
     public int readBytes(GatheringByteChannel gatheringByteChannel, int i) throws IOException {
-        return 0;
+        return source.readBytes(gatheringByteChannel, i);
     }
 
     @Override
     public CharSequence readCharSequence(int i, Charset charset) {
-        return null;
+        return source.readCharSequence(i, charset);
     }
 
     @Override
     public int readBytes(FileChannel fileChannel, long l, int i) throws IOException {
-        return 0;
+        return source.readBytes(fileChannel, l, i);
     }
 
     @Override
     public ByteBuf skipBytes(int i) {
-        return null;
+        return source.skipBytes(i);
     }
 
     @Override
     public ByteBuf writeBoolean(boolean b) {
-        return null;
+        return source.writeBoolean(b);
     }
 
     @Override
     public ByteBuf writeByte(int i) {
-        return null;
+        return source.writeByte(i);
     }
 
     @Override
     public ByteBuf writeShort(int i) {
-        return null;
+        return source.writeShort(i);
     }
 
     @Override
     public ByteBuf writeShortLE(int i) {
-        return null;
+        return source.writeShortLE(i);
     }
 
     @Override
     public ByteBuf writeMedium(int i) {
-        return null;
+        return source.writeMedium(i);
     }
 
     @Override
     public ByteBuf writeMediumLE(int i) {
-        return null;
+        return source.writeMediumLE(i);
     }
 
     @Override
     public ByteBuf writeInt(int i) {
-        return null;
+        return source.writeInt(i);
     }
 
     @Override
     public ByteBuf writeIntLE(int i) {
-        return null;
+        return source.writeIntLE(i);
     }
 
     @Override
     public ByteBuf writeLong(long l) {
-        return null;
+        return source.writeLong(l);
     }
 
     @Override
     public ByteBuf writeLongLE(long l) {
-        return null;
+        return source.writeLongLE(l);
     }
 
     @Override
     public ByteBuf writeChar(int i) {
-        return null;
+        return source.writeChar(i);
     }
 
     @Override
     public ByteBuf writeFloat(float v) {
-        return null;
+        return source.writeFloat(v);
     }
 
     @Override
     public ByteBuf writeDouble(double v) {
-        return null;
+        return source.writeDouble(v);
     }
 
     @Override
     public ByteBuf writeBytes(ByteBuf byteBuf) {
-        return null;
+        return source.writeBytes(byteBuf);
     }
 
     @Override
     public ByteBuf writeBytes(ByteBuf byteBuf, int i) {
-        return null;
+        return source.writeBytes(byteBuf, i);
     }
 
     @Override
     public ByteBuf writeBytes(ByteBuf byteBuf, int i, int i1) {
-        return null;
+        return source.writeBytes(byteBuf, i, i1);
     }
 
     @Override
     public ByteBuf writeBytes(byte[] bytes) {
-        return null;
+        return source.writeBytes(bytes);
     }
 
     @Override
     public ByteBuf writeBytes(byte[] bytes, int i, int i1) {
-        return null;
+        return source.writeBytes(bytes, i, i1);
     }
 
     @Override
     public ByteBuf writeBytes(ByteBuffer byteBuffer) {
-        return null;
+        return source.writeBytes(byteBuffer);
     }
 
     @Override
     public int writeBytes(InputStream inputStream, int i) throws IOException {
-        return 0;
+        return source.writeBytes(inputStream, i);
     }
 
     @Override
     public int writeBytes(ScatteringByteChannel scatteringByteChannel, int i) throws IOException {
-        return 0;
+        return source.writeBytes(scatteringByteChannel, i);
     }
 
     @Override
     public int writeBytes(FileChannel fileChannel, long l, int i) throws IOException {
-        return 0;
+        return source.writeBytes(fileChannel, l, i);
     }
 
     @Override
     public ByteBuf writeZero(int i) {
-        return null;
+        return source.writeZero(i);
     }
 
     @Override
     public int writeCharSequence(CharSequence charSequence, Charset charset) {
-        return 0;
+        return source.writeCharSequence(charSequence, charset);
     }
 
     @Override
     public int indexOf(int i, int i1, byte b) {
-        return 0;
+        return source.indexOf(i, i1, b);
     }
 
     @Override
     public int bytesBefore(byte b) {
-        return 0;
+        return source.bytesBefore(b);
     }
 
     @Override
     public int bytesBefore(int i, byte b) {
-        return 0;
+        return source.bytesBefore(i, b);
     }
 
     @Override
     public int bytesBefore(int i, int i1, byte b) {
-        return 0;
+        return source.bytesBefore(i, i1, b);
     }
 
     @Override
     public int forEachByte(ByteProcessor byteProcessor) {
-        return 0;
+        return source.forEachByte(byteProcessor);
     }
 
     @Override
     public int forEachByte(int i, int i1, ByteProcessor byteProcessor) {
-        return 0;
+        return source.forEachByte(i, i1, byteProcessor);
     }
 
     @Override
     public int forEachByteDesc(ByteProcessor byteProcessor) {
-        return 0;
+        return source.forEachByteDesc(byteProcessor);
     }
 
     @Override
     public int forEachByteDesc(int i, int i1, ByteProcessor byteProcessor) {
-        return 0;
+        return source.forEachByteDesc(i, i1, byteProcessor);
     }
 
     @Override
     public ByteBuf copy() {
-        return null;
+        return source.copy();
     }
 
     @Override
     public ByteBuf copy(int i, int i1) {
-        return null;
+        return source.copy(i, i1);
     }
 
     @Override
     public ByteBuf slice() {
-        return null;
+        return source.slice();
     }
 
     @Override
     public ByteBuf retainedSlice() {
-        return null;
+        return source.retainedSlice();
     }
 
     @Override
     public ByteBuf slice(int i, int i1) {
-        return null;
+        return source.slice(i, i1);
     }
 
     @Override
     public ByteBuf retainedSlice(int i, int i1) {
-        return null;
+        return source.retainedSlice(i, i1);
     }
 
     @Override
     public ByteBuf duplicate() {
-        return null;
+        return source.duplicate();
     }
 
     @Override
     public ByteBuf retainedDuplicate() {
-        return null;
+        return source.retainedDuplicate();
     }
 
     @Override
     public int nioBufferCount() {
-        return 0;
+        return source.nioBufferCount();
     }
 
     @Override
     public ByteBuffer nioBuffer() {
-        return null;
+        return source.nioBuffer();
     }
 
     @Override
     public ByteBuffer nioBuffer(int i, int i1) {
-        return null;
+        return source.nioBuffer(i, i1);
     }
 
     @Override
     public ByteBuffer internalNioBuffer(int i, int i1) {
-        return null;
+        return source.internalNioBuffer(i, i1);
     }
 
     @Override
     public ByteBuffer[] nioBuffers() {
-        return new ByteBuffer[0];
+        return source.nioBuffers();
     }
 
     @Override
     public ByteBuffer[] nioBuffers(int i, int i1) {
-        return new ByteBuffer[0];
+        return source.nioBuffers(i, i1);
     }
 
     @Override
     public boolean hasArray() {
-        return false;
+        return source.hasArray();
     }
 
     @Override
     public byte[] array() {
-        return new byte[0];
+        return source.array();
     }
 
     @Override
     public int arrayOffset() {
-        return 0;
+        return source.arrayOffset();
     }
 
     @Override
     public boolean hasMemoryAddress() {
-        return false;
+        return source.hasMemoryAddress();
     }
 
     @Override
     public long memoryAddress() {
-        return 0;
+        return source.memoryAddress();
     }
 
     @Override
     public String toString(Charset charset) {
-        return "";
+        return source.toString(charset);
     }
 
     @Override
     public String toString(int i, int i1, Charset charset) {
-        return "";
+        return source.toString(i, i1, charset);
     }
 
     @Override
     public int hashCode() {
-        return 0;
+        return source.hashCode();
     }
 
     @Override
     public boolean equals(Object o) {
-        return false;
+        return source.equals(o);
     }
 
     @Override
     public int compareTo(ByteBuf byteBuf) {
-        return 0;
+        return source.compareTo(byteBuf);
     }
 
     @Override
     public String toString() {
-        return "";
+        return source.toString();
     }
 
     @Override
     public ByteBuf retain(int i) {
-        return null;
+        return source.retain(i);
     }
 
     @Override
     public int refCnt() {
-        return 0;
+        return source.refCnt();
     }
 
     @Override
     public ByteBuf retain() {
-        return null;
+        return source.retain();
     }
 
     @Override
     public ByteBuf touch() {
-        return null;
+        return source.touch();
     }
 
     @Override
     public ByteBuf touch(Object o) {
-        return null;
+        return source.touch(o);
     }
 
     @Override
     public boolean release() {
-        return false;
+        return source.release();
     }
 
     @Override
     public boolean release(int i) {
-        return false;
+        return source.release(i);
     }
 
     public long[] readLongArray() {
@@ -977,15 +1032,30 @@ public class FriendlyByteBuf extends ByteBuf {
             ls = new long[j];
         }
 
-        for (int k = 0; k < ls.length; k++) {
-            ls[k] = this.readLong();
-        }
-
+        this.readLongs(ls, 0, ls.length);
         return ls;
     }
 
     public BitSet readBitSet() {
-        return BitSet.valueOf(this.readLongArray());
+        int i = this.readVarInt();
+        if (i > this.readableBytes() / 8) {
+            throw new DecoderException("BitSet with size " + i + " is bigger than allowed " + this.readableBytes() / 8);
+        }
+
+        if (this.source.nioBufferCount() == 1) {
+            // BitSet copies the view itself, no intermediate long[]
+            int index = this.source.readerIndex();
+            this.source.skipBytes(i * 8);
+            return BitSet.valueOf(this.source.nioBuffer(index, i * 8).order(ByteOrder.BIG_ENDIAN).asLongBuffer());
+        }
+
+        long[] ls = new long[i];
+        this.readLongs(ls, 0, i);
+        return BitSet.valueOf(ls);
+    }
+
+    public FriendlyByteBuf writeBitSet(BitSet bitSet) {
+        return this.writeLongArray(bitSet.toLongArray());
     }
 
 }
@@ -178,4 +178,11 @@ public class CrudeIncrementalIntIdentityHashBiMap<K> implements IdMap<K> {
                 (K[])((Object[])this.keys.clone()), (int[])this.values.clone(), (K[])((Object[])this.byId.clone()), this.nextId, this.size
         );
     }
+
+    /**
+     * Heap bytes of the map and its three tables, not of the keys.
+     */
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(this.getClass()) + ObjectSizes.array(this.keys) + ObjectSizes.array(this.values) + ObjectSizes.array(this.byId);
+    }
 }
@@ -0,0 +1,120 @@
+package net.minecraft.util;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * HotSpot object layout arithmetic for the {@code estimateRetainedBytes()} methods: shallow instance sizes from
+ * the declared fields, array sizes from their length. Header and reference sizes follow the running VM's
+ * compressed oops / class pointer flags, falling back to the defaults of a heap below 32 GB.
+ */
+public final class ObjectSizes {
+    public static final int REFERENCE;
+    public static final int OBJECT_HEADER;
+    public static final int ARRAY_HEADER;
+    private static final int ALIGNMENT;
+
+    private static final ClassValue<Long> SHALLOW = new ClassValue<>() {
+        @Override
+        protected Long computeValue(Class<?> type) {
+            long fields = 0L;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        fields += fieldSize(field.getType());
+                    }
+                }
+            }
+            // поля добивают дыру после заголовка, так что достаточно общей суммы
+            return align(OBJECT_HEADER + fields);
+        }
+    };
+
+    static {
+        boolean compressedOops = true;
+        boolean compressedClassPointers = true;
+        int alignment = 8;
+        try {
+            HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            compressedOops = Boolean.parseBoolean(hotSpot.getVMOption("UseCompressedOops").getValue());
+            compressedClassPointers = Boolean.parseBoolean(hotSpot.getVMOption("UseCompressedClassPointers").getValue());
+            alignment = Integer.parseInt(hotSpot.getVMOption("ObjectAlignmentInBytes").getValue());
+        } catch (RuntimeException | LinkageError ignored) {
+            // not HotSpot: keep the defaults
+        }
+
+        REFERENCE = compressedOops ? 4 : 8;
+        OBJECT_HEADER = compressedClassPointers ? 12 : 16;
+        ARRAY_HEADER = OBJECT_HEADER + 4;
+        ALIGNMENT = alignment;
+    }
+
+    private ObjectSizes() {
+    }
+
+    public static long align(long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return REFERENCE;
+        }
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * Bytes of one instance of {@code type} without anything it references.
+     */
+    public static long shallow(Class<?> type) {
+        return SHALLOW.get(type);
+    }
+
+    /**
+     * Bytes of one instance of the class called {@code name}, {@code 0} when it does not exist in this JDK.
+     */
+    public static long shallow(String name) {
+        try {
+            return shallow(Class.forName(name));
+        } catch (ClassNotFoundException e) {
+            return 0L;
+        }
+    }
+
+    public static long array(long[] array) {
+        return primitiveArray(array.length, 8);
+    }
+
+    public static long array(int[] array) {
+        return primitiveArray(array.length, 4);
+    }
+
+    public static long byteArray(int length) {
+        return primitiveArray(length, 1);
+    }
+
+    /**
+     * An array of references, not counting the objects it points to.
+     */
+    public static long array(Object[] array) {
+        return align(ARRAY_HEADER + (long) REFERENCE * array.length);
+    }
+
+    private static long primitiveArray(int length, int elementSize) {
+        // long[] начинается с границы 8 байт, даже если заголовок короче
+        long base = elementSize == 8 ? ARRAY_HEADER + 7 & ~7 : ARRAY_HEADER;
+        return align(base + (long) elementSize * length);
+    }
+}
@@ -23,6 +23,15 @@ public class ThreadingDetector {
         this.name = string;
     }
 
+    /**
+     * Heap bytes of the detector and its two locks; the name is usually a shared constant and not counted.
+     */
+    public long estimateRetainedBytes() {
+        return ObjectSizes.shallow(ThreadingDetector.class)
+                + ObjectSizes.shallow(Semaphore.class) + ObjectSizes.shallow("java.util.concurrent.Semaphore$NonfairSync")
+                + ObjectSizes.shallow(ReentrantLock.class) + ObjectSizes.shallow("java.util.concurrent.locks.ReentrantLock$NonfairSync");
+    }
+
     public void checkAndLock() {
         boolean bl = false;
 
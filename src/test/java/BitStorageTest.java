@@ -0,0 +1,68 @@
+import dev.sixik.mcsr.rework.paletted_container.AtomicSimpleBitStorage;
+import dev.sixik.mcsr.rework.paletted_container.BitStorage;
+import dev.sixik.mcsr.rework.paletted_container.OffHeapArena;
+import dev.sixik.mcsr.rework.paletted_container.OffHeapBitStorage;
+import dev.sixik.mcsr.rework.paletted_container.SimpleBitStorage;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class BitStorageTest {
+
+    @Test
+    public void testBulkPacking() {
+        System.out.println("----Test Bulk Packing Start----");
+
+        Random random = new Random(3);
+        int[] sizes = {4096, 64, 4095, 37, 1};
+        OffHeapArena arena = new OffHeapArena();
+
+        for (int bits = 1; bits <= 32; bits++) {
+            for (int size : sizes) {
+                int[] values = new int[size];
+                for (int i = 0; i < size; i++) {
+                    values[i] = (int) (random.nextLong() & (1L << bits) - 1L);
+                }
+
+                check(new AtomicSimpleBitStorage(bits, size, values), values, bits);
+                check(new SimpleBitStorage(bits, size, values), values, bits);
+                check(new OffHeapBitStorage(arena, bits, size, new AtomicSimpleBitStorage(bits, size, values).getRaw()), values, bits);
+            }
+        }
+
+        System.out.println("----Test Bulk Packing End----");
+    }
+
+    private static void check(BitStorage storage, int[] values, int bits) {
+        int size = values.length;
+        for (int i = 0; i < size; i++) {
+            if (storage.get(i) != values[i]) {
+                throw new RuntimeException("Packing " + bits + " bits x " + size + " broke index " + i);
+            }
+        }
+
+        int[] unpacked = new int[size];
+        storage.unpack(unpacked);
+        for (int i = 0; i < size; i++) {
+            if (unpacked[i] != values[i]) {
+                throw new RuntimeException("Unpacking " + bits + " bits x " + size + " broke index " + i);
+            }
+        }
+
+        if (bits > 8) {
+            return;
+        }
+
+        int[] counts = new int[1 << bits];
+        storage.histogram(counts);
+        int[] expected = new int[1 << bits];
+        for (int value : values) {
+            expected[value]++;
+        }
+        for (int v = 0; v < expected.length; v++) {
+            if (counts[v] != expected[v]) {
+                throw new RuntimeException("Histogram of " + bits + " bits x " + size + " counted " + counts[v] + " of " + v + ", expected " + expected[v]);
+            }
+        }
+    }
+}
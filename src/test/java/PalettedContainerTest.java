@@ -1,12 +1,46 @@
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.DynamicOps;
+import com.mojang.serialization.JavaOps;
+import com.mojang.serialization.JsonOps;
 import dev.sixik.mcsr.debug_structs.Block;
 import dev.sixik.mcsr.debug_structs.BlocksRegister;
 import dev.sixik.mcsr.debug_structs.Position;
+import dev.sixik.mcsr.rework.paletted_container.AtomicSimpleBitStorage;
+import dev.sixik.mcsr.rework.paletted_container.BitStorage;
+import dev.sixik.mcsr.rework.paletted_container.ConcurrencyPolicy;
+import dev.sixik.mcsr.rework.paletted_container.ContainerTelemetry;
+import dev.sixik.mcsr.rework.paletted_container.FootprintHistogram;
+import dev.sixik.mcsr.rework.paletted_container.LockFreeHashMapPalette;
+import dev.sixik.mcsr.rework.paletted_container.OffHeapArena;
+import dev.sixik.mcsr.rework.paletted_container.PackingScratch;
+import dev.sixik.mcsr.rework.paletted_container.Palette;
+import dev.sixik.mcsr.rework.paletted_container.PaletteResize;
 import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainerRO;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainerSnapshot;
+import dev.sixik.mcsr.rework.paletted_container.SimpleBitStorage;
+import dev.sixik.mcsr.rework.paletted_container.StoragePool;
+import dev.sixik.mcsr.rework.paletted_container.ZeroBitStorage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.VarInt;
 import org.junit.jupiter.api.Test;
+import org.openjdk.jol.info.GraphLayout;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -180,6 +214,1357 @@ public class PalettedContainerTest {
         System.out.println("----Test Palette Race End----");
     }
 
+    @Test
+    public void testLockFreePaletteIds() {
+        BlocksRegister.init();
+        int threads = 8;
+        int shared = 100;
+        int unique = 16;
+        PaletteResize<Block> resize = (bits, block) -> {
+            throw new RuntimeException("256 slots must hold " + (shared + threads * unique) + " values");
+        };
+
+        System.out.println("----Test Lock Free Palette Ids Start----");
+
+        for (int round = 0; round < 100; round++) {
+            LockFreeHashMapPalette<Block> palette = new LockFreeHashMapPalette<>(BLOCKS, 8, resize);
+            CyclicBarrier start = new CyclicBarrier(threads);
+
+            // every thread asks for the shared values in its own order, twice, and for its own unique values
+            List<CompletableFuture<Map<Block, Integer>>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int threadId = t;
+                tasks.add(CompletableFuture.supplyAsync(() -> {
+                    List<Block> values = new ArrayList<>();
+                    for (int i = 0; i < shared; i++) {
+                        values.add(BLOCKS.byId(1 + i));
+                    }
+                    for (int i = 0; i < unique; i++) {
+                        values.add(BLOCKS.byId(1 + shared + threadId * unique + i));
+                    }
+                    Collections.shuffle(values, new Random(threadId));
+
+                    try {
+                        start.await();
+                    } catch (InterruptedException | BrokenBarrierException e) {
+                        throw new RuntimeException(e);
+                    }
+
+                    Map<Block, Integer> ids = new HashMap<>();
+                    for (int pass = 0; pass < 2; pass++) {
+                        for (Block value : values) {
+                            int id = palette.idFor(value);
+                            Integer previous = ids.put(value, id);
+                            if (previous != null && previous != id) {
+                                throw new RuntimeException("Value " + value.getId() + " moved from id " + previous + " to " + id);
+                            }
+                        }
+                    }
+                    return ids;
+                }));
+            }
+
+            Map<Block, Integer> ids = new HashMap<>();
+            for (CompletableFuture<Map<Block, Integer>> task : tasks) {
+                task.join().forEach((value, id) -> {
+                    Integer other = ids.putIfAbsent(value, id);
+                    if (other != null && !other.equals(id)) {
+                        throw new RuntimeException("Threads got ids " + other + " and " + id + " for value " + value.getId());
+                    }
+                });
+            }
+
+            // one id per value, and the ids are exactly 0..size-1
+            int distinct = shared + threads * unique;
+            BitSet used = new BitSet();
+            ids.forEach((value, id) -> {
+                if (used.get(id) || palette.valueFor(id) != value) {
+                    throw new RuntimeException("Id " + id + " is duplicated or does not map back to value " + value.getId());
+                }
+                used.set(id);
+            });
+            if (ids.size() != distinct || palette.getSize() != distinct || used.cardinality() != distinct || used.nextClearBit(0) != distinct) {
+                throw new RuntimeException("Expected ids 0.." + (distinct - 1) + ", got " + used + " with size " + palette.getSize());
+            }
+        }
+
+        System.out.println("----Test Lock Free Palette Ids End----");
+    }
+
+    @Test
+    public void testLockFreePaletteOverflow() {
+        BlocksRegister.init();
+        List<Integer> requestedBits = new ArrayList<>();
+        List<Block> requestedValues = new ArrayList<>();
+        PaletteResize<Block> resize = (bits, block) -> {
+            requestedBits.add(bits);
+            requestedValues.add(block);
+            return 42;
+        };
+
+        System.out.println("----Test Lock Free Palette Overflow Start----");
+
+        LockFreeHashMapPalette<Block> palette = new LockFreeHashMapPalette<>(BLOCKS, 2, resize, List.of(BLOCKS.byId(1), BLOCKS.byId(2), BLOCKS.byId(3), BLOCKS.byId(4)));
+        if (palette.idFor(BLOCKS.byId(3)) != 2 || !requestedBits.isEmpty()) {
+            throw new RuntimeException("A full palette must still resolve its own values");
+        }
+
+        // the fifth value overflows, asking again must not take a slot either
+        for (int attempt = 0; attempt < 2; attempt++) {
+            int id = palette.idFor(BLOCKS.byId(5));
+            if (id != 42 || requestedBits.size() != attempt + 1 || requestedBits.get(attempt) != 3 || requestedValues.get(attempt) != BLOCKS.byId(5)) {
+                throw new RuntimeException("Overflow was not handed to onResize, id " + id + ", calls " + requestedBits);
+            }
+        }
+        if (palette.getSize() != 4) {
+            throw new RuntimeException("Overflow changed the size to " + palette.getSize());
+        }
+
+        // many racing overflows all end up in onResize
+        LockFreeHashMapPalette<Block> racing = new LockFreeHashMapPalette<>(BLOCKS, 2, (bits, block) -> -bits);
+        CompletableFuture<?>[] tasks = new CompletableFuture[8];
+        for (int t = 0; t < tasks.length; t++) {
+            final int threadId = t;
+            tasks[t] = CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 16; i++) {
+                    int id = racing.idFor(BLOCKS.byId(1 + (threadId * 16 + i) % 20));
+                    if (id != -3 && (id < 0 || id >= 4)) {
+                        throw new RuntimeException("Got id " + id + " from a 2 bit palette");
+                    }
+                }
+            });
+        }
+        CompletableFuture.allOf(tasks).join();
+        if (racing.getSize() != 4) {
+            throw new RuntimeException("Racing overflows left the size at " + racing.getSize());
+        }
+
+        System.out.println("----Test Lock Free Palette Overflow End----");
+    }
+
+    @Test
+    public void testLockFreePaletteRoundTrip() {
+        BlocksRegister.init();
+        PaletteResize<Block> resize = (bits, block) -> {
+            throw new RuntimeException("Round trip must not overflow");
+        };
+
+        System.out.println("----Test Lock Free Palette Round Trip Start----");
+
+        List<Block> values = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            values.add(BLOCKS.byId(300 - i * 7));
+        }
+        LockFreeHashMapPalette<Block> palette = new LockFreeHashMapPalette<>(BLOCKS, 6, resize, values);
+        if (palette.getSize() != values.size() || !palette.entries().equals(values)) {
+            throw new RuntimeException("Ids do not follow the insertion order: " + palette.entries());
+        }
+        for (int id = 0; id < values.size(); id++) {
+            if (palette.valueFor(id) != values.get(id)) {
+                throw new RuntimeException("valueFor(" + id + ") is " + palette.valueFor(id).getId());
+            }
+        }
+
+        FriendlyByteBuf friendlyByteBuf = new FriendlyByteBuf(Unpooled.buffer());
+        palette.write(friendlyByteBuf);
+        if (friendlyByteBuf.readableBytes() != palette.getSerializedSize()) {
+            throw new RuntimeException("Wrote " + friendlyByteBuf.readableBytes() + " bytes, expected " + palette.getSerializedSize());
+        }
+
+        // the registry ids go out in id order
+        FriendlyByteBuf copy = new FriendlyByteBuf(friendlyByteBuf.copy());
+        if (copy.readVarInt() != values.size()) {
+            throw new RuntimeException("Wrong entry count");
+        }
+        for (Block value : values) {
+            if (copy.readVarInt() != BLOCKS.getId(value)) {
+                throw new RuntimeException("Entry " + value.getId() + " is out of order");
+            }
+        }
+
+        // reading replaces whatever the palette held before
+        LockFreeHashMapPalette<Block> read = new LockFreeHashMapPalette<>(BLOCKS, 6, resize, List.of(BlocksRegister.STONE, BlocksRegister.DIRT));
+        read.read(friendlyByteBuf);
+        if (read.getSize() != values.size() || !read.entries().equals(values) || friendlyByteBuf.isReadable()) {
+            throw new RuntimeException("Read back " + read.entries());
+        }
+        for (int id = 0; id < values.size(); id++) {
+            if (read.valueFor(id) != values.get(id) || read.idFor(values.get(id)) != id) {
+                throw new RuntimeException("Id " + id + " did not survive the round trip");
+            }
+        }
+        if (read.idFor(BlocksRegister.STONE) != values.size()) {
+            throw new RuntimeException("The entries from before the read were kept");
+        }
+
+        System.out.println("----Test Lock Free Palette Round Trip End----");
+    }
+
+    @Test
+    public void testRegionFill() {
+        BlocksRegister.init();
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        Block[][][] expected = new Block[16][16][16];
+        Random random = new Random(12345);
+
+        System.out.println("----Test Region Fill Start----");
+
+        for (int x = 0; x < 16; x++) {
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    Block block = BLOCKS.byId(random.nextInt(40));
+                    container.set(x, y, z, block);
+                    expected[x][y][z] = block;
+                }
+            }
+        }
+
+        for (int i = 0; i < 200; i++) {
+            int minX = random.nextInt(16), minY = random.nextInt(16), minZ = random.nextInt(16);
+            int maxX = minX + random.nextInt(16 - minX), maxY = minY + random.nextInt(16 - minY), maxZ = minZ + random.nextInt(16 - minZ);
+            // every few rounds use full rows/planes to hit the contiguous paths
+            if (i % 3 == 0) { minX = 0; maxX = 15; }
+            if (i % 6 == 0) { minZ = 0; maxZ = 15; }
+            Block block = BLOCKS.byId(random.nextInt(BLOCKS.size()));
+
+            container.fill(minX, minY, minZ, maxX, maxY, maxZ, block);
+            for (int x = minX; x <= maxX; x++)
+                for (int y = minY; y <= maxY; y++)
+                    for (int z = minZ; z <= maxZ; z++)
+                        expected[x][y][z] = block;
+        }
+
+        for (int x = 0; x < 16; x++) {
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    if (container.get(x, y, z) != expected[x][y][z]) {
+                        throw new RuntimeException("Region fill broke position " + x + "," + y + "," + z + ": " + container.get(x, y, z) + " != " + expected[x][y][z]);
+                    }
+                }
+            }
+        }
+
+        container.fill(BlocksRegister.STONE);
+        if (container.getBits() != 0 || container.get(3, 4, 5) != BlocksRegister.STONE) {
+            throw new RuntimeException("Full fill must collapse the section back to a single value, bits: " + container.getBits());
+        }
+
+        System.out.println("----Test Region Fill End----");
+    }
+
+    @Test
+    public void testBatchSet() {
+        BlocksRegister.init();
+        PalettedContainer<Block> batched = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        PalettedContainer<Block> sequential = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        Random random = new Random(54321);
+
+        System.out.println("----Test Batch Set Start----");
+
+        for (int round = 0; round < 20; round++) {
+            int length = 1 + random.nextInt(3000);
+            int[] indices = new int[length];
+            short[] packed = new short[length];
+            Block[] values = new Block[length];
+            // later rounds bring more distinct blocks, so the palette has to grow inside a batch
+            int distinct = 2 + round * 8;
+
+            for (int n = 0; n < length; n++) {
+                int x = random.nextInt(16), y = random.nextInt(16), z = random.nextInt(16);
+                indices[n] = PalettedContainer.Strategy.SECTION_STATES.getIndex(x, y, z);
+                packed[n] = (short) (x << 8 | z << 4 | y);
+                values[n] = BLOCKS.byId(random.nextInt(distinct));
+                sequential.set(x, y, z, values[n]);
+            }
+
+            if (round % 2 == 0) {
+                batched.setBatch(indices, values);
+            } else {
+                batched.setBatch(packed, values);
+            }
+        }
+
+        for (int x = 0; x < 16; x++) {
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    if (batched.get(x, y, z) != sequential.get(x, y, z)) {
+                        throw new RuntimeException("Batch set differs at " + x + "," + y + "," + z + ": " + batched.get(x, y, z) + " != " + sequential.get(x, y, z));
+                    }
+                }
+            }
+        }
+
+        // a batch of 40 new values into a linear palette with 3 live entries must grow, not compact and retry
+        PalettedContainer<Block> sparse = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        sparse.set(0, 0, 0, BlocksRegister.DIRT);
+        sparse.set(1, 0, 0, BlocksRegister.STONE);
+        int[] indices = new int[40];
+        int[] localIds = new int[40];
+        List<Block> localPalette = new ArrayList<>();
+        for (int n = 0; n < 40; n++) {
+            indices[n] = 100 + n;
+            localIds[n] = n;
+            localPalette.add(BLOCKS.byId(10 + n));
+        }
+        sparse.setBatch(indices, localIds, 40, localPalette);
+        if (sparse.get(4, 0, 6) != BLOCKS.byId(10) || sparse.get(0, 0, 0) != BlocksRegister.DIRT || sparse.getBits() < 6) {
+            throw new RuntimeException("Batch into a sparse palette went wrong, bits: " + sparse.getBits());
+        }
+
+        System.out.println("----Test Batch Set End----");
+    }
+
+    @Test
+    public void testCompaction() {
+        BlocksRegister.init();
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+
+        System.out.println("----Test Compaction Start----");
+
+        // churn through 200 block types, then clear almost everything again
+        for (int i = 0; i < 4096; i++) {
+            container.set(i & 15, i >>> 8, i >>> 4 & 15, BLOCKS.byId(i % 200));
+        }
+        int bitsBefore = container.getBits();
+        int sizeBefore = container.getSerializedSize();
+
+        for (int i = 0; i < 4096; i++) {
+            container.set(i & 15, i >>> 8, i >>> 4 & 15, BlocksRegister.STONE);
+        }
+        container.set(1, 2, 3, BlocksRegister.DIRT);
+        container.set(4, 5, 6, BlocksRegister.WOOD);
+
+        if (!container.compact()) {
+            throw new RuntimeException("Compaction found nothing to drop");
+        }
+        if (container.getBits() >= bitsBefore || container.getSerializedSize() >= sizeBefore) {
+            throw new RuntimeException("Compaction did not shrink the section: " + bitsBefore + " -> " + container.getBits() + " bits");
+        }
+        if (container.get(1, 2, 3) != BlocksRegister.DIRT || container.get(4, 5, 6) != BlocksRegister.WOOD || container.get(0, 0, 0) != BlocksRegister.STONE) {
+            throw new RuntimeException("Compaction changed the contents");
+        }
+
+        container.set(1, 2, 3, BlocksRegister.STONE);
+        container.set(4, 5, 6, BlocksRegister.STONE);
+        container.compact();
+        if (container.getBits() != 0 || container.get(7, 7, 7) != BlocksRegister.STONE) {
+            throw new RuntimeException("A uniform section must compact to a single value, bits: " + container.getBits());
+        }
+
+        // a palette full of dead entries is compacted instead of grown
+        for (int round = 0; round < 40; round++) {
+            for (int i = 0; i < 12; i++) {
+                container.set(i, 0, 0, BLOCKS.byId(5 + round * 12 + i));
+            }
+        }
+        if (container.getBits() > 5) {
+            throw new RuntimeException("Palette kept growing with only 13 live entries: " + container.getBits() + " bits");
+        }
+
+        System.out.println("----Test Compaction End----");
+    }
+
+    @Test
+    public void testSnapshotDuringWrites() {
+        BlocksRegister.init();
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        int writers = 4;
+        AtomicBoolean running = new AtomicBoolean(true);
+        CompletableFuture<?>[] tasks = new CompletableFuture[writers];
+
+        System.out.println("----Test Snapshot During Writes Start----");
+
+        // writers only ever put block ids 1..300 into the section, so each snapshot may hold nothing else
+        for (int t = 0; t < writers; t++) {
+            final long seed = t;
+            tasks[t] = CompletableFuture.runAsync(() -> {
+                Random random = new Random(seed);
+                while (running.get()) {
+                    container.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), BLOCKS.byId(1 + random.nextInt(300)));
+                }
+            });
+        }
+
+        try {
+            for (int round = 0; round < 200; round++) {
+                PalettedContainerSnapshot<Block> snapshot = container.snapshot();
+                long[] ids = new long[4096];
+                for (int i = 0; i < 4096; i++) {
+                    Block block = snapshot.get(i & 15, i >>> 8, i >>> 4 & 15);
+                    ids[i] = block.getId();
+                    if (block != BlocksRegister.AIR && (ids[i] < 1 || ids[i] > 300)) {
+                        throw new RuntimeException("Snapshot resolved a foreign block: " + ids[i]);
+                    }
+                }
+
+                int[] total = new int[1];
+                snapshot.count((block, count) -> total[0] += count);
+                if (total[0] != 4096) {
+                    throw new RuntimeException("Snapshot counts " + total[0] + " positions");
+                }
+
+                for (int i = 0; i < 4096; i++) {
+                    if (snapshot.get(i & 15, i >>> 8, i >>> 4 & 15).getId() != ids[i]) {
+                        throw new RuntimeException("Snapshot changed after it was taken at index " + i);
+                    }
+                }
+            }
+        } finally {
+            running.set(false);
+            CompletableFuture.allOf(tasks).join();
+        }
+
+        PalettedContainerSnapshot<Block> quiet = container.snapshot();
+        for (int i = 0; i < 4096; i++) {
+            if (quiet.get(i & 15, i >>> 8, i >>> 4 & 15) != container.get(i & 15, i >>> 8, i >>> 4 & 15)) {
+                throw new RuntimeException("Snapshot of an idle section differs at index " + i);
+            }
+        }
+
+        System.out.println("----Test Snapshot During Writes End----");
+    }
+
+    @Test
+    public void testResizeKeepsContents() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Resize Keeps Contents Start----");
+
+        for (PalettedContainer.Strategy strategy : List.of(PalettedContainer.Strategy.SECTION_STATES, PalettedContainer.Strategy.SECTION_BIOMES)) {
+            PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, strategy);
+            int size = strategy.size();
+            int side = strategy.sideSize();
+            Block[] expected = new Block[size];
+            Arrays.fill(expected, BlocksRegister.AIR);
+
+            // every new type forces the next width, up to the global palette
+            Random random = new Random(7);
+            for (int type = 1; type < 400; type++) {
+                int index = random.nextInt(size);
+                expected[index] = BLOCKS.byId(type);
+                container.set(index % side, index / (side * side), index / side % side, expected[index]);
+
+                if ((type & (type - 1)) == 0 || type == 399) {
+                    for (int i = 0; i < size; i++) {
+                        if (container.get(i % side, i / (side * side), i / side % side) != expected[i]) {
+                            throw new RuntimeException("Resize to " + container.getBits() + " bits lost index " + i);
+                        }
+                    }
+                }
+            }
+        }
+
+        System.out.println("----Test Resize Keeps Contents End----");
+    }
+
+    @Test
+    public void testSmallPalettesUnderContention() {
+        BlocksRegister.init();
+        int writers = 4;
+
+        System.out.println("----Test Small Palettes Under Contention Start----");
+
+        for (int round = 0; round < 50; round++) {
+            PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+            if (container.getBits() != 0) {
+                throw new RuntimeException("A uniform section must start without storage, bits: " + container.getBits());
+            }
+
+            // every writer owns one y layer and races the others on the same 12 new types, which fit a linear palette
+            CompletableFuture<?>[] tasks = new CompletableFuture[writers];
+            for (int t = 0; t < writers; t++) {
+                final int y = t;
+                tasks[t] = CompletableFuture.runAsync(() -> {
+                    for (int i = 0; i < 256; i++) {
+                        container.set(i & 15, y, i >>> 4, BLOCKS.byId(1 + i % 12));
+                    }
+                });
+            }
+            CompletableFuture.allOf(tasks).join();
+
+            if (container.getBits() != 4) {
+                throw new RuntimeException("13 types must stay in the linear palette, bits: " + container.getBits());
+            }
+
+            for (int y = 0; y < 16; y++) {
+                for (int i = 0; i < 256; i++) {
+                    Block expected = y < writers ? BLOCKS.byId(1 + i % 12) : BlocksRegister.AIR;
+                    if (container.get(i & 15, y, i >>> 4) != expected) {
+                        throw new RuntimeException("Lost a write at y " + y + ", index " + i);
+                    }
+                }
+            }
+        }
+
+        System.out.println("----Test Small Palettes Under Contention End----");
+    }
+
+    @Test
+    public void testSmallPaletteCopies() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Small Palette Copies Start----");
+
+        // a claimed single value: the first other value must resize the copy only
+        PalettedContainer<Block> uniform = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        PalettedContainer<Block> uniformCopy = uniform.copy();
+        uniformCopy.set(1, 2, 3, BlocksRegister.STONE);
+        if (uniformCopy.get(1, 2, 3) != BlocksRegister.STONE || uniform.get(1, 2, 3) != BlocksRegister.AIR || uniform.getBits() != 0) {
+            throw new RuntimeException("Resizing a single value copy touched the original, bits: " + uniform.getBits());
+        }
+
+        // a linear palette outgrown by 40 types
+        PalettedContainer<Block> linear = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        linear.set(0, 0, 0, BlocksRegister.DIRT);
+        linear.set(1, 0, 0, BlocksRegister.STONE);
+        int bits = linear.getBits();
+        PalettedContainer<Block> linearCopy = linear.copy();
+        for (int i = 0; i < 4096; i++) {
+            linearCopy.set(i & 15, i >>> 8, i >>> 4 & 15, BLOCKS.byId(5 + i % 40));
+        }
+        for (int i = 0; i < 4096; i++) {
+            Block expected = i == 0 ? BlocksRegister.DIRT : i == 1 ? BlocksRegister.STONE : BlocksRegister.AIR;
+            if (linearCopy.get(i & 15, i >>> 8, i >>> 4 & 15) != BLOCKS.byId(5 + i % 40) || linear.get(i & 15, i >>> 8, i >>> 4 & 15) != expected) {
+                throw new RuntimeException("Resizing a linear copy went wrong at " + i);
+            }
+        }
+        if (linear.getBits() != bits) {
+            throw new RuntimeException("Resizing a linear copy grew the original to " + linear.getBits() + " bits");
+        }
+
+        System.out.println("----Test Small Palette Copies End----");
+    }
+
+    @Test
+    public void testCounting() {
+        BlocksRegister.init();
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        container.setCounting(true);
+        int writers = 4;
+
+        System.out.println("----Test Counting Start----");
+
+        // types 1..100 walk the section through the linear and hash palettes, the last writes stay on 1..3
+        CompletableFuture<?>[] tasks = new CompletableFuture[writers];
+        for (int t = 0; t < writers; t++) {
+            final long seed = t;
+            tasks[t] = CompletableFuture.runAsync(() -> {
+                Random random = new Random(seed);
+                for (int n = 0; n < 20000; n++) {
+                    Block block = BLOCKS.byId(1 + random.nextInt(n < 15000 ? 100 : 3));
+                    if (n % 1000 == 999) {
+                        container.fill(random.nextInt(8), random.nextInt(8), random.nextInt(8), 8 + random.nextInt(8), 8 + random.nextInt(8), 8 + random.nextInt(8), block);
+                    } else {
+                        container.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), block);
+                    }
+                }
+            });
+        }
+        CompletableFuture.allOf(tasks).join();
+
+        checkCounts(container);
+        container.compact();
+        checkCounts(container);
+
+        container.fill(BlocksRegister.STONE);
+        checkCounts(container);
+        if (container.contains(block -> block == BlocksRegister.AIR) || !container.contains(block -> block == BlocksRegister.STONE)) {
+            throw new RuntimeException("contains() must only see the filled block");
+        }
+
+        container.set(1, 2, 3, BlocksRegister.AIR);
+        container.set(1, 2, 3, BlocksRegister.STONE);
+        if (container.contains(block -> block == BlocksRegister.AIR) || !container.maybeHas(block -> block == BlocksRegister.AIR)) {
+            throw new RuntimeException("contains() must ignore palette entries nothing refers to");
+        }
+        checkCounts(container.copy());
+
+        System.out.println("----Test Counting End----");
+    }
+
+    @Test
+    public void testOffHeapStorage() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Off Heap Storage Start----");
+
+        OffHeapArena arena = new OffHeapArena(64 * 1024);
+        PalettedContainer.Strategy strategy = PalettedContainer.Strategy.SECTION_STATES.withStorage(arena.storageFactory());
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, strategy);
+        container.setCounting(true);
+        Block[] expected = new Block[4096];
+        Arrays.fill(expected, BlocksRegister.AIR);
+
+        // every width from the single value to the global palette, each resize allocates from the arena
+        Random random = new Random(16);
+        for (int n = 0; n < 20000; n++) {
+            int index = random.nextInt(4096);
+            expected[index] = BLOCKS.byId(random.nextInt(1 + n / 50));
+            container.set(index & 15, index >>> 8, index >>> 4 & 15, expected[index]);
+        }
+        container.fill(2, 2, 2, 5, 5, 5, BlocksRegister.STONE);
+        for (int x = 2; x < 6; x++) {
+            for (int y = 2; y < 6; y++) {
+                for (int z = 2; z < 6; z++) {
+                    expected[(y << 4 | z) << 4 | x] = BlocksRegister.STONE;
+                }
+            }
+        }
+        checkCounts(container);
+
+        PalettedContainer<Block> copy = container.copy();
+        FriendlyByteBuf friendlyByteBuf = new FriendlyByteBuf(Unpooled.buffer());
+        container.write(friendlyByteBuf);
+        PalettedContainer<Block> read = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        read.read(friendlyByteBuf);
+        for (PalettedContainer<Block> c : List.of(container, copy, read)) {
+            for (int i = 0; i < 4096; i++) {
+                if (c.get(i & 15, i >>> 8, i >>> 4 & 15) != expected[i]) {
+                    throw new RuntimeException("Off-heap section lost index " + i);
+                }
+            }
+        }
+
+        if (arena.allocatedBytes() == 0 || arena.reservedBytes() < arena.allocatedBytes()) {
+            throw new RuntimeException("Arena accounted " + arena.allocatedBytes() + " of " + arena.reservedBytes() + " bytes");
+        }
+
+        // a recycled section's block goes to the next section of the same width instead of a new one
+        PalettedContainerRO.PackedData<Block> packed = container.pack(BLOCKS, strategy, PackingScratch.local());
+        long reserved = -1;
+        for (int round = 0; round < 100; round++) {
+            PalettedContainer<Block> loaded = PalettedContainer.unpack(BLOCKS, strategy, packed, PackingScratch.local()).getOrThrow(RuntimeException::new);
+            for (int i = 0; i < 4096; i++) {
+                if (loaded.get(i & 15, i >>> 8, i >>> 4 & 15) != expected[i]) {
+                    throw new RuntimeException("A reused block lost index " + i + " in round " + round);
+                }
+            }
+            loaded.recycle();
+            if (round == 0) {
+                reserved = arena.reservedBytes();
+            } else if (arena.reservedBytes() != reserved) {
+                throw new RuntimeException("Recycled blocks were not reused: " + arena.reservedBytes() + " bytes reserved after " + reserved + " in round " + round);
+            }
+        }
+
+        // the storage keeps its own slab: reads after close stay valid, new allocations fail
+        arena.close();
+        if (container.get(1, 2, 3) != expected[(2 << 4 | 3) << 4 | 1]) {
+            throw new RuntimeException("Reading after close broke");
+        }
+        try {
+            new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, strategy).set(0, 0, 0, BlocksRegister.STONE);
+            throw new RuntimeException("A closed arena must refuse allocations");
+        } catch (IllegalStateException expectedException) {
+            // ok
+        }
+
+        System.out.println("----Test Off Heap Storage End----");
+    }
+
+    @Test
+    public void testStoragePool() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Storage Pool Start----");
+
+        // a pool the size of one thread's shelf: the second array of a length goes to the shared shelf, the third is dropped
+        StoragePool pool = new StoragePool(1, 1);
+        long[] first = pool.take(64);
+        first[3] = 42L;
+        pool.release(first);
+        pool.release(new long[64]);
+        pool.release(new long[64]);
+        long[] again = pool.take(64);
+        if (again != first || again[3] != 0L || pool.take(64) == first || pool.take(64).length != 64) {
+            throw new RuntimeException("Pool must hand back zeroed arrays, newest first");
+        }
+        if (pool.hits() != 2 || pool.misses() != 2 || pool.dropped() != 1 || pool.hitRate() != 0.5) {
+            throw new RuntimeException("Unexpected counters: " + pool);
+        }
+
+        // sections that keep growing and get recycled, as during a worldgen burst
+        Random random = new Random(17);
+        StoragePool.SHARED.resetCounters();
+        for (int round = 0; round < 20; round++) {
+            PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+            Block[] expected = new Block[4096];
+            Arrays.fill(expected, BlocksRegister.AIR);
+            for (int n = 0; n < 3000; n++) {
+                int index = random.nextInt(4096);
+                expected[index] = BLOCKS.byId(random.nextInt(1 + n / 10));
+                container.set(index & 15, index >>> 8, index >>> 4 & 15, expected[index]);
+            }
+
+            PalettedContainer<Block> copy = container.copy();
+            for (int i = 0; i < 4096; i++) {
+                if (copy.get(i & 15, i >>> 8, i >>> 4 & 15) != expected[i]) {
+                    throw new RuntimeException("Pooled storage broke index " + i + " in round " + round);
+                }
+            }
+
+            container.recycle();
+            copy.recycle();
+            if (container.getBits() != 0 || container.get(1, 2, 3) != BlocksRegister.AIR) {
+                throw new RuntimeException("A recycled container must hold a single value");
+            }
+        }
+        if (StoragePool.SHARED.hitRate() < 0.5) {
+            throw new RuntimeException("Resize bursts should mostly reuse arrays: " + StoragePool.SHARED);
+        }
+        System.out.println(StoragePool.SHARED);
+
+        System.out.println("----Test Storage Pool End----");
+    }
+
+    @Test
+    public void testTelemetry() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Telemetry Start----");
+
+        ContainerTelemetry own = new ContainerTelemetry();
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        container.setTelemetry(own);
+        ContainerTelemetry.Snapshot globalBefore = ContainerTelemetry.GLOBAL.snapshot();
+
+        // 1 -> linear (4 bits) -> hash map (5 bits), then back to a single value
+        for (int i = 0; i < 20; i++) {
+            container.set(i & 15, 0, i >>> 4, BLOCKS.byId(1 + i));
+        }
+        container.fill(0, 0, 0, 15, 0, 15, BlocksRegister.AIR);
+        container.compact();
+
+        ContainerTelemetry.Snapshot snapshot = own.snapshot();
+        Map<ContainerTelemetry.Transition, Long> expected = Map.of(
+                new ContainerTelemetry.Transition(0, 4), 1L,
+                new ContainerTelemetry.Transition(4, 5), 1L,
+                new ContainerTelemetry.Transition(5, 0), 1L);
+        if (!snapshot.resizes().equals(expected)) {
+            throw new RuntimeException("Unexpected resizes: " + snapshot.resizes());
+        }
+        // the two writes that grew the palette restart against the new data once each
+        if (snapshot.lockAcquisitions() != 3 || snapshot.staleIdRetries() != 2 || snapshot.lostWriteRetries() != 0 || snapshot.lockHeldNanos() <= 0) {
+            throw new RuntimeException("Unexpected counters: " + own);
+        }
+
+        ContainerTelemetry.Snapshot global = ContainerTelemetry.GLOBAL.snapshot().minus(globalBefore);
+        if (global.paletteInserts() < 20 || global.resizes().getOrDefault(new ContainerTelemetry.Transition(4, 5), 0L) < 1) {
+            throw new RuntimeException("Global telemetry missed events: " + global);
+        }
+
+        // writers racing over the same new types, every palette width on the way
+        ContainerTelemetry hot = new ContainerTelemetry();
+        PalettedContainer<Block> contended = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        contended.setTelemetry(hot);
+        CompletableFuture<?>[] tasks = new CompletableFuture[4];
+        for (int t = 0; t < tasks.length; t++) {
+            final int y = t;
+            tasks[t] = CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 256; i++) {
+                    contended.set(i & 15, y, i >>> 4, BLOCKS.byId(1 + i % 200));
+                }
+            });
+        }
+        CompletableFuture.allOf(tasks).join();
+        if (hot.snapshot().resizeCount() < 3) {
+            throw new RuntimeException("Contended growth must be counted: " + hot);
+        }
+        System.out.println(hot);
+
+        // switched off nothing is counted
+        ContainerTelemetry.setEnabled(false);
+        try {
+            own.reset();
+            for (int i = 0; i < 40; i++) {
+                container.set(i & 15, 1, i >>> 4, BLOCKS.byId(1 + i));
+            }
+            ContainerTelemetry.Snapshot off = own.snapshot();
+            if (off.resizeCount() != 0 || off.lockAcquisitions() != 0) {
+                throw new RuntimeException("Disabled telemetry still counts: " + own);
+            }
+        } finally {
+            ContainerTelemetry.setEnabled(true);
+        }
+
+        System.out.println("----Test Telemetry End----");
+    }
+
+    @Test
+    public void testChangeTracking() {
+        BlocksRegister.init();
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+
+        System.out.println("----Test Change Tracking Start----");
+
+        container.set(1, 2, 3, BlocksRegister.STONE);
+        if (container.isTrackingChanges() || container.drainChanges((index, value) -> {}) != 0) {
+            throw new RuntimeException("Nothing is recorded while tracking is off");
+        }
+
+        container.setTrackingChanges(true);
+        container.set(1, 2, 3, BlocksRegister.DIRT);
+        container.set(1, 2, 3, BlocksRegister.WOOD);
+        container.getAndSet(15, 15, 15, BlocksRegister.STONE);
+        Map<Integer, Block> drained = new HashMap<>();
+        if (container.pendingChanges() != 2 || container.drainChanges(drained::put) != 2 || container.pendingChanges() != 0) {
+            throw new RuntimeException("Two positions changed, got " + drained);
+        }
+        if (drained.get(PalettedContainer.Strategy.SECTION_STATES.getIndex(1, 2, 3)) != BlocksRegister.WOOD || drained.get(4095) != BlocksRegister.STONE) {
+            throw new RuntimeException("A drain reports the current values: " + drained);
+        }
+
+        // a box across word boundaries, then a batch that grows the palette through every width
+        container.fill(3, 4, 5, 12, 6, 9, BlocksRegister.BEDROCK);
+        if (container.pendingChanges() != 10 * 3 * 5) {
+            throw new RuntimeException("The box must mark exactly its positions, got " + container.pendingChanges());
+        }
+        container.drainChanges((index, value) -> {});
+        int[] indices = new int[300];
+        Block[] values = new Block[300];
+        for (int n = 0; n < 300; n++) {
+            indices[n] = n * 13;
+            values[n] = BLOCKS.byId(5 + n);
+        }
+        container.setBatch(indices, values);
+        drained.clear();
+        container.drainChanges(drained::put);
+        if (drained.size() != 300 || drained.get(299 * 13) != BLOCKS.byId(304)) {
+            throw new RuntimeException("A growing batch must mark every index, got " + drained.size());
+        }
+        container.fill(BlocksRegister.AIR);
+        if (container.pendingChanges() != 4096) {
+            throw new RuntimeException("Replacing the section marks everything");
+        }
+        container.drainChanges((index, value) -> {});
+
+        // writers race a drainer that keeps a mirror from deltas only; afterwards the mirror must be exact
+        Block[] mirror = new Block[4096];
+        Arrays.fill(mirror, BlocksRegister.AIR);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        CompletableFuture<?>[] writers = new CompletableFuture[3];
+        for (int t = 0; t < writers.length; t++) {
+            final long seed = t;
+            writers[t] = CompletableFuture.runAsync(() -> {
+                Random random = new Random(seed);
+                for (int n = 0; n < 20000; n++) {
+                    container.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), BLOCKS.byId(1 + random.nextInt(100)));
+                }
+            });
+        }
+        CompletableFuture<?> drainer = CompletableFuture.runAsync(() -> {
+            while (writing.get()) {
+                container.drainChanges((index, value) -> mirror[index] = value);
+            }
+        });
+        CompletableFuture.allOf(writers).join();
+        writing.set(false);
+        drainer.join();
+        container.drainChanges((index, value) -> mirror[index] = value);
+        for (int index = 0; index < 4096; index++) {
+            if (mirror[index] != container.get(index & 15, index >>> 8, index >>> 4 & 15)) {
+                throw new RuntimeException("Lost a change at index " + index);
+            }
+        }
+
+        container.setTrackingChanges(false);
+        container.set(0, 0, 0, BlocksRegister.STONE);
+        if (container.pendingChanges() != 0) {
+            throw new RuntimeException("Turned off tracking forgets everything");
+        }
+
+        // threads racing to turn tracking on all record into the same bitset
+        int enablers = 8;
+        for (int round = 0; round < 200; round++) {
+            PalettedContainer<Block> racing = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+            CyclicBarrier start = new CyclicBarrier(enablers);
+            CompletableFuture<?>[] tasks = new CompletableFuture[enablers];
+            for (int t = 0; t < enablers; t++) {
+                final int y = t;
+                tasks[t] = CompletableFuture.runAsync(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException | BrokenBarrierException e) {
+                        throw new RuntimeException(e);
+                    }
+                    racing.setTrackingChanges(true);
+                    for (int i = 0; i < 16; i++) {
+                        racing.set(i, y, i, BlocksRegister.STONE);
+                    }
+                });
+            }
+            CompletableFuture.allOf(tasks).join();
+
+            BitSet reported = new BitSet();
+            racing.drainChanges((index, value) -> reported.set(index));
+            if (reported.cardinality() != enablers * 16) {
+                throw new RuntimeException("Concurrently enabled tracking lost " + (enablers * 16 - reported.cardinality()) + " changes in round " + round);
+            }
+        }
+
+        System.out.println("----Test Change Tracking End----");
+    }
+
+    @Test
+    public void testConcurrencyPolicy() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Concurrency Policy Start----");
+
+        PalettedContainer.Strategy plain = PalettedContainer.Strategy.SECTION_STATES.withConcurrency(ConcurrencyPolicy.PLAIN);
+        if (plain.withConcurrency(ConcurrencyPolicy.LOCK_FREE) != PalettedContainer.Strategy.SECTION_STATES || plain.withConcurrency(ConcurrencyPolicy.PLAIN) != plain) {
+            throw new RuntimeException("Policy variants must be shared, not rebuilt");
+        }
+
+        // a single-threaded stage on plain structures, through every palette width
+        Random random = new Random(23);
+        Block[] expected = new Block[4096];
+        Arrays.fill(expected, BlocksRegister.AIR);
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, ConcurrencyPolicy.PLAIN);
+        container.setCounting(true);
+        for (int n = 0; n < 600; n++) {
+            int index = random.nextInt(4096);
+            expected[index] = BLOCKS.byId(random.nextInt(1 + n / 60));
+            container.set(index & 15, index >>> 8, index >>> 4 & 15, expected[index]);
+        }
+        if (container.getBits() != 4 || !FootprintHistogram.of(List.of(container)).buckets().get(0).palette().equals("LinearPalette")) {
+            throw new RuntimeException("A plain section must use the non-concurrent palettes: " + FootprintHistogram.of(List.of(container)));
+        }
+
+        // shared stage: hand off to lock-free and let writers race on their own layers
+        container.handOff(ConcurrencyPolicy.LOCK_FREE);
+        if (!FootprintHistogram.of(List.of(container)).buckets().get(0).palette().equals("ConcurrentLinearPalette")) {
+            throw new RuntimeException("Hand-off must switch to the concurrent palette");
+        }
+        CompletableFuture<?>[] tasks = new CompletableFuture[4];
+        for (int t = 0; t < tasks.length; t++) {
+            final int y = 12 + t;
+            tasks[t] = CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 256; i++) {
+                    container.set(i & 15, y, i >>> 4, BLOCKS.byId(1 + (i + y) % 40));
+                }
+            });
+        }
+        CompletableFuture.allOf(tasks).join();
+        for (int y = 12; y < 16; y++) {
+            for (int i = 0; i < 256; i++) {
+                expected[y << 8 | (i >>> 4) << 4 | i & 15] = BLOCKS.byId(1 + (i + y) % 40);
+            }
+        }
+
+        // and back to plain for the next single-threaded stage
+        container.handOff(ConcurrencyPolicy.PLAIN);
+        if (container.concurrency() != ConcurrencyPolicy.PLAIN || !FootprintHistogram.of(List.of(container)).buckets().get(0).palette().equals("HashMapPalette")) {
+            throw new RuntimeException("Hand-off back must use the plain palette: " + FootprintHistogram.of(List.of(container)));
+        }
+        Map<Block, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 4096; i++) {
+            if (container.get(i & 15, i >>> 8, i >>> 4 & 15) != expected[i]) {
+                throw new RuntimeException("Hand-off lost index " + i);
+            }
+            counts.merge(expected[i], 1, Integer::sum);
+        }
+        container.count((block, count) -> {
+            if (counts.getOrDefault(block, 0) != count) {
+                throw new RuntimeException("Counts must survive the hand-off, " + block + ": " + count);
+            }
+        });
+
+        // checked: every operation works single-threaded, an overlapping write throws
+        PalettedContainer<Block> checked = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, ConcurrencyPolicy.CHECKED);
+        checked.set(9, 10, 11, BlocksRegister.STONE);
+        checked.getAndSet(1, 2, 4, BlocksRegister.STONE);
+        checked.fill(0, 0, 0, 3, 3, 3, BLOCKS.byId(5));
+        checked.setBatch(new int[]{7, 8}, new Block[]{BLOCKS.byId(6), BLOCKS.byId(7)});
+        checked.compact();
+        checked.setEncodedCaching(true);
+        FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.buffer());
+        checked.write(buf);
+        checked.read(buf);
+        checked.pack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES, PackingScratch.local());
+        if (checked.get(9, 10, 11) != BlocksRegister.STONE || checked.get(0, 0, 0) != BLOCKS.byId(5)) {
+            throw new RuntimeException("Checked section lost a write");
+        }
+
+        checked.acquire();
+        Thread intruder = new Thread(() -> checked.set(9, 9, 9, BlocksRegister.STONE));
+        intruder.setDaemon(true);
+        // the intruder fails too once it gets in; only the owner's report matters here
+        intruder.setUncaughtExceptionHandler((thread, e) -> {
+        });
+        intruder.start();
+        while (intruder.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        try {
+            checked.release();
+            throw new IllegalStateException("An overlapping write must be reported");
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (RuntimeException expectedReport) {
+            System.out.println("Reported: " + expectedReport.getMessage());
+        }
+
+        System.out.println("----Test Concurrency Policy End----");
+    }
+
+    @Test
+    public void testRetainedBytesEstimate() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Retained Bytes Estimate Start----");
+        // JOL reads record fields through Unsafe only with this on
+        System.setProperty("jol.magicFieldOffset", "true");
+
+        // storages own everything they reference, the estimate has to match the layout exactly
+        for (int bits : new int[]{1, 4, 5, 8, 15}) {
+            for (BitStorage storage : List.of(new AtomicSimpleBitStorage(bits, 4096), new SimpleBitStorage(bits, 4096), new ZeroBitStorage(4096))) {
+                checkEstimate(storage.getClass().getSimpleName() + " " + bits + " bits", storage.estimateRetainedBytes(), GraphLayout.parseInstance(storage).totalSize(), 0.0);
+            }
+        }
+
+        // palettes without the registry, the values and the resize handler
+        PaletteResize<Block> resize = (bits, block) -> 0;
+        Object[] shared = {BLOCKS, resize};
+        List<Palette.Factory> factories = List.of(PalettedContainer.Strategy.SINGLE_VALUE_PALETTE_FACTORY, PalettedContainer.Strategy.LINEAR_PALETTE_FACTORY,
+                PalettedContainer.Strategy.HASHMAP_PALETTE_FACTORY, PalettedContainer.Strategy.CONCURRENT_HASHMAP_PALETTE_FACTORY, PalettedContainer.Strategy.LOCK_FREE_HASHMAP_PALETTE_FACTORY,
+                PalettedContainer.Strategy.CONCURRENT_SINGLE_VALUE_PALETTE_FACTORY, PalettedContainer.Strategy.CONCURRENT_LINEAR_PALETTE_FACTORY);
+        for (Palette.Factory factory : factories) {
+            for (int bits : new int[]{0, 4, 8}) {
+                Palette<Block> palette = factory.create(bits, BLOCKS, resize, List.of());
+                for (int id = 1; id <= 1 << bits && id < 100; id++) {
+                    palette.idFor(BLOCKS.byId(id));
+                }
+                checkEstimate(palette.getClass().getSimpleName() + " " + bits + " bits", palette.estimateRetainedBytes(), sizeWithout(palette, shared), 0.0);
+            }
+        }
+
+        // whole sections of every width, with counting and a cached encoding; the 2% cover the global palette
+        // factory, which the section reaches but the test cannot name
+        Object[] sharedBySections = {BLOCKS, PalettedContainer.Strategy.SECTION_STATES, PalettedContainer.StorageFactory.HEAP, "PalettedContainer", UnpooledByteBufAllocator.DEFAULT,
+                PalettedContainer.Strategy.CONCURRENT_SINGLE_VALUE_PALETTE_FACTORY, PalettedContainer.Strategy.CONCURRENT_LINEAR_PALETTE_FACTORY, PalettedContainer.Strategy.LOCK_FREE_HASHMAP_PALETTE_FACTORY};
+        List<PalettedContainer<Block>> sections = new ArrayList<>();
+        Random random = new Random(18);
+        for (int types : new int[]{1, 3, 16, 100, 400}) {
+            for (int variant = 0; variant < 3; variant++) {
+                PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+                container.setCounting(variant == 1);
+                container.setEncodedCaching(variant == 2);
+                for (int i = 0; types > 1 && i < 4096; i++) {
+                    container.set(i & 15, i >>> 8, i >>> 4 & 15, BLOCKS.byId(random.nextInt(types)));
+                }
+                container.encoded().release();
+
+                checkEstimate(types + " types, variant " + variant, container.estimateRetainedBytes(), sizeWithout(container, sharedBySections), 0.02);
+                sections.add(container);
+            }
+        }
+
+        FootprintHistogram histogram = FootprintHistogram.of(sections);
+        long sum = 0;
+        for (PalettedContainer<Block> section : sections) {
+            sum += section.estimateRetainedBytes();
+        }
+        if (histogram.containers() != sections.size() || histogram.totalBytes() != sum || histogram.buckets().size() < 4) {
+            throw new RuntimeException("Histogram does not add up:\n" + histogram);
+        }
+        System.out.print(histogram);
+
+        System.out.println("----Test Retained Bytes Estimate End----");
+    }
+
+    /**
+     * Bytes reachable from {@code root} but not from {@code shared}. Both sides are measured as totals:
+     * GraphLayout.subtract matches addresses, which a GC between two parses invalidates.
+     */
+    private static long sizeWithout(Object root, Object[] shared) {
+        Object[] roots = Arrays.copyOf(shared, shared.length + 1);
+        roots[shared.length] = root;
+        return GraphLayout.parseInstance(roots).totalSize() - GraphLayout.parseInstance(shared).totalSize();
+    }
+
+    private static void checkEstimate(String what, long estimate, long measured, double tolerance) {
+        System.out.printf("%-40s estimate %7d, layout %7d%n", what, estimate, measured);
+        if (Math.abs(estimate - measured) > measured * tolerance) {
+            throw new RuntimeException(what + ": estimated " + estimate + " bytes, the object layout has " + measured);
+        }
+    }
+
+    @Test
+    public void testNetworkRoundTrip() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Network Round Trip Start----");
+
+        Random random = new Random(12);
+        BitSet bits = new BitSet();
+        for (int i = 0; i < 1000; i++) {
+            bits.set(random.nextInt(5000));
+        }
+
+        for (int types : new int[]{1, 13, 100, 400}) {
+            PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+            if (types > 1) {
+                for (int i = 0; i < 4096; i++) {
+                    container.set(i & 15, i >>> 8, i >>> 4 & 15, BLOCKS.byId(random.nextInt(types)));
+                }
+            }
+
+            // heap and direct take the bulk paths, a two-component composite the long-by-long fallback
+            CompositeByteBuf composite = Unpooled.compositeBuffer();
+            composite.addComponent(true, Unpooled.buffer(3, 3));
+            for (ByteBuf buffer : List.of(Unpooled.buffer(), Unpooled.directBuffer(), composite)) {
+                FriendlyByteBuf friendlyByteBuf = new FriendlyByteBuf(buffer);
+                container.write(friendlyByteBuf);
+                friendlyByteBuf.writeBitSet(bits);
+                int longs = bits.toLongArray().length;
+                if (buffer.readableBytes() != container.getSerializedSize() + VarInt.getByteSize(longs) + longs * 8) {
+                    throw new RuntimeException("Wrote " + buffer.readableBytes() + " bytes for a " + container.getSerializedSize() + " byte section");
+                }
+
+                PalettedContainer<Block> read = new PalettedContainer<>(BLOCKS, BlocksRegister.STONE, PalettedContainer.Strategy.SECTION_STATES);
+                read.read(friendlyByteBuf);
+                for (int i = 0; i < 4096; i++) {
+                    if (read.get(i & 15, i >>> 8, i >>> 4 & 15) != container.get(i & 15, i >>> 8, i >>> 4 & 15)) {
+                        throw new RuntimeException(types + " types through " + buffer.getClass().getSimpleName() + " broke index " + i);
+                    }
+                }
+
+                if (!friendlyByteBuf.readBitSet().equals(bits) || buffer.isReadable()) {
+                    throw new RuntimeException("BitSet did not survive " + buffer.getClass().getSimpleName());
+                }
+                buffer.release();
+            }
+        }
+
+        System.out.println("----Test Network Round Trip End----");
+    }
+
+    @Test
+    public void testEncodedCache() {
+        BlocksRegister.init();
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        container.setEncodedCaching(true);
+
+        System.out.println("----Test Encoded Cache Start----");
+
+        Random random = new Random(13);
+        for (int round = 0; round < 30; round++) {
+            for (int n = 0; n < 50; n++) {
+                container.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), BLOCKS.byId(random.nextInt(round < 20 ? 20 : 300)));
+            }
+
+            ByteBuf first = container.encoded();
+            ByteBuf second = container.encoded();
+            container.setEncodedCaching(false);
+            ByteBuf fresh = container.encoded();
+            container.setEncodedCaching(true);
+
+            if (!first.equals(fresh) || !second.equals(fresh) || container.getSerializedSize() != fresh.readableBytes()) {
+                throw new RuntimeException("Cached bytes differ from a fresh encode in round " + round);
+            }
+
+            ByteBuf written = Unpooled.buffer();
+            container.write(new FriendlyByteBuf(written));
+            if (!written.equals(fresh)) {
+                throw new RuntimeException("write() did not serve the cached bytes in round " + round);
+            }
+
+            first.release();
+            second.release();
+            fresh.release();
+            written.release();
+        }
+
+        System.out.println("----Test Encoded Cache End----");
+    }
+
+    @Test
+    public void testEncodedCacheToggle() throws InterruptedException {
+        BlocksRegister.init();
+        PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        container.setEncodedCaching(true);
+
+        System.out.println("----Test Encoded Cache Toggle Start----");
+
+        // encodes that started before caching went off must not be served after it came back on
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread encoder = new Thread(() -> {
+            while (running.get()) {
+                container.encoded().release();
+            }
+        });
+        encoder.start();
+
+        try {
+            Random random = new Random(17);
+            for (int round = 0; round < 2000; round++) {
+                container.encoded().release();
+                container.setEncodedCaching(false);
+                for (int n = 0; n < 5; n++) {
+                    container.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), BLOCKS.byId(random.nextInt(40)));
+                }
+                container.setEncodedCaching(true);
+
+                ByteBuf fresh = Unpooled.buffer();
+                container.snapshot().write(new FriendlyByteBuf(fresh));
+                ByteBuf cached = container.encoded();
+                ByteBuf again = container.encoded();
+                try {
+                    if (!cached.equals(fresh) || !again.equals(fresh)) {
+                        throw new RuntimeException("The cache served bytes from before the writes in round " + round);
+                    }
+                } finally {
+                    fresh.release();
+                    cached.release();
+                    again.release();
+                }
+            }
+        } finally {
+            running.set(false);
+            encoder.join();
+        }
+
+        System.out.println("----Test Encoded Cache Toggle End----");
+    }
+
+    @Test
+    public void testPackRoundTrip() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Pack Round Trip Start----");
+
+        Random random = new Random(14);
+        PackingScratch scratch = new PackingScratch();
+        for (int types : new int[]{1, 2, 13, 100, 400}) {
+            PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+            if (types > 1) {
+                for (int i = 0; i < 4096; i++) {
+                    container.set(i & 15, i >>> 8, i >>> 4 & 15, BLOCKS.byId(random.nextInt(types)));
+                }
+            }
+
+            PalettedContainerRO.PackedData<Block> packed = container.pack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES, scratch);
+            // through the stream adapter as a codec would see it
+            PalettedContainerRO.PackedData<Block> streamed = new PalettedContainerRO.PackedData<>(packed.paletteEntries(), packed.storage());
+            PalettedContainer<Block> unpacked = PalettedContainer.unpack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES, streamed, scratch).getOrThrow();
+
+            for (int i = 0; i < 4096; i++) {
+                if (unpacked.get(i & 15, i >>> 8, i >>> 4 & 15) != container.get(i & 15, i >>> 8, i >>> 4 & 15)) {
+                    throw new RuntimeException("Pack round trip of " + types + " types broke index " + i);
+                }
+            }
+
+            if (!Arrays.equals(unpacked.pack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES).packedStorage(), packed.packedStorage())) {
+                throw new RuntimeException("Packing an unpacked section of " + types + " types is not stable");
+            }
+        }
+
+        PalettedContainerRO.PackedData<Block> truncated = new PalettedContainerRO.PackedData<>(List.of(BlocksRegister.AIR, BlocksRegister.STONE), new long[3]);
+        if (PalettedContainer.unpack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES, truncated, scratch).error().isEmpty()) {
+            throw new RuntimeException("A storage of the wrong length must fail to unpack");
+        }
+
+        // the packed array stays with the caller, however often it is unpacked
+        PalettedContainer<Block> source = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        for (int i = 0; i < 4096; i++) {
+            source.set(i & 15, i >>> 8, i >>> 4 & 15, BLOCKS.byId(i % 5));
+        }
+        PalettedContainerRO.PackedData<Block> shared = source.pack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES, scratch);
+        long[] words = shared.packedStorage().clone();
+        PalettedContainer<Block> first = PalettedContainer.unpack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES, shared, scratch).getOrThrow();
+        PalettedContainer<Block> second = PalettedContainer.unpack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES, shared, scratch).getOrThrow();
+        first.set(0, 0, 0, BlocksRegister.STONE);
+        first.recycle();
+        if (second.get(0, 0, 0) != BlocksRegister.AIR || !Arrays.equals(shared.packedStorage(), words)) {
+            throw new RuntimeException("Unpacked containers share the packed array");
+        }
+
+        // ids past the palette, against a linear and against a global palette
+        long[] linear = new long[256];
+        linear[0] = 5L;
+        PalettedContainerRO.PackedData<Block> pastLinear = new PalettedContainerRO.PackedData<>(List.of(BlocksRegister.AIR, BlocksRegister.STONE), linear);
+        List<Block> many = new ArrayList<>();
+        for (int id = 0; id < 300; id++) {
+            many.add(BLOCKS.byId(id));
+        }
+        long[] global = new long[586];
+        global[0] = 400L;
+        PalettedContainerRO.PackedData<Block> pastGlobal = new PalettedContainerRO.PackedData<>(many, global);
+        for (PalettedContainerRO.PackedData<Block> invalid : List.of(pastLinear, pastGlobal)) {
+            if (PalettedContainer.unpack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES, invalid, scratch).error().isEmpty()) {
+                throw new RuntimeException("Ids outside of a palette of " + invalid.paletteEntries().size() + " entries must fail to unpack");
+            }
+        }
+
+        System.out.println("----Test Pack Round Trip End----");
+    }
+
+    @Test
+    public void testCodecRoundTrip() {
+        BlocksRegister.init();
+        Codec<Block> blockCodec = Codec.INT.xmap(BLOCKS::byId, BLOCKS::getId);
+        Codec<PalettedContainer<Block>> codec = PalettedContainer.codecRW(BLOCKS, blockCodec, PalettedContainer.Strategy.SECTION_STATES, BlocksRegister.AIR);
+        Codec<PalettedContainerRO<Block>> codecRO = PalettedContainer.codecRO(BLOCKS, blockCodec, PalettedContainer.Strategy.SECTION_STATES, BlocksRegister.AIR);
+
+        System.out.println("----Test Codec Round Trip Start----");
+
+        Random random = new Random(15);
+        for (int types : new int[]{1, 13, 100, 400}) {
+            PalettedContainer<Block> container = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+            if (types > 1) {
+                for (int i = 0; i < 4096; i++) {
+                    container.set(i & 15, i >>> 8, i >>> 4 & 15, BLOCKS.byId(random.nextInt(types)));
+                }
+            }
+
+            for (DynamicOps<?> ops : List.of(JsonOps.INSTANCE, JavaOps.INSTANCE)) {
+                PalettedContainer<Block> decoded = roundTrip(codec, ops, container);
+                PalettedContainerRO<Block> decodedRO = roundTrip(codecRO, ops, container);
+                for (int i = 0; i < 4096; i++) {
+                    Block expected = container.get(i & 15, i >>> 8, i >>> 4 & 15);
+                    if (decoded.get(i & 15, i >>> 8, i >>> 4 & 15) != expected || decodedRO.get(i & 15, i >>> 8, i >>> 4 & 15) != expected) {
+                        throw new RuntimeException(types + " types through " + ops + " broke index " + i);
+                    }
+                }
+            }
+        }
+
+        // the storage reaches JavaOps as a primitive long list
+        PalettedContainer<Block> mixed = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        mixed.set(1, 2, 3, BlocksRegister.STONE);
+        Object encoded = codec.encodeStart(JavaOps.INSTANCE, mixed).getOrThrow();
+        if (!(((Map<?, ?>) encoded).get("data") instanceof LongList)) {
+            throw new RuntimeException("JavaOps storage was not encoded as a long list: " + ((Map<?, ?>) encoded).get("data"));
+        }
+
+        System.out.println("----Test Codec Round Trip End----");
+    }
+
+    private static <C, O> C roundTrip(Codec<C> codec, DynamicOps<O> ops, C value) {
+        O encoded = codec.encodeStart(ops, value).getOrThrow();
+        return codec.parse(ops, encoded).getOrThrow();
+    }
+
+    private static void checkCounts(PalettedContainer<Block> container) {
+        Map<Block, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 4096; i++) {
+            expected.merge(container.get(i & 15, i >>> 8, i >>> 4 & 15), 1, Integer::sum);
+        }
+
+        Map<Block, Integer> counted = new HashMap<>();
+        container.count((block, count) -> counted.merge(block, count, Integer::sum));
+        if (!counted.equals(expected)) {
+            throw new RuntimeException("Counts drifted from the contents: " + counted.size() + " counted types, " + expected.size() + " present");
+        }
+
+        Set<Block> all = new HashSet<>();
+        container.getAll(all::add);
+        if (!all.equals(expected.keySet())) {
+            throw new RuntimeException("getAll() returned " + all.size() + " types, " + expected.size() + " present");
+        }
+    }
+
     @Test
     public void runMinuteStressTest() {
         BlocksRegister.init();
@@ -279,6 +1664,7 @@ public class PalettedContainerTest {
         }
 
         System.out.println("Size: " + container.getSerializedSize());
+        System.out.println("Retained: " + container.estimateRetainedBytes());
         System.out.println("---- Test Memory Size End ----");
     }
 
@@ -0,0 +1,551 @@
+import dev.sixik.mcsr.debug_structs.Block;
+import dev.sixik.mcsr.debug_structs.BlocksRegister;
+import dev.sixik.mcsr.rework.chunk.ChunkColumn;
+import dev.sixik.mcsr.rework.chunk.Region;
+import dev.sixik.mcsr.rework.chunk.RegionFile;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainer;
+import dev.sixik.mcsr.rework.paletted_container.PalettedContainerRO;
+import dev.sixik.mcsr.rework.structure.StructureFile;
+import dev.sixik.mcsr.rework.structure.StructurePlacer;
+import dev.sixik.mcsr.rework.structure.StructureTemplate;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+
+import static dev.sixik.mcsr.debug_structs.BlocksRegister.BLOCKS;
+
+public class RegionTest {
+
+    @Test
+    public void testChunkColumn() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Chunk Column Start----");
+
+        // chunk [-2, 3], y from -64 to 320 like an overworld column
+        ChunkColumn<Block> column = new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, -2, 3, -4, 24);
+        if (column.getMinY() != -64 || column.getMaxY() != 320 || column.allocatedSections() != 0) {
+            throw new RuntimeException("Unexpected bounds: " + column);
+        }
+        if (column.getSection(0) != column.getSection(5)) {
+            throw new RuntimeException("Empty sections must share one instance");
+        }
+
+        column.set(-32, -64, 48, BlocksRegister.STONE);
+        column.set(-17, 319, 63, BlocksRegister.DIRT);
+        if (column.get(-32, -64, 48) != BlocksRegister.STONE || column.get(-17, 319, 63) != BlocksRegister.DIRT || column.get(-20, 100, 50) != BlocksRegister.AIR) {
+            throw new RuntimeException("World coordinates map to the wrong block");
+        }
+        if (column.get(-32, -65, 48) != BlocksRegister.AIR || column.get(-32, 320, 48) != BlocksRegister.AIR) {
+            throw new RuntimeException("Outside of the height the column is empty");
+        }
+        if (column.allocatedSections() != 2 || !column.hasSection(-4) || !column.hasSection(19) || column.hasSection(0)) {
+            throw new RuntimeException("Only written sections may be allocated: " + column);
+        }
+        expectOutOfBounds(() -> column.set(-33, 0, 48, BlocksRegister.STONE));
+        expectOutOfBounds(() -> column.set(-32, 320, 48, BlocksRegister.STONE));
+
+        // a box across four sections, partly outside of the column
+        column.fill(-40, -10, 50, -25, 40, 52, BlocksRegister.WOOD);
+        // filling empty space with air allocates nothing
+        column.fill(-32, 100, 48, -17, 200, 63, BlocksRegister.AIR);
+        if (column.allocatedSections() != 6) {
+            throw new RuntimeException("The fill must touch exactly its sections: " + column);
+        }
+
+        int wood = 0;
+        for (int y = -64; y < 320; y++) {
+            for (int z = 48; z < 64; z++) {
+                for (int x = -32; x < -16; x++) {
+                    boolean inside = x <= -25 && y >= -10 && y <= 40 && z >= 50 && z <= 52;
+                    if (inside != (column.get(x, y, z) == BlocksRegister.WOOD)) {
+                        throw new RuntimeException("Fill missed or overran [" + x + ", " + y + ", " + z + "]");
+                    }
+                    if (inside) {
+                        wood++;
+                    }
+                }
+            }
+        }
+
+        Reference2LongMap<Block> counts = column.count();
+        long total = counts.values().longStream().sum();
+        if (total != 24L * 4096 || counts.getLong(BlocksRegister.WOOD) != wood || counts.getLong(BlocksRegister.STONE) != 1 || counts.getLong(BlocksRegister.DIRT) != 1) {
+            throw new RuntimeException("Unexpected counts: " + counts);
+        }
+
+        ChunkColumn<Block> copy = column.copy();
+        copy.set(-32, -64, 48, BlocksRegister.BEDROCK);
+        if (column.get(-32, -64, 48) != BlocksRegister.STONE || copy.get(-17, 319, 63) != BlocksRegister.DIRT || copy.allocatedSections() != column.allocatedSections()) {
+            throw new RuntimeException("A copy must be deep and complete");
+        }
+
+        // 40 types outgrow the copied palette: the copy must resize itself, not the section it came from
+        Block[] before = new Block[4096];
+        for (int i = 0; i < 4096; i++) {
+            before[i] = column.get(-32 + (i & 15), -64 + (i >>> 8), 48 + (i >>> 4 & 15));
+        }
+        ChunkColumn<Block> resized = column.copy();
+        for (int i = 0; i < 4096; i++) {
+            resized.set(-32 + (i & 15), -64 + (i >>> 8), 48 + (i >>> 4 & 15), BLOCKS.byId(5 + i % 40));
+        }
+        for (int i = 0; i < 4096; i++) {
+            if (resized.get(-32 + (i & 15), -64 + (i >>> 8), 48 + (i >>> 4 & 15)) != BLOCKS.byId(5 + i % 40)) {
+                throw new RuntimeException("A resized copy lost the write at " + i);
+            }
+            if (column.get(-32 + (i & 15), -64 + (i >>> 8), 48 + (i >>> 4 & 15)) != before[i]) {
+                throw new RuntimeException("Resizing a copy changed the original at " + i);
+            }
+        }
+
+        System.out.println("----Test Chunk Column End----");
+    }
+
+    @Test
+    public void testRegionParallelOperations() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Region Parallel Operations Start----");
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Region<Block> region = new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, -1, 0, -4, 24, pool);
+            expectOutOfBounds(() -> region.set(0, 0, 0, BlocksRegister.STONE));
+
+            // a box over 3x3 columns and 3 sections, clipped by the region's -x edge at block -1
+            region.fill(-40, 0, 5, 10, 40, 40, BlocksRegister.STONE);
+            if (region.allocatedColumns() != 9 || region.allocatedSections() != 27) {
+                throw new RuntimeException("The fill must touch exactly its sections: " + region);
+            }
+            if (region.get(-1, 40, 40) != BlocksRegister.STONE || region.get(-41, 40, 40) != BlocksRegister.AIR || region.get(-40, 41, 40) != BlocksRegister.AIR) {
+                throw new RuntimeException("Fill bounds are inclusive and clipped to the region");
+            }
+
+            // random writers through every palette width, in parallel with each other
+            Random random = new Random(5);
+            int[][] writes = new int[20000][];
+            for (int n = 0; n < writes.length; n++) {
+                writes[n] = new int[]{-1 - random.nextInt(512), -64 + random.nextInt(384), random.nextInt(512), 5 + random.nextInt(300)};
+            }
+            pool.submit(() -> Arrays.stream(writes).parallel().forEach(w -> region.set(w[0], w[1], w[2], BLOCKS.byId(w[3])))).join();
+            for (int[] w : writes) {
+                Block block = region.get(w[0], w[1], w[2]);
+                // a position written twice may hold either of its values, but never the old one
+                if (block == BlocksRegister.AIR || block == BlocksRegister.STONE) {
+                    throw new RuntimeException("Lost a parallel write at [" + w[0] + ", " + w[1] + ", " + w[2] + "]");
+                }
+            }
+
+            AtomicInteger visited = new AtomicInteger();
+            Map<Thread, Boolean> threads = new ConcurrentHashMap<>();
+            region.forEachSection((sectionX, sectionY, sectionZ, section) -> {
+                visited.incrementAndGet();
+                threads.put(Thread.currentThread(), true);
+                if (Region.toRegionCoord(sectionX) != -1 || Region.toRegionCoord(sectionZ) != 0 || sectionY < -4 || sectionY >= 20) {
+                    throw new RuntimeException("Section outside of the region: " + sectionX + ", " + sectionY + ", " + sectionZ);
+                }
+            });
+            if (visited.get() != region.allocatedSections()) {
+                throw new RuntimeException("Every written section must be visited once, got " + visited + " of " + region.allocatedSections());
+            }
+            System.out.println(region + " visited on " + threads.size() + " threads");
+
+            Reference2LongMap<Block> counts = region.count();
+            long total = counts.values().longStream().sum();
+            if (total != 32L * 32 * 24 * 4096) {
+                throw new RuntimeException("The count must cover the whole region, got " + total);
+            }
+
+            Region<Block> copy = region.copy();
+            Reference2LongMap<Block> copied = copy.count();
+            if (!copied.equals(counts) || copy.allocatedSections() != region.allocatedSections()) {
+                throw new RuntimeException("A copy must hold the same blocks");
+            }
+            copy.fill(-512, -64, 0, -1, 319, 511, BlocksRegister.AIR);
+            if (copy.count().getLong(BlocksRegister.AIR) != total || !region.count().equals(counts)) {
+                throw new RuntimeException("Clearing the copy must not touch the original");
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        System.out.println("----Test Region Parallel Operations End----");
+    }
+
+    @Test
+    public void testStructurePlacement() {
+        BlocksRegister.init();
+
+        System.out.println("----Test Structure Placement Start----");
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // a 40x30x40 building with 120 block types, overlapping itself, a 3x3 stone floor in one corner
+            StructureTemplate.Builder<Block> builder = StructureTemplate.builder();
+            Random random = new Random(22);
+            for (int n = 0; n < 30000; n++) {
+                builder.add(random.nextInt(40), 1 + random.nextInt(29), random.nextInt(40), BLOCKS.byId(5 + random.nextInt(120)));
+            }
+            builder.fill(0, 0, 0, 2, 0, 2, BlocksRegister.STONE);
+            StructureTemplate<Block> template = builder.build();
+
+            // the origin puts the template across the region's +x edge and its top
+            Region<Block> placed = new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 0, 0, -4, 24, pool);
+            Region<Block> expected = new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 0, 0, -4, 24, pool);
+            int originX = 500, originY = 300, originZ = 7;
+            StructurePlacer.Placement placement = new StructurePlacer<>(placed).place(template, originX, originY, originZ);
+            System.out.println(placement);
+
+            int clipped = 0;
+            for (int b = 0; b < template.blockCount(); b++) {
+                int x = originX + template.x(b), y = originY + template.y(b), z = originZ + template.z(b);
+                if (x >= 512 || y >= 320) {
+                    clipped++;
+                } else {
+                    expected.set(x, y, z, template.value(b));
+                }
+            }
+            if (placement.clipped() != clipped || placement.blocks() != template.blockCount() - clipped) {
+                throw new RuntimeException("Unexpected clipping: " + placement + ", expected " + clipped + " clipped");
+            }
+            if (placed.allocatedSections() != expected.allocatedSections() || placement.sections() != placed.allocatedSections()) {
+                throw new RuntimeException("The placement must touch exactly its sections: " + placed + " vs " + expected);
+            }
+            for (int y = 300; y < 320; y++) {
+                for (int z = 7; z < 47; z++) {
+                    for (int x = 500; x < 512; x++) {
+                        if (placed.get(x, y, z) != expected.get(x, y, z)) {
+                            throw new RuntimeException("Placement differs from sequential writes at [" + x + ", " + y + ", " + z + "]");
+                        }
+                    }
+                }
+            }
+
+            // a section that only gets the floor keeps a palette of its own values, not the template's
+            Region<Block> floor = new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 0, 0, -4, 24, pool);
+            new StructurePlacer<>(floor).place(template, 14, 15, 14);
+            if (floor.getColumn(1, 1).getOrCreateSection(0).getBits() > 4 || floor.get(16, 15, 16) != BlocksRegister.STONE) {
+                throw new RuntimeException("The floor section took the whole template palette: " + floor.getColumn(1, 1).getOrCreateSection(0).getBits() + " bits");
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        System.out.println("----Test Structure Placement End----");
+    }
+
+    @Test
+    public void testStructureFile(@TempDir Path directory) throws IOException {
+        BlocksRegister.init();
+
+        System.out.println("----Test Structure File Start----");
+
+        // template sections: 40 random types, a uniform one, and one that is void apart from a dirt pillar
+        Block voidBlock = BlocksRegister.BEDROCK;
+        @SuppressWarnings("unchecked")
+        PalettedContainer<Block>[] sections = (PalettedContainer<Block>[]) new PalettedContainer<?>[3];
+        int[][] positions = {{0, 0, 0}, {1, 0, 0}, {0, 1, 1}};
+        Random random = new Random(23);
+        sections[0] = new PalettedContainer<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES);
+        for (int i = 0; i < 4096; i++) {
+            sections[0].set(i & 15, i >>> 8, i >>> 4 & 15, BLOCKS.byId(5 + random.nextInt(40)));
+        }
+        sections[1] = new PalettedContainer<>(BLOCKS, BlocksRegister.STONE, PalettedContainer.Strategy.SECTION_STATES);
+        sections[2] = new PalettedContainer<>(BLOCKS, voidBlock, PalettedContainer.Strategy.SECTION_STATES);
+        for (int y = 0; y < 16; y++) {
+            sections[2].set(3, y, 4, BlocksRegister.DIRT);
+        }
+
+        StructureFile.Writer<Block> writer = StructureFile.writer(BLOCKS, PalettedContainer.Strategy.SECTION_STATES, voidBlock);
+        for (int n = 0; n < sections.length; n++) {
+            writer.add(positions[n][0], positions[n][1], positions[n][2], sections[n].pack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES));
+        }
+        Path path = directory.resolve("template.mcst");
+        writer.write(path);
+
+        StructureFile<Block> file = StructureFile.open(path, BLOCKS);
+        if (file.sectionCount() != 3 || file.getSizeX() != 32 || file.getSizeY() != 32 || file.getSizeZ() != 32) {
+            throw new RuntimeException("Unexpected header: " + file);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // aligned, unaligned, and unaligned through the top of the columns
+            int[][] origins = {{32, 0, 48}, {37, -9, 21}, {5, 300, 5}};
+            for (int[] origin : origins) {
+                Region<Block> region = new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 0, 0, -4, 24, pool);
+                StructurePlacer.Placement placement = file.place(region, origin[0], origin[1], origin[2]);
+                System.out.println(placement);
+
+                int written = 0, clipped = 0;
+                for (int n = 0; n < sections.length; n++) {
+                    for (int i = 0; i < 4096; i++) {
+                        int x = i & 15, y = i >>> 8, z = i >>> 4 & 15;
+                        Block block = sections[n].get(x, y, z);
+                        int worldX = origin[0] + positions[n][0] * 16 + x, worldY = origin[1] + positions[n][1] * 16 + y, worldZ = origin[2] + positions[n][2] * 16 + z;
+                        if (worldY >= 320) {
+                            clipped += block == voidBlock ? 0 : 1;
+                            continue;
+                        }
+                        Block expected = block == voidBlock ? BlocksRegister.AIR : block;
+                        if (region.get(worldX, worldY, worldZ) != expected) {
+                            throw new RuntimeException("Mapped placement differs at [" + worldX + ", " + worldY + ", " + worldZ + "] for origin " + Arrays.toString(origin));
+                        }
+                        written += block == voidBlock ? 0 : 1;
+                    }
+                }
+                if (placement.blocks() != written || placement.clipped() != clipped) {
+                    throw new RuntimeException("Unexpected tally " + placement + ", expected " + written + " written and " + clipped + " clipped");
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        try {
+            writer.add(1, 0, 0, sections[1].pack(BLOCKS, PalettedContainer.Strategy.SECTION_STATES));
+            throw new RuntimeException("A section position may only be added once");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // the writer copies words as they are; an id past the section palette must fail on open, not on place
+        int bits = PalettedContainer.Strategy.SECTION_STATES.calculateBitsForSerialization(BLOCKS, 2);
+        long[] words = new long[4096 / (64 / bits)];
+        words[7] = (1L << bits) - 1L;
+        Path corrupt = directory.resolve("corrupt.mcst");
+        StructureFile.writer(BLOCKS, PalettedContainer.Strategy.SECTION_STATES)
+                .add(0, 0, 0, new PalettedContainerRO.PackedData<>(List.of(BlocksRegister.AIR, BlocksRegister.STONE), words))
+                .write(corrupt);
+        try {
+            throw new RuntimeException("A packed id outside of its palette must not open: " + StructureFile.open(corrupt, BLOCKS));
+        } catch (IOException expected) {
+        }
+
+        System.out.println("----Test Structure File End----");
+    }
+
+    @Test
+    public void testRegionFile(@TempDir Path directory) throws IOException, InterruptedException {
+        BlocksRegister.init();
+
+        System.out.println("----Test Region File Start----");
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // region [1, -1]: a filled box, random blocks, and one section past 256 types (global palette)
+            Region<Block> region = new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 1, -1, -4, 24, pool);
+            region.fill(552, -64, -500, 602, 10, -460, BlocksRegister.STONE);
+            Random random = new Random(24);
+            for (int n = 0; n < 20000; n++) {
+                region.set(512 + random.nextInt(512), -64 + random.nextInt(384), -512 + random.nextInt(512), BLOCKS.byId(5 + random.nextInt(60)));
+            }
+            for (int i = 0; i < 4096; i++) {
+                region.set(512 + (i & 15), 100 + (i >>> 8), -512 + (i >>> 4 & 15), BLOCKS.byId(5 + i % 300));
+            }
+
+            Path path = directory.resolve("r.1.-1.mcsr");
+            try (RegionFile<Block> file = RegionFile.open(path, BLOCKS, 1, -1)) {
+                file.save(region);
+                file.flush();
+            }
+
+            Region<Block> loaded = new Region<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 1, -1, -4, 24, pool);
+            try (RegionFile<Block> file = RegionFile.open(path, BLOCKS, 1, -1)) {
+                if (file.load(loaded) != region.allocatedColumns() || loaded.allocatedSections() != region.allocatedSections()) {
+                    throw new RuntimeException("Not every column came back: " + loaded + " vs " + region);
+                }
+                if (!loaded.count().equals(region.count())) {
+                    throw new RuntimeException("Loaded blocks differ");
+                }
+                for (int i = 0; i < 4096; i++) {
+                    if (loaded.get(512 + (i & 15), 100 + (i >>> 8), -512 + (i >>> 4 & 15)) != BLOCKS.byId(5 + i % 300)) {
+                        throw new RuntimeException("Global palette section differs at " + i);
+                    }
+                }
+
+                // saving over and over reuses the freed sectors instead of growing the file
+                int sectors = file.fileSectors();
+                for (int round = 0; round < 5; round++) {
+                    region.set(513, 0, -511, BLOCKS.byId(5 + round));
+                    file.save(region);
+                }
+                if (file.fileSectors() > 2 * sectors) {
+                    throw new RuntimeException("Rewrites leak sectors: " + sectors + " -> " + file.fileSectors());
+                }
+
+                // a reader only ever sees one complete version of a column being rewritten
+                ChunkColumn<Block> stone = new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 40, -20, -4, 24);
+                ChunkColumn<Block> mixed = new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 40, -20, -4, 24);
+                stone.fill(640, -64, -320, 655, 319, -305, BlocksRegister.STONE);
+                for (int n = 0; n < 5000; n++) {
+                    mixed.set(640 + random.nextInt(16), -64 + random.nextInt(384), -320 + random.nextInt(16), BLOCKS.byId(5 + random.nextInt(200)));
+                }
+                Reference2LongMap<Block> stoneCounts = stone.count(), mixedCounts = mixed.count();
+                file.save(stone);
+
+                Thread writer = new Thread(() -> {
+                    try {
+                        for (int n = 0; n < 200; n++) {
+                            file.save(n % 2 == 0 ? mixed : stone);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                writer.start();
+                int reads = 0;
+                while (writer.isAlive() || reads < 10) {
+                    ChunkColumn<Block> read = new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 40, -20, -4, 24);
+                    file.load(read);
+                    Reference2LongMap<Block> counts = read.count();
+                    if (!counts.equals(stoneCounts) && !counts.equals(mixedCounts)) {
+                        throw new RuntimeException("Read a torn column");
+                    }
+                    reads++;
+                }
+                writer.join();
+                System.out.println(reads + " reads during 200 saves, " + file);
+
+                if (!file.delete(40, -20) || file.contains(40, -20) || file.load(new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 40, -20, -4, 24))) {
+                    throw new RuntimeException("A deleted column must be gone");
+                }
+            }
+
+            // a flipped payload byte is caught by the checksum
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer entry = ByteBuffer.allocate(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+                channel.read(entry, 0);
+                long sector = entry.getLong(0) >>> 32;
+                ByteBuffer one = ByteBuffer.allocate(1);
+                channel.read(one, sector * RegionFile.SECTOR_BYTES + 20);
+                one.put(0, (byte) ~one.get(0)).rewind();
+                channel.write(one, sector * RegionFile.SECTOR_BYTES + 20);
+            }
+            try (RegionFile<Block> file = RegionFile.open(path, BLOCKS, 1, -1)) {
+                file.load(new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 32, -32, -4, 24));
+                throw new RuntimeException("A corrupt column must not load");
+            } catch (IOException expected) {
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        System.out.println("----Test Region File End----");
+    }
+
+    @Test
+    public void testRegionFileTornPayload(@TempDir Path directory) throws IOException {
+        BlocksRegister.init();
+
+        System.out.println("----Test Region File Torn Payload Start----");
+
+        ChunkColumn<Block> stone = new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 32, -32, -4, 24);
+        ChunkColumn<Block> mixed = new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 33, -32, -4, 24);
+        stone.fill(512, -64, -512, 527, 40, -497, BlocksRegister.STONE);
+        Random random = new Random(7);
+        for (int n = 0; n < 5000; n++) {
+            mixed.set(528 + random.nextInt(16), -64 + random.nextInt(384), -512 + random.nextInt(16), BLOCKS.byId(5 + random.nextInt(200)));
+        }
+        Reference2LongMap<Block> mixedCounts = mixed.count();
+
+        // saves are durable without flush(): replacing a column forces its payload before the table entry
+        Path path = directory.resolve("r.1.-1.mcsr");
+        try (RegionFile<Block> file = RegionFile.open(path, BLOCKS, 1, -1)) {
+            file.save(stone);
+            file.save(mixed);
+            stone.set(512, 100, -512, BlocksRegister.DIRT);
+            file.save(stone);
+        }
+        Reference2LongMap<Block> stoneCounts = stone.count();
+        try (RegionFile<Block> file = RegionFile.open(path, BLOCKS, 1, -1)) {
+            ChunkColumn<Block> read = new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 32, -32, -4, 24);
+            ChunkColumn<Block> readMixed = new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 33, -32, -4, 24);
+            if (!file.load(read) || !read.count().equals(stoneCounts) || !file.load(readMixed) || !readMixed.count().equals(mixedCounts)) {
+                throw new RuntimeException("Columns did not survive without a flush");
+            }
+        }
+
+        // the second half of the mixed payload never reached the disk
+        long entry;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer table = ByteBuffer.allocate(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            channel.read(table, 8);
+            entry = table.getLong(0);
+            int length = (int) entry;
+            channel.write(ByteBuffer.allocate(length - length / 2), (entry >>> 32) * RegionFile.SECTOR_BYTES + length / 2);
+        }
+        try (RegionFile<Block> file = RegionFile.open(path, BLOCKS, 1, -1)) {
+            try {
+                file.load(new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 33, -32, -4, 24));
+                throw new RuntimeException("A torn column must not load");
+            } catch (IOException expected) {
+            }
+
+            ChunkColumn<Block> read = new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 32, -32, -4, 24);
+            if (!file.load(read) || !read.count().equals(stoneCounts)) {
+                throw new RuntimeException("A torn column broke its neighbour");
+            }
+        }
+
+        // a payload that checks out but whose raw bytes stop after the section count
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            byte[] raw = ByteBuffer.allocate(4).order(java.nio.ByteOrder.LITTLE_ENDIAN).putInt(0, 1).array();
+            Deflater deflater = new Deflater();
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] compressed = new byte[64];
+            int compressedLength = deflater.deflate(compressed);
+            deflater.end();
+            CRC32C crc = new CRC32C();
+            crc.update(compressed, 0, compressedLength);
+
+            ByteBuffer payload = ByteBuffer.allocate(8 + compressedLength).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            payload.putInt(raw.length).putInt((int) crc.getValue()).put(compressed, 0, compressedLength).flip();
+            long sector = (channel.size() + RegionFile.SECTOR_BYTES - 1) / RegionFile.SECTOR_BYTES;
+            channel.write(payload, sector * RegionFile.SECTOR_BYTES);
+            channel.write(ByteBuffer.allocate(8).order(java.nio.ByteOrder.LITTLE_ENDIAN).putLong(0, sector << 32 | 8 + compressedLength), 16);
+        }
+        try (RegionFile<Block> file = RegionFile.open(path, BLOCKS, 1, -1)) {
+            try {
+                file.load(new ChunkColumn<>(BLOCKS, BlocksRegister.AIR, PalettedContainer.Strategy.SECTION_STATES, 34, -32, -4, 24));
+                throw new RuntimeException("A column that ends inside a section must not load");
+            } catch (IOException expected) {
+            }
+        }
+
+        // the file ends inside the mixed payload
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.truncate((entry >>> 32) * RegionFile.SECTOR_BYTES + (int) entry / 2);
+        }
+        try (RegionFile<Block> file = RegionFile.open(path, BLOCKS, 1, -1)) {
+            throw new RuntimeException("A truncated file must not open: " + file);
+        } catch (IOException expected) {
+        }
+
+        System.out.println("----Test Region File Torn Payload End----");
+    }
+
+    private static void expectOutOfBounds(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (IndexOutOfBoundsException expected) {
+            return;
+        }
+        throw new RuntimeException("Expected an IndexOutOfBoundsException");
+    }
+}